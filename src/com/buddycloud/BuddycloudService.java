@@ -1,7 +1,11 @@
 package com.buddycloud;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
 
 import org.jivesoftware.smack.packet.IQ;
 import org.jivesoftware.smack.packet.Packet;
@@ -11,7 +15,6 @@ import org.jivesoftware.smackx.packet.DiscoverInfo;
 
 import android.content.ContentValues;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.database.Cursor;
 import android.os.IBinder;
@@ -30,12 +33,14 @@ import com.buddycloud.content.BuddyCloud.Roster;
 import com.buddycloud.jbuddycloud.packet.BeaconLog;
 import com.buddycloud.jbuddycloud.packet.ChannelFetch;
 import com.buddycloud.jbuddycloud.packet.RSMSet;
+import com.googlecode.asmack.Attribute;
 import com.googlecode.asmack.Stanza;
 import com.googlecode.asmack.StanzaSink;
 import com.googlecode.asmack.XMPPUtils;
 import com.googlecode.asmack.XmppAccount;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.XmppIdentity;
+import com.googlecode.asmack.client.AsmackClient;
 import com.googlecode.asmack.client.AsmackClientService;
 import com.googlecode.asmack.connection.AccountConnection;
 import com.googlecode.asmack.connection.Connection;
@@ -63,6 +68,13 @@ public class BuddycloudService extends AsmackClientService {
      */
     static final String TAG = BuddycloudService.class.getSimpleName();
 
+    /**
+     * Boolean start intent extra carrying the visibility of the user
+     * interface, see {@link com.buddycloud.view.ClientVisibility}.
+     */
+    public static final String EXTRA_CLIENT_ACTIVE =
+                                            "com.buddycloud.CLIENT_ACTIVE";
+
     /**
      * The cell change listener. The cell listener recognizes cell changes and
      * informs the service about new scan results.
@@ -76,14 +88,32 @@ public class BuddycloudService extends AsmackClientService {
     private NetworkListener networkListener = null;
 
     /**
-     * A short task queue for internal command needs.
+     * The internal time tick counter.
      */
-    private TaskQueueThread taskQueue;
+    private int tick = 0;
 
     /**
-     * The internal time tick counter.
+     * The channel server receiving our directed presence.
      */
-    private int tick = 0;
+    private static final String BROADCASTER = "broadcaster.buddycloud.com";
+
+    /**
+     * Map of {bare account jid} => {session that sent the directed
+     * presence}. Resumed sessions inherit the presence of their account.
+     */
+    private final HashMap<String, Connection> directedPresence =
+                                        new HashMap<String, Connection>();
+
+    /**
+     * Number of requested directed presences suppressed because the
+     * session had already announced it.
+     */
+    private long directedPresenceSuppressed = 0;
+
+    /**
+     * Lock guarding the directed presence state.
+     */
+    private final Object directedPresenceLock = new Object();
 
     /**
      * Create a new buddycloud service, initialize the required platform
@@ -96,10 +126,12 @@ public class BuddycloudService extends AsmackClientService {
         cellListener = new CellListener(this);
         networkListener = new NetworkListener(this);
         cellListener.start();
-        getApplicationContext().registerReceiver(
-            new TimeBroadcastReceiver(this),
-            new IntentFilter("android.intent.action.TIME_TICK")
-        );
+        scheduler.scheduleAtFixedRate("buddycloud/tick", new Runnable() {
+            @Override
+            public void run() {
+                onTimeTick();
+            }
+        }, 60 * 1000);
     }
 
     /**
@@ -107,45 +139,89 @@ public class BuddycloudService extends AsmackClientService {
      */
     private long beaconLogTimer;
 
+    /**
+     * Lock guarding the beacon log state.
+     */
+    private final Object beaconLogLock = new Object();
+
     /**
      * Internal priority tracks the minimum priority since the last beacon
      * log send.
      */
     private int internalPriority;
 
+    /**
+     * The most urgent priority of all coalesced beacon log requests,
+     * {@link Integer#MAX_VALUE} if none is pending.
+     */
+    private int pendingPriority = Integer.MAX_VALUE;
+
+    /**
+     * True after the service has been destroyed.
+     */
+    private volatile boolean destroyed = false;
+
+    /**
+     * The beacon log task, coalesced on the scheduler.
+     */
+    private final Runnable beaconLogTask = new Runnable() {
+        public void run() {
+            synchronized (beaconLogLock) {
+                int priority = pendingPriority;
+                pendingPriority = Integer.MAX_VALUE;
+                if (priority != Integer.MAX_VALUE) {
+                    sendBeaconLogNow(priority);
+                }
+            }
+        }
+    };
+
     /**
      * Send a beacon log. Priority is 0..10, with 0 meaning instant and
-     * 10 meaning "if 3 min. have passed".
+     * 10 meaning "if 3 min. have passed". Requests are coalesced, keeping
+     * the most urgent priority.
      * @param prio The priority of sending the colleciton.
-     * @throws InterruptedException 
+     * @return True if a beacon log was scheduled, false if the last beacon
+     *         log is too recent or the service is shutting down.
      */
-    public boolean sendBeaconLog(final int prio)
-        throws InterruptedException
-    {
-        final int priority = Math.min(internalPriority, prio);
-        if (taskQueue == null) {
+    public boolean sendBeaconLog(int prio) {
+        if (destroyed) {
             return false;
         }
-        return taskQueue.add(new Runnable() {
-            public void run() {
-                long now = System.currentTimeMillis();
-                long delta = now - beaconLogTimer;
-                if (delta < 30000 * priority) {
-                    return;
-                }
-                if (delta < 10000) {
-                    internalPriority = priority;
-                    return;
-                }
-                internalPriority = 10;
-                beaconLogTimer = now;
-                BeaconLog log = new BeaconLog();
-                log.setTo("butler.buddycloud.com");
-                cellListener.appendTo(log);
-                networkListener.appendTo(log);
-                client.sendFromAllResources(log);
+        synchronized (beaconLogLock) {
+            int priority = Math.min(internalPriority, prio);
+            long delta = System.currentTimeMillis() - beaconLogTimer;
+            if (delta < 30000l * priority) {
+                return false;
             }
-        });
+            pendingPriority = Math.min(pendingPriority, priority);
+        }
+        scheduler.schedule("buddycloud/beacon-log", beaconLogTask, 0, 0);
+        return true;
+    }
+
+    /**
+     * Send the beacon log unless the last one is too recent for the given
+     * priority. Must be called with the beacon log lock held.
+     * @param priority The effective priority.
+     */
+    private void sendBeaconLogNow(int priority) {
+        long now = System.currentTimeMillis();
+        long delta = now - beaconLogTimer;
+        if (delta < 30000l * priority) {
+            return;
+        }
+        if (delta < 10000) {
+            internalPriority = priority;
+            return;
+        }
+        internalPriority = 10;
+        beaconLogTimer = now;
+        BeaconLog log = new BeaconLog();
+        log.setTo("butler.buddycloud.com");
+        cellListener.appendTo(log);
+        networkListener.appendTo(log);
+        client.sendFromAllResources(log);
     }
 
     /**
@@ -228,7 +304,8 @@ public class BuddycloudService extends AsmackClientService {
     }
 
     /**
-     * Start the buddycloud service and the internal task queue.
+     * Start the buddycloud service and the internal task queue, or apply
+     * the client state reported by the user interface.
      * @param intent The start intent.
      * @param startId The start id.
      */
@@ -236,10 +313,9 @@ public class BuddycloudService extends AsmackClientService {
     public void onStart(Intent intent, int startId) {
         Log.d(TAG, " onStart");
         super.onStart(intent, startId);
-
-        if (taskQueue == null) {
-            taskQueue = new TaskQueueThread();
-            taskQueue.start();
+        if (intent != null && intent.hasExtra(EXTRA_CLIENT_ACTIVE)) {
+            setClientActive(intent.getBooleanExtra(EXTRA_CLIENT_ACTIVE, true));
+            return;
         }
 
         cellListener.start();
@@ -252,12 +328,12 @@ public class BuddycloudService extends AsmackClientService {
     @Override
     public void onDestroy() {
         Log.d(TAG, " onDestroy");
+        destroyed = true;
+        scheduler.cancel("buddycloud/tick");
+        scheduler.cancel("buddycloud/beacon-log");
         super.onDestroy();
 
         cellListener.stop();
-
-        taskQueue.stopQueue();
-        taskQueue = null;
     }
 
     /**
@@ -367,7 +443,7 @@ public class BuddycloudService extends AsmackClientService {
                     feature,
                     null
                 );
-                JID_VERIFICATION_CACHE.remove(jid);
+                invalidateVerification(jid);
             }
 
             /**
@@ -382,7 +458,7 @@ public class BuddycloudService extends AsmackClientService {
                     feature,
                     null
                 );
-                JID_VERIFICATION_CACHE.clear();
+                invalidateVerifications();
             }
 
             /**
@@ -400,7 +476,7 @@ public class BuddycloudService extends AsmackClientService {
                     identity,
                     null
                 );
-                JID_VERIFICATION_CACHE.remove(jid);
+                invalidateVerification(jid);
             }
 
             /**
@@ -416,7 +492,7 @@ public class BuddycloudService extends AsmackClientService {
                     identity,
                     null
                 );
-                JID_VERIFICATION_CACHE.clear();
+                invalidateVerifications();
             }
 
             /**
@@ -464,6 +540,26 @@ public class BuddycloudService extends AsmackClientService {
                 return resources.toArray(new String[resources.size()]);
             }
 
+            /**
+             * Reload cached contact data rows after a roster sync.
+             */
+            @Override
+            public void contactsChanged() throws RemoteException {
+                BuddycloudService.this.contactsChanged();
+            }
+
+            /**
+             * Check for roster versioning support of an account.
+             * @param jid The account jid.
+             * @return True if roster versioning is supported.
+             */
+            @Override
+            public boolean isRosterVersioningSupported(String jid)
+                throws RemoteException
+            {
+                return BuddycloudService.this.isRosterVersioningSupported(jid);
+            }
+
         };
 
     @Override
@@ -547,22 +643,144 @@ public class BuddycloudService extends AsmackClientService {
     }
 
     /**
-     * Send a direct presence to the channel server.
+     * Send a direct presence to the channel server from all connected
+     * sessions that did not announce it yet. Sessions that already did are
+     * counted as suppressed duplicates.
      */
     public void sendDirectedPresence() {
+        announceDirectedPresence(true);
+    }
+
+    /**
+     * Send a directed presence to the channel server if a new session did
+     * not yet announce it. Resumed sessions keep their directed presence.
+     */
+    public void updateDirectedPresence() {
+        announceDirectedPresence(false);
+    }
+
+    /**
+     * Send the directed presence from every connected session that has not
+     * announced it, once the channel roster has rows. A session counts as
+     * announced only after the send succeeded, so an empty roster or a
+     * failed send is retried with the next tick.
+     * @param requested True if the presence was explicitly requested.
+     */
+    private void announceDirectedPresence(boolean requested) {
+        synchronized (directedPresenceLock) {
+            ArrayList<Connection> pending = new ArrayList<Connection>();
+            for (Connection connection: getConnectedConnections()) {
+                String jid = XMPPUtils.getBareJid(connection.getResourceJid());
+                Connection announced = directedPresence.get(jid);
+                if (announced == connection) {
+                    if (requested) {
+                        directedPresenceSuppressed++;
+                    }
+                } else if (announced != null && connection.isResumed()) {
+                    directedPresence.put(jid, connection);
+                } else {
+                    pending.add(connection);
+                }
+            }
+            if (pending.size() == 0 || !hasChannelRoster()) {
+                return;
+            }
+            for (Connection connection: pending) {
+                Presence presence = new Presence(Type.available);
+                presence.setTo(BROADCASTER);
+                Stanza stanza = AsmackClient.toStanza(presence, null);
+                stanza.addAttribute(
+                    new Attribute("from", "", connection.getResourceJid())
+                );
+                try {
+                    connection.send(stanza);
+                    directedPresence.put(
+                        XMPPUtils.getBareJid(connection.getResourceJid()),
+                        connection);
+                } catch (XmppException e) {
+                    Log.w(TAG, "Directed presence failed", e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forget the directed presence of an account after the channel server
+     * asked for it (probe) or went away (unavailable). A probe is answered
+     * right away, otherwise the presence is sent with the next tick.
+     * @param stanza The presence received from the channel server.
+     */
+    private void expireDirectedPresence(Stanza stanza) {
+        String type = stanza.getAttributeValue("type");
+        boolean probe = "probe".equals(type);
+        if (!probe && !"unavailable".equals(type)) {
+            return;
+        }
+        Log.d(TAG, "Directed presence " + type + " on " + stanza.getVia());
+        synchronized (directedPresenceLock) {
+            directedPresence.remove(XMPPUtils.getBareJid(stanza.getVia()));
+        }
+        if (probe) {
+            updateDirectedPresence();
+        }
+    }
+
+    /**
+     * Check if the channel roster has any rows.
+     * @return boolean True if the roster is not empty.
+     */
+    private boolean hasChannelRoster() {
         Cursor cursor = getContentResolver().query(
             Roster.CONTENT_URI,
             new String[]{Roster.LAST_UPDATED},
             null, null, "last_updated desc"
         );
-        if (cursor.moveToFirst()) {
-            long after = cursor.getLong(
-                    cursor.getColumnIndex(Roster.LAST_UPDATED));
-            Presence presence = new Presence(Type.available);
-            presence.setTo("broadcaster.buddycloud.com");
-            client.sendFromAllResources(presence);
+        try {
+            return cursor.moveToFirst();
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Retrieve the number of directed presences suppressed as duplicates.
+     * @return long The number of suppressed directed presences.
+     */
+    public long getDirectedPresenceSuppressed() {
+        synchronized (directedPresenceLock) {
+            return directedPresenceSuppressed;
         }
-        cursor.close();
+    }
+
+    /**
+     * Dump the client state plus the directed presence statistics.
+     * @param fd The raw file descriptor.
+     * @param writer The output writer.
+     * @param args Additional dump arguments (ignored).
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        writer.println("Directed presence suppressed="
+            + getDirectedPresenceSuppressed());
+    }
+
+    /**
+     * Retrieve all connections of connected accounts.
+     * @return HashSet<Connection> The current connections.
+     */
+    private HashSet<Connection> getConnectedConnections() {
+        HashSet<Connection> result = new HashSet<Connection>();
+        for (AccountConnection state: connections.values()) {
+            if (state.getCurrentState() != AccountConnection.State.Connected) {
+                continue;
+            }
+            Connection connection = state.getConnection();
+            if (connection != null) {
+                result.add(connection);
+            }
+        }
+        return result;
     }
 
     /**
@@ -570,18 +788,33 @@ public class BuddycloudService extends AsmackClientService {
      */
     public void onTimeTick() {
         tick++;
-        try {
-            sendBeaconLog(10);
-        } catch (InterruptedException e) {
+        sendBeaconLog(10);
+        updateDirectedPresence();
+    }
+
+    /**
+     * Receive a stanza, watching for presences of the channel server.
+     * @param stanza The received stanza.
+     */
+    @Override
+    public void receive(Stanza stanza) {
+        super.receive(stanza);
+        if (!"presence".equals(stanza.getName()) || stanza.getVia() == null) {
+            return;
         }
-        if (tick % 10 == 0) {
-            sendDirectedPresence();
+        String from = stanza.getAttributeValue("from");
+        if (from != null && BROADCASTER.equals(XMPPUtils.getBareJid(from))) {
+            expireDirectedPresence(stanza);
         }
     }
 
     @Override
     public void onConnectionConnected(AccountConnection accountConnection) {
         super.onConnectionConnected(accountConnection);
+        if (accountConnection.getConnection().isResumed()) {
+            // the resumed session replays everything we missed
+            return;
+        }
         new com.buddycloud.content.ChannelSync(this, accountConnection.getAccount());
     }
 
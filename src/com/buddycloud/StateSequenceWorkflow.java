@@ -34,7 +34,8 @@ public abstract class StateSequenceWorkflow implements PacketListener {
     protected int sequence = 0;
 
     /**
-     * The callback ttl.
+     * The maximum callback ttl, the actual ttl adapts to the observed reply
+     * times of the request namespace.
      */
     protected long ttl = 60*1000;
 
@@ -72,7 +73,13 @@ public abstract class StateSequenceWorkflow implements PacketListener {
 
     public void send(Packet packet, int i) {
         sequence = i;
-        client.sendWithCallback(packet, via, this, ttl);
+        client.sendWithCallback(
+            packet,
+            via,
+            this,
+            AsmackClient.MIN_REPLY_TIMEOUT,
+            ttl
+        );
     }
 
     private void error(RemoteException e) {
@@ -63,10 +63,7 @@ public class CellListener extends PhoneStateListener {
             cell = newCell;
         }
         updateNeighbours();
-        try {
-            service.sendBeaconLog(3);
-        } catch (InterruptedException e) {
-        }
+        service.sendBeaconLog(3);
     }
 
     @Override
@@ -75,10 +72,7 @@ public class CellListener extends PhoneStateListener {
         cell = newCell;
         power = -113 + 2 * asu;
         updateNeighbours();
-        try {
-            service.sendBeaconLog(force ? 2 : 10);
-        } catch (InterruptedException e) {
-        }
+        service.sendBeaconLog(force ? 2 : 10);
     }
 
     private void updateNeighbours() {
@@ -15,7 +15,9 @@ import org.jivesoftware.smackx.packet.DiscoverItems.Item;
 import android.util.Log;
 
 import com.googlecode.asmack.XmppAccount;
+import com.googlecode.asmack.XmppIdentity;
 import com.googlecode.asmack.client.AsmackClientService;
+import com.googlecode.asmack.disco.EntityCapsCache;
 
 public final class ChannelSync implements Runnable, PacketListener {
 
@@ -34,43 +36,69 @@ public final class ChannelSync implements Runnable, PacketListener {
         try {
             DiscoverItems disco = new DiscoverItems();
             disco.setTo(account.getDomain());
-            service.sendWithCallback(disco, account.getJid(), this, 5 * 60 * 1000);
-            Packet reply = queue.poll(300, TimeUnit.SECONDS);
+            long timeout = service.getReplyTimeout(
+                "http://jabber.org/protocol/disco#items");
+            service.sendWithCallback(disco, account.getJid(), this, timeout);
+            Packet reply = queue.poll(timeout, TimeUnit.MILLISECONDS);
             if (reply == null) {
                 // failed
                 return;
             }
             disco = (DiscoverItems)reply;
             Iterator<Item> items = disco.getItems();
+            int pending = 0;
             while (items.hasNext()) {
                 Item item = items.next();
+                XmppIdentity[] cached =
+                    EntityCapsCache.getIdentities(service, item.getEntityID());
+                if (cached != null) {
+                    for (XmppIdentity identity: cached) {
+                        checkInbox(item.getEntityID(), identity.getCategory(),
+                                   identity.getType());
+                    }
+                    continue;
+                }
                 DiscoverInfo info = new DiscoverInfo();
                 info.setTo(item.getEntityID());
-                service.sendWithCallback(info, account.getJid(), this, 5 * 60 * 1000);
+                timeout = service.getReplyTimeout(
+                    "http://jabber.org/protocol/disco#info");
+                service.sendWithCallback(info, account.getJid(), this, timeout);
+                pending++;
+            }
+            if (pending == 0) {
+                return;
             }
-            reply = queue.poll(300, TimeUnit.SECONDS);
+            reply = queue.poll(timeout, TimeUnit.MILLISECONDS);
             while (reply != null) {
                 if (reply instanceof DiscoverInfo) {
                     DiscoverInfo info = (DiscoverInfo) reply;
                     Iterator<Identity> identities = info.getIdentities();
                     while (identities.hasNext()) {
                         Identity identity = identities.next();
-                        if (!"pubsub".equals(identity.getCategory())) {
-                            continue;
-                        }
-                        if (!"inbox".equals(identity.getType())) {
-                            continue;
-                        }
-                        new InboxSync(info.getFrom(), service, account);
+                        checkInbox(info.getFrom(), identity.getCategory(),
+                                   identity.getType());
                     }
                 }
-                reply = queue.poll(300, TimeUnit.SECONDS);
+                reply = queue.poll(timeout, TimeUnit.MILLISECONDS);
             }
         } catch (InterruptedException e) {
             e.printStackTrace();
         };
     }
 
+    /**
+     * Start an inbox sync if an identity is a pubsub inbox.
+     */
+    private void checkInbox(String jid, String category, String type) {
+        if (!"pubsub".equals(category)) {
+            return;
+        }
+        if (!"inbox".equals(type)) {
+            return;
+        }
+        new InboxSync(jid, service, account);
+    }
+
     @Override
     public void processPacket(Packet packet) {
         queue.add(packet);
@@ -13,6 +13,7 @@ import org.jivesoftware.smackx.pubsub.GetItemsRequest;
 import org.jivesoftware.smackx.pubsub.ItemsExtension;
 import org.jivesoftware.smackx.pubsub.PayloadItem;
 import org.jivesoftware.smackx.pubsub.packet.PubSub;
+import org.jivesoftware.smackx.pubsub.packet.PubSubNamespace;
 
 import android.content.ContentValues;
 import android.content.pm.PackageInfo;
@@ -29,10 +30,17 @@ import com.buddycloud.jbuddycloud.packet.DiscoItemsPacketExtension.Item;
 import com.buddycloud.jbuddycloud.packet.MessageArchiveManagement;
 import com.buddycloud.jbuddycloud.packet.RSMSet;
 import com.googlecode.asmack.XmppAccount;
+import com.googlecode.asmack.client.AsmackClient;
 import com.googlecode.asmack.client.AsmackClientService;
 
 public final class InboxSync implements Runnable, PacketListener {
 
+    /**
+     * Lower bound of the reply timeout of archive and pubsub queries, which
+     * may take the server well beyond a plain round trip, 30s.
+     */
+    private static final long SLOW_REPLY_TIMEOUT = 30 * 1000;
+
     private String to;
     private AsmackClientService service;
     private XmppAccount account;
@@ -71,8 +79,13 @@ public final class InboxSync implements Runnable, PacketListener {
                 GetItemsRequest getitems = new GetItemsRequest("/user/" + account.getJid() + "/subscriptions");
                 pubsub.addExtension(getitems);
                 pubsub.addExtension(rsm);
-                service.sendWithCallback(pubsub, account.getJid(), cb, 5 * 60 * 1000);
-                Packet reply = queue.poll(300, TimeUnit.SECONDS);
+                long timeout = service.getReplyTimeout(
+                    PubSubNamespace.BASIC.getXmlns(),
+                    SLOW_REPLY_TIMEOUT,
+                    AsmackClient.DEFAULT_REPLY_TIMEOUT
+                );
+                service.sendWithCallback(pubsub, account.getJid(), cb, timeout);
+                Packet reply = queue.poll(timeout, TimeUnit.MILLISECONDS);
                 if (reply != null && reply instanceof PubSub) {
                     pubsub = (PubSub) reply;
                     for (PacketExtension extension : pubsub.getExtensions()) {
@@ -157,13 +170,19 @@ public final class InboxSync implements Runnable, PacketListener {
                         cal.get(Calendar.DAY_OF_MONTH) + "T" +
                         ((cal.get(Calendar.HOUR_OF_DAY) < 10) ? "0" : "") +
                         cal.get(Calendar.HOUR_OF_DAY) + ":00:00Z";
+                    long timeout = service.getReplyTimeout(
+                        MessageArchiveManagement.NAMESPACE,
+                        SLOW_REPLY_TIMEOUT,
+                        AsmackClient.DEFAULT_REPLY_TIMEOUT
+                    );
                     id = service.sendWithCallback(
                         mam,
                         account.getJid(),
                         new QueuePacketListener(queue),
-                        5 * 60 * 1000
+                        timeout
                     );
-                    Packet result = queue.poll(300, TimeUnit.SECONDS);
+                    Packet result =
+                        queue.poll(timeout, TimeUnit.MILLISECONDS);
                     if (result instanceof IQ && "error".equals(((IQ)result).getType())) {
                         if (now.before(end)) {
                             service.getContentResolver().insert(Sync.CONTENT_URI, values);
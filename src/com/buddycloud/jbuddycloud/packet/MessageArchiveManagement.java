@@ -4,6 +4,11 @@ import org.jivesoftware.smack.packet.IQ;
 
 public class MessageArchiveManagement extends IQ {
 
+    /**
+     * The message archive management namespace.
+     */
+    public static final String NAMESPACE = "urn:xmpp:mam:tmp";
+
     public String start = null;
     public String end = null;
 
@@ -13,7 +18,7 @@ public class MessageArchiveManagement extends IQ {
     @Override
     public String getChildElementXML() {
         StringBuilder sb = new StringBuilder();
-        sb.append("<query xmlns='urn:xmpp:mam:tmp'>");
+        sb.append("<query xmlns='").append(NAMESPACE).append("'>");
         if (start != null && start.length() > 0) {
             sb.append("<start>").append(start).append("</start>");
         }
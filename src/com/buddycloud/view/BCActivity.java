@@ -97,10 +97,11 @@ public class BCActivity extends Activity {
     }
 
     /**
-     * Unbind service on pause.
+     * Report the inactive state and unbind service on pause.
      */
     @Override
     protected void onPause() {
+        ClientVisibility.paused(this);
         unbindBCService();
         super.onPause();
     }
@@ -115,10 +116,11 @@ public class BCActivity extends Activity {
     }
 
     /**
-     * Bind service on resume.
+     * Bind service and report the active state on resume.
      */
     @Override
     protected void onResume() {
+        ClientVisibility.resumed(this);
         bindBCService();
         super.onResume();
     }
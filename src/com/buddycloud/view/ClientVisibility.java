@@ -0,0 +1,63 @@
+package com.buddycloud.view;
+
+import android.content.Context;
+import android.content.Intent;
+
+import com.buddycloud.BuddycloudService;
+import com.buddycloud.IBuddycloudService;
+
+/**
+ * <p>Tracks the foreground activities of the user interface and reports the
+ * client state to the buddycloud service. The client is active while at
+ * least one activity is resumed.</p>
+ * <p>Every foreground activity must call {@link #resumed(Context)} from
+ * onResume and {@link #paused(Context)} from onPause. Both are called on the
+ * main thread.</p>
+ */
+public final class ClientVisibility {
+
+    /**
+     * Number of resumed activities.
+     */
+    private static int visible = 0;
+
+    /**
+     * Utility class, no instances.
+     */
+    private ClientVisibility() {
+    }
+
+    /**
+     * Record a resumed activity, reporting an active client for the first
+     * one.
+     * @param context The resumed activity.
+     */
+    public static void resumed(Context context) {
+        if (visible++ == 0) {
+            report(context, true);
+        }
+    }
+
+    /**
+     * Record a paused activity, reporting an inactive client once no
+     * activity is left in the foreground.
+     * @param context The paused activity.
+     */
+    public static void paused(Context context) {
+        if (visible > 0 && --visible == 0) {
+            report(context, false);
+        }
+    }
+
+    /**
+     * Send the client state to the service.
+     * @param context The context used to reach the service.
+     * @param active True if an activity is visible.
+     */
+    private static void report(Context context, boolean active) {
+        Intent intent = new Intent(IBuddycloudService.class.getName());
+        intent.putExtra(BuddycloudService.EXTRA_CLIENT_ACTIVE, active);
+        context.startService(intent);
+    }
+
+}
@@ -4,4 +4,22 @@ import android.app.ListActivity;
 
 public class NearbyActivity extends ListActivity {
 
+    /**
+     * Report the active state on resume.
+     */
+    @Override
+    protected void onResume() {
+        ClientVisibility.resumed(this);
+        super.onResume();
+    }
+
+    /**
+     * Report the inactive state on pause.
+     */
+    @Override
+    protected void onPause() {
+        ClientVisibility.paused(this);
+        super.onPause();
+    }
+
 }
@@ -41,6 +41,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.StringReader;
 import java.util.ArrayList;
+import java.util.List;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -407,4 +408,205 @@ public class XMLUtils {
         return sb.toString();
     }
 
+    /**
+     * <p>Retrieve the start tags of the child elements of a serialized
+     * element (e.g. a stanza) without building a dom.</p>
+     * <p>Comments, processing instructions and cdata sections are skipped,
+     * quoted attribute values may contain '&gt;'. Only direct children of
+     * the root element are returned.</p>
+     * @param xml The element xml.
+     * @return The child start tags including the angle brackets, empty for
+     *         an empty or malformed element.
+     */
+    public static List<String> getChildTags(String xml) {
+        return scanChildTags(xml, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Retrieve the start tag of the first child element of a serialized
+     * element, see {@link #getChildTags(String)}.
+     * @param xml The element xml.
+     * @return The first child start tag, or null.
+     */
+    public static String getFirstChildTag(String xml) {
+        List<String> tags = scanChildTags(xml, 1);
+        return tags.size() == 0 ? null : tags.get(0);
+    }
+
+    /**
+     * Retrieve the qualified name of a start tag.
+     * @param tag The start tag, e.g. "&lt;c xmlns='...'&gt;".
+     * @return The qualified name, e.g. "c", or null.
+     */
+    public static String getTagName(String tag) {
+        if (tag == null || !tag.startsWith("<")) {
+            return null;
+        }
+        int end = 1;
+        while (end < tag.length()) {
+            char c = tag.charAt(end);
+            if (c == '>' || c == '/' || Character.isWhitespace(c)) {
+                break;
+            }
+            end++;
+        }
+        return end == 1 ? null : tag.substring(1, end);
+    }
+
+    /**
+     * Extract an attribute value from a start tag. The name is matched
+     * literally, "xmlns" returns the default namespace declaration.
+     * @param tag The start tag.
+     * @param name The qualified attribute name.
+     * @return The raw (still escaped) attribute value, or null.
+     */
+    public static String getAttributeValue(String tag, String name) {
+        String tagName = getTagName(tag);
+        if (tagName == null) {
+            return null;
+        }
+        int index = tagName.length() + 1;
+        int length = tag.length();
+        while (true) {
+            while (index < length &&
+                   Character.isWhitespace(tag.charAt(index))) {
+                index++;
+            }
+            if (index >= length || tag.charAt(index) == '/' ||
+                tag.charAt(index) == '>') {
+                return null;
+            }
+            int nameStart = index;
+            while (index < length && tag.charAt(index) != '=' &&
+                   !Character.isWhitespace(tag.charAt(index))) {
+                index++;
+            }
+            String attribute = tag.substring(nameStart, index);
+            while (index < length &&
+                   Character.isWhitespace(tag.charAt(index))) {
+                index++;
+            }
+            if (index >= length || tag.charAt(index) != '=') {
+                return null;
+            }
+            index++;
+            while (index < length &&
+                   Character.isWhitespace(tag.charAt(index))) {
+                index++;
+            }
+            if (index >= length) {
+                return null;
+            }
+            char quote = tag.charAt(index);
+            if (quote != '\'' && quote != '"') {
+                return null;
+            }
+            int close = tag.indexOf(quote, index + 1);
+            if (close == -1) {
+                return null;
+            }
+            if (attribute.equals(name)) {
+                return tag.substring(index + 1, close);
+            }
+            index = close + 1;
+        }
+    }
+
+    /**
+     * Scan the child start tags of a serialized element.
+     * @param xml The element xml.
+     * @param limit The maximum number of tags to return.
+     * @return The child start tags.
+     */
+    private static List<String> scanChildTags(String xml, int limit) {
+        ArrayList<String> tags = new ArrayList<String>();
+        if (xml == null) {
+            return tags;
+        }
+        int depth = 0;
+        int index = nextTag(xml, 0);
+        while (index != -1) {
+            int end = getTagEnd(xml, index);
+            if (end == -1) {
+                break;
+            }
+            if (xml.charAt(index + 1) == '/') {
+                depth--;
+                if (depth <= 0) {
+                    break;
+                }
+            } else {
+                if (depth == 1) {
+                    tags.add(xml.substring(index, end + 1));
+                    if (tags.size() >= limit) {
+                        break;
+                    }
+                }
+                if (xml.charAt(end - 1) != '/') {
+                    depth++;
+                } else if (depth == 0) {
+                    // empty root element
+                    break;
+                }
+            }
+            index = nextTag(xml, end + 1);
+        }
+        return tags;
+    }
+
+    /**
+     * Find the next start or end tag, skipping comments, processing
+     * instructions, cdata sections and declarations.
+     * @param xml The xml string.
+     * @param from The index to start at.
+     * @return The index of the '&lt;' of the tag, or -1.
+     */
+    private static int nextTag(String xml, int from) {
+        int index = xml.indexOf('<', from);
+        while (index != -1 && index + 1 < xml.length()) {
+            char next = xml.charAt(index + 1);
+            if (next != '!' && next != '?') {
+                return index;
+            }
+            int end;
+            if (xml.startsWith("<!--", index)) {
+                end = xml.indexOf("-->", index + 4);
+            } else if (xml.startsWith("<![CDATA[", index)) {
+                end = xml.indexOf("]]>", index + 9);
+            } else if (next == '?') {
+                end = xml.indexOf("?>", index + 2);
+            } else {
+                end = xml.indexOf('>', index + 2);
+            }
+            if (end == -1) {
+                return -1;
+            }
+            index = xml.indexOf('<', end + 1);
+        }
+        return -1;
+    }
+
+    /**
+     * Find the closing '&gt;' of a tag, skipping quoted attribute values.
+     * @param xml The xml string.
+     * @param start The index of the '&lt;' of the tag.
+     * @return The index of the closing '&gt;', or -1.
+     */
+    private static int getTagEnd(String xml, int start) {
+        char quote = 0;
+        for (int i = start + 1, l = xml.length(); i < l; i++) {
+            char c = xml.charAt(i);
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '\'' || c == '"') {
+                quote = c;
+            } else if (c == '>') {
+                return i;
+            }
+        }
+        return -1;
+    }
+
 }
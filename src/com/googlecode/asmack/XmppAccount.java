@@ -74,6 +74,12 @@ public class XmppAccount {
      */
     private String rosterVersion;
 
+    /**
+     * Boolean representing the permission to resume dropped sessions via
+     * stream management.
+     */
+    private boolean resumptionEnabled;
+
     /**
      * Retrieve the account user jid.
      * @return A jid matching username@domain.tld.
@@ -180,4 +186,22 @@ public class XmppAccount {
         this.rosterVersion = rosterVersion;
     }
 
+    /**
+     * Check if dropped sessions of this account may be resumed via stream
+     * management. Temporary accounts (e.g. login tests) should not enable
+     * resumption.
+     * @return True if session resumption is enabled.
+     */
+    public boolean isResumptionEnabled() {
+        return resumptionEnabled;
+    }
+
+    /**
+     * Set the session resumption state (enabled/disabled).
+     * @param resumptionEnabled The new session resumption state.
+     */
+    public void setResumptionEnabled(boolean resumptionEnabled) {
+        this.resumptionEnabled = resumptionEnabled;
+    }
+
 }
@@ -54,11 +54,13 @@ import org.jivesoftware.smack.packet.Presence;
 
 import android.content.Context;
 import android.os.RemoteException;
+import android.os.SystemClock;
 import android.util.Log;
 
 import com.googlecode.asmack.Attribute;
 import com.googlecode.asmack.Stanza;
 import com.googlecode.asmack.XmppIdentity;
+import com.googlecode.asmack.connection.NamespaceMetrics;
 import com.googlecode.asmack.connection.XmppTransportService;
 import com.googlecode.asmack.parser.SmackParser;
 
@@ -77,6 +79,22 @@ public class AsmackClient implements PacketListener {
      */
     private static final String TAG = AsmackClient.class.getSimpleName();
 
+    /**
+     * The default reply timeout, 5 minutes.
+     */
+    public static final long DEFAULT_REPLY_TIMEOUT = 5 * 60 * 1000;
+
+    /**
+     * The default lower bound of adaptive reply timeouts, 5 seconds.
+     */
+    public static final long MIN_REPLY_TIMEOUT = 5 * 1000;
+
+    /**
+     * Round trip statistics of all callbacks, shared by all clients.
+     */
+    private static final ReplyLatencyTracker latency =
+                                                new ReplyLatencyTracker();
+
     /**
      * Internal hashmap for reply id to callback mapping.
      */
@@ -380,7 +398,8 @@ public class AsmackClient implements PacketListener {
                 Callback cb = new Callback(
                         System.currentTimeMillis() + ttl,
                         id,
-                        callback
+                        callback,
+                        NamespaceMetrics.getPayloadNamespace(stanza)
                 );
                 replyMap.put(id, cb);
                 this.replyTtl.add(cb);
@@ -424,6 +443,67 @@ public class AsmackClient implements PacketListener {
             Integer.toHexString(idStatus.getAndIncrement());
     }
 
+    /**
+     * Compute an adaptive reply timeout for a request, based on the round
+     * trip times observed for the request namespace.
+     * @param namespace The payload namespace of the request.
+     * @return The reply timeout in milliseconds.
+     */
+    public long getReplyTimeout(String namespace) {
+        return getReplyTimeout(
+            namespace, MIN_REPLY_TIMEOUT, DEFAULT_REPLY_TIMEOUT
+        );
+    }
+
+    /**
+     * Compute an adaptive reply timeout for a request, based on the round
+     * trip times observed for the request namespace.
+     * @param namespace The payload namespace of the request.
+     * @param min The lower bound, e.g. for slow archive or pubsub queries.
+     * @param max The upper bound, used until enough replies were seen.
+     * @return The reply timeout in milliseconds.
+     */
+    public long getReplyTimeout(String namespace, long min, long max) {
+        return latency.getTimeout(namespace, min, max);
+    }
+
+    /**
+     * Sends a packet with an adaptive reply timeout, based on the round trip
+     * times observed for the payload namespace of the packet.
+     * @param packet The smack packet to send.
+     * @param via The account jid.
+     * @param callback The reply callback.
+     * @param min The lower bound of the timeout.
+     * @param max The upper bound of the timeout.
+     * @return The id String.
+     */
+    public String sendWithCallback(
+        Packet packet,
+        String via,
+        PacketListener callback,
+        long min,
+        long max
+    ) {
+        String id = generateId();
+        Stanza stanza = toStanza(packet, id);
+        if (stanza.getVia() == null && via != null) {
+            stanza.setVia(via);
+        }
+        long ttl = latency.getTimeout(
+            NamespaceMetrics.getPayloadNamespace(stanza), min, max
+        );
+        sendWithCallback(stanza, callback, ttl);
+        return id;
+    }
+
+    /**
+     * Retrieve the round trip statistics of all request namespaces.
+     * @return The reply latency tracker.
+     */
+    public static ReplyLatencyTracker getReplyLatency() {
+        return latency;
+    }
+
     /**
      * Check if the service is still alive.
      * @param context The context used for the check.
@@ -437,18 +517,24 @@ public class AsmackClient implements PacketListener {
      * Purge stalled callbacks based on time to live constrains.
      */
     public void purgeCallback() {
-        if (replyTtl.size() == 0) {
-            return;
-        }
-        long time = System.currentTimeMillis();
-        Callback first = replyTtl.first();
-        while (first.getTTL() < time) {
-            replyTtl.remove(first);
-            replyMap.remove(first.getId());
+        try {
+            replyLock.lock();
             if (replyTtl.size() == 0) {
                 return;
             }
-            first = replyTtl.first();
+            long time = System.currentTimeMillis();
+            Callback first = replyTtl.first();
+            while (first.getTTL() < time) {
+                replyTtl.remove(first);
+                replyMap.remove(first.getId());
+                latency.lost(first.getNamespace());
+                if (replyTtl.size() == 0) {
+                    return;
+                }
+                first = replyTtl.first();
+            }
+        } finally {
+            replyLock.unlock();
         }
     }
 
@@ -473,6 +559,10 @@ public class AsmackClient implements PacketListener {
                 replyLock.unlock();
             }
             if (callback != null) {
+                latency.reply(
+                    callback.getNamespace(),
+                    SystemClock.elapsedRealtime() - callback.getSendTime()
+                );
                 try {
                     callback.getCallback().processPacket(packet);
                 } catch (Exception e) {
@@ -37,6 +37,10 @@
 
 package com.googlecode.asmack.client;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
+import java.util.Map;
+
 import org.jivesoftware.smack.PacketListener;
 import org.jivesoftware.smack.filter.PacketFilter;
 import org.jivesoftware.smack.packet.Packet;
@@ -89,6 +93,46 @@ public abstract class AsmackClientService
         client.open(getApplicationContext(), resourceId, this);
     }
 
+    /**
+     * Start the periodic purge of stalled reply callbacks.
+     */
+    @Override
+    public void onCreate() {
+        super.onCreate();
+        scheduler.scheduleAtFixedRate("asmack/callback-purge", new Runnable() {
+            @Override
+            public void run() {
+                purgeCallback();
+            }
+        }, 60 * 1000);
+    }
+
+    /**
+     * Stop the periodic purge of stalled reply callbacks.
+     */
+    @Override
+    public void onDestroy() {
+        scheduler.cancel("asmack/callback-purge");
+        super.onDestroy();
+    }
+
+    /**
+     * Dump the transport state plus the reply latency of all request
+     * namespaces.
+     * @param fd The raw file descriptor.
+     * @param writer The output writer.
+     * @param args Additional dump arguments (ignored).
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(fd, writer, args);
+        writer.println("Reply latency (ms)");
+        for (Map.Entry<String, ReplyLatencyTracker.Entry> entry:
+                AsmackClient.getReplyLatency().getEntries().entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
     /**
      * Called to define the client prefix for events.
      * @return The packet id prefix.
@@ -159,6 +203,14 @@ public abstract class AsmackClientService
         return client.sendWithCallback(packet, via, callback, ttl);
     }
 
+    public long getReplyTimeout(String namespace) {
+        return client.getReplyTimeout(namespace);
+    }
+
+    public long getReplyTimeout(String namespace, long min, long max) {
+        return client.getReplyTimeout(namespace, min, max);
+    }
+
     public String sendFromAllAccounts(Packet packet) {
         return client.sendFromAllAccounts(packet);
     }
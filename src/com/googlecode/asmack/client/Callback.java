@@ -39,6 +39,8 @@ package com.googlecode.asmack.client;
 
 import org.jivesoftware.smack.PacketListener;
 
+import android.os.SystemClock;
+
 /**
  * Callback for reply packages. The natural ordering of the callbacks is based
  * on the time to live.
@@ -60,6 +62,16 @@ class Callback implements Comparable<Callback> {
      */
     private final PacketListener callback;
 
+    /**
+     * The payload namespace of the request, or null.
+     */
+    private final String namespace;
+
+    /**
+     * The time the request was sent, in ms since boot.
+     */
+    private final long sendTime = SystemClock.elapsedRealtime();
+
     /**
      * Create a new collback instance with a given listener sink, reply id
      * and time to live.
@@ -68,9 +80,27 @@ class Callback implements Comparable<Callback> {
      * @param callback The actual callback.
      */
     public Callback(long ttl, String id, PacketListener callback) {
+        this(ttl, id, callback, null);
+    }
+
+    /**
+     * Create a new collback instance with a given listener sink, reply id,
+     * time to live and request namespace.
+     * @param ttl The time to live.
+     * @param id The required reply id.
+     * @param callback The actual callback.
+     * @param namespace The payload namespace of the request.
+     */
+    public Callback(
+        long ttl,
+        String id,
+        PacketListener callback,
+        String namespace
+    ) {
         this.ttl = ttl;
         this.id = id;
         this.callback = callback;
+        this.namespace = namespace;
     }
 
     /**
@@ -116,4 +146,21 @@ class Callback implements Comparable<Callback> {
         return callback;
     }
 
+    /**
+     * Retrieve the payload namespace of the request.
+     * @return The request namespace, or null.
+     */
+    public String getNamespace() {
+        return namespace;
+    }
+
+    /**
+     * Retrieve the time the request was sent.
+     * @return The send timestamp, in ms since boot
+     *         ({@link SystemClock#elapsedRealtime()}).
+     */
+    public long getSendTime() {
+        return sendTime;
+    }
+
 }
@@ -0,0 +1,169 @@
+package com.googlecode.asmack.client;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.googlecode.asmack.util.Histogram;
+
+/**
+ * <p>Round trip statistics of request/reply pairs, grouped by the namespace
+ * of the request payload (e.g. disco#items, pubsub, mam).</p>
+ * <p>The observed latency distribution yields an adaptive reply timeout of
+ * {@value #P99_FACTOR} times the 99th percentile, bounded by a caller
+ * supplied lower and upper bound. Until {@value #MIN_SAMPLES} replies have
+ * been seen the upper bound is used.</p>
+ * <p>Like the retransmission timer of RFC 6298 the timeout is doubled for
+ * every request that expired without reply, up to
+ * 2^{@value #MAX_BACKOFF} times, and reset by the next reply.</p>
+ */
+public class ReplyLatencyTracker {
+
+    /**
+     * Number of replies needed before timeouts adapt.
+     */
+    private static final int MIN_SAMPLES = 16;
+
+    /**
+     * Multiplier applied to the 99th percentile.
+     */
+    private static final int P99_FACTOR = 3;
+
+    /**
+     * Maximum number of timeout doublings.
+     */
+    private static final int MAX_BACKOFF = 6;
+
+    /**
+     * Statistics of a single namespace.
+     */
+    public static class Entry {
+
+        /**
+         * Reply latency in ms.
+         */
+        private final Histogram latency = new Histogram();
+
+        /**
+         * Number of requests whose callback expired without reply.
+         */
+        private long lost;
+
+        /**
+         * Number of timeout doublings, increased by every expired request
+         * and reset by a reply.
+         */
+        private int backoff;
+
+        /**
+         * Retrieve the reply latency histogram.
+         * @return Histogram The latency in ms.
+         */
+        public Histogram getLatency() {
+            return latency;
+        }
+
+        /**
+         * Retrieve the number of expired requests.
+         * @return long The number of requests without reply.
+         */
+        public synchronized long getLost() {
+            return lost;
+        }
+
+        /**
+         * Human readable statistics.
+         * @return String The statistics.
+         */
+        @Override
+        public synchronized String toString() {
+            return latency + " lost=" + lost + " backoff=" + backoff;
+        }
+
+    }
+
+    /**
+     * Map of {namespace} => {statistics}.
+     */
+    private final HashMap<String, Entry> entries =
+                                            new HashMap<String, Entry>();
+
+    /**
+     * Retrieve the statistics of a namespace, creating them on first use.
+     * @param namespace String The request namespace.
+     * @return Entry The namespace statistics.
+     */
+    private Entry get(String namespace) {
+        synchronized (entries) {
+            Entry entry = entries.get(namespace);
+            if (entry == null) {
+                entry = new Entry();
+                entries.put(namespace, entry);
+            }
+            return entry;
+        }
+    }
+
+    /**
+     * Record a reply.
+     * @param namespace String The request namespace.
+     * @param millis long The round trip time in ms.
+     */
+    public void reply(String namespace, long millis) {
+        Entry entry = get(namespace);
+        entry.latency.add(millis);
+        synchronized (entry) {
+            entry.backoff = 0;
+        }
+    }
+
+    /**
+     * Record a request that expired without reply, doubling the timeout
+     * of the namespace.
+     * @param namespace String The request namespace.
+     */
+    public void lost(String namespace) {
+        Entry entry = get(namespace);
+        synchronized (entry) {
+            entry.lost++;
+            if (entry.backoff < MAX_BACKOFF) {
+                entry.backoff++;
+            }
+        }
+    }
+
+    /**
+     * Compute the reply timeout of a namespace.
+     * @param namespace String The request namespace.
+     * @param min long The lower bound, in ms.
+     * @param fallback long The upper bound and the timeout without enough
+     *                      samples, in ms.
+     * @return long The timeout in ms.
+     */
+    public long getTimeout(String namespace, long min, long fallback) {
+        Entry entry;
+        synchronized (entries) {
+            entry = entries.get(namespace);
+        }
+        if (entry == null || entry.latency.getCount() < MIN_SAMPLES) {
+            return fallback;
+        }
+        long timeout = Math.max(
+            min, P99_FACTOR * entry.latency.getPercentile(0.99)
+        );
+        synchronized (entry) {
+            timeout <<= entry.backoff;
+        }
+        return Math.min(fallback, timeout);
+    }
+
+    /**
+     * Retrieve a snapshot of all namespace statistics.
+     * @return Map<String, Entry> Map of {namespace} => {statistics}.
+     */
+    public Map<String, Entry> getEntries() {
+        synchronized (entries) {
+            return new HashMap<String, Entry>(entries);
+        }
+    }
+
+}
@@ -137,6 +137,17 @@ public class AccountConnection {
      */
     private long lastConnectedTime;
 
+    /**
+     * The error of the last failure, or null.
+     */
+    private XmppException lastError;
+
+    /**
+     * The host[:port] of the next login attempt, overriding the account
+     * connection, or null.
+     */
+    private String redirect;
+
     /**
      * The target stanza sink.
      */
@@ -241,6 +252,7 @@ public class AccountConnection {
         case Failed:
             disconnect();
             lastFailTime = System.currentTimeMillis();
+            ConnectionMetrics.forAccount(account.getJid()).failed();
             if (state != State.Connected ||
                 lastFailTime - lastConnectedTime < 60 * 1000) {
                 // regard quick flips as failes
@@ -276,17 +288,59 @@ public class AccountConnection {
      * @param loginThread The original login thread.
      */
     public synchronized void connectionFail(LoginThread loginThread) {
+        connectionFail(loginThread, null);
+    }
+
+    /**
+     * Terminate a connection attempt as failed, remembering the cause.
+     * @param loginThread The original login thread.
+     * @param error The cause of the failure, or null.
+     */
+    public synchronized void connectionFail(
+        LoginThread loginThread,
+        XmppException error
+    ) {
         // Hint: If you think that you can't get a failed attempt while being
         //       out of the Connection state: please think again.
         //       Think about timing.
         //       And finally: think again :-)
-        if (loginThread != this.loginThread ||
-            currentState != State.Connecting) {
+        if (loginThread != this.loginThread) {
             return;
         }
+        if (currentState == State.Connected) {
+            // failed handover, keep the old connection unless it's gone
+            this.loginThread = null;
+            Log.d(TAG, "Handover failed on " + account.getJid());
+            if (connection == null || connection.isClosed()) {
+                transition(State.Failed);
+            }
+            return;
+        }
+        if (currentState != State.Connecting) {
+            return;
+        }
+        lastError = error;
         transition(State.Failed);
     }
 
+    /**
+     * Start a make-before-break handover: a new connection is established in
+     * the background while the current connection keeps routing stanzas.
+     * Once the new connection is bound {@link #connectionSuccess} switches
+     * to it and closes the old connection.
+     * @return boolean True if a handover was started, false if the account
+     *                 isn't connected or a login is already running.
+     */
+    public synchronized boolean handover() {
+        if (currentState != State.Connected || loginThread != null) {
+            return false;
+        }
+        Log.d(TAG, "Handover on " + account.getJid());
+        loginThread = new LoginThread(this);
+        loginThread.start();
+        return true;
+    }
+
     /**
      * Mark the connection as connected, unless the connection is connected.
      * @param loginThread The initial login thread.
@@ -302,11 +356,13 @@ public class AccountConnection {
             oldConnection = this.connection;
         }
 
-        // Try to send an initial stanza
+        // Try to send an initial stanza, resumed sessions are still available
         Stanza stanza = new Stanza("presence", "", null, "<presence />", null);
 
         try {
-            connection.send(stanza);
+            if (!connection.isResumed()) {
+                connection.send(stanza);
+            }
         } catch (XmppException e) {
 
             // Initial stanza failed
@@ -318,6 +374,10 @@ public class AccountConnection {
             if (oldConnection == null || oldConnection.isClosed()) {
                 // Only fail if the old connection is invalid
                 transition(State.Failed);
+            } else
+            if (loginThread == this.loginThread) {
+                // failed handover, the old connection stays active
+                this.loginThread = null;
             }
             return;
 
@@ -340,9 +400,61 @@ public class AccountConnection {
         }
 
         this.connection = connection;
+        ConnectionMetrics.forAccount(account.getJid()).connected();
+        if (currentState == State.Connected) {
+            // handover, the state doesn't change but the connection did
+            Log.d(TAG, "Handover completed on " + account.getJid());
+            failCount = 0;
+            lastConnectedTime = System.currentTimeMillis();
+            listener.onConnectionConnected(this);
+            return;
+        }
         transition(State.Connected);
     }
 
+    /**
+     * Check if a make-before-break handover is running.
+     * @return boolean True while a handover login is in flight.
+     */
+    public synchronized boolean isHandoverRunning() {
+        return currentState == State.Connected && loginThread != null;
+    }
+
+    /**
+     * Redirect the next login attempt to another host, e.g. after a
+     * see-other-host stream error. The account configuration is kept.
+     * @param redirect The host[:port] for the next attempt.
+     */
+    public synchronized void setRedirect(String redirect) {
+        this.redirect = redirect;
+    }
+
+    /**
+     * Retrieve and clear the redirect of the next login attempt.
+     * @return The host[:port] to connect to, or null.
+     */
+    public synchronized String takeRedirect() {
+        String result = redirect;
+        redirect = null;
+        return result;
+    }
+
+    /**
+     * Retrieve the error of the last failure.
+     * @return The last error, or null if unknown.
+     */
+    public synchronized XmppException getLastError() {
+        return lastError;
+    }
+
+    /**
+     * Remember the error of a failure, reported by the connection.
+     * @param lastError The failure cause.
+     */
+    public synchronized void setLastError(XmppException lastError) {
+        this.lastError = lastError;
+    }
+
     /**
      * Retrieve the timestamp of the last connection failure.
      * @return The timestamp of the last connection failure.
@@ -0,0 +1,213 @@
+package com.googlecode.asmack.connection;
+
+import android.util.Log;
+
+import com.googlecode.asmack.util.TimingWheelScheduler;
+
+/**
+ * <p>Client state indication (XEP-0352). Tracks whether the user interface
+ * is visible and reports transitions through an apply task, which sends
+ * &lt;active/&gt; or &lt;inactive/&gt; to all servers supporting it.</p>
+ * <p>Becoming active is applied immediately, becoming inactive is delayed by
+ * {@value #INACTIVE_DELAY}ms so switching between activities doesn't flap
+ * the server state.</p>
+ * <p>Inbound traffic is counted as wakeups: a stanza arriving more than
+ * {@value #BURST_GAP}ms after the previous one starts a new burst (and a
+ * new radio wakeup). Comparing the wakeup rate of both states shows the
+ * effect of server side batching.</p>
+ */
+public class ClientState {
+
+    /**
+     * The client state indication namespace.
+     */
+    public static final String NAMESPACE = "urn:xmpp:csi:0";
+
+    /**
+     * Logging tag (ClientState).
+     */
+    private static final String TAG = ClientState.class.getSimpleName();
+
+    /**
+     * The scheduler key of the delayed inactive transition.
+     */
+    private static final String KEY = "csi/inactive";
+
+    /**
+     * Delay before an inactive state is applied, 10s.
+     */
+    private static final long INACTIVE_DELAY = 10 * 1000;
+
+    /**
+     * Minimum gap between two inbound bursts, 2s.
+     */
+    private static final long BURST_GAP = 2 * 1000;
+
+    /**
+     * The scheduler for the delayed inactive transition.
+     */
+    private final TimingWheelScheduler scheduler;
+
+    /**
+     * The task sending the current state to all connections.
+     */
+    private final Runnable apply;
+
+    /**
+     * The current state.
+     */
+    private boolean active = true;
+
+    /**
+     * The time of the last state change.
+     */
+    private long since = System.currentTimeMillis();
+
+    /**
+     * The time of the last inbound stanza.
+     */
+    private long lastReceive = 0;
+
+    /**
+     * Accumulated time in the active and inactive state (index 1/0).
+     */
+    private final long[] time = new long[2];
+
+    /**
+     * Inbound bursts in the active and inactive state (index 1/0).
+     */
+    private final long[] wakeups = new long[2];
+
+    /**
+     * Inbound stanzas in the active and inactive state (index 1/0).
+     */
+    private final long[] stanzas = new long[2];
+
+    /**
+     * Number of state transitions.
+     */
+    private long transitions = 0;
+
+    /**
+     * Create a new client state tracker.
+     * @param scheduler The scheduler for delayed transitions.
+     * @param apply The task that sends the current state to all
+     *              connections.
+     */
+    public ClientState(TimingWheelScheduler scheduler, Runnable apply) {
+        this.scheduler = scheduler;
+        this.apply = apply;
+    }
+
+    /**
+     * Report the visibility of the user interface.
+     * @param active True if the user interface is visible.
+     */
+    public void setActive(boolean active) {
+        if (active) {
+            scheduler.cancel(KEY);
+            if (change(true)) {
+                apply.run();
+            }
+            return;
+        }
+        synchronized (this) {
+            if (!this.active) {
+                return;
+            }
+        }
+        scheduler.schedule(KEY, new Runnable() {
+            @Override
+            public void run() {
+                if (change(false)) {
+                    apply.run();
+                }
+            }
+        }, INACTIVE_DELAY, INACTIVE_DELAY / 4);
+    }
+
+    /**
+     * Cancel a pending inactive transition, e.g. when the service goes
+     * away.
+     */
+    public void cancel() {
+        scheduler.cancel(KEY);
+    }
+
+    /**
+     * Switch the state, accounting the time spent in the old state.
+     * @param active The new state.
+     * @return True if the state changed.
+     */
+    private synchronized boolean change(boolean active) {
+        if (this.active == active) {
+            return false;
+        }
+        long now = System.currentTimeMillis();
+        time[index()] += now - since;
+        since = now;
+        this.active = active;
+        transitions++;
+        Log.d(TAG, active ? "Client active" : "Client inactive");
+        return true;
+    }
+
+    /**
+     * Retrieve the counter index of the current state.
+     * @return 1 if active, 0 if inactive.
+     */
+    private int index() {
+        return active ? 1 : 0;
+    }
+
+    /**
+     * Record an inbound stanza.
+     */
+    public synchronized void received() {
+        long now = System.currentTimeMillis();
+        if (now - lastReceive > BURST_GAP) {
+            wakeups[index()]++;
+        }
+        stanzas[index()]++;
+        lastReceive = now;
+    }
+
+    /**
+     * Check if the client is in active use.
+     * @return True if active.
+     */
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Compute the wakeups per hour of a state.
+     * @param index The state index (1 active, 0 inactive).
+     * @return The wakeup rate, 0 if the state was never entered.
+     */
+    private long wakeupsPerHour(int index) {
+        long total = time[index];
+        if (index == index()) {
+            total += System.currentTimeMillis() - since;
+        }
+        if (total <= 0) {
+            return 0;
+        }
+        return wakeups[index] * 60 * 60 * 1000 / total;
+    }
+
+    /**
+     * Human readable statistics.
+     * @return String The statistics.
+     */
+    @Override
+    public synchronized String toString() {
+        return (active ? "active" : "inactive")
+             + " transitions=" + transitions
+             + " active(stanzas=" + stanzas[1] + " wakeups=" + wakeups[1]
+             + " " + wakeupsPerHour(1) + "/h)"
+             + " inactive(stanzas=" + stanzas[0] + " wakeups=" + wakeups[0]
+             + " " + wakeupsPerHour(0) + "/h)";
+    }
+
+}
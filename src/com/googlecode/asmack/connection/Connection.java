@@ -91,4 +91,28 @@ public interface Connection {
      */
     boolean isClosed();
 
+    /**
+     * Check if this connection resumed a previous session instead of
+     * starting a new one.
+     * @return True if a previous session was resumed.
+     */
+    boolean isResumed();
+
+    /**
+     * Tell the server whether the user is actively using the client
+     * (XEP-0352), allowing the server to hold back non-urgent traffic while
+     * inactive.
+     * @param active True if the client is in active use.
+     * @return True if the state was sent, false if unsupported.
+     * @throws XmppException On error.
+     */
+    boolean indicateClientState(boolean active) throws XmppException;
+
+    /**
+     * Check if the server supports roster versioning (RFC 6121, 2.6), i.e.
+     * whether a roster request may carry the last known roster version.
+     * @return True if roster versioning was announced.
+     */
+    boolean isRosterVersioningSupported();
+
 }
@@ -62,4 +62,21 @@ public class ConnectionFactory {
         return null;
     }
 
+    /**
+     * Create a new connection for a single attempt, optionally redirected
+     * to another host (see-other-host). The account is left untouched.
+     * @param account The xmpp account used for the connect.
+     * @param redirect The host[:port] to connect to, or null.
+     * @return A new connection instance.
+     */
+    public final static Connection createConnection(
+        XmppAccount account,
+        String redirect
+    ) {
+        if (redirect == null) {
+            return createConnection(account);
+        }
+        return new TcpConnection(account, "tcp:" + redirect);
+    }
+
 }
@@ -0,0 +1,367 @@
+package com.googlecode.asmack.connection;
+
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.os.Bundle;
+
+import com.googlecode.asmack.util.Histogram;
+
+/**
+ * <p>Transport metrics of a single account, accumulated over all
+ * connections of the account.</p>
+ * <p>Wire bytes are counted below stream compression, xml bytes above it.
+ * Parse times are thread cpu times in microseconds (blocking reads are not
+ * included), dispatch times are wall clock microseconds spent in the stanza
+ * sink. Negotiation phase timings hold the duration of the last connect in
+ * milliseconds.</p>
+ */
+public class ConnectionMetrics {
+
+    /**
+     * Map of {bare jid} => {metrics}.
+     */
+    private static final HashMap<String, ConnectionMetrics> metrics =
+                                    new HashMap<String, ConnectionMetrics>();
+
+    /**
+     * The stanza types counted individually.
+     */
+    private static final String[] TYPES = {"message", "presence", "iq"};
+
+    /**
+     * The bare account jid.
+     */
+    private final String jid;
+
+    /**
+     * Bytes read from the network (below compression).
+     */
+    private long wireBytesIn;
+
+    /**
+     * Bytes written to the network (below compression).
+     */
+    private long wireBytesOut;
+
+    /**
+     * Xml bytes read (above compression).
+     */
+    private long xmlBytesIn;
+
+    /**
+     * Xml bytes written (above compression).
+     */
+    private long xmlBytesOut;
+
+    /**
+     * Inbound stanzas by type (message, presence, iq, other).
+     */
+    private final long[] stanzasIn = new long[TYPES.length + 1];
+
+    /**
+     * Outbound stanzas by type (message, presence, iq, other).
+     */
+    private final long[] stanzasOut = new long[TYPES.length + 1];
+
+    /**
+     * Number of successful connects.
+     */
+    private long connects;
+
+    /**
+     * Number of connection failures.
+     */
+    private long failures;
+
+    /**
+     * Number of senders currently waiting for or writing to the stream.
+     */
+    private int sendQueueDepth;
+
+    /**
+     * Maximum observed send queue depth.
+     */
+    private int maxSendQueueDepth;
+
+    /**
+     * Stanza parse cpu time in microseconds.
+     */
+    private final Histogram parseTime = new Histogram();
+
+    /**
+     * Stanza dispatch time in microseconds.
+     */
+    private final Histogram dispatchTime = new Histogram();
+
+    /**
+     * Send queue depth seen by each sender.
+     */
+    private final Histogram sendQueue = new Histogram();
+
+    /**
+     * Map of {phase} => {last duration in ms}, in negotiation order.
+     */
+    private final LinkedHashMap<String, Long> phases =
+                                            new LinkedHashMap<String, Long>();
+
+    /**
+     * Create a new metrics instance.
+     * @param jid String The bare account jid.
+     */
+    private ConnectionMetrics(String jid) {
+        this.jid = jid;
+    }
+
+    /**
+     * Retrieve the metrics of an account, creating them on first use.
+     * @param jid String The bare account jid.
+     * @return ConnectionMetrics The account metrics.
+     */
+    public static ConnectionMetrics forAccount(String jid) {
+        synchronized (metrics) {
+            ConnectionMetrics result = metrics.get(jid);
+            if (result == null) {
+                result = new ConnectionMetrics(jid);
+                metrics.put(jid, result);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Retrieve the metrics of all accounts.
+     * @return ArrayList<ConnectionMetrics> A snapshot of all metrics.
+     */
+    public static ArrayList<ConnectionMetrics> getAll() {
+        synchronized (metrics) {
+            return new ArrayList<ConnectionMetrics>(metrics.values());
+        }
+    }
+
+    /**
+     * Map a stanza name to its counter index.
+     * @param name String The stanza element name.
+     * @return int The counter index.
+     */
+    private static int typeIndex(String name) {
+        for (int i = 0; i < TYPES.length; i++) {
+            if (TYPES[i].equals(name)) {
+                return i;
+            }
+        }
+        return TYPES.length;
+    }
+
+    /**
+     * Record bytes read from the network.
+     * @param bytes long The byte count.
+     */
+    public synchronized void addWireBytesIn(long bytes) {
+        wireBytesIn += bytes;
+    }
+
+    /**
+     * Record bytes written to the network.
+     * @param bytes long The byte count.
+     */
+    public synchronized void addWireBytesOut(long bytes) {
+        wireBytesOut += bytes;
+    }
+
+    /**
+     * Record xml bytes read.
+     * @param bytes long The byte count.
+     */
+    public synchronized void addXmlBytesIn(long bytes) {
+        xmlBytesIn += bytes;
+    }
+
+    /**
+     * Record xml bytes written.
+     * @param bytes long The byte count.
+     */
+    public synchronized void addXmlBytesOut(long bytes) {
+        xmlBytesOut += bytes;
+    }
+
+    /**
+     * Estimate the inbound wire size of some xml, based on the compression
+     * ratio seen so far.
+     * @param xmlBytes long The xml size.
+     * @return long The estimated wire size.
+     */
+    public synchronized long estimateWireBytesIn(long xmlBytes) {
+        if (xmlBytesIn == 0) {
+            return xmlBytes;
+        }
+        return xmlBytes * wireBytesIn / xmlBytesIn;
+    }
+
+    /**
+     * Estimate the outbound wire size of some xml, based on the compression
+     * ratio seen so far.
+     * @param xmlBytes long The xml size.
+     * @return long The estimated wire size.
+     */
+    public synchronized long estimateWireBytesOut(long xmlBytes) {
+        if (xmlBytesOut == 0) {
+            return xmlBytes;
+        }
+        return xmlBytes * wireBytesOut / xmlBytesOut;
+    }
+
+    /**
+     * Record a parsed inbound stanza.
+     * @param name String The stanza element name.
+     * @param nanos long The parse cpu time in ns.
+     */
+    public void stanzaIn(String name, long nanos) {
+        synchronized (this) {
+            stanzasIn[typeIndex(name)]++;
+        }
+        parseTime.add(nanos / 1000);
+    }
+
+    /**
+     * Record an outbound stanza.
+     * @param name String The stanza element name.
+     */
+    public synchronized void stanzaOut(String name) {
+        stanzasOut[typeIndex(name)]++;
+    }
+
+    /**
+     * Record the dispatch of an inbound stanza to the listeners.
+     * @param nanos long The dispatch time in ns.
+     */
+    public void dispatched(long nanos) {
+        dispatchTime.add(nanos / 1000);
+    }
+
+    /**
+     * Record a sender entering the send path.
+     */
+    public void enterSend() {
+        int depth;
+        synchronized (this) {
+            depth = ++sendQueueDepth;
+            maxSendQueueDepth = Math.max(maxSendQueueDepth, depth);
+        }
+        sendQueue.add(depth);
+    }
+
+    /**
+     * Record a sender leaving the send path.
+     */
+    public synchronized void leaveSend() {
+        sendQueueDepth--;
+    }
+
+    /**
+     * Record a successful connect.
+     */
+    public synchronized void connected() {
+        connects++;
+    }
+
+    /**
+     * Record a connection failure.
+     */
+    public synchronized void failed() {
+        failures++;
+    }
+
+    /**
+     * Record the duration of a negotiation phase.
+     * @param phase String The phase name, e.g. "tls".
+     * @param millis long The duration in ms.
+     */
+    public synchronized void phase(String phase, long millis) {
+        phases.put(phase, millis);
+    }
+
+    /**
+     * Retrieve the bare account jid.
+     * @return String The account jid.
+     */
+    public String getJid() {
+        return jid;
+    }
+
+    /**
+     * Export the metrics as a flat bundle.
+     * @return Bundle The metrics.
+     */
+    public synchronized Bundle toBundle() {
+        Bundle bundle = new Bundle();
+        bundle.putLong("wire_bytes_in", wireBytesIn);
+        bundle.putLong("wire_bytes_out", wireBytesOut);
+        bundle.putLong("xml_bytes_in", xmlBytesIn);
+        bundle.putLong("xml_bytes_out", xmlBytesOut);
+        for (int i = 0; i <= TYPES.length; i++) {
+            String type = i < TYPES.length ? TYPES[i] : "other";
+            bundle.putLong("stanzas_in_" + type, stanzasIn[i]);
+            bundle.putLong("stanzas_out_" + type, stanzasOut[i]);
+        }
+        bundle.putLong("connects", connects);
+        bundle.putLong("reconnects", Math.max(0, connects - 1));
+        bundle.putLong("failures", failures);
+        bundle.putInt("send_queue_depth", sendQueueDepth);
+        bundle.putInt("send_queue_depth_max", maxSendQueueDepth);
+        putHistogram(bundle, "parse_us", parseTime);
+        putHistogram(bundle, "dispatch_us", dispatchTime);
+        for (Map.Entry<String, Long> entry: phases.entrySet()) {
+            bundle.putLong("phase_" + entry.getKey() + "_ms", entry.getValue());
+        }
+        return bundle;
+    }
+
+    /**
+     * Export a histogram summary into a bundle.
+     * @param bundle Bundle The target bundle.
+     * @param prefix String The key prefix.
+     * @param histogram Histogram The histogram.
+     */
+    private static void putHistogram(
+        Bundle bundle,
+        String prefix,
+        Histogram histogram
+    ) {
+        bundle.putLong(prefix + "_count", histogram.getCount());
+        bundle.putLong(prefix + "_mean", histogram.getMean());
+        bundle.putLong(prefix + "_p50", histogram.getPercentile(0.5));
+        bundle.putLong(prefix + "_p95", histogram.getPercentile(0.95));
+        bundle.putLong(prefix + "_p99", histogram.getPercentile(0.99));
+        bundle.putLong(prefix + "_max", histogram.getMax());
+    }
+
+    /**
+     * Write a human readable dump.
+     * @param writer PrintWriter The output writer.
+     */
+    public synchronized void dump(PrintWriter writer) {
+        writer.println(jid + ":");
+        writer.println("  bytes in  wire=" + wireBytesIn + " xml=" + xmlBytesIn);
+        writer.println("  bytes out wire=" + wireBytesOut + " xml=" + xmlBytesOut);
+        StringBuilder in = new StringBuilder("  stanzas in ");
+        StringBuilder out = new StringBuilder("  stanzas out");
+        for (int i = 0; i <= TYPES.length; i++) {
+            String type = i < TYPES.length ? TYPES[i] : "other";
+            in.append(' ').append(type).append('=').append(stanzasIn[i]);
+            out.append(' ').append(type).append('=').append(stanzasOut[i]);
+        }
+        writer.println(in);
+        writer.println(out);
+        writer.println("  connects=" + connects + " failures=" + failures);
+        writer.println("  send queue depth=" + sendQueueDepth
+                     + " max=" + maxSendQueueDepth + " (" + sendQueue + ")");
+        writer.println("  parse us    " + parseTime);
+        writer.println("  dispatch us " + dispatchTime);
+        writer.println("  negotiation ms " + phases);
+    }
+
+}
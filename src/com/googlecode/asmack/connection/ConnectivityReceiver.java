@@ -4,6 +4,9 @@ import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
 import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
+import android.net.wifi.WifiInfo;
+import android.net.wifi.WifiManager;
 import android.util.Log;
 
 public class ConnectivityReceiver extends BroadcastReceiver {
@@ -15,6 +18,12 @@ public class ConnectivityReceiver extends BroadcastReceiver {
 
     private boolean disconnected = false;
 
+    /**
+     * The identity of the last active network (type and access point or
+     * apn), null if unknown.
+     */
+    private String activeNetwork = null;
+
     public ConnectivityReceiver(XmppTransportService xmppTransportService) {
         this.xmppTransportService = xmppTransportService;
     }
@@ -29,13 +38,53 @@ public class ConnectivityReceiver extends BroadcastReceiver {
                 Log.d(TAG, "Disconnected");
                 disconnected = true;
             }
+            activeNetwork = null;
             return;
         }
-        if (!disconnected) {
+        String lastNetwork = activeNetwork;
+        ConnectivityManager connectivityManager = (ConnectivityManager)
+                    context.getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo active = connectivityManager.getActiveNetworkInfo();
+        if (active != null && active.isConnected()) {
+            activeNetwork = getNetworkIdentity(context, active);
+        }
+        if (disconnected) {
+            disconnected = false;
+            xmppTransportService.onConnectivityAvailable();
             return;
         }
-        disconnected = false;
-        xmppTransportService.onConnectivityAvailable();
+        if (lastNetwork != null && active != null && active.isConnected() &&
+            !lastNetwork.equals(activeNetwork)) {
+            Log.d(TAG, "Network changed to " + activeNetwork);
+            xmppTransportService.onNetworkChanged();
+        }
+    }
+
+    /**
+     * Compute the identity of a network. Wifi networks are identified by
+     * the access point, mobile networks by the apn, so that a change of the
+     * access point is detected as a network change, too.
+     * @param context The current context.
+     * @param network The active network.
+     * @return The network identity.
+     */
+    private static String getNetworkIdentity(
+        Context context,
+        NetworkInfo network
+    ) {
+        String id = null;
+        if (network.getType() == ConnectivityManager.TYPE_WIFI) {
+            WifiManager wifiManager = (WifiManager)
+                    context.getSystemService(Context.WIFI_SERVICE);
+            WifiInfo info = wifiManager.getConnectionInfo();
+            if (info != null) {
+                id = info.getBSSID();
+            }
+        }
+        if (id == null) {
+            id = network.getExtraInfo();
+        }
+        return network.getTypeName() + "/" + id;
     }
 
 }
@@ -0,0 +1,396 @@
+package com.googlecode.asmack.connection;
+
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.util.TimingWheelScheduler;
+
+/**
+ * <p>RTT measuring keepalive of a single account. Every ping is correlated
+ * with its result, the round trip time is tracked as a smoothed mean and
+ * variance (RFC 6298 style). A link is declared dead after
+ * {@value #MAX_TIMEOUTS} consecutive RTT-scaled timeouts.</p>
+ * <p>The keepalive additionally learns the longest idle interval the network
+ * path tolerates: every successful ping after a full idle interval widens
+ * the interval by {@value #INTERVAL_STEP}ms, a ping lost after an idle
+ * period caps the interval below that idle time. The learned interval is
+ * kept across reconnects until the network changes.</p>
+ */
+public class Keepalive {
+
+    /**
+     * Logging tag (Keepalive).
+     */
+    private static final String TAG = Keepalive.class.getSimpleName();
+
+    /**
+     * Prefix of all keepalive ping ids.
+     */
+    private static final String ID_PREFIX = "ping_";
+
+    /**
+     * The minimum (and initial) idle interval before a ping, 60s.
+     */
+    private static final long MIN_INTERVAL = 60 * 1000;
+
+    /**
+     * The maximum idle interval before a ping, 28 minutes.
+     */
+    private static final long MAX_INTERVAL = 28 * 60 * 1000;
+
+    /**
+     * Idle interval increment after a successful ping, 60s.
+     */
+    private static final long INTERVAL_STEP = 60 * 1000;
+
+    /**
+     * Ping timeout without any rtt sample, 20s.
+     */
+    private static final long INITIAL_TIMEOUT = 20 * 1000;
+
+    /**
+     * Lower bound of the ping timeout, 5s (radio wakeup on mobile networks).
+     */
+    private static final long MIN_TIMEOUT = 5 * 1000;
+
+    /**
+     * Upper bound of the ping timeout, 60s.
+     */
+    private static final long MAX_TIMEOUT = 60 * 1000;
+
+    /**
+     * Number of consecutive timeouts that mark a link as dead.
+     */
+    private static final int MAX_TIMEOUTS = 3;
+
+    /**
+     * Map of {ping id} => {keepalive} for all outstanding pings.
+     */
+    private static final HashMap<String, Keepalive> pending =
+                                            new HashMap<String, Keepalive>();
+
+    /**
+     * The bare account jid.
+     */
+    private final String jid;
+
+    /**
+     * The scheduler used for ping timeouts.
+     */
+    private final TimingWheelScheduler scheduler;
+
+    /**
+     * The current connection.
+     */
+    private Connection connection;
+
+    /**
+     * The id of the outstanding ping, or null.
+     */
+    private String pendingId;
+
+    /**
+     * The send time of the outstanding ping.
+     */
+    private long pendingSince;
+
+    /**
+     * The idle time of the link when the outstanding ping was sent.
+     */
+    private long pendingIdle;
+
+    /**
+     * Consecutive timeouts of the current connection.
+     */
+    private int timeouts = 0;
+
+    /**
+     * Smoothed round trip time in ms, -1 without samples.
+     */
+    private long smoothedRTT = -1;
+
+    /**
+     * Round trip time variance in ms.
+     */
+    private long rttVariance = 0;
+
+    /**
+     * The current idle interval before a ping is sent.
+     */
+    private long interval = MIN_INTERVAL;
+
+    /**
+     * The idle time known to break the network path.
+     */
+    private long ceiling = Long.MAX_VALUE;
+
+    /**
+     * Number of pings sent.
+     */
+    private long pingCount = 0;
+
+    /**
+     * Number of ping timeouts.
+     */
+    private long timeoutCount = 0;
+
+    /**
+     * Create a new keepalive for an account.
+     * @param jid String The bare account jid.
+     * @param scheduler TimingWheelScheduler The scheduler for ping timeouts.
+     */
+    public Keepalive(String jid, TimingWheelScheduler scheduler) {
+        this.jid = jid;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Bind the keepalive to the current connection of the account. A new
+     * connection drops the outstanding ping but keeps the rtt estimate and
+     * the learned interval.
+     * @param connection Connection The current connection.
+     */
+    public synchronized void setConnection(Connection connection) {
+        if (this.connection == connection) {
+            return;
+        }
+        this.connection = connection;
+        clearPending();
+        timeouts = 0;
+    }
+
+    /**
+     * Forget everything learned about the network path, e.g. after a
+     * network change.
+     */
+    public synchronized void resetPath() {
+        smoothedRTT = -1;
+        rttVariance = 0;
+        interval = MIN_INTERVAL;
+        ceiling = Long.MAX_VALUE;
+    }
+
+    /**
+     * Periodic check, sends a ping if the link was idle for the learned
+     * interval and no ping is outstanding.
+     * @param executor Executor The executor used for the background send.
+     */
+    public synchronized void tick(Executor executor) {
+        if (connection == null || pendingId != null) {
+            return;
+        }
+        if (System.currentTimeMillis() - connection.lastReceive() >= interval) {
+            sendPing(executor);
+        }
+    }
+
+    /**
+     * Send a ping and schedule its timeout. Retries back off exponentially.
+     * @param executor Executor The executor used for the background send.
+     */
+    private void sendPing(final Executor executor) {
+        final String id = ID_PREFIX + Long.toHexString(
+            (long)(Long.MAX_VALUE * Math.random())
+        );
+        clearPending();
+        pendingId = id;
+        pendingSince = System.currentTimeMillis();
+        pendingIdle = pendingSince - connection.lastReceive();
+        synchronized (pending) {
+            pending.put(id, this);
+        }
+        pingCount++;
+        Log.d(TAG, "Keepalive on " + connection.getResourceJid()
+                 + " after " + pendingIdle + "ms idle");
+        executor.execute(new PingRunnable(connection, id));
+        String key = getKey();
+        scheduler.cancel(key);
+        scheduler.schedule(key, new Runnable() {
+            @Override
+            public void run() {
+                timeout(id, executor);
+            }
+        }, getTimeout() << Math.min(timeouts, 4), 0);
+    }
+
+    /**
+     * Retrieve the scheduler key of the ping timeout.
+     * @return String The scheduler key.
+     */
+    private String getKey() {
+        return "keepalive/" + jid;
+    }
+
+    /**
+     * Cancel a pending ping timeout, e.g. when the service goes away.
+     */
+    public void cancel() {
+        scheduler.cancel(getKey());
+    }
+
+    /**
+     * Handle a possible ping result.
+     * @param stanza Stanza A received stanza.
+     * @return boolean True if the stanza was a keepalive result.
+     */
+    public static boolean receive(Stanza stanza) {
+        if (!"iq".equals(stanza.getName())) {
+            return false;
+        }
+        String id = stanza.getAttributeValue("id");
+        if (id == null || !id.startsWith(ID_PREFIX)) {
+            return false;
+        }
+        Keepalive keepalive;
+        synchronized (pending) {
+            keepalive = pending.remove(id);
+        }
+        if (keepalive == null) {
+            return false;
+        }
+        keepalive.pong(id);
+        return true;
+    }
+
+    /**
+     * Record a ping result, updating the rtt estimate and widening the idle
+     * interval if the ping followed a full idle interval.
+     * @param id String The ping id.
+     */
+    private synchronized void pong(String id) {
+        if (!id.equals(pendingId)) {
+            return;
+        }
+        long rtt = System.currentTimeMillis() - pendingSince;
+        if (smoothedRTT < 0) {
+            smoothedRTT = rtt;
+            rttVariance = rtt / 2;
+        } else {
+            rttVariance = (3 * rttVariance + Math.abs(smoothedRTT - rtt)) / 4;
+            smoothedRTT = (7 * smoothedRTT + rtt) / 8;
+        }
+        if (timeouts == 0 && pendingIdle >= interval &&
+            interval + INTERVAL_STEP < ceiling) {
+            interval = Math.min(interval + INTERVAL_STEP, MAX_INTERVAL);
+        }
+        timeouts = 0;
+        pendingId = null;
+    }
+
+    /**
+     * Handle a ping timeout, retrying or closing a dead connection.
+     * @param id String The ping id.
+     * @param executor Executor The executor used for retries.
+     */
+    private void timeout(String id, Executor executor) {
+        Connection dead = null;
+        synchronized (this) {
+            if (!id.equals(pendingId)) {
+                return;
+            }
+            if (connection.lastReceive() > pendingSince) {
+                // the link is alive, the server is just slow to answer
+                clearPending();
+                return;
+            }
+            timeouts++;
+            timeoutCount++;
+            if (timeouts == 1 && pendingIdle >= MIN_INTERVAL) {
+                // the path may have dropped us while idle
+                ceiling = Math.min(ceiling, pendingIdle);
+                interval = Math.max(MIN_INTERVAL, interval - INTERVAL_STEP);
+            }
+            if (timeouts < MAX_TIMEOUTS) {
+                sendPing(executor);
+                return;
+            }
+            Log.d(TAG, "Link dead on " + connection.getResourceJid());
+            clearPending();
+            dead = connection;
+        }
+        try {
+            // the pull thread reports the closed connection as failed
+            dead.close();
+        } catch (XmppException e) {
+            /* IGNORE */
+        }
+    }
+
+    /**
+     * Drop the outstanding ping.
+     */
+    private void clearPending() {
+        if (pendingId != null) {
+            synchronized (pending) {
+                pending.remove(pendingId);
+            }
+            pendingId = null;
+        }
+    }
+
+    /**
+     * Compute the current ping timeout, srtt + 4 * rttvar within
+     * [{@value #MIN_TIMEOUT}, {@value #MAX_TIMEOUT}].
+     * @return long The ping timeout in ms.
+     */
+    public synchronized long getTimeout() {
+        if (smoothedRTT < 0) {
+            return INITIAL_TIMEOUT;
+        }
+        return Math.max(MIN_TIMEOUT,
+                   Math.min(MAX_TIMEOUT, smoothedRTT + 4 * rttVariance));
+    }
+
+    /**
+     * Retrieve the bare account jid.
+     * @return String The account jid.
+     */
+    public String getJid() {
+        return jid;
+    }
+
+    /**
+     * Retrieve the smoothed round trip time.
+     * @return long The smoothed rtt in ms, -1 if unknown.
+     */
+    public synchronized long getSmoothedRTT() {
+        return smoothedRTT;
+    }
+
+    /**
+     * Retrieve the round trip time variance.
+     * @return long The rtt variance in ms.
+     */
+    public synchronized long getRTTVariance() {
+        return rttVariance;
+    }
+
+    /**
+     * Retrieve the learned idle interval.
+     * @return long The idle interval before a ping in ms.
+     */
+    public synchronized long getInterval() {
+        return interval;
+    }
+
+    /**
+     * Retrieve the number of pings sent.
+     * @return long The ping count.
+     */
+    public synchronized long getPingCount() {
+        return pingCount;
+    }
+
+    /**
+     * Retrieve the number of ping timeouts.
+     * @return long The timeout count.
+     */
+    public synchronized long getTimeoutCount() {
+        return timeoutCount;
+    }
+
+}
@@ -60,12 +60,31 @@ public class LoginThread extends Thread {
     }
 
     /**
-     * Run a login attempt, reporting results to AccountConnection:
+     * Run a login attempt, reporting results to AccountConnection. The
+     * attempt waits for one of the process wide login slots first.
      */
     @Override
     public void run() {
+        try {
+            ReconnectScheduler.acquireLogin();
+        } catch (InterruptedException e) {
+            // attempt cancelled while waiting for a login slot
+            return;
+        }
+        try {
+            login();
+        } finally {
+            ReconnectScheduler.releaseLogin();
+        }
+    }
+
+    /**
+     * Connect and bind a new connection.
+     */
+    private void login() {
         Connection connection = ConnectionFactory.createConnection(
-                accountConnection.getAccount()
+                accountConnection.getAccount(),
+                accountConnection.takeRedirect()
         );
         try {
             connection.connect(accountConnection.getStanzaSink());
@@ -78,7 +97,18 @@ public class LoginThread extends Thread {
             } catch (XmppException e1) {
                 /* ignore */
             }
-            accountConnection.connectionFail(this);
+            accountConnection.connectionFail(this, e);
+        } catch (RuntimeException e) {
+            Log.d("LoginThreadr", "Login failed", e);
+            try {
+                connection.close();
+            } catch (XmppException e1) {
+                /* ignore */
+            } catch (RuntimeException e1) {
+                /* ignore */
+            }
+            accountConnection.connectionFail(this,
+                new XmppTransportException("Login failed", e));
         }
     }
 
@@ -0,0 +1,200 @@
+package com.googlecode.asmack.connection;
+
+import java.io.PrintWriter;
+import java.util.HashMap;
+import java.util.Map;
+
+import android.os.Bundle;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
+
+/**
+ * <p>Process wide traffic and cost accounting by payload namespace. Every
+ * stanza is attributed to the namespace of its first child element (e.g.
+ * pubsub events, disco, caps presence), so the cost of a single protocol
+ * feature can be seen at a glance.</p>
+ * <p>Byte counts are xml characters of the stanza; wire bytes are estimated
+ * from the current compression ratio of the account. Parse times are thread
+ * cpu times, listener times are wall clock times, both in nanoseconds.</p>
+ */
+public class NamespaceMetrics {
+
+    /**
+     * Column: inbound stanzas.
+     */
+    private static final int STANZAS_IN = 0;
+
+    /**
+     * Column: outbound stanzas.
+     */
+    private static final int STANZAS_OUT = 1;
+
+    /**
+     * Column: inbound xml bytes.
+     */
+    private static final int XML_IN = 2;
+
+    /**
+     * Column: outbound xml bytes.
+     */
+    private static final int XML_OUT = 3;
+
+    /**
+     * Column: estimated inbound wire bytes.
+     */
+    private static final int WIRE_IN = 4;
+
+    /**
+     * Column: estimated outbound wire bytes.
+     */
+    private static final int WIRE_OUT = 5;
+
+    /**
+     * Column: parse cpu time in ns.
+     */
+    private static final int PARSE = 6;
+
+    /**
+     * Column: listener time in ns.
+     */
+    private static final int DISPATCH = 7;
+
+    /**
+     * The column names, in column order.
+     */
+    private static final String[] COLUMNS = {
+        "stanzas_in", "stanzas_out", "xml_bytes_in", "xml_bytes_out",
+        "wire_bytes_in", "wire_bytes_out", "parse_ns", "dispatch_ns"
+    };
+
+    /**
+     * Map of {namespace} => {counter row}.
+     */
+    private static final HashMap<String, long[]> table =
+                                            new HashMap<String, long[]>();
+
+    /**
+     * Find the namespace of the first child element of a stanza. Children
+     * without a namespace declaration inherit the stanza namespace, empty
+     * stanzas are accounted as "&lt;name&gt;".
+     * @param stanza Stanza The stanza.
+     * @return String The payload namespace.
+     */
+    public static String getPayloadNamespace(Stanza stanza) {
+        String tag = XMLUtils.getFirstChildTag(stanza.getXml());
+        if (tag == null) {
+            return "<" + stanza.getName() + ">";
+        }
+        String namespace = XMLUtils.getAttributeValue(tag, "xmlns");
+        return namespace == null ? stanza.getNamespace() : namespace;
+    }
+
+    /**
+     * Retrieve the counter row of a namespace, creating it on first use.
+     * Must be called with the table lock held.
+     * @param namespace String The payload namespace.
+     * @return long[] The counter row.
+     */
+    private static long[] row(String namespace) {
+        long[] row = table.get(namespace);
+        if (row == null) {
+            row = new long[COLUMNS.length];
+            table.put(namespace, row);
+        }
+        return row;
+    }
+
+    /**
+     * Record a parsed inbound stanza.
+     * @param namespace String The payload namespace.
+     * @param xmlBytes long The stanza size.
+     * @param wireBytes long The estimated size on the wire.
+     * @param parseNanos long The parse cpu time in ns.
+     */
+    public static void received(
+        String namespace,
+        long xmlBytes,
+        long wireBytes,
+        long parseNanos
+    ) {
+        synchronized (table) {
+            long[] row = row(namespace);
+            row[STANZAS_IN]++;
+            row[XML_IN] += xmlBytes;
+            row[WIRE_IN] += wireBytes;
+            row[PARSE] += parseNanos;
+        }
+    }
+
+    /**
+     * Record the listener time of an inbound stanza.
+     * @param namespace String The payload namespace.
+     * @param nanos long The listener time in ns.
+     */
+    public static void dispatched(String namespace, long nanos) {
+        synchronized (table) {
+            row(namespace)[DISPATCH] += nanos;
+        }
+    }
+
+    /**
+     * Record an outbound stanza.
+     * @param namespace String The payload namespace.
+     * @param xmlBytes long The stanza size.
+     * @param wireBytes long The estimated size on the wire.
+     */
+    public static void sent(String namespace, long xmlBytes, long wireBytes) {
+        synchronized (table) {
+            long[] row = row(namespace);
+            row[STANZAS_OUT]++;
+            row[XML_OUT] += xmlBytes;
+            row[WIRE_OUT] += wireBytes;
+        }
+    }
+
+    /**
+     * Drop all counters.
+     */
+    public static void reset() {
+        synchronized (table) {
+            table.clear();
+        }
+    }
+
+    /**
+     * Export the table as a bundle of {namespace} => {counter bundle}.
+     * @return Bundle The namespace table.
+     */
+    public static Bundle toBundle() {
+        Bundle result = new Bundle();
+        synchronized (table) {
+            for (Map.Entry<String, long[]> entry: table.entrySet()) {
+                Bundle row = new Bundle();
+                for (int i = 0; i < COLUMNS.length; i++) {
+                    row.putLong(COLUMNS[i], entry.getValue()[i]);
+                }
+                result.putBundle(entry.getKey(), row);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Write a human readable dump, one namespace per line.
+     * @param writer PrintWriter The output writer.
+     */
+    public static void dump(PrintWriter writer) {
+        synchronized (table) {
+            for (Map.Entry<String, long[]> entry: table.entrySet()) {
+                long[] row = entry.getValue();
+                writer.println("  " + entry.getKey()
+                    + " in=" + row[STANZAS_IN] + "/" + row[WIRE_IN] + "B"
+                    + " out=" + row[STANZAS_OUT] + "/" + row[WIRE_OUT] + "B"
+                    + " parse=" + row[PARSE] / 1000 + "us"
+                    + " dispatch=" + row[DISPATCH] / 1000 + "us");
+            }
+        }
+    }
+
+}
@@ -50,12 +50,29 @@ public class PingRunnable implements Runnable {
      */
     private final Connection connection;
 
+    /**
+     * The ping id.
+     */
+    private final String id;
+
     /**
      * Create a new ping runnable bound to a given output connection.
      * @param connection The ping output connection.
      */
     public PingRunnable(Connection connection) {
+        this(connection, "ping_" +
+            Long.toHexString((int)(Integer.MAX_VALUE * Math.random())));
+    }
+
+    /**
+     * Create a new ping runnable with a given id, used to correlate the
+     * result.
+     * @param connection The ping output connection.
+     * @param id The ping id.
+     */
+    public PingRunnable(Connection connection, String id) {
         this.connection = connection;
+        this.id = id;
     }
 
     /**
@@ -69,9 +86,7 @@ public class PingRunnable implements Runnable {
                 "",
                 "<iq type='get' from='" +
                 connection.getResourceJid() +
-                "' id='ping_" +
-                Long.toHexString((int)(Integer.MAX_VALUE * Math.random()))
-                + "'><ping xmlns='urn:xmpp:ping'/></iq>",
+                "' id='" + id + "'><ping xmlns='urn:xmpp:ping'/></iq>",
                 null
         );
         try {
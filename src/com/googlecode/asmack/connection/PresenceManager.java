@@ -0,0 +1,220 @@
+package com.googlecode.asmack.connection;
+
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+import com.googlecode.asmack.XmppException;
+
+/**
+ * <p>Change driven presence updates. The manager remembers the last
+ * presence (show, status and caps verification string) sent per account and
+ * only sends a new presence if something changed, or if the connection was
+ * replaced by a new, non-resumed session. A presence is only remembered
+ * once it has been sent.</p>
+ * <p>Every presence update is fanned out to all contacts by the server, so
+ * suppressing unchanged presences saves traffic on both ends.</p>
+ */
+public class PresenceManager {
+
+    /**
+     * Logging tag (PresenceManager).
+     */
+    private static final String TAG = PresenceManager.class.getSimpleName();
+
+    /**
+     * The last presence sent on a connection.
+     */
+    private static class SentPresence {
+
+        /**
+         * The connection used for the presence.
+         */
+        private final Connection connection;
+
+        /**
+         * The presence show value, or null.
+         */
+        private final String show;
+
+        /**
+         * The presence status, or null.
+         */
+        private final String status;
+
+        /**
+         * The caps verification string, or null.
+         */
+        private final String verification;
+
+        /**
+         * Create a new presence record.
+         * @param connection Connection The connection.
+         * @param show String The show value.
+         * @param status String The status.
+         * @param verification String The caps verification string.
+         */
+        private SentPresence(
+            Connection connection,
+            String show,
+            String status,
+            String verification
+        ) {
+            this.connection = connection;
+            this.show = show;
+            this.status = status;
+            this.verification = verification;
+        }
+
+        /**
+         * Check if this record matches a presence on a connection.
+         * @param connection Connection The connection.
+         * @param show String The show value.
+         * @param status String The status.
+         * @param verification String The caps verification string.
+         * @return boolean True if the presence would be a duplicate.
+         */
+        private boolean matches(
+            Connection connection,
+            String show,
+            String status,
+            String verification
+        ) {
+            if (this.connection != connection && !connection.isResumed()) {
+                // a fresh session starts without presence
+                return false;
+            }
+            return equal(this.show, show)
+                && equal(this.status, status)
+                && equal(this.verification, verification);
+        }
+
+    }
+
+    /**
+     * Map of {bare jid} => {last sent presence}.
+     */
+    private final HashMap<String, SentPresence> sent =
+                                        new HashMap<String, SentPresence>();
+
+    /**
+     * The executor used for the actual send.
+     */
+    private final Executor executor;
+
+    /**
+     * Number of presences sent.
+     */
+    private long sentCount = 0;
+
+    /**
+     * Number of presences suppressed as duplicates.
+     */
+    private long suppressedCount = 0;
+
+    /**
+     * Create a new presence manager.
+     * @param executor Executor The executor used for background sends.
+     */
+    public PresenceManager(Executor executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * Null safe string comparison.
+     * @param a String The first string.
+     * @param b String The second string.
+     * @return boolean True if both are null or equal.
+     */
+    private static boolean equal(String a, String b) {
+        return a == null ? b == null : a.equals(b);
+    }
+
+    /**
+     * Send a presence on a connection unless the same presence was already
+     * sent on the current session.
+     * @param connection Connection The account connection.
+     * @param show String The presence show value, or null.
+     * @param status String The presence status, or null.
+     * @param verification String The caps verification string, or null.
+     * @return boolean True if a presence was scheduled, false if it was
+     *                 suppressed.
+     */
+    public boolean update(
+        final Connection connection,
+        final String show,
+        final String status,
+        final String verification
+    ) {
+        final String jid = connection.getAccount().getJid();
+        synchronized (sent) {
+            SentPresence last = sent.get(jid);
+            if (last != null &&
+                last.matches(connection, show, status, verification)) {
+                suppressedCount++;
+                if (last.connection != connection) {
+                    // resumed session, the server kept our presence
+                    sent.put(jid, new SentPresence(
+                        connection, show, status, verification
+                    ));
+                }
+                return false;
+            }
+        }
+        Log.d(TAG, "Presence update on " + connection.getResourceJid());
+        final PresenceRunnable presence = new PresenceRunnable(
+            connection, show, status, verification
+        );
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    presence.send();
+                } catch (XmppException e) {
+                    Log.d(TAG, "Presence update failed on " + jid, e);
+                    return;
+                }
+                synchronized (sent) {
+                    sent.put(jid, new SentPresence(
+                        connection, show, status, verification
+                    ));
+                    sentCount++;
+                }
+            }
+        });
+        return true;
+    }
+
+    /**
+     * Forget the last presence of an account, forcing a resend with the
+     * next update.
+     * @param jid String The bare account jid.
+     */
+    public void invalidate(String jid) {
+        synchronized (sent) {
+            sent.remove(jid);
+        }
+    }
+
+    /**
+     * Retrieve the number of presences sent.
+     * @return long The number of sent presences.
+     */
+    public long getSentCount() {
+        synchronized (sent) {
+            return sentCount;
+        }
+    }
+
+    /**
+     * Retrieve the number of presences suppressed as duplicates.
+     * @return long The number of suppressed presences.
+     */
+    public long getSuppressedCount() {
+        synchronized (sent) {
+            return suppressedCount;
+        }
+    }
+
+}
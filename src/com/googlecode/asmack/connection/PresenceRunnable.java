@@ -38,6 +38,7 @@
 package com.googlecode.asmack.connection;
 
 import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
 import com.googlecode.asmack.XmppException;
 
 /**
@@ -52,27 +53,81 @@ public class PresenceRunnable implements Runnable {
     private final Connection connection;
     private final String verification;
 
+    /**
+     * The presence show value, or null.
+     */
+    private final String show;
+
+    /**
+     * The presence status, or null.
+     */
+    private final String status;
+
     /**
      * Create a new presence runnable for a given connection.
      * @param connection The output connection for the presence update.
      */
     public PresenceRunnable(Connection connection, String verification) {
+        this(connection, null, null, verification);
+    }
+
+    /**
+     * Create a new presence runnable with show and status.
+     * @param connection The output connection for the presence update.
+     * @param show The presence show value, or null.
+     * @param status The presence status, or null.
+     * @param verification The caps verification string, or null.
+     */
+    public PresenceRunnable(
+        Connection connection,
+        String show,
+        String status,
+        String verification
+    ) {
         this.connection = connection;
+        this.show = show;
+        this.status = status;
         this.verification = verification;
     }
 
     /**
-     * Execute the presence update.
+     * Execute the presence update, ignoring failures.
      */
     @Override
     public void run() {
-        String payload = "<presence />";
+        try {
+            send();
+        } catch (XmppException e) {
+            /* PING is non critical */
+        }
+    }
+
+    /**
+     * Send the presence update.
+     * @throws XmppException In case of a transport error.
+     */
+    public void send() throws XmppException {
+        StringBuilder content = new StringBuilder();
+        if (show != null) {
+            content.append("<show>")
+                   .append(XMLUtils.xmlEscape(show))
+                   .append("</show>");
+        }
+        if (status != null) {
+            content.append("<status>")
+                   .append(XMLUtils.xmlEscape(status))
+                   .append("</status>");
+        }
         if (verification != null) {
-            payload = "<presence><c xmlns='http://jabber.org/protocol/caps' " +
-                      "hash='sha-1' " +
-                      "node='http://github.com/rtreffer/AsmackService' " +
-                      "ver='" + verification +"'" +
-                      "/></presence>";
+            content.append("<c xmlns='http://jabber.org/protocol/caps' " +
+                           "hash='sha-1' " +
+                           "node='http://github.com/rtreffer/AsmackService' " +
+                           "ver='" + verification +"'" +
+                           "/>");
+        }
+        String payload = "<presence />";
+        if (content.length() > 0) {
+            payload = "<presence>" + content + "</presence>";
         }
         Stanza stanza = new Stanza(
                 "presence",
@@ -81,11 +136,7 @@ public class PresenceRunnable implements Runnable {
                 payload,
                 null
         );
-        try {
-            connection.send(stanza);
-        } catch (XmppException e) {
-            /* PING is non critical */
-        }
+        connection.send(stanza);
     }
 
 }
@@ -0,0 +1,204 @@
+package com.googlecode.asmack.connection;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.Semaphore;
+
+import android.util.Log;
+
+import com.googlecode.asmack.connection.impl.TcpConnection;
+import com.googlecode.asmack.util.TimingWheelScheduler;
+
+/**
+ * <p>Reconnect timing for all accounts. Delays follow a decorrelated jitter
+ * exponential backoff (each delay is drawn from [{@value #BASE_DELAY}ms,
+ * 3 * previous delay], capped at {@value #MAX_DELAY}ms), so clients that
+ * lost a server at the same moment don't reconnect in lockstep.</p>
+ * <p>Login attempts of all accounts share a process wide limit of
+ * {@value #MAX_CONCURRENT_LOGINS} concurrent logins. Server hints are
+ * honored: a <code>see-other-host</code> stream error redirects the next
+ * attempt, a <code>system-shutdown</code> raises the next delay to at least
+ * {@value #SHUTDOWN_DELAY}ms.</p>
+ */
+public class ReconnectScheduler {
+
+    /**
+     * Logging tag (ReconnectScheduler).
+     */
+    private static final String TAG = ReconnectScheduler.class.getSimpleName();
+
+    /**
+     * The base delay, 5s. The first retry happens within this delay.
+     */
+    private static final long BASE_DELAY = 5 * 1000;
+
+    /**
+     * The maximum delay, 10 minutes.
+     */
+    private static final long MAX_DELAY = 10 * 60 * 1000;
+
+    /**
+     * Minimum delay after a system-shutdown stream error, 60s.
+     */
+    private static final long SHUTDOWN_DELAY = 60 * 1000;
+
+    /**
+     * Maximum number of concurrent login attempts.
+     */
+    private static final int MAX_CONCURRENT_LOGINS = 2;
+
+    /**
+     * Maximum number of consecutive see-other-host redirects.
+     */
+    private static final int MAX_REDIRECTS = 3;
+
+    /**
+     * Process wide login permits.
+     */
+    private static final Semaphore logins =
+                                new Semaphore(MAX_CONCURRENT_LOGINS, true);
+
+    /**
+     * Random source for the jitter.
+     */
+    private final Random random = new Random();
+
+    /**
+     * Map of {bare jid} => {previous delay}.
+     */
+    private final HashMap<String, Long> delays = new HashMap<String, Long>();
+
+    /**
+     * Map of {bare jid} => {minimum next delay} from server hints.
+     */
+    private final HashMap<String, Long> hints = new HashMap<String, Long>();
+
+    /**
+     * Map of {bare jid} => {consecutive redirects}.
+     */
+    private final HashMap<String, Integer> redirects =
+                                            new HashMap<String, Integer>();
+
+    /**
+     * The scheduler running the reconnects.
+     */
+    private final TimingWheelScheduler scheduler;
+
+    /**
+     * Create a new reconnect scheduler.
+     * @param scheduler The scheduler running the reconnects.
+     */
+    public ReconnectScheduler(TimingWheelScheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Wait for a login permit. Every successful call must be paired with
+     * {@link #releaseLogin()}.
+     * @throws InterruptedException If the login attempt was cancelled.
+     */
+    public static void acquireLogin() throws InterruptedException {
+        logins.acquire();
+    }
+
+    /**
+     * Return a login permit.
+     */
+    public static void releaseLogin() {
+        logins.release();
+    }
+
+    /**
+     * Compute the next delay of an account.
+     * @param jid The bare account jid.
+     * @return The reconnect delay in ms.
+     */
+    private synchronized long nextDelay(String jid) {
+        Long previous = delays.get(jid);
+        long delay;
+        if (previous == null) {
+            delay = (long) (random.nextDouble() * BASE_DELAY);
+        } else {
+            long upper = Math.max(BASE_DELAY, previous * 3);
+            delay = BASE_DELAY +
+                    (long) (random.nextDouble() * (upper - BASE_DELAY));
+        }
+        Long hint = hints.remove(jid);
+        if (hint != null) {
+            delay = Math.max(delay, hint);
+        }
+        delay = Math.min(MAX_DELAY, delay);
+        delays.put(jid, Math.max(BASE_DELAY, delay));
+        return delay;
+    }
+
+    /**
+     * Schedule a reconnect of an account with the next backoff delay.
+     * @param jid The bare account jid.
+     * @param reconnect The reconnect task.
+     * @return The delay in ms.
+     */
+    public long schedule(String jid, Runnable reconnect) {
+        long delay = nextDelay(jid);
+        Log.d(TAG, "Reconnect " + jid + " in " + delay + "ms");
+        scheduler.schedule("reconnect/" + jid, reconnect, delay, 0);
+        return delay;
+    }
+
+    /**
+     * Apply the hints of a stream error to the next reconnect.
+     * @param jid The bare account jid.
+     * @param error The stream error.
+     * @return The alternative host[:port] of a see-other-host error, if the
+     *         redirect is well formed and should be followed, null
+     *         otherwise.
+     */
+    public synchronized String hint(String jid, XmppStreamErrorException error)
+    {
+        String condition = error.getCondition();
+        if ("system-shutdown".equals(condition)) {
+            hints.put(jid, SHUTDOWN_DELAY);
+            return null;
+        }
+        if (!"see-other-host".equals(condition) || error.getValue() == null) {
+            return null;
+        }
+        String host = error.getValue().trim();
+        if (TcpConnection.parseAddress(host, 5222) == null) {
+            Log.w(TAG, "Invalid redirect of " + jid + " to " + host);
+            return null;
+        }
+        Integer count = redirects.get(jid);
+        count = count == null ? 1 : count + 1;
+        if (count > MAX_REDIRECTS) {
+            Log.w(TAG, "Too many redirects for " + jid);
+            return null;
+        }
+        redirects.put(jid, count);
+        // a redirect is not a failure, retry within the base delay
+        delays.remove(jid);
+        hints.remove(jid);
+        return host;
+    }
+
+    /**
+     * Forget the backoff of an account, e.g. after a successful login or a
+     * network change. A pending reconnect is cancelled.
+     * @param jid The bare account jid.
+     */
+    public synchronized void reset(String jid) {
+        delays.remove(jid);
+        hints.remove(jid);
+        scheduler.cancel("reconnect/" + jid);
+    }
+
+    /**
+     * Forget the redirects of an account after a successful login.
+     * @param jid The bare account jid.
+     */
+    public synchronized void connected(String jid) {
+        reset(jid);
+        redirects.remove(jid);
+    }
+
+}
@@ -0,0 +1,122 @@
+package com.googlecode.asmack.connection;
+
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XmppMalformedException;
+
+/**
+ * A xmpp stream error (RFC 6120, 4.9) sent by the server, e.g.
+ * <code>see-other-host</code> or <code>system-shutdown</code>. The stream is
+ * unusable after a stream error.
+ */
+public class XmppStreamErrorException extends XmppTransportException {
+
+    /**
+     * SerialVersionUID as required by serializable.
+     */
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * The xmpp stream namespace.
+     */
+    private static final String STREAM_NAMESPACE =
+                                        "http://etherx.jabber.org/streams";
+
+    /**
+     * The namespace of stream error conditions.
+     */
+    private static final String ERROR_NAMESPACE =
+                                        "urn:ietf:params:xml:ns:xmpp-streams";
+
+    /**
+     * The error condition, e.g. "see-other-host".
+     */
+    private final String condition;
+
+    /**
+     * The text content of the condition element, e.g. the alternative host
+     * of a see-other-host error, or null.
+     */
+    private final String value;
+
+    /**
+     * Create a new stream error exception.
+     * @param condition The defined error condition.
+     * @param value The condition text content, or null.
+     */
+    public XmppStreamErrorException(String condition, String value) {
+        super("Stream error " + condition + (value == null ? "" : " " + value));
+        this.condition = condition;
+        this.value = value;
+    }
+
+    /**
+     * Check if a stanza is a stream error.
+     * @param stanza The stanza to check.
+     * @return True if the stanza is a &lt;stream:error/&gt;.
+     */
+    public static boolean isStreamError(Stanza stanza) {
+        return "error".equals(stanza.getName()) &&
+               STREAM_NAMESPACE.equals(stanza.getNamespace());
+    }
+
+    /**
+     * Parse a stream error stanza.
+     * @param stanza The stream error stanza.
+     * @return The stream error, or null if the stanza isn't a stream error.
+     */
+    public static XmppStreamErrorException parse(Stanza stanza) {
+        if (!isStreamError(stanza)) {
+            return null;
+        }
+        Node node;
+        try {
+            node = stanza.getDocumentNode();
+        } catch (XmppMalformedException e) {
+            return new XmppStreamErrorException("undefined-condition", null);
+        }
+        NodeList children = node.getChildNodes();
+        for (int i = 0, l = children.getLength(); i < l; i++) {
+            Node child = children.item(i);
+            if (child.getNodeType() != Node.ELEMENT_NODE ||
+                !ERROR_NAMESPACE.equals(child.getNamespaceURI())) {
+                continue;
+            }
+            String name = child.getLocalName();
+            if (name == null) {
+                name = child.getNodeName();
+            }
+            if ("text".equals(name)) {
+                continue;
+            }
+            String value = child.getTextContent();
+            if (value != null) {
+                value = value.trim();
+                if (value.length() == 0) {
+                    value = null;
+                }
+            }
+            return new XmppStreamErrorException(name, value);
+        }
+        return new XmppStreamErrorException("undefined-condition", null);
+    }
+
+    /**
+     * Retrieve the error condition.
+     * @return The defined condition, e.g. "see-other-host".
+     */
+    public String getCondition() {
+        return condition;
+    }
+
+    /**
+     * Retrieve the condition text content.
+     * @return The condition value, or null.
+     */
+    public String getValue() {
+        return value;
+    }
+
+}
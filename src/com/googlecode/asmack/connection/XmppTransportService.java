@@ -37,13 +37,18 @@
 
 package com.googlecode.asmack.connection;
 
+import java.io.FileDescriptor;
+import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Executor;
 import java.util.concurrent.Executors;
 
+import org.apache.harmony.javax.security.sasl.ScramSaslClient;
+
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.accounts.OnAccountsUpdateListener;
@@ -54,6 +59,7 @@ import android.content.Context;
 import android.content.Intent;
 import android.content.IntentFilter;
 import android.net.ConnectivityManager;
+import android.os.Bundle;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.provider.ContactsContract;
@@ -70,9 +76,14 @@ import com.googlecode.asmack.XmppIdentity;
 import com.googlecode.asmack.connection.AccountConnection.State;
 import com.googlecode.asmack.contacts.ContactDataMapper;
 import com.googlecode.asmack.contacts.PresenceBroadcastReceiver;
+import com.googlecode.asmack.contacts.PresenceCoalescer;
+import com.googlecode.asmack.disco.CapsReceiver;
 import com.googlecode.asmack.disco.Database;
 import com.googlecode.asmack.disco.DiscoReceiver;
-import com.googlecode.asmack.util.LRUCache;
+import com.googlecode.asmack.disco.EntityCapsCache;
+import com.googlecode.asmack.sync.RosterBroadcaster;
+import com.googlecode.asmack.util.ConcurrentCache;
+import com.googlecode.asmack.util.TimingWheelScheduler;
 
 /**
  * The core xmpp service, responsible for connection tracking, keepalive and
@@ -86,28 +97,16 @@ public class XmppTransportService
 {
 
     /**
-     * Reconnect timing.
+     * Cache of verification strings for presence.
      */
-    private static final long RECONNECT_TIMES[] = new long[]{
-         0*60*1000, //    0 fails
-         0*60*1000, //    1 fail
-         1*60*1000, //    2 fails
-         2*60*1000, //    3 fails
-         3*60*1000, //    4 fails
-         4*60*1000, //    5 fails
-         5*60*1000, //    6 fails
-         6*60*1000, //    7 fails
-         7*60*1000, //    8 fails
-         8*60*1000, //    9 fails
-         9*60*1000, //   10 fails
-        10*60*1000  // > 10 fails
-    };
+    protected static final ConcurrentCache<String, String>
+        JID_VERIFICATION_CACHE = new ConcurrentCache<String, String>(100);
 
     /**
-     * Cache of verification strings for presence.
+     * Invalidation counter of {@link #JID_VERIFICATION_CACHE}, guarded by
+     * the cache. A hash computed across an invalidation is not cached.
      */
-    protected static final LRUCache<String, String> JID_VERIFICATION_CACHE =
-                     new LRUCache<String, String>(100);
+    private static long verificationGeneration = 0;
 
     /**
      * Logging tag for this class (class.getSimpleName()).
@@ -130,13 +129,45 @@ public class XmppTransportService
     public static final String XMPP_STATE_INTENT =
                                     "com.googlecode.asmack.intent.XMPP.STATE";
 
+    /**
+     * Intent name for roster results and pushes, the stanza is stored as
+     * the "stanza" extra. The payload of large stanzas is spooled to the
+     * file named by the "spool" extra.
+     */
+    public static final String XMPP_ROSTER_INTENT =
+                                    "com.googlecode.asmack.intent.XMPP.ROSTER";
+
+    /**
+     * Permission required to receive or send roster intents.
+     */
+    public static final String XMPP_ROSTER_PERMISSION =
+                                "com.googlecode.asmack.permission.XMPP_ROSTER";
+
     protected static final List<StanzaListener> listeners =
             Collections.synchronizedList(new ArrayList<StanzaListener>());
 
+    /**
+     * Change driven presence updates for all connections.
+     */
+    protected static final PresenceManager presenceManager;
+
+    /**
+     * Scheduler for all periodic and delayed background work.
+     */
+    protected static final TimingWheelScheduler scheduler;
+
+    /**
+     * Jittered reconnect backoff for all accounts.
+     */
+    protected static final ReconnectScheduler reconnects;
+
     static {
         // Note: I hate static blocks
         int threads = Runtime.getRuntime().availableProcessors() * 3;
         pingExecutor = Executors.newFixedThreadPool(threads);
+        presenceManager = new PresenceManager(pingExecutor);
+        scheduler = new TimingWheelScheduler(pingExecutor);
+        reconnects = new ReconnectScheduler(scheduler);
     }
 
     /**
@@ -144,6 +175,36 @@ public class XmppTransportService
      */
     protected HashMap<String, AccountConnection> connections = new HashMap<String, AccountConnection>();
 
+    /**
+     * Map of {{bare jid} => {Keepalive}} pairs.
+     */
+    protected final HashMap<String, Keepalive> keepalives =
+                                            new HashMap<String, Keepalive>();
+
+    /**
+     * The contacts data mapper of the service.
+     */
+    protected ContactDataMapper contactDataMapper;
+
+    /**
+     * Write buffer of inbound presence.
+     */
+    protected PresenceCoalescer presenceCoalescer;
+
+    /**
+     * Client state indication, sent to all connections on change.
+     */
+    protected final ClientState clientState =
+        new ClientState(scheduler, new Runnable() {
+            @Override
+            public void run() {
+                boolean active = clientState.isActive();
+                for (AccountConnection state: connections.values()) {
+                    indicateClientState(state, active);
+                }
+            }
+        });
+
     /**
      * Binder for remote connection access.
      */
@@ -242,7 +303,7 @@ public class XmppTransportService
                     feature,
                     null
                 );
-                JID_VERIFICATION_CACHE.remove(jid);
+                invalidateVerification(jid);
             }
 
             /**
@@ -257,7 +318,7 @@ public class XmppTransportService
                     feature,
                     null
                 );
-                JID_VERIFICATION_CACHE.clear();
+                invalidateVerifications();
             }
 
             /**
@@ -275,7 +336,7 @@ public class XmppTransportService
                     identity,
                     null
                 );
-                JID_VERIFICATION_CACHE.remove(jid);
+                invalidateVerification(jid);
             }
 
             /**
@@ -291,7 +352,7 @@ public class XmppTransportService
                     identity,
                     null
                 );
-                JID_VERIFICATION_CACHE.clear();
+                invalidateVerifications();
             }
 
             /**
@@ -339,6 +400,53 @@ public class XmppTransportService
                 return resources.toArray(new String[resources.size()]);
             }
 
+            /**
+             * Retrieve the transport metrics of all accounts.
+             * @return Bundle of {bare jid} => {metrics bundle}.
+             */
+            @Override
+            public Bundle getMetrics() throws RemoteException {
+                return XmppTransportService.this.getMetrics();
+            }
+
+            /**
+             * Retrieve the traffic and cost table by payload namespace.
+             * @return Bundle of {namespace} => {counter bundle}.
+             */
+            @Override
+            public Bundle getNamespaceMetrics() throws RemoteException {
+                return NamespaceMetrics.toBundle();
+            }
+
+            /**
+             * Reset the namespace traffic table.
+             */
+            @Override
+            public void resetNamespaceMetrics() throws RemoteException {
+                NamespaceMetrics.reset();
+            }
+
+            /**
+             * Reload cached contact data rows.
+             */
+            @Override
+            public void contactsChanged() throws RemoteException {
+                XmppTransportService.this.contactsChanged();
+            }
+
+            /**
+             * Check for roster versioning support of an account.
+             * @param jid The account jid.
+             * @return True if roster versioning is supported.
+             */
+            @Override
+            public boolean isRosterVersioningSupported(String jid)
+                throws RemoteException
+            {
+                return XmppTransportService.this
+                                .isRosterVersioningSupported(jid);
+            }
+
         };
 
         /**
@@ -354,7 +462,7 @@ public class XmppTransportService
                 feature,
                 null
             );
-            JID_VERIFICATION_CACHE.remove(jid);
+            invalidateVerification(jid);
         }
 
         /**
@@ -368,7 +476,7 @@ public class XmppTransportService
                 feature,
                 null
             );
-            JID_VERIFICATION_CACHE.clear();
+            invalidateVerifications();
         }
 
         /**
@@ -384,7 +492,7 @@ public class XmppTransportService
                 identity,
                 null
             );
-            JID_VERIFICATION_CACHE.remove(jid);
+            invalidateVerification(jid);
         }
 
         public void addIdentity(XmppIdentity identity)
@@ -394,7 +502,7 @@ public class XmppTransportService
                 identity,
                 null
             );
-            JID_VERIFICATION_CACHE.clear();
+            invalidateVerifications();
         }
 
         public String[] getAllAccountJids(boolean connected) {
@@ -426,6 +534,19 @@ public class XmppTransportService
                 return resources.toArray(new String[resources.size()]);
             }
 
+    /**
+     * Retrieve the transport metrics of all accounts, cumulative since the
+     * service start.
+     * @return Bundle of {bare jid} => {metrics bundle}.
+     */
+    public Bundle getMetrics() {
+        Bundle result = new Bundle();
+        for (ConnectionMetrics metrics: ConnectionMetrics.getAll()) {
+            result.putBundle(metrics.getJid(), metrics.toBundle());
+        }
+        return result;
+    }
+
     /**
      * Retrieve an IBinder interface for interaction with the xmpp service.
      * @param The binding intent.
@@ -451,15 +572,24 @@ public class XmppTransportService
 
         ContentProviderClient provider = getContentResolver()
                 .acquireContentProviderClient(ContactsContract.AUTHORITY_URI);
-        ContactDataMapper mapper = new ContactDataMapper(provider);
+        contactDataMapper = new ContactDataMapper(provider);
+        contactsChanged();
 
-        listeners.add(new PresenceBroadcastReceiver(mapper));
+        presenceCoalescer =
+                    new PresenceCoalescer(contactDataMapper, scheduler);
+        listeners.add(new PresenceBroadcastReceiver(presenceCoalescer));
         listeners.add(new DiscoReceiver(getApplicationContext(), this));
+        listeners.add(new CapsReceiver(getApplicationContext()));
+        listeners.add(new RosterBroadcaster(this));
 
-        BroadcastReceiver receiver = new KeepaliveActionIntentReceiver(this);;
-        registerReceiver(receiver, new IntentFilter(Intent.ACTION_TIME_TICK));
+        scheduler.scheduleAtFixedRate("xmpp/ping", new Runnable() {
+            @Override
+            public void run() {
+                ping();
+            }
+        }, 60 * 1000);
 
-        receiver = new ConnectivityReceiver(this);
+        BroadcastReceiver receiver = new ConnectivityReceiver(this);
         registerReceiver(receiver, new IntentFilter(
                                     ConnectivityManager.CONNECTIVITY_ACTION));
 
@@ -489,9 +619,14 @@ public class XmppTransportService
             xmppAccount.setPassword(password);
             xmppAccount.setConnection("xmpp:" + XMPPUtils.getDomain(xmppAccount.getJid()));
             xmppAccount.setResource("asmack" + ID);
+            xmppAccount.setResumptionEnabled(true);
             state.setAccount(xmppAccount);
             connectionStates.put(username, state);
         }
+        if (!connectionStates.keySet().containsAll(connections.keySet())) {
+            // an account was removed, drop the keys derived from its password
+            ScramSaslClient.clearKeyCache();
+        }
         connections = connectionStates;
     }
 
@@ -590,6 +725,16 @@ public class XmppTransportService
         return connection.getResourceJid();
     }
 
+    /**
+     * Check if the server of a connected account supports roster versioning.
+     * @param jid The bare or full account jid.
+     * @return True if connected and roster versioning is supported.
+     */
+    public boolean isRosterVersioningSupported(String jid) {
+        Connection connection = getConnectionForJid(jid);
+        return connection != null && connection.isRosterVersioningSupported();
+    }
+
     /**
      * Retrieve the active (connected) connection matching the given jid.
      * @param jid The jid to find.
@@ -622,6 +767,8 @@ public class XmppTransportService
      */
     @Override
     public void receive(Stanza stanza) {
+        Keepalive.receive(stanza);
+        clientState.received();
         for (StanzaListener listener : listeners) {
             try {
                 listener.receive(stanza);
@@ -642,68 +789,203 @@ public class XmppTransportService
     }
 
     /**
-     * Called on service kills.
+     * Called on service kills. Only the tasks of this instance are
+     * cancelled, the shared scheduler keeps running the tasks of static
+     * state (e.g. reconnect backoffs).
      */
     @Override
     public void onDestroy() {
         Log.d(TAG, "XMPP Service destroy?!?");
+        scheduler.cancel("xmpp/ping");
+        scheduler.cancel("contacts/status-index");
+        clientState.cancel();
+        synchronized (keepalives) {
+            for (Keepalive keepalive: keepalives.values()) {
+                keepalive.cancel();
+            }
+        }
+        if (presenceCoalescer != null) {
+            presenceCoalescer.flush();
+        }
+        scheduler.dumpStats();
         super.onDestroy();
     }
 
     /**
-     * Run a background ping on all idle connections.
+     * Dump the transport metrics, keepalive state and scheduler statistics
+     * (<code>adb shell dumpsys activity service XmppTransportService</code>).
+     * @param fd The raw file descriptor.
+     * @param writer The output writer.
+     * @param args Additional dump arguments (ignored).
+     */
+    @Override
+    protected void dump(FileDescriptor fd, PrintWriter writer, String[] args) {
+        writer.println("Transport metrics");
+        for (ConnectionMetrics metrics: ConnectionMetrics.getAll()) {
+            metrics.dump(writer);
+        }
+        writer.println("Namespaces");
+        NamespaceMetrics.dump(writer);
+        writer.println("Keepalives");
+        synchronized (keepalives) {
+            for (Keepalive keepalive: keepalives.values()) {
+                writer.println("  " + keepalive.getJid()
+                    + " srtt=" + keepalive.getSmoothedRTT()
+                    + " rttvar=" + keepalive.getRTTVariance()
+                    + " interval=" + keepalive.getInterval()
+                    + " pings=" + keepalive.getPingCount()
+                    + " timeouts=" + keepalive.getTimeoutCount());
+            }
+        }
+        writer.println("Presence sent=" + presenceManager.getSentCount()
+            + " suppressed=" + presenceManager.getSuppressedCount());
+        writer.println("Client state " + clientState);
+        writer.println("Inbound presence " + presenceCoalescer);
+        writer.println("Entity caps " + EntityCapsCache.getStats());
+        writer.println("Verification cache " + JID_VERIFICATION_CACHE);
+        writer.println("Scheduler");
+        for (Map.Entry<String, TimingWheelScheduler.TaskStats> entry:
+                scheduler.getStats().entrySet()) {
+            writer.println("  " + entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    /**
+     * Report the visibility of the user interface. Servers supporting client
+     * state indication will hold back unimportant traffic while inactive.
+     * @param active True if an activity is visible.
+     */
+    public void setClientActive(boolean active) {
+        clientState.setActive(active);
+    }
+
+    /**
+     * Reload the contact data rows cached by the data mapper, in the
+     * background.
+     */
+    public void contactsChanged() {
+        contactDataMapper.invalidateStatusIndex();
+        scheduler.schedule("contacts/status-index", new Runnable() {
+            @Override
+            public void run() {
+                contactDataMapper.loadStatusIndex();
+            }
+        }, 0, 0);
+    }
+
+    /**
+     * Send the client state to a single connected account.
+     * @param state The account connection.
+     * @param active The client state.
+     */
+    private void indicateClientState(AccountConnection state, boolean active) {
+        Connection connection = state.getConnection();
+        if (connection == null || state.getCurrentState() != State.Connected) {
+            return;
+        }
+        try {
+            connection.indicateClientState(active);
+        } catch (XmppException e) {
+            Log.w(TAG, "Client state indication failed", e);
+        }
+    }
+
+    /**
+     * Run a background ping on all idle connections and announce presence
+     * changes.
      */
     public void ping() {
-        long now = System.currentTimeMillis();
         for (AccountConnection state: connections.values()) {
             Connection connection = state.getConnection();
             if (connection == null) {
                 continue;
             }
-            if (state.getCurrentState() == State.Failed) {
-                long reconnectTime = RECONNECT_TIMES[
-                         Math.min(state.getFailCount(), RECONNECT_TIMES.length)
-                ];
-                if (now - connection.lastReceive() > reconnectTime) {
-                    Log.d(TAG, "Reconnect on " + connection.getResourceJid());
-                    if (state.getFailCount() > 0) {
-                        // try to change the resource
-                        state.getAccount().setResource(
-                            "asmack" +
-                            Integer.toHexString((int)(255.999 * Math.random()))
-                                   .toLowerCase()
-                        );
-                    }
-                    state.transition(State.Connecting);
-                }
-                continue;
-            }
             if (state.getCurrentState() != State.Connected) {
                 continue;
             }
-            if (now - connection.lastReceive() > 180000) {
-                Log.d(TAG, "Fail on " + connection.getResourceJid());
-                state.transition(State.Failed);
-                continue;
-            }
             String jid = connection.getAccount().getJid();
-            String verificationHash = JID_VERIFICATION_CACHE.get(jid);
-            if (verificationHash == null) {
-                verificationHash = Database.computeVerificationHash(
-                    getApplicationContext(),
-                    jid,
-                    null
-                );
+            String verificationHash = getVerificationHash(jid);
+            presenceManager.update(connection, null, null, verificationHash);
+            getKeepalive(jid, connection).tick(pingExecutor);
+        }
+    }
+
+    /**
+     * Retrieve the caps verification hash of an account, computing and
+     * caching it if needed.
+     * @param jid The bare account jid.
+     * @return The verification hash.
+     */
+    protected String getVerificationHash(String jid) {
+        String verificationHash = JID_VERIFICATION_CACHE.get(jid);
+        if (verificationHash != null) {
+            return verificationHash;
+        }
+        long generation;
+        synchronized (JID_VERIFICATION_CACHE) {
+            generation = verificationGeneration;
+        }
+        verificationHash = Database.computeVerificationHash(
+            getApplicationContext(),
+            jid,
+            null
+        );
+        synchronized (JID_VERIFICATION_CACHE) {
+            // don't cache a hash that was invalidated while computing it
+            if (generation == verificationGeneration) {
                 JID_VERIFICATION_CACHE.put(jid, verificationHash);
-                pingExecutor.execute(new PresenceRunnable(connection,
-                                     verificationHash));
-            } else {
-                pingExecutor.execute(new PresenceRunnable(connection,
-                                     verificationHash));
             }
-            if (now - connection.lastReceive() > 60000) {
-                Log.d(TAG, "Keepalive on " + connection.getResourceJid());
-                pingExecutor.execute(new PingRunnable(connection));
+        }
+        return verificationHash;
+    }
+
+    /**
+     * Drop the cached verification hash of an account.
+     * @param jid The bare account jid.
+     */
+    protected static void invalidateVerification(String jid) {
+        synchronized (JID_VERIFICATION_CACHE) {
+            verificationGeneration++;
+            JID_VERIFICATION_CACHE.remove(jid);
+        }
+    }
+
+    /**
+     * Drop the cached verification hashes of all accounts.
+     */
+    protected static void invalidateVerifications() {
+        synchronized (JID_VERIFICATION_CACHE) {
+            verificationGeneration++;
+            JID_VERIFICATION_CACHE.clear();
+        }
+    }
+
+    /**
+     * Retrieve the keepalive of an account, bound to the current connection.
+     * @param jid The bare account jid.
+     * @param connection The current connection.
+     * @return The account keepalive.
+     */
+    protected Keepalive getKeepalive(String jid, Connection connection) {
+        Keepalive keepalive;
+        synchronized (keepalives) {
+            keepalive = keepalives.get(jid);
+            if (keepalive == null) {
+                keepalive = new Keepalive(jid, scheduler);
+                keepalives.put(jid, keepalive);
+            }
+        }
+        keepalive.setConnection(connection);
+        return keepalive;
+    }
+
+    /**
+     * Forget the learned keepalive intervals of all accounts.
+     */
+    private void resetKeepalives() {
+        synchronized (keepalives) {
+            for (Keepalive keepalive: keepalives.values()) {
+                keepalive.resetPath();
             }
         }
     }
@@ -725,7 +1007,23 @@ public class XmppTransportService
         if (state.getCurrentState() != State.Connected) {
             return;
         }
-        state.transition(State.Failed);
+        if (state.getConnection() != connection) {
+            // a replaced connection, e.g. after a handover
+            return;
+        }
+        synchronized (state) {
+            state.setLastError(exception);
+            if (state.isHandoverRunning()) {
+                // the handover decides, a failed handover fails the account
+                try {
+                    connection.close();
+                } catch (XmppException e) {
+                    Log.d(TAG, "Closing a broken connection failed.", e);
+                }
+                return;
+            }
+            state.transition(State.Failed);
+        }
     }
 
     /**
@@ -754,7 +1052,17 @@ public class XmppTransportService
      */
     @Override
     public void onConnectionConnected(AccountConnection accountConnection) {
-        JID_VERIFICATION_CACHE.remove(accountConnection.getAccount().getJid());
+        String jid = accountConnection.getAccount().getJid();
+        invalidateVerification(jid);
+        reconnects.connected(jid);
+        if (!accountConnection.getConnection().isResumed()) {
+            // a fresh session starts without presence
+            presenceManager.invalidate(jid);
+        }
+        if (!clientState.isActive()) {
+            // new streams start active
+            indicateClientState(accountConnection, false);
+        }
     }
 
     /**
@@ -764,6 +1072,45 @@ public class XmppTransportService
      */
     @Override
     public void onConnectionFailed(AccountConnection accountConnection) {
+        final AccountConnection state = accountConnection;
+        String jid = state.getAccount().getJid();
+        XmppException error = state.getLastError();
+        if (error instanceof XmppStreamErrorException) {
+            String host = reconnects.hint(jid, (XmppStreamErrorException) error);
+            if (host != null) {
+                Log.d(TAG, "Redirect of " + jid + " to " + host);
+                state.setRedirect(host);
+            }
+        }
+        reconnects.schedule(jid, new Runnable() {
+            @Override
+            public void run() {
+                reconnect(state);
+            }
+        });
+    }
+
+    /**
+     * Reconnect a failed account, changing the resource after repeated
+     * failures.
+     * @param state The account connection.
+     */
+    private void reconnect(AccountConnection state) {
+        synchronized (state) {
+            if (state.getCurrentState() != State.Failed) {
+                return;
+            }
+            Log.d(TAG, "Reconnect on " + state.getAccount().getJid());
+            if (state.getFailCount() > 0) {
+                // try to change the resource
+                state.getAccount().setResource(
+                    "asmack" +
+                    Integer.toHexString((int)(255.999 * Math.random()))
+                           .toLowerCase()
+                );
+            }
+            state.transition(State.Connecting);
+        }
     }
 
     /**
@@ -771,7 +1118,28 @@ public class XmppTransportService
      * and reconnect of all connections.
      */
     public void onConnectivityAvailable() {
+        resetKeepalives();
         for (AccountConnection state: connections.values()) {
+            reconnects.reset(state.getAccount().getJid());
+            state.resetStats();
+            state.transition(State.Start);
+            state.transition(State.Connecting);
+        }
+    }
+
+    /**
+     * Called when the active network changed without losing connectivity,
+     * e.g. on a switch from mobile to wifi. Connected accounts perform a
+     * make-before-break handover, all other accounts reconnect.
+     */
+    public void onNetworkChanged() {
+        resetKeepalives();
+        for (AccountConnection state: connections.values()) {
+            if (state.getCurrentState() == State.Connected) {
+                state.handover();
+                continue;
+            }
+            reconnects.reset(state.getAccount().getJid());
             state.resetStats();
             state.transition(State.Start);
             state.transition(State.Connecting);
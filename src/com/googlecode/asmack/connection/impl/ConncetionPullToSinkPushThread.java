@@ -43,6 +43,9 @@ import com.googlecode.asmack.Stanza;
 import com.googlecode.asmack.StanzaSink;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.connection.Connection;
+import com.googlecode.asmack.connection.ConnectionMetrics;
+import com.googlecode.asmack.connection.NamespaceMetrics;
+import com.googlecode.asmack.connection.XmppStreamErrorException;
 
 /**
  * Transform {@link XmppInputStream#nextStanza()} pull events into
@@ -72,6 +75,11 @@ public class ConncetionPullToSinkPushThread extends Thread {
      */
     private final Connection connection;
 
+    /**
+     * The stream management state of the connection, or null.
+     */
+    private final StreamManagement streamManagement;
+
     /**
      * <p>Create a new Thread to pull stanzas from a {@link XmppInputStream}
      * and push it to a {@link StanzaSink}.</p>
@@ -87,10 +95,30 @@ public class ConncetionPullToSinkPushThread extends Thread {
         Connection connection,
         XmppInputStream xmppInput,
         StanzaSink sink
+    ) {
+        this(connection, xmppInput, sink, null);
+    }
+
+    /**
+     * <p>Create a new Thread to pull stanzas from a {@link XmppInputStream}
+     * and push it to a {@link StanzaSink}, handling stream management
+     * elements on the way.</p>
+     *
+     * @param connection The symbolic {@link Connection}.
+     * @param xmppInput The {@link XmppInputStream} for the connection.
+     * @param sink The receiving {@link StanzaSink}.
+     * @param streamManagement The {@link StreamManagement} state, or null.
+     */
+    public ConncetionPullToSinkPushThread(
+        Connection connection,
+        XmppInputStream xmppInput,
+        StanzaSink sink,
+        StreamManagement streamManagement
     ) {
         this.connection = connection;
         this.xmppInput = xmppInput;
         this.sink = sink;
+        this.streamManagement = streamManagement;
     }
 
     /**
@@ -102,11 +130,30 @@ public class ConncetionPullToSinkPushThread extends Thread {
     @Override
     public void run() {
         String resourceJid = connection.getResourceJid();
+        ConnectionMetrics metrics = xmppInput.getMetrics();
         try {
             while (true) {
                 Stanza stanza = xmppInput.nextStanza();
+                if (XmppStreamErrorException.isStreamError(stanza)) {
+                    throw XmppStreamErrorException.parse(stanza);
+                }
+                if (streamManagement != null &&
+                    streamManagement.receive(stanza)) {
+                    continue;
+                }
                 stanza.setVia(resourceJid);
+                if (metrics == null) {
+                    sink.receive(stanza);
+                    continue;
+                }
+                long start = System.nanoTime();
                 sink.receive(stanza);
+                long nanos = System.nanoTime() - start;
+                metrics.dispatched(nanos);
+                NamespaceMetrics.dispatched(
+                    NamespaceMetrics.getPayloadNamespace(stanza),
+                    nanos
+                );
             }
         } catch (XmppException e) {
             try {
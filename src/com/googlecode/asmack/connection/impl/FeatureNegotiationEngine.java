@@ -43,13 +43,13 @@ import java.io.OutputStream;
 import java.net.Socket;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
-import java.util.HashSet;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Set;
 
-import javax.net.ssl.KeyManager;
-import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocket;
 
 import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
 import org.xml.sax.SAXException;
 import org.xmlpull.v1.XmlPullParserException;
 
@@ -62,6 +62,8 @@ import com.googlecode.asmack.XMPPUtils;
 import com.googlecode.asmack.XmppAccount;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.ConnectionMetrics;
+import com.googlecode.asmack.connection.XmppStreamErrorException;
 import com.googlecode.asmack.connection.XmppTransportException;
 
 /**
@@ -131,10 +133,30 @@ public class FeatureNegotiationEngine {
     private boolean hasTLS = false;
 
     /**
-     * Indicate the availability of zlib compression.
+     * Indicate the availability of stream compression.
      */
     private boolean compressionSupported = false;
 
+    /**
+     * The compression codec offered by the server, or null.
+     */
+    private StreamCompression compression;
+
+    /**
+     * The compression codec of the last compression request, or null.
+     */
+    private StreamCompression requestedCompression;
+
+    /**
+     * The registered compression codecs, most preferred first.
+     */
+    private static final ArrayList<StreamCompression> COMPRESSION =
+                                        new ArrayList<StreamCompression>(2);
+
+    static {
+        COMPRESSION.add(new ZLibCompression());
+    }
+
     /**
      * Indicate sasl support.
      */
@@ -150,11 +172,53 @@ public class FeatureNegotiationEngine {
      */
     private boolean sessionsSupported = false;
 
+    /**
+     * Indicate stream management (XEP-0198) support.
+     */
+    private boolean streamManagementSupported = false;
+
+    /**
+     * Indicate client state indication (XEP-0352) support.
+     */
+    private boolean clientStateIndicationSupported = false;
+
+    /**
+     * Cache of the last seen stream features per server domain and
+     * negotiation stage.
+     */
+    private static final HashMap<String, ServerFeatures> FEATURE_CACHE =
+                                    new HashMap<String, ServerFeatures>();
+
+    /**
+     * Indicate that bind may be pipelined with the stream restart.
+     */
+    private boolean bindPipelining = true;
+
+    /**
+     * Indicate that the bind request has already been sent.
+     */
+    private boolean bindSent = false;
+
+    /**
+     * Indicate that the session request has already been sent.
+     */
+    private boolean sessionSent = false;
+
     /**
      * The basic socket for this connection.
      */
     private Socket socket;
 
+    /**
+     * The metrics of the connection, or null.
+     */
+    private final ConnectionMetrics metrics;
+
+    /**
+     * The time the compression request was sent.
+     */
+    private long compressSentTime;
+
     /**
      * Create a new FeatureNegotiationEngine for a given tcp socket.
      * @param socket Socket The basic socket.
@@ -164,13 +228,42 @@ public class FeatureNegotiationEngine {
      */
     public FeatureNegotiationEngine(Socket socket)
         throws XmlPullParserException, IOException, XmppTransportException
+    {
+        this(socket, null);
+    }
+
+    /**
+     * Create a new FeatureNegotiationEngine for a given tcp socket, counting
+     * traffic and negotiation times into the given metrics.
+     * @param socket Socket The basic socket.
+     * @param metrics ConnectionMetrics The connection metrics, or null.
+     * @throws XmlPullParserException If the pull parser can't be created.
+     * @throws IOException When there is an IOException during intialization.
+     * @throws XmppTransportException When this connection failes.
+     */
+    public FeatureNegotiationEngine(Socket socket, ConnectionMetrics metrics)
+        throws XmlPullParserException, IOException, XmppTransportException
     {
         Log.d("BC/XMPP", "start feature negotiation");
         this.socket = socket;
-        this.inputStream = socket.getInputStream();
-        this.outputStream = socket.getOutputStream();
-        xmppOutput = new XmppOutputStream(outputStream);
-        xmppInput = new XmppInputStream(inputStream);
+        this.metrics = metrics;
+        attachSocket();
+        xmppOutput = new XmppOutputStream(outputStream, metrics);
+        xmppInput = new XmppInputStream(inputStream, metrics);
+    }
+
+    /**
+     * Pick up the raw streams of the current socket, metered if metrics
+     * are available.
+     * @throws IOException If the socket streams are unavailable.
+     */
+    private void attachSocket() throws IOException {
+        inputStream = socket.getInputStream();
+        outputStream = socket.getOutputStream();
+        if (metrics != null) {
+            inputStream = new MeteredInputStream(inputStream, metrics, true);
+            outputStream = new MeteredOutputStream(outputStream, metrics, true);
+        }
     }
 
     /*
@@ -257,6 +350,13 @@ public class FeatureNegotiationEngine {
      * compression, thus a higher preference. Everything will work as expected
      * when compression is offered after SASL.</p>
      *
+     * <p>The last seen features of every negotiation stage are cached per
+     * server domain. If the cache predicts compression (or bind after SASL),
+     * the request is pipelined with the stream header instead of waiting for
+     * the features. A server with different features answers with a
+     * failure, in which case the cache entry is dropped and the negotiation
+     * continues in lockstep.</p>
+     *
      * <p>This method requires a call to bind (if you wish to bind) afterwards.
      * </p>
      * 
@@ -265,88 +365,90 @@ public class FeatureNegotiationEngine {
      */
     public void open(XmppAccount account) throws XmppException {
         Log.d("BC/XMPP", "open connection for " + account.getJid());
+        String domain = XMPPUtils.getDomain(account.getJid());
         boolean rerun = true;
         boolean canBind = false;
         while (rerun) {
+            String stage = getStage(domain);
             try {
                 rerun = false;
-                xmppOutput.open(XMPPUtils.getDomain(account.getJid()), null);
+                ServerFeatures predicted;
+                synchronized (FEATURE_CACHE) {
+                    predicted = FEATURE_CACHE.get(stage);
+                }
+                xmppOutput.open(domain, null);
+
+                boolean compressSent = false;
+                if (predicted != null && canPipelineCompression(predicted)) {
+                    sendCompress(selectCompression(predicted));
+                    compressSent = true;
+                } else
+                if (predicted != null && authenticated && bindPipelining &&
+                    predicted.isBindSupported()) {
+                    sendBind(account.getResource(), predicted.isSessionSupported());
+                    bindSent = true;
+                }
+
                 xmppInput.readOpening();
 
-                Node features = null;
+                Stanza stanza;
                 do {
-                    Node stanza = xmppInput.nextStanza().getDocumentNode();
-                    if (XMLUtils.isInstance(
-                            stanza,
-                            "http://etherx.jabber.org/streams",
-                            "features"
-                    )) {
-                        features = stanza;
+                    stanza = xmppInput.nextStanza();
+                    XmppStreamErrorException error =
+                                    XmppStreamErrorException.parse(stanza);
+                    if (error != null) {
+                        throw error;
                     }
-                } while (features == null);
+                } while (!"features".equals(stanza.getName()) ||
+                         !"http://etherx.jabber.org/streams".equals(
+                                                    stanza.getNamespace()));
+                ServerFeatures features = ServerFeatures.parse(stanza);
+                synchronized (FEATURE_CACHE) {
+                    FEATURE_CACHE.put(stage, features);
+                }
 
                 // check basic stream features
 
-                rosterVersioningSupported |= XMLUtils.hasChild(
-                        features,
-                        "urn:xmpp:features:rosterver",
-                        "ver"
-                );
-                sessionsSupported |= XMLUtils.hasChild(
-                        features,
-                        "urn:ietf:params:xml:ns:xmpp-session",
-                        "session"
-                );
-                canBind |= XMLUtils.hasChild(
-                        features,
-                        "urn:ietf:params:xml:ns:xmpp-bind",
-                        "bind"
-                );
-
-                hasTLS = XMLUtils.hasChild(
-                        features,
-                        "urn:ietf:params:xml:ns:xmpp-tls",
-                        "starttls"
-                );
+                rosterVersioningSupported |=
+                                    features.isRosterVersioningSupported();
+                sessionsSupported |= features.isSessionSupported();
+                canBind |= features.isBindSupported();
+                streamManagementSupported |=
+                                    features.isStreamManagementSupported();
+                clientStateIndicationSupported |=
+                            features.isClientStateIndicationSupported();
+                hasTLS = features.isTLSSupported();
+                StreamCompression offered = selectCompression(features);
+                if (offered != null && !compressed) {
+                    compression = offered;
+                    compressionSupported = true;
+                }
+                SASLSupported |= features.isSASLSupported();
 
-                Node compression = XMLUtils.getFirstChild(
-                    features,
-                    "http://jabber.org/features/compress",
-                    "compression"
-                );
-                if (compression != null) {
-                    NodeList methods = compression.getChildNodes();
-                    for (int i = 0, l = methods.getLength(); i < l; i++) {
-                        Node method = methods.item(i);
-                        if (method.getNodeType() != Node.ELEMENT_NODE) {
-                            continue;
-                        }
-                        if (!"method".equals(method.getNodeName())) {
-                            continue;
-                        }
-                        String methodName = method.getFirstChild().getNodeValue();
-                        methodName = methodName.trim();
-                        compressionSupported |= "zlib".equals(methodName);
+                if (compressSent) {
+                    if (finishCompress()) {
+                        rerun = true;
+                        continue;
                     }
-               }
+                    Log.d("BC/XMPP/Negotiation", "pipelined compression failed");
+                    forgetFeatures(stage);
+                }
 
-                Node saslMechanisms = XMLUtils.getFirstChild(
-                        features,
-                        "urn:ietf:params:xml:ns:xmpp-sasl",
-                        "mechanisms"
-                     );
-                SASLSupported |= saslMechanisms != null;
+                if (bindSent) {
+                    // the bind reply is pending, bind() will pick it up
+                    continue;
+                }
 
                 if (hasTLS && !secure) {
                     // enable tls
                     xmppOutput.sendUnchecked(
                         "<starttls xmlns='urn:ietf:params:xml:ns:xmpp-tls'/>"
                     );
-                    boolean startTLS = XMLUtils.isInstance(
-                        xmppInput.nextStanza().getDocumentNode(),
-                        "urn:ietf:params:xml:ns:xmpp-tls",
-                        "proceed"
-                    );
+                    Stanza reply = xmppInput.nextStanza();
+                    boolean startTLS =
+                        "proceed".equals(reply.getName()) &&
+                        "urn:ietf:params:xml:ns:xmpp-tls".equals(
+                                                    reply.getNamespace());
                     if (startTLS) {
                         startTLS();
                         secure = true;
@@ -355,27 +457,37 @@ public class FeatureNegotiationEngine {
                     }
                 }
 
-                if (compressionSupported && !compressed && ZLibOutputStream.SUPPORTED) {
-                    startCompress();
-                    rerun = true;
-                    continue;
+                if (compressionSupported && !compressed && !compressSent &&
+                    compression != null) {
+                    sendCompress(compression);
+                    if (finishCompress()) {
+                        rerun = true;
+                        continue;
+                    }
                 }
 
                 if (SASLSupported && !authenticated) {
-                    if (saslLogin(saslMechanisms, account)) {
+                    if (saslLogin(features.getSASLMechanisms(), account)) {
                         authenticated = true;
                         rerun = true;
                         continue;
                     }
                 }
 
+            } catch (XmppException e) {
+                forgetFeatures(stage);
+                throw e;
             } catch (IllegalArgumentException e) {
+                forgetFeatures(stage);
                 throw new XmppMalformedException("Can't negotiate features", e);
             } catch (IllegalStateException e) {
+                forgetFeatures(stage);
                 throw new XmppMalformedException("Can't negotiate features", e);
             } catch (IOException e) {
+                forgetFeatures(stage);
                 throw new XmppTransportException("Can't negotiate features", e);
             } catch (XmlPullParserException e) {
+                forgetFeatures(stage);
                 throw new XmppMalformedException("Can't negotiate features", e);
             } catch (NoSuchAlgorithmException e) {
                 // Should never happen - TLS not available?
@@ -390,61 +502,132 @@ public class FeatureNegotiationEngine {
     }
 
     /**
-     * Start session binding. The session token is fix for the full service
-     * runtime, thus allowing the server to detect reconnects.
-     * @throws XmppTransportException In case of an error.
+     * Compute the feature cache key of the current negotiation stage.
+     * @param domain String The server domain.
+     * @return String The cache key for the domain and the current
+     *                tls/compression/authentication state.
      */
-    private void startSession() throws XmppTransportException {
-        Log.d("BC/XMPP/Negotiation", "StartSession");
-        try {
-            xmppOutput.sendUnchecked(
-                    "<iq type=\"set\" id=\"" +
-                    session +
-                    "\">" +
-                    "<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>" +
-                    "</iq>"
-            );
-            return;
-        } catch (IllegalArgumentException e) {
-            throw new XmppTransportException("session bind failed", e);
-        } catch (IllegalStateException e) {
-            throw new XmppTransportException("session bind failed", e);
+    private String getStage(String domain) {
+        return domain + "/" +
+            (secure ? "t" : "") +
+            (compressed ? "z" : "") +
+            (authenticated ? "a" : "");
+    }
+
+    /**
+     * Remove a stage from the feature cache, e.g. because a pipelined
+     * request failed.
+     * @param stage String The stage cache key.
+     */
+    private static void forgetFeatures(String stage) {
+        synchronized (FEATURE_CACHE) {
+            FEATURE_CACHE.remove(stage);
         }
     }
 
     /**
-     * Bind a given resource, probably resuming an old session.
+     * Check if a compression request may be pipelined with the stream header
+     * based on the predicted features. TLS has to be negotiated first.
+     * @param predicted ServerFeatures The cached features of this stage.
+     * @return boolean True if compression should be requested right away.
+     */
+    private boolean canPipelineCompression(ServerFeatures predicted) {
+        return !compressed &&
+            selectCompression(predicted) != null &&
+            (secure || !predicted.isTLSSupported());
+    }
+
+    /**
+     * Pick the most preferred available codec offered by the server.
+     * @param features ServerFeatures The server features.
+     * @return StreamCompression The codec, or null if no codec matches.
+     */
+    private static StreamCompression selectCompression(
+        ServerFeatures features
+    ) {
+        synchronized (COMPRESSION) {
+            for (StreamCompression codec: COMPRESSION) {
+                if (codec.isAvailable() &&
+                    features.isCompressionSupported(codec.getMethod())) {
+                    return codec;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Enable or disable the pipelining of bind (and session) with the stream
+     * restart after SASL. Pipelining should be disabled if the caller
+     * intends to resume a session instead of binding a new one.
+     * @param bindPipelining boolean True to allow bind pipelining.
+     */
+    public void setBindPipelining(boolean bindPipelining) {
+        this.bindPipelining = bindPipelining;
+    }
+
+    /**
+     * Send the resource bind request, optionally followed by the session
+     * request, as a single write.
+     * @param resource String The preferred resource, may be empty.
+     * @param session boolean True to append the session request.
+     * @throws XmppTransportException In case of a transport error.
+     */
+    private void sendBind(String resource, boolean session)
+        throws XmppTransportException
+    {
+        Log.d("BC/XMPP/Negotiation", "bind " + resource);
+        StringBuilder request = new StringBuilder(256);
+        request.append("<iq type=\"set\" id=\"bind_1\">");
+        request.append("<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\">");
+        if (!TextUtils.isEmpty(resource)) {
+            request.append("<resource>");
+            request.append(resource);
+            request.append("</resource>");
+        }
+        request.append("</bind>");
+        request.append("</iq>");
+        if (session) {
+            request.append("<iq type=\"set\" id=\"");
+            request.append(FeatureNegotiationEngine.session);
+            request.append("\">");
+            request.append(
+                "<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>");
+            request.append("</iq>");
+        }
+        sessionSent = session;
+        xmppOutput.sendUnchecked(request.toString());
+    }
+
+    /**
+     * Bind a given resource, probably resuming an old session. The session
+     * is requested together with the bind, the session token is fix for the
+     * full service runtime, thus allowing the server to detect reconnects.
      * @param resource String The preferred resource string.
      * @return String The actual resource string.
      * @throws XmppException On Error.
      */
     public String bind(String resource) throws XmppException {
-        Log.d("BC/XMPP/Negotiation", "bind " + resource);
         try {
-            if (!TextUtils.isEmpty(resource)) {
-                xmppOutput.sendUnchecked(
-                        "<iq type=\"set\" id=\"bind_1\">" +
-                        "<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\">" +
-                        "<resource>" +
-                        resource +
-                        "</resource>" +
-                        "</bind>" +
-                        "</iq>"
-                );
-            } else {
-                xmppOutput.sendUnchecked(
-                        "<iq type=\"set\" id=\"bind_1\">" +
-                        "<bind xmlns=\"urn:ietf:params:xml:ns:xmpp-bind\">" +
-                        "</bind>" +
-                        "</iq>"
-                );
+            if (!bindSent) {
+                sendBind(resource, sessionsSupported);
             }
             Stanza stanza = xmppInput.nextStanza();
             Node node = XMLUtils.getDocumentNode(stanza.getXml());
             Node bind = XMLUtils.getFirstChild(node, "urn:ietf:params:xml:ns:xmpp-bind", "bind");
+            if (bind == null) {
+                throw new XmppTransportException("bind failed: " + stanza.getXml());
+            }
             Node jid = XMLUtils.getFirstChild(bind, null, "jid");
-            if (sessionsSupported) {
-                startSession();
+            if (sessionsSupported && !sessionSent) {
+                Log.d("BC/XMPP/Negotiation", "StartSession");
+                xmppOutput.sendUnchecked(
+                        "<iq type=\"set\" id=\"" +
+                        session +
+                        "\">" +
+                        "<session xmlns=\"urn:ietf:params:xml:ns:xmpp-session\"/>" +
+                        "</iq>"
+                );
             }
             return jid.getTextContent();
         } catch (IllegalArgumentException e) {
@@ -456,33 +639,48 @@ public class FeatureNegotiationEngine {
         }
     }
 
+    /**
+     * Try to resume a previous stream instead of binding a new resource.
+     * @param previous StreamManagement The state of the dropped stream.
+     * @return long The number of stanzas received by the server, or -1 if
+     *              the server refused the resumption.
+     * @throws XmppException On Error.
+     */
+    public long resume(StreamManagement previous) throws XmppException {
+        Log.d("BC/XMPP/Negotiation", "resume " + previous.getResourceJid());
+        xmppOutput.sendUnchecked(
+                "<resume xmlns='" + StreamManagement.NAMESPACE + "' " +
+                "h='" + previous.getInboundCount() + "' " +
+                "previd='" + XMLUtils.xmlEscape(previous.getId()) + "'/>"
+        );
+        Stanza stanza = xmppInput.nextStanza();
+        if (StreamManagement.NAMESPACE.equals(stanza.getNamespace()) &&
+            "resumed".equals(stanza.getName())) {
+            return StreamManagement.parseCount(stanza.getAttributeValue("h"));
+        }
+        return -1;
+    }
+
     /**
      * Run a sasl based login. Most sals parts are handled by
      * {@link SASLEngine#login(XmppInputStream, XmppOutputStream, java.util.Set, XmppAccount)}.
-     * @param saslMechanisms Node The DOM node of the sasl mechanisms.
+     * @param methods Set<String> The offered sasl mechanisms.
      * @param account XmppAccount The xmpp account to use.
      * @return boolean True on success. False on failore.
      * @throws XmppException On critical connection errors-
      */
-    protected boolean saslLogin(Node saslMechanisms, XmppAccount account)
+    protected boolean saslLogin(Set<String> methods, XmppAccount account)
         throws XmppException
     {
         Log.d("BC/XMPP/Negotiation", "SASL Login");
-        NodeList nodes = saslMechanisms.getChildNodes();
-        HashSet<String> methods = new HashSet<String>(13);
-        for (int i = 0, l = nodes.getLength(); i < l; i++) {
-            Node node = nodes.item(i);
-            if (!XMLUtils.isInstance(node, null, "mechanism")) {
-                continue;
-            }
-            methods.add(
-                node.getFirstChild().getNodeValue()
-                    .toUpperCase().trim()
-            );
-        }
-        if (SASLEngine.login(
+        long start = System.currentTimeMillis();
+        boolean success = SASLEngine.login(
             xmppInput, xmppOutput, methods, account
-        )) {
+        );
+        if (metrics != null) {
+            metrics.phase("sasl", System.currentTimeMillis() - start);
+        }
+        if (success) {
             xmppInput.detach();
             try {
                 xmppOutput.detach();
@@ -501,7 +699,9 @@ public class FeatureNegotiationEngine {
     }
 
     /**
-     * <p>Start TLS on the given connection.</p>
+     * <p>Start TLS on the given connection. The TLS context is shared
+     * through {@link TLSSessionCache}, thus reconnects to the same host/port
+     * may resume the previous TLS session.</p>
      * <p><b>TODO:</b> This method uses a non-validating key manager.</p>
      * @throws NoSuchAlgorithmException If the requested encryption algorithm
      *                                  is not supported.
@@ -516,59 +716,83 @@ public class FeatureNegotiationEngine {
         Log.d("BC/XMPP/Negotiation", "StartTLS");
         xmppOutput.detach();
         xmppInput.detach();
-        SSLContext context = SSLContext.getInstance("TLS");
-        context.init(new KeyManager[]{},
-            new javax.net.ssl.TrustManager[]{
-                new UnTrustManager()
-            },
-            new java.security.SecureRandom()
-        );
-        socket = context.getSocketFactory().createSocket(
-            socket,
-            socket.getInetAddress().getHostName(),
-            socket.getPort(),
-            true
+        String host = socket.getInetAddress().getHostName();
+        int port = socket.getPort();
+        long start = System.currentTimeMillis();
+        SSLSocket sslSocket = TLSSessionCache.wrap(socket, host, port);
+        long tlsHandshakeTime = System.currentTimeMillis() - start;
+        boolean tlsSessionResumed = TLSSessionCache.remember(
+            host,
+            port,
+            sslSocket.getSession()
         );
+        Log.d("BC/XMPP/Negotiation", "TLS handshake took " + tlsHandshakeTime
+                + "ms, resumed: " + tlsSessionResumed);
+        if (metrics != null) {
+            metrics.phase("tls", tlsHandshakeTime);
+        }
+        socket = sslSocket;
         socket.setKeepAlive(false);
         socket.setSoTimeout(0);
-        inputStream = socket.getInputStream();
-        outputStream = socket.getOutputStream();
+        attachSocket();
         xmppOutput.attach(outputStream, true, false);
         xmppInput.attach(inputStream);
     }
 
     /**
-     * Start compression on top of the current stream.
-     * @throws XmppException In case of a XMPP/XML related error.
-     * @throws IOException In case of a IOException on the underlying stream.
+     * Request compression on the current stream.
+     * @param codec StreamCompression The requested codec.
+     * @throws XmppTransportException In case of a transport error.
      */
-    private void startCompress() throws XmppException, IOException {
-        Log.d("BC/XMPP/Negotiation", "Start compression");
+    private void sendCompress(StreamCompression codec)
+        throws XmppTransportException
+    {
+        Log.d("BC/XMPP/Negotiation", "Start compression " + codec.getMethod());
+        requestedCompression = codec;
+        compressSentTime = System.currentTimeMillis();
         xmppOutput.sendUnchecked(
             "<compress xmlns='http://jabber.org/protocol/compress'>" +
-            "<method>zlib</method>" +
+            "<method>" + codec.getMethod() + "</method>" +
             "</compress>"
         );
-        boolean startCompression = XMLUtils.isInstance(
-                xmppInput.nextStanza().getDocumentNode(),
-                "http://jabber.org/protocol/compress",
-                "compressed"
-        );
-        if (startCompression) {
-            xmppOutput.detach();
-            xmppInput.detach();
+    }
 
-            try {
-                outputStream = new ZLibOutputStream(outputStream);
-            } catch (NoSuchAlgorithmException e) {
-                // FAIL!
-                throw new XmppTransportException("Can't create compressed stream", e);
-            }
-            xmppOutput.attach(outputStream, true, false);
-            inputStream = new ZLibInputStream(inputStream);
-            xmppInput.attach(inputStream);
-            compressed = true;
+    /**
+     * Wait for the compression reply and start compression on top of the
+     * current stream on success.
+     * @return boolean True if the stream is now compressed.
+     * @throws XmppException In case of a XMPP/XML related error.
+     * @throws IOException In case of a IOException on the underlying stream.
+     */
+    private boolean finishCompress() throws XmppException, IOException {
+        Stanza reply = xmppInput.nextStanza();
+        boolean startCompression =
+            "compressed".equals(reply.getName()) &&
+            "http://jabber.org/protocol/compress".equals(reply.getNamespace());
+        if (!startCompression) {
+            compressionSupported = false;
+            return false;
         }
+        xmppOutput.detach();
+        xmppInput.detach();
+
+        try {
+            outputStream = requestedCompression.wrapOutput(outputStream);
+            inputStream = requestedCompression.wrapInput(inputStream);
+        } catch (IOException e) {
+            // FAIL!
+            throw new XmppTransportException("Can't create compressed stream", e);
+        }
+        xmppOutput.attach(outputStream, true, false);
+        xmppInput.attach(inputStream);
+        compressed = true;
+        if (metrics != null) {
+            metrics.phase(
+                "compression",
+                System.currentTimeMillis() - compressSentTime
+            );
+        }
+        return true;
     }
 
     /**
@@ -605,6 +829,15 @@ public class FeatureNegotiationEngine {
         return compressed;
     }
 
+    /**
+     * Retrieve the negotiated compression method.
+     * @return String The compression method (e.g. "zlib"), or null if the
+     *                stream is not compressed.
+     */
+    public String getCompressionMethod() {
+        return compressed ? requestedCompression.getMethod() : null;
+    }
+
     /**
      * Check the sasl outcome.
      * @return boolean True on successful login.
@@ -632,6 +865,25 @@ public class FeatureNegotiationEngine {
         return rosterVersioningSupported;
     }
 
+    /**
+     * Check for stream management support. Stream management allows the
+     * resumption of dropped streams.
+     * @return boolean True if stream management was offered.
+     */
+    public boolean isStreamManagementSupported() {
+        return streamManagementSupported;
+    }
+
+    /**
+     * Check for client state indication support. Client state indication
+     * lets the server hold back non-urgent traffic while the client is
+     * inactive.
+     * @return boolean True if client state indication was offered.
+     */
+    public boolean isClientStateIndicationSupported() {
+        return clientStateIndicationSupported;
+    }
+
     /**
      * Check for session support. Sessions will be used whenever available, and
      * will be autonegotated after bind.
@@ -0,0 +1,86 @@
+package com.googlecode.asmack.connection.impl;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import com.googlecode.asmack.connection.ConnectionMetrics;
+
+/**
+ * Input stream wrapper that counts the bytes read into the connection metrics,
+ * either as wire bytes (below compression) or as xml bytes (above it).
+ */
+public class MeteredInputStream extends FilterInputStream {
+
+    /**
+     * The metrics receiving the byte counts.
+     */
+    private final ConnectionMetrics metrics;
+
+    /**
+     * True to count wire bytes, false to count xml bytes.
+     */
+    private final boolean wire;
+
+    /**
+     * Create a new metered stream.
+     * @param in InputStream The underlying stream.
+     * @param metrics ConnectionMetrics The metrics to update.
+     * @param wire boolean True to count wire bytes, false for xml bytes.
+     */
+    public MeteredInputStream(
+        InputStream in,
+        ConnectionMetrics metrics,
+        boolean wire
+    ) {
+        super(in);
+        this.metrics = metrics;
+        this.wire = wire;
+    }
+
+    /**
+     * Add a byte count to the matching counter.
+     * @param bytes long The byte count.
+     */
+    private void count(long bytes) {
+        if (wire) {
+            metrics.addWireBytesIn(bytes);
+        } else {
+            metrics.addXmlBytesIn(bytes);
+        }
+    }
+
+    /**
+     * Read a single byte.
+     * @return int The byte, or -1 at the end of the stream.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    public int read() throws IOException {
+        int result = super.read();
+        if (result >= 0) {
+            count(1);
+        }
+        return result;
+    }
+
+    /**
+     * Read a chunk of data.
+     * @param buffer byte[] The target buffer.
+     * @param offset int The buffer offset.
+     * @param length int The maximum length.
+     * @return int The number of bytes read, or -1 at the end of the stream.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    public int read(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        int result = super.read(buffer, offset, length);
+        if (result > 0) {
+            count(result);
+        }
+        return result;
+    }
+
+}
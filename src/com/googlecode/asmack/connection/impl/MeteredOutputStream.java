@@ -0,0 +1,80 @@
+package com.googlecode.asmack.connection.impl;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import com.googlecode.asmack.connection.ConnectionMetrics;
+
+/**
+ * Output stream wrapper that counts the bytes written into the connection metrics,
+ * either as wire bytes (below compression) or as xml bytes (above it).
+ */
+public class MeteredOutputStream extends FilterOutputStream {
+
+    /**
+     * The metrics receiving the byte counts.
+     */
+    private final ConnectionMetrics metrics;
+
+    /**
+     * True to count wire bytes, false to count xml bytes.
+     */
+    private final boolean wire;
+
+    /**
+     * Create a new metered stream.
+     * @param out OutputStream The underlying stream.
+     * @param metrics ConnectionMetrics The metrics to update.
+     * @param wire boolean True to count wire bytes, false for xml bytes.
+     */
+    public MeteredOutputStream(
+        OutputStream out,
+        ConnectionMetrics metrics,
+        boolean wire
+    ) {
+        super(out);
+        this.metrics = metrics;
+        this.wire = wire;
+    }
+
+    /**
+     * Add a byte count to the matching counter.
+     * @param bytes long The byte count.
+     */
+    private void count(long bytes) {
+        if (wire) {
+            metrics.addWireBytesOut(bytes);
+        } else {
+            metrics.addXmlBytesOut(bytes);
+        }
+    }
+
+    /**
+     * Write a single byte.
+     * @param b int The byte.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        out.write(b);
+        count(1);
+    }
+
+    /**
+     * Write a chunk of data without the byte-by-byte copy of
+     * {@link FilterOutputStream}.
+     * @param buffer byte[] The data.
+     * @param offset int The data offset.
+     * @param length int The data length.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    public void write(byte[] buffer, int offset, int length)
+        throws IOException
+    {
+        out.write(buffer, offset, length);
+        count(length);
+    }
+
+}
@@ -42,6 +42,7 @@ import java.util.TreeMap;
 
 import org.apache.harmony.javax.security.sasl.SaslClient;
 import org.apache.harmony.javax.security.sasl.SaslException;
+import org.apache.harmony.javax.security.sasl.ScramSaslClient;
 import org.apache.qpid.management.common.sasl.PlainSaslClient;
 import org.w3c.dom.Node;
 
@@ -84,6 +85,20 @@ public class SASLEngine {
     ) throws XmppException
     {
         SaslClient saslClient = null;
+        if (methods.contains(ScramSaslClient.SCRAM_SHA_256)) {
+            saslClient = ScramSaslClient.getClient(
+                ScramSaslClient.SCRAM_SHA_256,
+                null,
+                new AccountCallbackHander(account)
+            );
+        } else
+        if (methods.contains(ScramSaslClient.SCRAM_SHA_1)) {
+            saslClient = ScramSaslClient.getClient(
+                ScramSaslClient.SCRAM_SHA_1,
+                null,
+                new AccountCallbackHander(account)
+            );
+        } else
         if (methods.contains("DIGEST-MD5")) {
             saslClient = DigestMD5SaslClient.getClient(
                 XMPPUtils.getUser(account.getJid()),
@@ -151,6 +166,24 @@ public class SASLEngine {
             }
             stanza = xmppInputStream.nextStanza().getDocumentNode();
         }
+        // servers may piggyback the final server message (e.g. the SCRAM
+        // server signature) on the success element
+        Node data = stanza.getFirstChild();
+        if (!saslClient.isComplete() && data != null &&
+            data.getNodeValue() != null &&
+            data.getNodeValue().trim().length() > 0) {
+            try {
+                saslClient.evaluateChallenge(
+                    decodeBase64(data.getNodeValue().trim())
+                );
+            } catch (SaslException e) {
+                throw new XmppSaslException("Could not verify server", e);
+            }
+        }
+        if (!saslClient.isComplete() &&
+            saslClient.getMechanismName().startsWith("SCRAM-")) {
+            throw new XmppSaslException("Server did not prove its identity");
+        }
         return true;
     }
 
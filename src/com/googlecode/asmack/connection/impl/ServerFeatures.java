@@ -0,0 +1,221 @@
+package com.googlecode.asmack.connection.impl;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.ClientState;
+
+/**
+ * Immutable view of a stream features stanza. The features are read with a
+ * pull parser, which is considerably cheaper than building a DOM for every
+ * negotiation step.
+ */
+public class ServerFeatures {
+
+    /**
+     * True if starttls was offered.
+     */
+    private boolean tls;
+
+    /**
+     * True if resource binding was offered.
+     */
+    private boolean bind;
+
+    /**
+     * True if sessions were offered.
+     */
+    private boolean session;
+
+    /**
+     * True if roster versioning was offered.
+     */
+    private boolean rosterVersioning;
+
+    /**
+     * True if stream management was offered.
+     */
+    private boolean streamManagement;
+
+    /**
+     * True if client state indication (XEP-0352) was offered.
+     */
+    private boolean clientStateIndication;
+
+    /**
+     * The offered compression methods.
+     */
+    private final HashSet<String> compressionMethods = new HashSet<String>(4);
+
+    /**
+     * The offered sasl mechanisms (upper case).
+     */
+    private final HashSet<String> saslMechanisms = new HashSet<String>(8);
+
+    /**
+     * Parse a stream features stanza.
+     * @param stanza Stanza The features stanza.
+     * @return ServerFeatures The parsed features.
+     * @throws XmppMalformedException In case of invalid xml.
+     */
+    public static ServerFeatures parse(Stanza stanza)
+        throws XmppMalformedException
+    {
+        ServerFeatures features = new ServerFeatures();
+        try {
+            XmlPullParser parser = XMLUtils.getXMLPullParser();
+            parser.setInput(new StringReader(stanza.getXml()));
+            String feature = null;
+            int type = parser.next();
+            while (type != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG) {
+                    int depth = parser.getDepth();
+                    if (depth == 2) {
+                        feature = features.addFeature(
+                            parser.getNamespace(),
+                            parser.getName()
+                        );
+                    } else
+                    if (depth == 3 && "compression".equals(feature) &&
+                        "method".equals(parser.getName())) {
+                        features.compressionMethods.add(
+                            parser.nextText().trim()
+                        );
+                    } else
+                    if (depth == 3 && "mechanisms".equals(feature) &&
+                        "mechanism".equals(parser.getName())) {
+                        features.saslMechanisms.add(
+                            parser.nextText().trim().toUpperCase()
+                        );
+                    }
+                }
+                type = parser.next();
+            }
+        } catch (XmlPullParserException e) {
+            throw new XmppMalformedException("Can't parse features", e);
+        } catch (IOException e) {
+            throw new XmppMalformedException("Can't parse features", e);
+        }
+        return features;
+    }
+
+    /**
+     * Record a top level feature element.
+     * @param namespace String The feature namespace.
+     * @param name String The feature element name.
+     * @return String The element name if the children are relevant, else
+     *                null.
+     */
+    private String addFeature(String namespace, String name) {
+        if ("urn:ietf:params:xml:ns:xmpp-tls".equals(namespace)) {
+            tls |= "starttls".equals(name);
+        } else
+        if ("urn:ietf:params:xml:ns:xmpp-bind".equals(namespace)) {
+            bind |= "bind".equals(name);
+        } else
+        if ("urn:ietf:params:xml:ns:xmpp-session".equals(namespace)) {
+            session |= "session".equals(name);
+        } else
+        if ("urn:xmpp:features:rosterver".equals(namespace)) {
+            rosterVersioning |= "ver".equals(name);
+        } else
+        if (StreamManagement.NAMESPACE.equals(namespace)) {
+            streamManagement |= "sm".equals(name);
+        } else
+        if (ClientState.NAMESPACE.equals(namespace)) {
+            clientStateIndication |= "csi".equals(name);
+        } else
+        if ("http://jabber.org/features/compress".equals(namespace) &&
+            "compression".equals(name)) {
+            return name;
+        } else
+        if ("urn:ietf:params:xml:ns:xmpp-sasl".equals(namespace) &&
+            "mechanisms".equals(name)) {
+            return name;
+        }
+        return null;
+    }
+
+    /**
+     * Check for starttls.
+     * @return boolean True if tls was offered.
+     */
+    public boolean isTLSSupported() {
+        return tls;
+    }
+
+    /**
+     * Check for resource binding.
+     * @return boolean True if bind was offered.
+     */
+    public boolean isBindSupported() {
+        return bind;
+    }
+
+    /**
+     * Check for session support.
+     * @return boolean True if sessions were offered.
+     */
+    public boolean isSessionSupported() {
+        return session;
+    }
+
+    /**
+     * Check for roster versioning.
+     * @return boolean True if roster versioning was offered.
+     */
+    public boolean isRosterVersioningSupported() {
+        return rosterVersioning;
+    }
+
+    /**
+     * Check for stream management.
+     * @return boolean True if stream management was offered.
+     */
+    public boolean isStreamManagementSupported() {
+        return streamManagement;
+    }
+
+    /**
+     * Check for client state indication.
+     * @return boolean True if client state indication was offered.
+     */
+    public boolean isClientStateIndicationSupported() {
+        return clientStateIndication;
+    }
+
+    /**
+     * Check for a compression method.
+     * @param method String The compression method, e.g. "zlib".
+     * @return boolean True if the method was offered.
+     */
+    public boolean isCompressionSupported(String method) {
+        return compressionMethods.contains(method);
+    }
+
+    /**
+     * Check for sasl support.
+     * @return boolean True if at least one sasl mechanism was offered.
+     */
+    public boolean isSASLSupported() {
+        return !saslMechanisms.isEmpty();
+    }
+
+    /**
+     * Retrieve the offered sasl mechanisms.
+     * @return Set<String> A read only set of upper case mechanism names.
+     */
+    public Set<String> getSASLMechanisms() {
+        return Collections.unmodifiableSet(saslMechanisms);
+    }
+
+}
@@ -0,0 +1,43 @@
+package com.googlecode.asmack.connection.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A stream compression codec negotiated via XEP-0138 (stream compression).
+ * Codecs wrap the raw socket streams once the server confirmed the method,
+ * the {@link XmppInputStream} and {@link XmppOutputStream} are reattached to
+ * the wrapped streams.
+ */
+public interface StreamCompression {
+
+    /**
+     * Retrieve the XEP-0138 method name, e.g. "zlib".
+     * @return String The compression method.
+     */
+    String getMethod();
+
+    /**
+     * Check if the codec can be used on this runtime.
+     * @return boolean True if the codec is usable.
+     */
+    boolean isAvailable();
+
+    /**
+     * Wrap the raw output stream.
+     * @param outputStream OutputStream The raw stream.
+     * @return OutputStream The compressing stream.
+     * @throws IOException If the codec can't be initialized.
+     */
+    OutputStream wrapOutput(OutputStream outputStream) throws IOException;
+
+    /**
+     * Wrap the raw input stream.
+     * @param inputStream InputStream The raw stream.
+     * @return InputStream The decompressing stream.
+     * @throws IOException If the codec can't be initialized.
+     */
+    InputStream wrapInput(InputStream inputStream) throws IOException;
+
+}
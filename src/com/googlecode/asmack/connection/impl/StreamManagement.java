@@ -0,0 +1,409 @@
+package com.googlecode.asmack.connection.impl;
+
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.WeakHashMap;
+
+import android.util.Log;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XmppAccount;
+import com.googlecode.asmack.XmppException;
+
+/**
+ * <p>Stream management (XEP-0198) state of a single connection. Tracks the
+ * inbound and outbound stanza counters, the unacknowledged outbound stanzas
+ * and the resumption id announced by the server.</p>
+ * <p>The last resumable state of every account is kept in a process wide
+ * registry, allowing a new connection to resume the session of a dropped
+ * connection and to replay the stanzas the server never acknowledged.
+ * Only sessions of closed connections can be resumed, a live session (e.g.
+ * during a handover) would be terminated by the server.</p>
+ */
+public class StreamManagement {
+
+    /**
+     * The stream management namespace ({@value NAMESPACE}).
+     */
+    public static final String NAMESPACE = "urn:xmpp:sm:3";
+
+    /**
+     * Logging tag (StreamManagement).
+     */
+    private static final String TAG = StreamManagement.class.getSimpleName();
+
+    /**
+     * Number of unacknowledged stanzas that trigger an ack request.
+     */
+    private static final int ACK_REQUEST_INTERVAL = 5;
+
+    /**
+     * Map of {account} => {last resumable stream state}.
+     */
+    private static final WeakHashMap<XmppAccount, StreamManagement> sessions =
+                            new WeakHashMap<XmppAccount, StreamManagement>();
+
+    /**
+     * The account owning the stream.
+     */
+    private final XmppAccount account;
+
+    /**
+     * The bare account jid.
+     */
+    private final String jid;
+
+    /**
+     * The output stream used for acks and ack requests.
+     */
+    private final XmppOutputStream xmppOutput;
+
+    /**
+     * The resumption id, or null if the server doesn't allow resumption.
+     */
+    private String id;
+
+    /**
+     * The maximum resumption time in seconds, 0 if unknown.
+     */
+    private int max;
+
+    /**
+     * The full resource jid of the managed session.
+     */
+    private String resourceJid;
+
+    /**
+     * Number of handled inbound stanzas.
+     */
+    private long inbound;
+
+    /**
+     * Number of sent outbound stanzas.
+     */
+    private long outbound;
+
+    /**
+     * Number of outbound stanzas acknowledged by the server.
+     */
+    private long acked;
+
+    /**
+     * Outbound stanzas not yet acknowledged by the server, oldest first.
+     */
+    private final LinkedList<Stanza> unacked = new LinkedList<Stanza>();
+
+    /**
+     * True after enable has been sent, outbound stanzas are counted.
+     */
+    private boolean counting = false;
+
+    /**
+     * True after the server confirmed stream management, inbound stanzas
+     * are counted.
+     */
+    private boolean enabled = false;
+
+    /**
+     * True after the connection of this stream has been closed.
+     */
+    private boolean detached = false;
+
+    /**
+     * The last time a stanza or nonza was received.
+     */
+    private long lastReceiveTime = System.currentTimeMillis();
+
+    /**
+     * Create a new stream management state for a connection.
+     * @param account XmppAccount The account owning the stream.
+     * @param jid String The bare account jid.
+     * @param xmppOutput XmppOutputStream The connection output stream.
+     */
+    public StreamManagement(
+        XmppAccount account,
+        String jid,
+        XmppOutputStream xmppOutput
+    ) {
+        this.account = account;
+        this.jid = jid;
+        this.xmppOutput = xmppOutput;
+    }
+
+    /**
+     * Retrieve the last resumable stream state of an account. The state is
+     * only returned once its connection has been closed.
+     * @param account XmppAccount The account.
+     * @return StreamManagement The resumable state, or null.
+     */
+    public static StreamManagement getResumable(XmppAccount account) {
+        StreamManagement previous;
+        synchronized (sessions) {
+            previous = sessions.get(account);
+        }
+        if (previous == null ||
+            !previous.isDetached() ||
+            !previous.isResumable()) {
+            return null;
+        }
+        return previous;
+    }
+
+    /**
+     * Forget the resumable stream state of an account, e.g. after a failed
+     * resumption attempt.
+     * @param account XmppAccount The account.
+     */
+    public static void forget(XmppAccount account) {
+        synchronized (sessions) {
+            sessions.remove(account);
+        }
+    }
+
+    /**
+     * Check if a stanza counts for stream management (iq, message and
+     * presence).
+     * @param stanza Stanza The stanza to check.
+     * @return boolean True for iq, message and presence stanzas.
+     */
+    private static boolean isCounted(Stanza stanza) {
+        String name = stanza.getName();
+        return "iq".equals(name)
+            || "message".equals(name)
+            || "presence".equals(name);
+    }
+
+    /**
+     * Enable stream management on a freshly bound stream. Outbound stanzas
+     * are counted from now on.
+     * @param resourceJid String The bound resource jid.
+     * @throws XmppException In case of a transport error.
+     */
+    public void enable(String resourceJid) throws XmppException {
+        synchronized (this) {
+            this.resourceJid = resourceJid;
+            inbound = 0;
+            outbound = 0;
+            acked = 0;
+            unacked.clear();
+            counting = true;
+        }
+        xmppOutput.sendUnchecked(
+            "<enable xmlns='" + NAMESPACE + "' resume='true'/>"
+        );
+    }
+
+    /**
+     * Take over the state of a previous stream after the server confirmed
+     * the resumption.
+     * @param previous StreamManagement The state of the dropped stream.
+     * @param h long The number of stanzas the server did receive.
+     * @return List<Stanza> The unacknowledged stanzas to be resent, oldest
+     *                      first.
+     */
+    public synchronized List<Stanza> resume(StreamManagement previous, long h) {
+        ArrayList<Stanza> replay;
+        synchronized (previous) {
+            id = previous.id;
+            max = previous.max;
+            resourceJid = previous.resourceJid;
+            inbound = previous.inbound;
+            replay = new ArrayList<Stanza>(previous.unacked);
+            long drop = h - previous.acked;
+            for (long i = 0; i < drop && !replay.isEmpty(); i++) {
+                replay.remove(0);
+            }
+        }
+        // replayed stanzas will be counted again when they are resent
+        acked = h;
+        outbound = h;
+        unacked.clear();
+        counting = true;
+        enabled = true;
+        lastReceiveTime = System.currentTimeMillis();
+        synchronized (sessions) {
+            sessions.put(account, this);
+        }
+        Log.d(TAG, "Resumed " + resourceJid + ", replaying " + replay.size());
+        return replay;
+    }
+
+    /**
+     * Record an outbound stanza, requesting an ack every
+     * {@value #ACK_REQUEST_INTERVAL} unacknowledged stanzas.
+     * The caller must hold the lock of this object while sending the stanza
+     * and recording it, to keep the counter in sync with the wire.
+     * @param stanza Stanza The stanza that was sent.
+     * @throws XmppException In case of a transport error.
+     */
+    public synchronized void sent(Stanza stanza) throws XmppException {
+        if (!counting || !isCounted(stanza)) {
+            return;
+        }
+        outbound++;
+        unacked.add(stanza);
+        if (enabled && unacked.size() % ACK_REQUEST_INTERVAL == 0) {
+            xmppOutput.sendUnchecked("<r xmlns='" + NAMESPACE + "'/>");
+        }
+    }
+
+    /**
+     * Handle an inbound element. Stream management nonzas are consumed,
+     * stanzas are counted and passed on.
+     * @param stanza Stanza The received element.
+     * @return boolean True if the element was consumed.
+     * @throws XmppException In case of a transport error.
+     */
+    public synchronized boolean receive(Stanza stanza) throws XmppException {
+        lastReceiveTime = System.currentTimeMillis();
+        if (!NAMESPACE.equals(stanza.getNamespace())) {
+            if (enabled && isCounted(stanza)) {
+                inbound++;
+            }
+            return false;
+        }
+        String name = stanza.getName();
+        if ("r".equals(name)) {
+            xmppOutput.sendUnchecked(
+                "<a xmlns='" + NAMESPACE + "' h='" + inbound + "'/>"
+            );
+        } else
+        if ("a".equals(name)) {
+            ack(parseCount(stanza.getAttributeValue("h")));
+        } else
+        if ("enabled".equals(name)) {
+            enabled = true;
+            String resume = stanza.getAttributeValue("resume");
+            if ("true".equals(resume) || "1".equals(resume)) {
+                id = stanza.getAttributeValue("id");
+            }
+            String maxValue = stanza.getAttributeValue("max");
+            if (maxValue != null) {
+                try {
+                    max = Integer.parseInt(maxValue);
+                } catch (NumberFormatException e) {
+                    max = 0;
+                }
+            }
+            if (id != null) {
+                synchronized (sessions) {
+                    sessions.put(account, this);
+                }
+            }
+            Log.d(TAG, "Enabled on " + resourceJid + ", resumable: "
+                     + (id != null));
+        } else
+        if ("failed".equals(name)) {
+            Log.d(TAG, "Stream management failed on " + resourceJid);
+            counting = false;
+            enabled = false;
+            id = null;
+            unacked.clear();
+            synchronized (sessions) {
+                if (sessions.get(account) == this) {
+                    sessions.remove(account);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Drop all stanzas acknowledged by the server.
+     * @param h long The number of stanzas received by the server.
+     */
+    private void ack(long h) {
+        while (acked < h && !unacked.isEmpty()) {
+            unacked.removeFirst();
+            acked++;
+        }
+        acked = h;
+    }
+
+    /**
+     * Parse a stanza counter.
+     * @param value String The counter value.
+     * @return long The counter, or 0 on invalid input.
+     */
+    public static long parseCount(String value) {
+        if (value == null) {
+            return 0;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+
+    /**
+     * Check if this stream could be resumed. This requires a resumption id
+     * and a maximum resumption time that hasn't elapsed yet.
+     * @return boolean True if the stream may be resumed.
+     */
+    public synchronized boolean isResumable() {
+        if (id == null) {
+            return false;
+        }
+        return max <= 0 ||
+            System.currentTimeMillis() - lastReceiveTime < max * 1000l;
+    }
+
+    /**
+     * Mark the stream as detached from its connection, after the connection
+     * has been closed. Only detached streams may be resumed.
+     */
+    public synchronized void detach() {
+        detached = true;
+    }
+
+    /**
+     * Check if the connection of this stream has been closed.
+     * @return boolean True if the stream is detached.
+     */
+    public synchronized boolean isDetached() {
+        return detached;
+    }
+
+    /**
+     * Retrieve the resumption id.
+     * @return String The resumption id, or null.
+     */
+    public synchronized String getId() {
+        return id;
+    }
+
+    /**
+     * Retrieve the number of handled inbound stanzas.
+     * @return long The inbound stanza counter.
+     */
+    public synchronized long getInboundCount() {
+        return inbound;
+    }
+
+    /**
+     * Retrieve the number of sent outbound stanzas.
+     * @return long The outbound stanza counter.
+     */
+    public synchronized long getOutboundCount() {
+        return outbound;
+    }
+
+    /**
+     * Retrieve the number of unacknowledged outbound stanzas.
+     * @return int The number of stanzas waiting for an ack.
+     */
+    public synchronized int getUnackedCount() {
+        return unacked.size();
+    }
+
+    /**
+     * Retrieve the full resource jid of the managed session.
+     * @return String The resource jid.
+     */
+    public synchronized String getResourceJid() {
+        return resourceJid;
+    }
+
+}
@@ -0,0 +1,155 @@
+package com.googlecode.asmack.connection.impl;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.HashMap;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+import android.util.Log;
+
+/**
+ * <p>Process wide TLS context with a client session cache. The session cache
+ * of a {@link SSLContext} is keyed by the peer host and port, thus reusing a
+ * single context allows reconnects to resume the previous TLS session
+ * instead of running a full handshake.</p>
+ * <p>The cache additionally remembers the last session id per host/port pair
+ * to detect whether a handshake resumed a session.</p>
+ */
+public final class TLSSessionCache {
+
+    /**
+     * Logging tag (TLSSessionCache).
+     */
+    private static final String TAG = TLSSessionCache.class.getSimpleName();
+
+    /**
+     * Maximum number of cached client sessions.
+     */
+    private static final int SESSION_CACHE_SIZE = 16;
+
+    /**
+     * Session timeout in seconds (12h).
+     */
+    private static final int SESSION_TIMEOUT = 12 * 60 * 60;
+
+    /**
+     * The shared TLS context, lazily created.
+     */
+    private static SSLContext context;
+
+    /**
+     * Map of {host:port} => {last session id}.
+     */
+    private static final HashMap<String, byte[]> sessionIds =
+                                            new HashMap<String, byte[]>();
+
+    /**
+     * Static helper, no instances.
+     */
+    private TLSSessionCache() {
+    }
+
+    /**
+     * Retrieve the shared TLS context, creating it on first use.
+     * <p><b>TODO:</b> This context uses a non-validating key manager.</p>
+     * @return SSLContext The process wide TLS context.
+     * @throws NoSuchAlgorithmException If TLS is not supported.
+     * @throws KeyManagementException In case of a key managment error.
+     */
+    public static synchronized SSLContext getContext()
+        throws NoSuchAlgorithmException, KeyManagementException
+    {
+        if (context == null) {
+            SSLContext ctx = SSLContext.getInstance("TLS");
+            ctx.init(new KeyManager[]{},
+                new javax.net.ssl.TrustManager[]{
+                    new UnTrustManager()
+                },
+                new SecureRandom()
+            );
+            SSLSessionContext sessionContext = ctx.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(SESSION_TIMEOUT);
+            }
+            context = ctx;
+        }
+        return context;
+    }
+
+    /**
+     * Wrap a plain socket into a TLS socket and run the handshake. The host
+     * and port are used as the session cache key. A failed handshake drops
+     * all cached sessions, a broken session must not be offered again.
+     * @param socket Socket The plain socket.
+     * @param host String The server host name.
+     * @param port int The server port.
+     * @return SSLSocket The connected TLS socket.
+     * @throws IOException If the handshake fails.
+     * @throws NoSuchAlgorithmException If TLS is not supported.
+     * @throws KeyManagementException In case of a key managment error.
+     */
+    public static SSLSocket wrap(Socket socket, String host, int port)
+        throws IOException, NoSuchAlgorithmException, KeyManagementException
+    {
+        SSLSocket sslSocket = (SSLSocket) getContext().getSocketFactory()
+            .createSocket(socket, host, port, true);
+        try {
+            sslSocket.startHandshake();
+        } catch (IOException e) {
+            invalidate();
+            try {
+                sslSocket.close();
+            } catch (IOException e1) {
+                /* already broken */
+            }
+            throw e;
+        }
+        return sslSocket;
+    }
+
+    /**
+     * Remember the session of a completed handshake and check if it resumed
+     * the previous session for the same host/port pair.
+     * @param host String The server host name.
+     * @param port int The server port.
+     * @param session SSLSession The negotiated session.
+     * @return boolean True if the session id equals the last known id.
+     */
+    public static boolean remember(String host, int port, SSLSession session) {
+        if (session == null) {
+            return false;
+        }
+        byte[] id = session.getId();
+        if (id == null || id.length == 0) {
+            return false;
+        }
+        String key = host + ":" + port;
+        byte[] last;
+        synchronized (sessionIds) {
+            last = sessionIds.put(key, id);
+        }
+        return last != null && Arrays.equals(last, id);
+    }
+
+    /**
+     * Drop all cached sessions, forcing full handshakes on the next connect.
+     */
+    public static synchronized void invalidate() {
+        synchronized (sessionIds) {
+            sessionIds.clear();
+        }
+        Log.d(TAG, "session cache invalidated");
+        context = null;
+    }
+
+}
@@ -41,8 +41,10 @@ import java.io.IOException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.util.List;
 
 import javax.net.SocketFactory;
 
@@ -55,7 +57,9 @@ import com.googlecode.asmack.StanzaSink;
 import com.googlecode.asmack.XmppAccount;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.ClientState;
 import com.googlecode.asmack.connection.Connection;
+import com.googlecode.asmack.connection.ConnectionMetrics;
 import com.googlecode.asmack.connection.XmppTransportException;
 
 /**
@@ -79,11 +83,22 @@ public class TcpConnection implements Connection {
      */
     private static final String TAG = TcpConnection.class.getSimpleName();
 
+    /**
+     * The tcp connect timeout, 30s.
+     */
+    private static final int CONNECT_TIMEOUT = 30 * 1000;
+
     /**
      * The account name to use for login or realm domain.
      */
     protected XmppAccount account;
 
+    /**
+     * The connection string of this attempt, overriding the account
+     * connection (e.g. a see-other-host redirect), or null.
+     */
+    private final String target;
+
     /**
      * The low level tcp socket of this connection.
      */
@@ -109,13 +124,111 @@ public class TcpConnection implements Connection {
      */
     private XmppOutputStream xmppOutput;
 
+    /**
+     * The stream management state, or null if unsupported by the server.
+     */
+    private StreamManagement streamManagement;
+
+    /**
+     * True if this connection resumed a previous xmpp session.
+     */
+    private boolean resumed = false;
+
+    /**
+     * True if the server supports client state indication.
+     */
+    private boolean clientStateIndication = false;
+
+    /**
+     * True if the server supports roster versioning.
+     */
+    private boolean rosterVersioning = false;
+
+    /**
+     * The transport metrics of the account.
+     */
+    private final ConnectionMetrics metrics;
+
     /**
      * Constructor for TcpConnection.
      * @param account XmppAccount
      */
     public TcpConnection(XmppAccount account) {
+        this(account, null);
+    }
+
+    /**
+     * Create a connection to an explicit target instead of the account
+     * connection, without changing the account.
+     * @param account XmppAccount The xmpp account.
+     * @param target String The tcp connection string, or null for the
+     *                      account connection.
+     */
+    public TcpConnection(XmppAccount account, String target) {
         this.account = account;
+        this.target = target;
         bareJid = account.getJid();
+        metrics = ConnectionMetrics.forAccount(bareJid);
+    }
+
+    /**
+     * Parse a host[:port] address. The host is a domain, an IPv4 address or
+     * a bracketed IPv6 literal (RFC 6120, 4.9.3.19 see-other-host).
+     * @param address String The address.
+     * @param defaultPort int The port if the address has none.
+     * @return InetSocketAddress The unresolved address (IPv6 hosts without
+     *                           brackets), or null if malformed.
+     */
+    public static InetSocketAddress parseAddress(
+        String address,
+        int defaultPort
+    ) {
+        address = address.trim();
+        String host;
+        String port = null;
+        if (address.startsWith("[")) {
+            int end = address.indexOf(']');
+            if (end == -1) {
+                return null;
+            }
+            host = address.substring(1, end);
+            if (host.indexOf(':') == -1) {
+                return null;
+            }
+            if (end + 1 < address.length()) {
+                if (address.charAt(end + 1) != ':') {
+                    return null;
+                }
+                port = address.substring(end + 2);
+            }
+        } else {
+            int split = address.indexOf(':');
+            if (split == -1) {
+                host = address;
+            } else {
+                if (address.indexOf(':', split + 1) != -1) {
+                    // IPv6 literals must be bracketed
+                    return null;
+                }
+                host = address.substring(0, split);
+                port = address.substring(split + 1);
+            }
+        }
+        if (host.length() == 0) {
+            return null;
+        }
+        int portNumber = defaultPort;
+        if (port != null) {
+            try {
+                portNumber = Integer.parseInt(port);
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (portNumber < 1 || portNumber > 65535) {
+                return null;
+            }
+        }
+        return InetSocketAddress.createUnresolved(host, portNumber);
     }
 
     /**
@@ -125,34 +238,26 @@ public class TcpConnection implements Connection {
      * @see com.googlecode.asmack.connection.Connection#connect(StanzaSink)
      */
     public void connect(StanzaSink sink) throws XmppException {
-        String connection = account.getConnection();
+        String connection = target != null ? target : account.getConnection();
         connection = connection.substring(4).trim(); // cut "tcp:"
 
         // Target
-        int port = 5222;
-        InetAddress addresse;
-
-        // Get Port
-        int split = connection.lastIndexOf(':');
-        if (split != -1) {
-            String portNumber = connection.substring(split + 1);
-            port = Integer.parseInt(portNumber);
-            connection = connection.substring(0, split);
+        InetSocketAddress target = parseAddress(connection, 5222);
+        if (target == null) {
+            throw new XmppTransportException(
+                "Not a valid tcp uri (" + connection + ")"
+            );
         }
+        int port = target.getPort();
+        connection = target.getHostName();
+        InetAddress addresse;
 
         // Get Host IPs
         InetAddress[] inetAddresses;
-        if (connection.charAt(0) == '[' &&
-            connection.charAt(connection.length()) == ']') {
+        if (connection.indexOf(':') != -1) {
             // IPv6
-            if (split == -1) {
-                throw new IllegalStateException(
-                    "Not a valid tcp uri (" + account.getConnection() + ")"
-                );
-            }
-            String ipv6 = connection.substring(1, connection.length() - 1);
             try {
-                inetAddresses = InetAddress.getAllByName(ipv6);
+                inetAddresses = InetAddress.getAllByName(connection);
             } catch (UnknownHostException e) {
                 throw new XmppTransportException("can't resolve host", e);
             }
@@ -186,7 +291,12 @@ public class TcpConnection implements Connection {
 
         connect(addresse, port);
 
-        new ConncetionPullToSinkPushThread(this, xmppInput, sink).start();
+        new ConncetionPullToSinkPushThread(
+            this,
+            xmppInput,
+            sink,
+            streamManagement
+        ).start();
     }
 
     /**
@@ -198,9 +308,12 @@ public class TcpConnection implements Connection {
     protected void connect(InetAddress addresse, int port)
         throws XmppException
     {
+        long start = System.currentTimeMillis();
         SocketFactory socketFactory = SocketFactory.getDefault();
         try {
-            socket = socketFactory.createSocket(addresse, port);
+            socket = socketFactory.createSocket();
+            socket.connect(
+                new InetSocketAddress(addresse, port), CONNECT_TIMEOUT);
             socket.setKeepAlive(false);
             socket.setSoTimeout(3*60*1000);
             socket.setTcpNoDelay(true);
@@ -208,9 +321,10 @@ public class TcpConnection implements Connection {
             close();
             throw new XmppTransportException("Can't connect", e);
         }
+        metrics.phase("tcp", System.currentTimeMillis() - start);
         FeatureNegotiationEngine engine;
         try {
-            engine = new FeatureNegotiationEngine(socket);
+            engine = new FeatureNegotiationEngine(socket, metrics);
         } catch (XmlPullParserException e) {
             Log.e(TAG, "can't negotiate", e);
             close();
@@ -220,15 +334,55 @@ public class TcpConnection implements Connection {
             close();
             throw new XmppTransportException("Can't connect", e);
         }
-        engine.open(account);
-        resourceJid = engine.bind(account.getResource());
-        if (resourceJid == null) {
-            close();
-            throw new XmppTransportException("Can't bind");
+        StreamManagement previous = null;
+        if (account.isResumptionEnabled()) {
+            previous = StreamManagement.getResumable(account);
         }
-        Log.d(TAG, "Bound as " + resourceJid);
+        // a resumption replaces bind, so bind must not be pipelined
+        engine.setBindPipelining(previous == null);
+        engine.open(account);
+        clientStateIndication = engine.isClientStateIndicationSupported();
+        rosterVersioning = engine.isRosterVersioningSupported();
         xmppInput = engine.getXmppInputStream();
         xmppOutput = engine.getXmppOutputStream();
+        long bindStart = System.currentTimeMillis();
+        List<Stanza> replay = null;
+        if (account.isResumptionEnabled() &&
+            engine.isStreamManagementSupported()) {
+            streamManagement = new StreamManagement(
+                    account, bareJid, xmppOutput);
+            if (previous != null) {
+                long h = engine.resume(previous);
+                if (h >= 0) {
+                    replay = streamManagement.resume(previous, h);
+                    resourceJid = streamManagement.getResourceJid();
+                    resumed = true;
+                } else {
+                    Log.d(TAG, "Resumption failed for " + bareJid);
+                    StreamManagement.forget(account);
+                }
+            }
+        }
+        if (!resumed) {
+            resourceJid = engine.bind(account.getResource());
+            if (resourceJid == null) {
+                close();
+                throw new XmppTransportException("Can't bind");
+            }
+            if (streamManagement != null) {
+                streamManagement.enable(resourceJid);
+            }
+        }
+        long now = System.currentTimeMillis();
+        metrics.phase(resumed ? "resume" : "bind", now - bindStart);
+        metrics.phase("total", now - start);
+        Log.d(TAG, "Bound as " + resourceJid + (resumed ? " (resumed)" : "")
+                 + ", compression: " + engine.getCompressionMethod());
+        if (replay != null) {
+            for (Stanza stanza: replay) {
+                send(stanza);
+            }
+        }
     }
 
     /**
@@ -249,7 +403,19 @@ public class TcpConnection implements Connection {
      */
     @Override
     public void send(Stanza stanza) throws XmppException {
-        xmppOutput.send(stanza);
+        metrics.enterSend();
+        try {
+            if (streamManagement == null) {
+                xmppOutput.send(stanza);
+                return;
+            }
+            synchronized (streamManagement) {
+                xmppOutput.send(stanza);
+                streamManagement.sent(stanza);
+            }
+        } finally {
+            metrics.leaveSend();
+        }
     }
 
     /**
@@ -259,6 +425,9 @@ public class TcpConnection implements Connection {
      */
     @Override
     public void close() throws XmppException {
+        if (streamManagement != null) {
+            streamManagement.detach();
+        }
         if (xmppInput != null) {
             xmppInput.close();
         }
@@ -285,6 +454,63 @@ public class TcpConnection implements Connection {
         return xmppInput.getLastReceiveTime();
     }
 
+    /**
+     * Retrieve the transport metrics of the account.
+     * @return ConnectionMetrics The account metrics.
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Check if this connection resumed a previous xmpp session. Resumed
+     * sessions keep the presence and subscriptions of the dropped stream.
+     * @return boolean True if a previous session was resumed.
+     * @see com.googlecode.asmack.connection.Connection#isResumed()
+     */
+    @Override
+    public boolean isResumed() {
+        return resumed;
+    }
+
+    /**
+     * Send the client state (XEP-0352) if the server supports it. The
+     * indication is a nonza, it's not counted by stream management.
+     * @param active True if the client is in active use.
+     * @return boolean True if the state was sent, false if unsupported.
+     * @throws XmppException In case of a transport error.
+     * @see com.googlecode.asmack.connection.Connection#indicateClientState(boolean)
+     */
+    @Override
+    public boolean indicateClientState(boolean active) throws XmppException {
+        if (!clientStateIndication || xmppOutput == null) {
+            return false;
+        }
+        xmppOutput.sendUnchecked(
+            "<" + (active ? "active" : "inactive") +
+            " xmlns='" + ClientState.NAMESPACE + "'/>"
+        );
+        return true;
+    }
+
+    /**
+     * Check if the server announced roster versioning.
+     * @return boolean True if roster versioning is supported.
+     * @see com.googlecode.asmack.connection.Connection#isRosterVersioningSupported()
+     */
+    @Override
+    public boolean isRosterVersioningSupported() {
+        return rosterVersioning;
+    }
+
+    /**
+     * Retrieve the stream management state of this connection.
+     * @return StreamManagement The stream management state, or null.
+     */
+    public StreamManagement getStreamManagement() {
+        return streamManagement;
+    }
+
     /**
      * Retrieve the underlying xmpp account.
      * @return XmppAccount The xmpp account used for connection/authentication.
@@ -45,12 +45,15 @@ import java.io.UnsupportedEncodingException;
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
+import android.os.Debug;
 import android.util.Log;
 
 import com.googlecode.asmack.Stanza;
 import com.googlecode.asmack.XMLUtils;
 import com.googlecode.asmack.XmppException;
 import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.ConnectionMetrics;
+import com.googlecode.asmack.connection.NamespaceMetrics;
 import com.googlecode.asmack.connection.XmppTransportException;
 
 /**
@@ -110,6 +113,11 @@ public class XmppInputStream {
      */
     private XmlPullParser parser;
 
+    /**
+     * The metrics receiving xml byte counts and parse times, or null.
+     */
+    private final ConnectionMetrics metrics;
+
     /**
      * Create a new XMPP input stream on top of a lowlevel io stream.
      * @param in InputStream The underlying input stream. 
@@ -118,6 +126,19 @@ public class XmppInputStream {
     public XmppInputStream(InputStream in)
         throws XmppTransportException
     {
+        this(in, null);
+    }
+
+    /**
+     * Create a new metered XMPP input stream on top of a lowlevel io stream.
+     * @param in InputStream The underlying input stream.
+     * @param metrics ConnectionMetrics The metrics to update, or null.
+     * @throws XmppTransportException In case of a transport exception.
+     */
+    public XmppInputStream(InputStream in, ConnectionMetrics metrics)
+        throws XmppTransportException
+    {
+        this.metrics = metrics;
         attach(in);
     }
 
@@ -199,6 +220,7 @@ public class XmppInputStream {
         throws XmppException {
 
         Stanza stanza = null;
+        long start = metrics == null ? -1 : Debug.threadCpuTimeNanos();
         try {
             stanza = XMLUtils.readStanza(parser);
         } catch (IllegalArgumentException e) {
@@ -217,6 +239,19 @@ public class XmppInputStream {
             Log.d(TAG, "Stanza: " + stanza.getXml());
         }
 
+        if (start >= 0) {
+            // cpu time, the blocking read itself is not accounted
+            long nanos = Debug.threadCpuTimeNanos() - start;
+            metrics.stanzaIn(stanza.getName(), nanos);
+            long size = stanza.getXml().length();
+            NamespaceMetrics.received(
+                NamespaceMetrics.getPayloadNamespace(stanza),
+                size,
+                metrics.estimateWireBytesIn(size),
+                nanos
+            );
+        }
+
         lastReceiveTime = System.currentTimeMillis();
         return stanza;
     }
@@ -240,6 +275,9 @@ public class XmppInputStream {
         this.inputStream = in;
         try {
             parser = XMLUtils.getXMLPullParser();
+            if (metrics != null) {
+                in = new MeteredInputStream(in, metrics, false);
+            }
             parser.setInput(new InputStreamReader(in, "UTF-8"));
         } catch (XmlPullParserException e) {
             Log.e(TAG, "attach failed", e);
@@ -308,6 +346,14 @@ public class XmppInputStream {
         this.debugEnabled = debugEnabled;
     }
 
+    /**
+     * Retrieve the metrics of this stream.
+     * @return ConnectionMetrics The metrics, or null if not metered.
+     */
+    public ConnectionMetrics getMetrics() {
+        return metrics;
+    }
+
     /**
      * Retrieve the unix timestamp of the last receive event.
      * @return long The unix timestamp of the last received stanza.
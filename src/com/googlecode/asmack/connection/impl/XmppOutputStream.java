@@ -53,6 +53,8 @@ import com.googlecode.asmack.Attribute;
 import com.googlecode.asmack.Stanza;
 import com.googlecode.asmack.XMLUtils;
 import com.googlecode.asmack.XmppException;
+import com.googlecode.asmack.connection.ConnectionMetrics;
+import com.googlecode.asmack.connection.NamespaceMetrics;
 import com.googlecode.asmack.connection.XmppTransportException;
 
 /**
@@ -75,6 +77,11 @@ public class XmppOutputStream {
      */
     private XmlSerializer xmlSerializer;
 
+    /**
+     * The metrics receiving xml byte and stanza counts, or null.
+     */
+    private final ConnectionMetrics metrics;
+
     /**
      * Create a new XmppOutputStram. dirctly attached to the given OutputStream.
      * @param out OutputStream The low level io OutputStream.
@@ -84,6 +91,21 @@ public class XmppOutputStream {
     public XmppOutputStream(OutputStream out)
         throws XmppTransportException, IOException
     {
+        this(out, null);
+    }
+
+    /**
+     * Create a new metered XmppOutputStream, directly attached to the given
+     * OutputStream.
+     * @param out OutputStream The low level io OutputStream.
+     * @param metrics ConnectionMetrics The metrics to update, or null.
+     * @throws XmppTransportException In case of an xml error.
+     * @throws IOException In case of a transport error.
+     */
+    public XmppOutputStream(OutputStream out, ConnectionMetrics metrics)
+        throws XmppTransportException, IOException
+    {
+        this.metrics = metrics;
         attach(out, true, false);
     }
 
@@ -107,6 +129,9 @@ public class XmppOutputStream {
         boolean sendBOM
     ) throws IOException, XmppTransportException
     {
+        if (metrics != null) {
+            out = new MeteredOutputStream(out, metrics, false);
+        }
         if (sendBOM) {
             Log.d(TAG, "BOM");
             out.write(0xEF);
@@ -273,7 +298,16 @@ public class XmppOutputStream {
             e.printStackTrace();
         }
 
-        sendUnchecked(stringWriter.toString());
+        String xml = stringWriter.toString();
+        sendUnchecked(xml);
+        if (metrics != null) {
+            metrics.stanzaOut(stanza.getName());
+            NamespaceMetrics.sent(
+                NamespaceMetrics.getPayloadNamespace(stanza),
+                xml.length(),
+                metrics.estimateWireBytesOut(xml.length())
+            );
+        }
     }
 
     /**
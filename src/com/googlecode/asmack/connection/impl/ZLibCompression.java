@@ -0,0 +1,65 @@
+package com.googlecode.asmack.connection.impl;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.NoSuchAlgorithmException;
+import java.util.zip.Deflater;
+
+/**
+ * The zlib stream compression codec, based on {@link ZLibInputStream} and
+ * a {@link ZLibOutputStream} at the default level.
+ */
+public class ZLibCompression implements StreamCompression {
+
+    /**
+     * The zlib method name.
+     * @return String Always "zlib".
+     */
+    @Override
+    public String getMethod() {
+        return "zlib";
+    }
+
+    /**
+     * Zlib requires a sync flush capable deflater.
+     * @return boolean {@link ZLibOutputStream#SUPPORTED}.
+     */
+    @Override
+    public boolean isAvailable() {
+        return ZLibOutputStream.SUPPORTED;
+    }
+
+    /**
+     * Wrap the output into a zlib stream at the default level (6). Per
+     * stanza sync flushes dominate the ratio, higher levels only cost cpu.
+     * @param outputStream OutputStream The raw stream.
+     * @return OutputStream The zlib stream.
+     * @throws IOException If the deflater can't be created.
+     */
+    @Override
+    public OutputStream wrapOutput(OutputStream outputStream)
+        throws IOException
+    {
+        try {
+            return new ZLibOutputStream(outputStream,
+                                        Deflater.DEFAULT_COMPRESSION);
+        } catch (NoSuchAlgorithmException e) {
+            IOException exception = new IOException("zlib unavailable");
+            exception.initCause(e);
+            throw exception;
+        }
+    }
+
+    /**
+     * Wrap the input into a zlib stream.
+     * @param inputStream InputStream The raw stream.
+     * @return InputStream The zlib stream.
+     * @throws IOException If the inflater can't be created.
+     */
+    @Override
+    public InputStream wrapInput(InputStream inputStream) throws IOException {
+        return new ZLibInputStream(inputStream);
+    }
+
+}
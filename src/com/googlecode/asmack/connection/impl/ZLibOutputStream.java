@@ -50,9 +50,22 @@ import java.util.zip.DeflaterOutputStream;
  * Implementation, preferable via reflection.</p>
  * <p>Please use {@link ZLibOutputStream#SUPPORTED} to check for flush
  * compatibility.</p> 
+ * <p>The compression level is fixed when the stream is created. Android
+ * deflaters reject {@link Deflater#setLevel(int)} once input was set, and a
+ * new deflater would need a new zlib stream.</p>
  */
 public class ZLibOutputStream extends DeflaterOutputStream {
 
+    /**
+     * The Java7 SYNC_FLUSH constant.
+     */
+    private static final int SYNC_FLUSH = 2;
+
+    /**
+     * The output buffer size.
+     */
+    private static final int BUFFER_SIZE = 4096;
+
     /**
      * The reflection based flush method.
      */
@@ -77,6 +90,17 @@ public class ZLibOutputStream extends DeflaterOutputStream {
         SUPPORTED = (method != null);
     }
 
+    /**
+     * The preboxed arguments of the reflective sync flush, reused for every
+     * call to avoid boxing on each flush.
+     */
+    private final Object[] flushArguments;
+
+    /**
+     * Buffer for single byte writes.
+     */
+    private final byte[] singleByte = new byte[1];
+
     /**
      * Create a new ZLib compatible output stream wrapping the given low level
      * stream. ZLib compatiblity means we will send a zlib header. 
@@ -86,7 +110,45 @@ public class ZLibOutputStream extends DeflaterOutputStream {
      */
     public ZLibOutputStream(OutputStream os) throws IOException,
             NoSuchAlgorithmException {
-        super(os, new Deflater(Deflater.BEST_COMPRESSION));
+        this(os, Deflater.BEST_COMPRESSION);
+    }
+
+    /**
+     * Create a new ZLib compatible output stream with a given compression
+     * level.
+     * @param os OutputStream The underlying stream.
+     * @param level int The deflater level, kept for the whole stream.
+     * @throws IOException In case of a lowlevel transfer problem.
+     * @throws NoSuchAlgorithmException In case of a {@link Deflater} error.
+     */
+    public ZLibOutputStream(OutputStream os, int level)
+        throws IOException, NoSuchAlgorithmException
+    {
+        this(os, new Deflater(level));
+    }
+
+    /**
+     * Create a new ZLib compatible output stream on top of a given deflater.
+     * @param os OutputStream The underlying stream.
+     * @param deflater Deflater The deflater, owned by the stream.
+     */
+    ZLibOutputStream(OutputStream os, Deflater deflater) {
+        super(os, deflater, BUFFER_SIZE);
+        flushArguments = new Object[]{
+            buf, Integer.valueOf(0), Integer.valueOf(buf.length),
+            Integer.valueOf(SYNC_FLUSH)
+        };
+    }
+
+    /**
+     * Write a single byte.
+     * @param b int The byte.
+     * @throws IOException In case of a lowlevel exception.
+     */
+    @Override
+    public void write(int b) throws IOException {
+        singleByte[0] = (byte) b;
+        write(singleByte, 0, 1);
     }
 
     /**
@@ -105,13 +167,12 @@ public class ZLibOutputStream extends DeflaterOutputStream {
                 count = def.deflate(buf, 0, buf.length);
                 out.write(buf, 0, count);
             } while (count > 0);
-            out.flush();
         }
         try {
             do {
-                count = (Integer) method.invoke(def, buf, 0, buf.length, 2);
+                count = (Integer) method.invoke(def, flushArguments);
                 out.write(buf, 0, count);
-            } while (count > 0);
+            } while (count == buf.length);
         } catch (IllegalArgumentException e) {
             throw new IOException("Can't flush");
         } catch (IllegalAccessException e) {
@@ -119,7 +180,7 @@ public class ZLibOutputStream extends DeflaterOutputStream {
         } catch (InvocationTargetException e) {
             throw new IOException("Can't flush");
         }
-        super.flush();
+        out.flush();
     }
 
-}
\ No newline at end of file
+}
@@ -38,8 +38,11 @@
 package com.googlecode.asmack.contacts;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.Set;
 
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
@@ -47,7 +50,10 @@ import android.content.ContentProviderOperation.Builder;
 import android.content.ContentValues;
 import android.content.OperationApplicationException;
 import android.database.Cursor;
+import android.net.Uri;
 import android.os.RemoteException;
+import android.provider.BaseColumns;
+import android.provider.ContactsContract;
 import android.provider.ContactsContract.Data;
 import android.provider.ContactsContract.RawContacts;
 import android.provider.ContactsContract.StatusUpdates;
@@ -78,11 +84,47 @@ public class ContactDataMapper {
      * You have been warned, braindead code ahead.
      */
 
+    /**
+     * Maximum number of ids in a single <code>IN (...)</code> selection.
+     */
+    private static final int MAX_IN_IDS = 500;
+
+    /**
+     * Selection of the live raw contacts of a local account, bound to the
+     * account jid and {@link RawContact#ACCOUNT_TYPE}. Other account types
+     * (e.g. a google account of the same name) are never touched.
+     */
+    private static final String ACCOUNT_SELECTION =
+                    RawContacts.ACCOUNT_NAME + "=? AND " +
+                    RawContacts.ACCOUNT_TYPE + "=? AND " +
+                    RawContacts.DELETED + "=0";
+
+    /**
+     * The raw contacts uri for deletes as a sync adapter. Rows are removed
+     * instead of being flagged as deleted.
+     */
+    private static final Uri RAW_CONTACTS_SYNC_ADAPTER_URI =
+                    RawContacts.CONTENT_URI.buildUpon().appendQueryParameter(
+                        ContactsContract.CALLER_IS_SYNCADAPTER, "true"
+                    ).build();
+
     /**
      * The contacts content provider client.
      */
     private final ContentProviderClient provider;
 
+    /**
+     * Map of {account jid, jid} => {im data row id}, used to address status
+     * updates without a query.
+     */
+    private final HashMap<String, Long> statusIndex =
+                                                new HashMap<String, Long>();
+
+    /**
+     * True if the status index reflects the provider content.
+     */
+    private boolean statusIndexValid = false;
+
     /**
      * Create a new data mapper on top of a given contacts provider client.
      * @param provider A ContentProviderClient for the Contacts ContentProvider.
@@ -139,11 +181,13 @@ public class ContactDataMapper {
             put(values, data);
             if (data instanceof DeletedMetadata) {
                 operation = ContentProviderOperation.newDelete(Data.CONTENT_URI);
-                operation.withValues(values);
-                operation.withSelection(Data._ID + "=?", new String[]{Long.toString(contact.getID())});
+                operation.withSelection(Data._ID + "=?", new String[]{Long.toString(data.getID())});
                 operations.add(operation.build());
                 continue;
             }
+            if (data instanceof ImMetadata) {
+                indexStatus((ImMetadata) data);
+            }
             if (data.getID() == -1) {
                 operation = ContentProviderOperation.newInsert(Data.CONTENT_URI);
             } else {
@@ -161,6 +205,120 @@ public class ContactDataMapper {
         }
     }
 
+    /**
+     * <p>Append the operations needed to turn a stored contact into the
+     * given contact. Only changed columns are written and unchanged rows
+     * are skipped, so an unchanged contact appends no operation.</p>
+     * <p>Data rows of the stored contact without a counterpart of the same
+     * mimetype are kept. Missing contacts are inserted.</p>
+     * @param stored The stored contact with metadata, or null.
+     * @param contact The new contact state, without ids.
+     * @param operations A set of operations to be extended.
+     * @return The number of appended operations.
+     */
+    public int persistChanges(
+        RawContact stored,
+        RawContact contact,
+        ArrayList<ContentProviderOperation> operations
+    ) {
+        int operationsStart = operations.size();
+        if (stored == null || stored.getID() == -1) {
+            persist(contact, operations);
+            return operations.size() - operationsStart;
+        }
+        String[] id = new String[]{Long.toString(stored.getID())};
+        ContentValues current = new ContentValues();
+        ContentValues values = new ContentValues();
+        put(current, stored);
+        put(values, contact);
+        if (retainChanges(values, current)) {
+            operations.add(ContentProviderOperation
+                .newUpdate(RawContacts.CONTENT_URI)
+                .withSelection(RawContacts._ID + "=?", id)
+                .withValues(values)
+                .build());
+        }
+        Map<String, Metadata> storedMetadata = stored.getMetadata();
+        for (Metadata data: contact.getMetadata().values()) {
+            if (data instanceof DeletedMetadata) {
+                continue;
+            }
+            Metadata old = storedMetadata.get(data.getMimetype());
+            values.clear();
+            put(values, data);
+            if (old == null || old instanceof DeletedMetadata) {
+                values.remove(Data._ID);
+                values.put(Data.RAW_CONTACT_ID, stored.getID());
+                operations.add(ContentProviderOperation
+                    .newInsert(Data.CONTENT_URI)
+                    .withValues(values)
+                    .build());
+                if (data instanceof ImMetadata) {
+                    // new im rows get their id on insert
+                    indexStatus((ImMetadata) data);
+                }
+                continue;
+            }
+            current.clear();
+            put(current, old);
+            if (retainChanges(values, current)) {
+                operations.add(ContentProviderOperation
+                    .newUpdate(Data.CONTENT_URI)
+                    .withSelection(Data._ID + "=?",
+                        new String[]{Long.toString(old.getID())})
+                    .withValues(values)
+                    .build());
+            }
+        }
+        return operations.size() - operationsStart;
+    }
+
+    /**
+     * Drop all ids and all values that equal the current values.
+     * @param values The new values, reduced to the changed columns.
+     * @param current The current values.
+     * @return True if any column changed.
+     */
+    private static boolean retainChanges(
+        ContentValues values,
+        ContentValues current
+    ) {
+        values.remove(BaseColumns._ID);
+        values.remove(Data.RAW_CONTACT_ID);
+        ArrayList<String> unchanged = new ArrayList<String>();
+        for (Map.Entry<String, Object> entry: values.valueSet()) {
+            Object value = entry.getValue();
+            Object old = current.get(entry.getKey());
+            boolean equal;
+            if (value instanceof byte[]) {
+                equal = old instanceof byte[] &&
+                        Arrays.equals((byte[]) value, (byte[]) old);
+            } else {
+                equal = value == null ? old == null : value.equals(old);
+            }
+            if (equal) {
+                unchanged.add(entry.getKey());
+            }
+        }
+        for (String key: unchanged) {
+            values.remove(key);
+        }
+        return values.size() > 0;
+    }
+
+    /**
+     * Update the status index for a persisted im data row. New rows get
+     * their id on insert, so they invalidate the index.
+     * @param im The im metadata.
+     */
+    private synchronized void indexStatus(ImMetadata im) {
+        if (im.getID() == -1) {
+            statusIndexValid = false;
+            return;
+        }
+        statusIndex.put(statusKey(im.getAccounttJid(), im.getJid()), im.getID());
+    }
+
     /**
      * Save a single status update.
      * @param statusUpdate The status update to be stored.
@@ -175,6 +333,102 @@ public class ContactDataMapper {
         }
     }
 
+    /**
+     * Save a set of status updates with a single batch operation.
+     * @param statusUpdates The status updates to be stored.
+     */
+    public void persist(Collection<StatusUpdate> statusUpdates) {
+        ArrayList<ContentProviderOperation> operations =
+            new ArrayList<ContentProviderOperation>(statusUpdates.size());
+        ContentValues values = new ContentValues();
+        for (StatusUpdate statusUpdate: statusUpdates) {
+            values.clear();
+            put(values, statusUpdate);
+            operations.add(ContentProviderOperation
+                .newInsert(StatusUpdates.CONTENT_URI)
+                .withValues(values)
+                .build());
+        }
+        perform(operations);
+    }
+
+    /**
+     * Compute the status index key of a contact.
+     * @param accountJid The account jid.
+     * @param jid The contact jid.
+     * @return The index key.
+     */
+    private static String statusKey(String accountJid, String jid) {
+        return accountJid + '\u0000' + jid;
+    }
+
+    /**
+     * Rebuild the (account jid, jid) =&gt; im data row index with a single
+     * query. Only im rows of raw contacts written by this library are read,
+     * not those of other accounts on the device.
+     */
+    public synchronized void loadStatusIndex() {
+        statusIndex.clear();
+        statusIndexValid = false;
+        try {
+            Cursor cursor = provider.query(
+                    Data.CONTENT_URI,
+                    new String[]{Data._ID, Data.SYNC2, Data.SYNC3},
+                    Data.MIMETYPE + "=? AND " +
+                    RawContacts.ACCOUNT_TYPE + "=?",
+                    new String[]{ImMetadata.MIMETYPE, RawContact.ACCOUNT_TYPE},
+                    null);
+            try {
+                int idIndex = cursor.getColumnIndex(Data._ID);
+                int accountIndex = cursor.getColumnIndex(Data.SYNC2);
+                int jidIndex = cursor.getColumnIndex(Data.SYNC3);
+                while (cursor.moveToNext()) {
+                    statusIndex.put(
+                        statusKey(cursor.getString(accountIndex),
+                                  cursor.getString(jidIndex)),
+                        cursor.getLong(idIndex));
+                }
+            } finally {
+                cursor.close();
+            }
+            statusIndexValid = true;
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Drop the status index, e.g. after contacts were changed by another
+     * process. It will be rebuilt on the next status update.
+     */
+    public synchronized void invalidateStatusIndex() {
+        statusIndexValid = false;
+    }
+
+    /**
+     * Create a status update for a contact, addressed through the status
+     * index. No query is needed unless the index has been invalidated.
+     * Presence and status are left empty, a status update without status
+     * keeps the stored status message.
+     * @param accountJid The account jid (aka your local jid).
+     * @param jid The jid in question (aka the remote jid).
+     * @return A new StatusUpdate instance.
+     */
+    public StatusUpdate newStatusUpdate(String accountJid, String jid) {
+        Long dataId;
+        synchronized (this) {
+            if (!statusIndexValid) {
+                loadStatusIndex();
+            }
+            dataId = statusIndex.get(statusKey(accountJid, jid));
+        }
+        StatusUpdate update = new StatusUpdate();
+        update.setDataId(dataId == null ? -1 : dataId);
+        update.setImAccount(accountJid);
+        update.setImHandle(jid);
+        return update;
+    }
+
     /**
      * Fetch a users status based on a account and user jid.
      * @param accountJid The account jid (aka your local jid).
@@ -219,26 +473,33 @@ public class ContactDataMapper {
     /**
      * <p>Delete a set of contacts based on their id.</p>
      * <p><i>Note:</i> the method used for bulk delete is a group selection
-     * based on id (<i>{@ling BaseColumns#_ID} IN (id1, id2, ...)</i>).
+     * based on id (<i>{@ling BaseColumns#_ID} IN (id1, id2, ...)</i>), with
+     * up to {@value #MAX_IN_IDS} ids per delete. Rows are deleted as a sync
+     * adapter, they are gone for good instead of flagged as deleted.</p>
      * @param ids The IDs if all users that should be deleted.
      */
     public void bulkDelete(long[] ids) {
         if (ids.length == 0) {
             return;
         }
-        StringBuilder where = new StringBuilder();
-        where.append(RawContacts._ID);
-        where.append(" IN (");
-        where.append(Long.toString(ids[0]));
-        for (int i = 1; i < ids.length; i++) {
-            where.append(',');
-            where.append(Long.toString(ids[i]));
-        }
-        where.append(')');
-        try {
-            provider.delete(RawContacts.CONTENT_URI, where.toString(), null);
-        } catch (RemoteException e) {
-            e.printStackTrace();
+        invalidateStatusIndex();
+        for (int start = 0; start < ids.length; start += MAX_IN_IDS) {
+            int end = Math.min(ids.length, start + MAX_IN_IDS);
+            StringBuilder where = new StringBuilder();
+            where.append(RawContacts._ID);
+            where.append(" IN (");
+            where.append(Long.toString(ids[start]));
+            for (int i = start + 1; i < end; i++) {
+                where.append(',');
+                where.append(Long.toString(ids[i]));
+            }
+            where.append(')');
+            try {
+                provider.delete(RAW_CONTACTS_SYNC_ADAPTER_URI,
+                                where.toString(), null);
+            } catch (RemoteException e) {
+                e.printStackTrace();
+            }
         }
     }
 
@@ -255,15 +516,17 @@ public class ContactDataMapper {
             Cursor cursor = provider.query(
                     RawContacts.CONTENT_URI,
                     RAW_CONTACT_PROJECTION_MAP, 
-                    RawContacts.ACCOUNT_NAME + "=?",
-                    new String[]{accountJid},
+                    ACCOUNT_SELECTION,
+                    new String[]{accountJid, RawContact.ACCOUNT_TYPE},
                     null);
             ArrayList<Long> delete = new ArrayList<Long>();
             HashMap<String, RawContact> rawContacts = new HashMap<String, RawContact>();
             try {
+                int[] columns =
+                    getColumnIndexes(cursor, RAW_CONTACT_PROJECTION_MAP);
                 if (cursor.moveToFirst()) {
                     do {
-                        RawContact c = newRawContact(cursor);
+                        RawContact c = newRawContact(cursor, columns);
                         RawContact out = rawContacts.put(c.getJid(), c);
                         if (out != null) {
                             Map<String, Metadata> outMetadata = out.getMetadata();
@@ -296,6 +559,116 @@ public class ContactDataMapper {
         return null;
     }
 
+    /**
+     * Retrieve the contacts of a set of jids for a given local account,
+     * probably with metadata. Duplicate rows of a jid are deleted, the
+     * oldest row is kept.
+     * @param accountJid The local account jid.
+     * @param jids The remote jids, at most a few hundred.
+     * @param metadata True if a second fetch for metadata should be done.
+     * @return The contacts found, ordered by jid.
+     */
+    public RawContact[] getRawContactsByJids(
+        String accountJid,
+        String[] jids,
+        boolean metadata
+    ) {
+        if (jids.length == 0) {
+            return new RawContact[0];
+        }
+        StringBuilder where = new StringBuilder();
+        where.append(ACCOUNT_SELECTION);
+        where.append(" AND ");
+        where.append(RawContacts.SOURCE_ID);
+        where.append(" IN (?");
+        for (int i = 1; i < jids.length; i++) {
+            where.append(",?");
+        }
+        where.append(')');
+        String[] args = new String[jids.length + 2];
+        args[0] = accountJid;
+        args[1] = RawContact.ACCOUNT_TYPE;
+        System.arraycopy(jids, 0, args, 2, jids.length);
+        ArrayList<RawContact> contacts = new ArrayList<RawContact>(jids.length);
+        ArrayList<Long> delete = new ArrayList<Long>();
+        try {
+            Cursor cursor = provider.query(
+                    RawContacts.CONTENT_URI,
+                    RAW_CONTACT_PROJECTION_MAP,
+                    where.toString(),
+                    args,
+                    RawContacts.SOURCE_ID + "," + RawContacts._ID);
+            try {
+                int[] columns =
+                    getColumnIndexes(cursor, RAW_CONTACT_PROJECTION_MAP);
+                RawContact last = null;
+                while (cursor.moveToNext()) {
+                    RawContact c = newRawContact(cursor, columns);
+                    if (last != null && last.getSourceID() != null &&
+                        last.getSourceID().equals(c.getSourceID())) {
+                        delete.add(c.getID());
+                        continue;
+                    }
+                    contacts.add(c);
+                    last = c;
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        RawContact[] result = contacts.toArray(new RawContact[contacts.size()]);
+        if (metadata) {
+            fetchMetadata(result);
+        }
+        if (delete.size() > 0) {
+            long d[] = new long[delete.size()];
+            for (int i = 0; i < d.length; i++) {
+                d[i] = delete.get(i);
+            }
+            bulkDelete(d);
+        }
+        return result;
+    }
+
+    /**
+     * Retrieve the ids of all contacts of a local account whose jid is not
+     * part of a given set. Only ids and jids are read.
+     * @param accountJid The local account jid.
+     * @param jids The jids to keep.
+     * @return The ids of all other contacts.
+     */
+    public long[] getRawContactIdsExcept(String accountJid, Set<String> jids) {
+        ArrayList<Long> ids = new ArrayList<Long>();
+        try {
+            Cursor cursor = provider.query(
+                    RawContacts.CONTENT_URI,
+                    new String[]{RawContacts._ID, RawContacts.SOURCE_ID},
+                    ACCOUNT_SELECTION,
+                    new String[]{accountJid, RawContact.ACCOUNT_TYPE},
+                    null);
+            try {
+                int idIndex = cursor.getColumnIndex(RawContacts._ID);
+                int jidIndex = cursor.getColumnIndex(RawContacts.SOURCE_ID);
+                while (cursor.moveToNext()) {
+                    if (!jids.contains(cursor.getString(jidIndex))) {
+                        ids.add(cursor.getLong(idIndex));
+                    }
+                }
+            } finally {
+                cursor.close();
+            }
+        } catch (RemoteException e) {
+            e.printStackTrace();
+        }
+        long[] result = new long[ids.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = ids.get(i);
+        }
+        return result;
+    }
+
     /**
      * Retrieve a single jid as bound by a local account jid, with or without
      * metadata.
@@ -310,13 +683,14 @@ public class ContactDataMapper {
             Cursor cursor = provider.query(
                     RawContacts.CONTENT_URI,
                     RAW_CONTACT_PROJECTION_MAP, 
-                    RawContacts.ACCOUNT_NAME + "=? AND " +
+                    ACCOUNT_SELECTION + " AND " +
                     RawContacts.SOURCE_ID + "=?",
-                    new String[]{accountJid, jid},
+                    new String[]{accountJid, RawContact.ACCOUNT_TYPE, jid},
                     null);
             try {
                 if (cursor.moveToFirst()) {
-                    contact = newRawContact(cursor);
+                    contact = newRawContact(cursor, getColumnIndexes(
+                                        cursor, RAW_CONTACT_PROJECTION_MAP));
                     if (metadata) {
                         fetchMetadata(contact);
                     }
@@ -331,49 +705,77 @@ public class ContactDataMapper {
     }
 
     /**
-     * Helper to enrich a set of contacts with all available metadata.
-     * @param contact The raw contact.
+     * Helper to enrich a set of contacts with all available metadata. Ids
+     * are sent in chunks of {@value #MAX_IN_IDS}. Rows of the roster
+     * mimetypes are read with {@link #ROSTER_DATA_PROJECTION_MAP}, all
+     * other rows with the full projection. Single contacts use
+     * {@link #fetchMetadata(RawContact)}, a single query is cheaper than
+     * two narrower ones for a handful of rows.
+     * @param contact The raw contacts.
      */
     private void fetchMetadata(RawContact[] contact) {
         if (contact.length == 0) {
             return;
         }
-        if (contact.length == 1) {
-            fetchMetadata(contact[0]);
-            return;
+        HashMap<Long, RawContact> contactById =
+                            new HashMap<Long, RawContact>(contact.length * 2);
+        for (RawContact c: contact) {
+            contactById.put(c.getID(), c);
         }
-        HashMap<Long, RawContact> contactById = new HashMap<Long, RawContact>();
-        try {
+        StringBuilder mimetypes = new StringBuilder(" IN (?");
+        for (int i = 1; i < ROSTER_MIMETYPES.length; i++) {
+            mimetypes.append(",?");
+        }
+        mimetypes.append(')');
+        for (int start = 0; start < contact.length; start += MAX_IN_IDS) {
+            int end = Math.min(contact.length, start + MAX_IN_IDS);
             StringBuilder where = new StringBuilder();
             where.append(Data.RAW_CONTACT_ID);
             where.append(" IN (");
-            where.append(Long.toString(contact[0].getID()));
-            contactById.put(contact[0].getID(), contact[0]);
-            for (int i = 1; i < contact.length; i++) {
+            where.append(Long.toString(contact[start].getID()));
+            for (int i = start + 1; i < end; i++) {
                 where.append(',');
                 where.append(Long.toString(contact[i].getID()));
-                contactById.put(contact[i].getID(), contact[i]);
             }
-            where.append(')');
+            where.append(") AND ");
+            where.append(Data.MIMETYPE);
+            fetchMetadata(contactById,
+                          where.toString() + mimetypes,
+                          ROSTER_DATA_PROJECTION_MAP);
+            fetchMetadata(contactById,
+                          where.toString() + " NOT" + mimetypes,
+                          DATA_PROJECTION_MAP);
+        }
+    }
+
+    /**
+     * Run a single metadata query and attach the results to their
+     * contacts.
+     * @param contactById Map of {raw contact id} => {raw contact}.
+     * @param where The selection, with one argument per roster mimetype.
+     * @param projection The data projection.
+     */
+    private void fetchMetadata(
+        HashMap<Long, RawContact> contactById,
+        String where,
+        String[] projection
+    ) {
+        try {
             Cursor cursor = provider.query(
                     Data.CONTENT_URI,
-                    DATA_PROJECTION_MAP, 
-                    where.toString(),
-                    null,
+                    projection,
+                    where,
+                    ROSTER_MIMETYPES,
                     null);
             try {
-                if (cursor.moveToFirst()) {
-                    do {
-                        Metadata metadata = newMetadata(cursor);
-                        if (metadata == null) {
-                            continue;
-                        }
-                        RawContact c = contactById.get(metadata.getRawContactID());
-                        if (c == null) {
-                            continue;
-                        }
-                        c.setMetadata(metadata);
-                    } while (cursor.moveToNext());
+                int[] columns = getColumnIndexes(cursor, DATA_PROJECTION_MAP);
+                while (cursor.moveToNext()) {
+                    Metadata metadata = newMetadata(cursor, columns);
+                    RawContact c = contactById.get(metadata.getRawContactID());
+                    if (c == null) {
+                        continue;
+                    }
+                    c.setMetadata(metadata);
                 }
             } finally {
                 cursor.close();
@@ -384,23 +786,22 @@ public class ContactDataMapper {
     }
 
     /**
-     * Fetch the metadata of a single account. All results will be attached
-     * to the contact.
+     * Fetch the metadata of a single account with a single query. All
+     * results will be attached to the contact.
      * @param contact The contact that should be enriched.
      */
     private void fetchMetadata(RawContact contact) {
         try {
             Cursor cursor = provider.query(
                     Data.CONTENT_URI,
-                    DATA_PROJECTION_MAP, 
+                    DATA_PROJECTION_MAP,
                     Data.RAW_CONTACT_ID + "=?",
                     new String[]{Long.toString(contact.getID())},
                     null);
             try {
-                if (cursor.moveToFirst()) {
-                    do {
-                        contact.setMetadata(newMetadata(cursor));
-                    } while (cursor.moveToNext());
+                int[] columns = getColumnIndexes(cursor, DATA_PROJECTION_MAP);
+                while (cursor.moveToNext()) {
+                    contact.setMetadata(newMetadata(cursor, columns));
                 }
             } finally {
                 cursor.close();
@@ -410,6 +811,21 @@ public class ContactDataMapper {
         }
     }
 
+    /**
+     * Resolve the column indexes of a cursor once, columns missing from
+     * the cursor get the index -1.
+     * @param cursor The cursor.
+     * @param columns The column names.
+     * @return The column indexes, in column name order.
+     */
+    private static int[] getColumnIndexes(Cursor cursor, String[] columns) {
+        int[] indexes = new int[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            indexes[i] = cursor.getColumnIndex(columns[i]);
+        }
+        return indexes;
+    }
+
     /**
      * The projection map used to query the Data table for status update
      * information.
@@ -449,6 +865,28 @@ public class ContactDataMapper {
         Data.DATA11, Data.DATA12, Data.DATA13, Data.DATA14, Data.DATA15
     };
 
+    /**
+     * The mimetypes written by the roster sync.
+     */
+    private static final String[] ROSTER_MIMETYPES = new String[]{
+        XmppMetadata.MIMETYPE,
+        NicknameMetadata.MIMETYPE,
+        ImMetadata.MIMETYPE
+    };
+
+    /**
+     * Projection map used for metadata fetches of {@link #ROSTER_MIMETYPES},
+     * the columns used by {@link XmppMetadata} and {@link NicknameMetadata}
+     * (DATA1-3) and by {@link ImMetadata} (DATA1-3, DATA5-6, SYNC2-3).
+     */
+    private static final String[] ROSTER_DATA_PROJECTION_MAP = new String[]{
+        Data._ID,
+        Data.RAW_CONTACT_ID,
+        Data.MIMETYPE,
+        Data.SYNC2,  Data.SYNC3,
+        Data.DATA1,  Data.DATA2,  Data.DATA3,  Data.DATA5,  Data.DATA6
+    };
+
     /**
      * Projection map for raw contact sync fields.
      */
@@ -522,7 +960,9 @@ public class ContactDataMapper {
         }
         values.put(StatusUpdates.IM_ACCOUNT, statusUpdate.getImAccount());
         values.put(StatusUpdates.IM_HANDLE, statusUpdate.getImHandle());
-        values.put(StatusUpdates.STATUS, statusUpdate.getStatus());
+        if (statusUpdate.getStatus() != null) {
+            values.put(StatusUpdates.STATUS, statusUpdate.getStatus());
+        }
         values.put(StatusUpdates.PRESENCE, statusUpdate.getPresence().getValue());
         values.put(StatusUpdates.PROTOCOL, statusUpdate.getProtocol().getValue());
     }
@@ -550,36 +990,31 @@ public class ContactDataMapper {
     /**
      * Create a new raw contact for the current cursor.
      * @param cursor The DB cursor, scrolled to the row in question.
-     * @return
+     * @param columns The column indexes of
+     *                {@link #RAW_CONTACT_PROJECTION_MAP}.
+     * @return A new RawContact instance.
      */
-    private RawContact newRawContact(Cursor cursor) {
+    private RawContact newRawContact(Cursor cursor, int[] columns) {
         RawContact contact = new RawContact();
-        int index = cursor.getColumnIndex(RawContacts._ID);
-        contact.setID(cursor.getLong(index));
-
-        index = cursor.getColumnIndex(RawContacts.ACCOUNT_NAME);
-        contact.setAccountName(cursor.getString(index));
-
-        index = cursor.getColumnIndex(RawContacts.ACCOUNT_TYPE);
-        contact.setAccountType(cursor.getString(index));
-
-        index = cursor.getColumnIndex(RawContacts.SOURCE_ID);
-        contact.setSourceID(cursor.getString(index));
-
+        contact.setID(cursor.getLong(columns[0]));
+        contact.setAccountName(cursor.getString(columns[1]));
+        contact.setAccountType(cursor.getString(columns[2]));
+        contact.setSourceID(cursor.getString(columns[3]));
         for (int i = 0; i < RAW_CONTACTS_SYNC_FIELDS.length; i++) {
-            index = cursor.getColumnIndex(RAW_CONTACTS_SYNC_FIELDS[i]);
-            contact.setSync(i, cursor.getString(index));
+            contact.setSync(i, cursor.getString(columns[4 + i]));
         }
         return contact;
     }
 
     /**
      * Create a new Metadata instance based on the current db curser.
+     * Columns missing from the cursor are left empty.
      * @param cursor The current Db cursor, scrolled to the metadata in
      *               question.
+     * @param columns The column indexes of {@link #DATA_PROJECTION_MAP}.
      * @return A new Metadata instance.
      */
-    private Metadata newMetadata(Cursor cursor) {
+    private Metadata newMetadata(Cursor cursor, int[] columns) {
         /*
          * This method has high anti-pattern potential. Why?
          * It's cross-referencing the whole Metadata inheritance tree.
@@ -587,8 +1022,7 @@ public class ContactDataMapper {
          * TODO: Move to a factory.
          */
         Metadata metadata = null;
-        int index = cursor.getColumnIndex(Data.MIMETYPE);
-        String mimetype = cursor.getString(index);
+        String mimetype = cursor.getString(columns[2]);
         if (NicknameMetadata.MIMETYPE.equals(mimetype)) {
             metadata = new NicknameMetadata();
         }
@@ -603,25 +1037,28 @@ public class ContactDataMapper {
         }
         if (metadata == null) {
             metadata = new Metadata();
-            metadata.setMimetype(cursor.getString(index));
+            metadata.setMimetype(mimetype);
         }
 
-        index = cursor.getColumnIndex(Data._ID);
-        metadata.setID(cursor.getLong(index));
-
-        index = cursor.getColumnIndex(Data.RAW_CONTACT_ID);
-        metadata.setRawContactID(cursor.getLong(index));
+        metadata.setID(cursor.getLong(columns[0]));
+        metadata.setRawContactID(cursor.getLong(columns[1]));
 
         for (int i = 0; i < SYNC_FIELDS.length; i++) {
-            index = cursor.getColumnIndex(SYNC_FIELDS[i]);
-            metadata.setSync(i, cursor.getString(index));
+            int index = columns[3 + i];
+            if (index != -1) {
+                metadata.setSync(i, cursor.getString(index));
+            }
         }
         for (int i = 0; i < DATA_FIELDS.length; i++) {
-            index = cursor.getColumnIndex(DATA_FIELDS[i]);
-            metadata.setData(i, cursor.getString(index));
+            int index = columns[3 + SYNC_FIELDS.length + i];
+            if (index != -1) {
+                metadata.setData(i, cursor.getString(index));
+            }
+        }
+        int index = columns[columns.length - 1];
+        if (index != -1) {
+            metadata.setBlob(cursor.getBlob(index));
         }
-        index = cursor.getColumnIndex(Data.DATA15);
-        metadata.setBlob(cursor.getBlob(index));
 
         return metadata;
     }
@@ -48,26 +48,26 @@ import com.googlecode.asmack.contacts.StatusUpdate.Presence;
 
 /**
  * Stanza Broadcast Receiver listening for xmpp &lt;presence/&gt; updates.
+ * Updates are buffered by a {@link PresenceCoalescer}.
  */
 public class PresenceBroadcastReceiver implements StanzaListener {
 
     /**
-     * The data mapper used to load/save contacts and metadata.
+     * The write buffer of presence updates.
      */
-    private final ContactDataMapper mapper;
+    private final PresenceCoalescer coalescer;
 
     /**
-     * Create a new presence broadcast receiver with a given data mapper
-     * backend.
-     * @param mapper The data mapper backend of this broadcast receiver.
+     * Create a new presence broadcast receiver with a given write buffer.
+     * @param coalescer The write buffer of this broadcast receiver.
      */
-    public PresenceBroadcastReceiver(ContactDataMapper mapper) {
-        this.mapper = mapper;
+    public PresenceBroadcastReceiver(PresenceCoalescer coalescer) {
+        this.coalescer = coalescer;
     }
 
     /**
      * Receive a single stanza intent, check for xmpp &lt;presence/&gt; and
-     * store it to the database.
+     * queue it for storage.
      * @param Context The current application context.
      * @param intent The event Intent.
      */
@@ -78,33 +78,31 @@ public class PresenceBroadcastReceiver implements StanzaListener {
         }
         String accountJid = XMPPUtils.getBareJid(stanza.getVia());
         String jid = XMPPUtils.getBareJid(stanza.getAttribute("from").getValue());
-        StatusUpdate update = null;
         if (stanza.getAttribute("type") != null) {
             if ("unavailable".equals(stanza.getAttribute("type").getValue())) {
-                update = mapper.getStatusUpdate(accountJid, jid);
-                update.setPresence(Presence.OFFLINE);
-                mapper.persist(update);
+                coalescer.update(accountJid, jid, Presence.OFFLINE, null);
+                return;
             }
         }
         try {
-            update = mapper.getStatusUpdate(accountJid, jid);
-            update.setPresence(Presence.AVAILABLE);
+            Presence presence = Presence.AVAILABLE;
+            String statusText = null;
             Node node = stanza.getDocumentNode();
             Node show = XMLUtils.getFirstChild(node, null, "show");
             if (show != null) {
-                String presence = show.getTextContent();
-                if ("away".equals(presence)) {
-                    update.setPresence(Presence.AWAY);
+                String value = show.getTextContent();
+                if ("away".equals(value)) {
+                    presence = Presence.AWAY;
                 }
-                if ("dnd".equals(presence)) {
-                    update.setPresence(Presence.DO_NOT_DISTURB);
+                if ("dnd".equals(value)) {
+                    presence = Presence.DO_NOT_DISTURB;
                 }
             }
             Node status = XMLUtils.getFirstChild(node, null, "status");
             if (status != null) {
-                update.setStatus(status.getTextContent());
+                statusText = status.getTextContent();
             }
-            mapper.persist(update);
+            coalescer.update(accountJid, jid, presence, statusText);
         } catch (XmppMalformedException e) {
             e.printStackTrace();
         }
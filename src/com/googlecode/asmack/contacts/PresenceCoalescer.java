@@ -0,0 +1,201 @@
+package com.googlecode.asmack.contacts;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+
+import android.util.Log;
+
+import com.googlecode.asmack.contacts.StatusUpdate.Presence;
+import com.googlecode.asmack.util.TimingWheelScheduler;
+
+/**
+ * <p>Coalescing write buffer for inbound presence. Only the latest state of
+ * each (account, jid) pair is kept, the buffer is flushed
+ * {@value #FLUSH_DELAY}ms after the first pending update through a single
+ * batch of status update inserts.</p>
+ * <p>A login floods in a presence for every online contact, buffering keeps
+ * the provider round trips off the socket reader thread and collapses
+ * repeated updates of the same contact.</p>
+ */
+public class PresenceCoalescer {
+
+    /**
+     * Logging tag (PresenceCoalescer).
+     */
+    private static final String TAG = PresenceCoalescer.class.getSimpleName();
+
+    /**
+     * The scheduler key of the flush task.
+     */
+    private static final String KEY = "contacts/presence-flush";
+
+    /**
+     * Delay between the first pending update and the flush, 1s.
+     */
+    private static final long FLUSH_DELAY = 1000;
+
+    /**
+     * A pending presence state.
+     */
+    private static class Pending {
+
+        /**
+         * The account jid.
+         */
+        final String accountJid;
+
+        /**
+         * The contact jid.
+         */
+        final String jid;
+
+        /**
+         * The latest presence.
+         */
+        Presence presence;
+
+        /**
+         * The latest status message, or null to keep the stored one.
+         */
+        String status;
+
+        /**
+         * Create a new pending state.
+         * @param accountJid The account jid.
+         * @param jid The contact jid.
+         */
+        Pending(String accountJid, String jid) {
+            this.accountJid = accountJid;
+            this.jid = jid;
+        }
+
+    }
+
+    /**
+     * The data mapper used to load and store status updates.
+     */
+    private final ContactDataMapper mapper;
+
+    /**
+     * The scheduler running the flush.
+     */
+    private final TimingWheelScheduler scheduler;
+
+    /**
+     * Map of {account jid, jid} => {pending state}, in arrival order.
+     */
+    private LinkedHashMap<String, Pending> pending =
+                                        new LinkedHashMap<String, Pending>();
+
+    /**
+     * The flush task.
+     */
+    private final Runnable flush = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * Number of buffered updates.
+     */
+    private long updates = 0;
+
+    /**
+     * Number of updates replaced by a later update before the flush.
+     */
+    private long collapsed = 0;
+
+    /**
+     * Number of batches written.
+     */
+    private long batches = 0;
+
+    /**
+     * Create a new presence coalescer.
+     * @param mapper The data mapper used to load and store status updates.
+     * @param scheduler The scheduler running the flush.
+     */
+    public PresenceCoalescer(
+        ContactDataMapper mapper,
+        TimingWheelScheduler scheduler
+    ) {
+        this.mapper = mapper;
+        this.scheduler = scheduler;
+    }
+
+    /**
+     * Buffer a presence.
+     * @param accountJid The account jid.
+     * @param jid The bare contact jid.
+     * @param presence The presence.
+     * @param status The status message, or null to keep the current one.
+     */
+    public void update(
+        String accountJid,
+        String jid,
+        Presence presence,
+        String status
+    ) {
+        boolean schedule;
+        synchronized (this) {
+            String key = accountJid + '\u0000' + jid;
+            Pending state = pending.get(key);
+            if (state == null) {
+                state = new Pending(accountJid, jid);
+                pending.put(key, state);
+            } else {
+                collapsed++;
+            }
+            state.presence = presence;
+            if (status != null) {
+                state.status = status;
+            }
+            updates++;
+            schedule = pending.size() == 1;
+        }
+        if (schedule) {
+            scheduler.schedule(KEY, flush, FLUSH_DELAY, FLUSH_DELAY / 2);
+        }
+    }
+
+    /**
+     * Write all pending updates with a single batch.
+     */
+    public void flush() {
+        LinkedHashMap<String, Pending> states;
+        synchronized (this) {
+            if (pending.size() == 0) {
+                return;
+            }
+            states = pending;
+            pending = new LinkedHashMap<String, Pending>();
+            batches++;
+        }
+        ArrayList<StatusUpdate> statusUpdates =
+                                new ArrayList<StatusUpdate>(states.size());
+        for (Pending state: states.values()) {
+            StatusUpdate update =
+                        mapper.newStatusUpdate(state.accountJid, state.jid);
+            update.setPresence(state.presence);
+            if (state.status != null) {
+                update.setStatus(state.status);
+            }
+            statusUpdates.add(update);
+        }
+        Log.d(TAG, "Flushing " + statusUpdates.size() + " status updates");
+        mapper.persist(statusUpdates);
+    }
+
+    /**
+     * Human readable statistics.
+     * @return String The statistics.
+     */
+    @Override
+    public synchronized String toString() {
+        return "updates=" + updates + " collapsed=" + collapsed
+             + " batches=" + batches + " pending=" + pending.size();
+    }
+
+}
@@ -57,10 +57,15 @@ public class RawContact {
      */
     private String accountName;
 
+    /**
+     * The account type of raw contacts written by this library.
+     */
+    public static final String ACCOUNT_TYPE = "com.googlecode.asmack";
+
     /**
      * The account type.
      */
-    private String accountType = "com.googlecode.asmack";
+    private String accountType = ACCOUNT_TYPE;
 
     /**
      * The account source identifier, the remote jid.
@@ -0,0 +1,181 @@
+package com.googlecode.asmack.disco;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XmppIdentity;
+import com.googlecode.asmack.XmppMalformedException;
+import com.googlecode.asmack.connection.NamespaceMetrics;
+import com.googlecode.asmack.connection.StanzaListener;
+
+/**
+ * Stanza listener feeding the {@link EntityCapsCache} from caps presences
+ * and disco#info results.
+ */
+public class CapsReceiver implements StanzaListener {
+
+    /**
+     * The disco#info namespace.
+     */
+    private static final String DISCO_INFO =
+                                    "http://jabber.org/protocol/disco#info";
+
+    /**
+     * The data forms namespace.
+     */
+    private static final String DATA_FORMS = "jabber:x:data";
+
+    /**
+     * The xml namespace (xml:lang).
+     */
+    private static final String XML_NAMESPACE =
+                                    "http://www.w3.org/XML/1998/namespace";
+
+    /**
+     * The context used to open the disco database.
+     */
+    private final Context context;
+
+    /**
+     * Create a new caps receiver.
+     * @param context The context used to open the disco database.
+     */
+    public CapsReceiver(Context context) {
+        this.context = context;
+    }
+
+    /**
+     * Inspect caps presences and disco#info results.
+     * @param stanza The received stanza.
+     */
+    @Override
+    public void receive(Stanza stanza) {
+        String from = stanza.getAttributeValue("from");
+        String xml = stanza.getXml();
+        if (from == null || xml == null) {
+            return;
+        }
+        try {
+            if ("presence".equals(stanza.getName())) {
+                receivePresence(stanza, from, xml);
+            } else if ("iq".equals(stanza.getName()) &&
+                       "result".equals(stanza.getAttributeValue("type")) &&
+                       xml.indexOf(DISCO_INFO) != -1 &&
+                       DISCO_INFO.equals(
+                           NamespaceMetrics.getPayloadNamespace(stanza))) {
+                receiveInfo(stanza, from);
+            }
+        } catch (XmppMalformedException e) {
+            Log.w("XMPP/CAPS", "Malformed stanza from " + from, e);
+        }
+    }
+
+    /**
+     * Record the caps of a presence. The &lt;c/&gt; element is read from
+     * the raw xml, the dom is only built for unusual serializations
+     * (prefixed caps elements or entity references).
+     * @param stanza The presence stanza.
+     * @param from The sender jid.
+     * @param xml The stanza xml.
+     * @throws XmppMalformedException In case of an xml error.
+     */
+    private void receivePresence(Stanza stanza, String from, String xml)
+        throws XmppMalformedException
+    {
+        if ("unavailable".equals(stanza.getAttributeValue("type"))) {
+            EntityCapsCache.unavailable(context, from);
+            return;
+        }
+        if (xml.indexOf(EntityCapsCache.NAMESPACE) == -1) {
+            return;
+        }
+        String hash = null;
+        String ver = null;
+        for (String tag: XMLUtils.getChildTags(xml)) {
+            if ("c".equals(XMLUtils.getTagName(tag)) &&
+                EntityCapsCache.NAMESPACE.equals(
+                    XMLUtils.getAttributeValue(tag, "xmlns"))) {
+                hash = XMLUtils.getAttributeValue(tag, "hash");
+                ver = XMLUtils.getAttributeValue(tag, "ver");
+                break;
+            }
+        }
+        if (ver == null || ver.indexOf('&') != -1 ||
+            (hash != null && hash.indexOf('&') != -1)) {
+            Node caps = XMLUtils.getFirstChild(
+                stanza.getDocumentNode(), EntityCapsCache.NAMESPACE, "c");
+            if (caps == null) {
+                return;
+            }
+            Element element = (Element) caps;
+            hash = element.getAttribute("hash");
+            ver = element.getAttribute("ver");
+        }
+        // legacy caps without hash can't be verified
+        if (!"sha-1".equals(hash) || ver.length() == 0) {
+            return;
+        }
+        EntityCapsCache.presence(context, from, ver);
+    }
+
+    /**
+     * Record a disco#info result.
+     * @param stanza The iq result.
+     * @param from The sender jid.
+     * @throws XmppMalformedException In case of an xml error.
+     */
+    private void receiveInfo(Stanza stanza, String from)
+        throws XmppMalformedException
+    {
+        Node query = XMLUtils.getFirstChild(
+            stanza.getDocumentNode(), DISCO_INFO, "query");
+        if (query == null) {
+            return;
+        }
+        // extended info (XEP-0128) is not part of the cache
+        if (XMLUtils.hasChild(query, DATA_FORMS, "x")) {
+            return;
+        }
+        String node = ((Element) query).getAttribute("node");
+        ArrayList<XmppIdentity> identities = new ArrayList<XmppIdentity>();
+        ArrayList<String> features = new ArrayList<String>();
+        NodeList children = query.getChildNodes();
+        for (int i = 0, l = children.getLength(); i < l; i++) {
+            Node child = children.item(i);
+            if (XMLUtils.isInstance(child, DISCO_INFO, "identity")) {
+                Element identity = (Element) child;
+                String lang = identity.getAttributeNS(XML_NAMESPACE, "lang");
+                identities.add(new XmppIdentity(
+                    identity.getAttribute("category"),
+                    identity.getAttribute("type"),
+                    lang == null ? "" : lang,
+                    identity.getAttribute("name")
+                ));
+            } else if (XMLUtils.isInstance(child, DISCO_INFO, "feature")) {
+                features.add(((Element) child).getAttribute("var"));
+            }
+        }
+        XmppIdentity[] identityArray =
+                identities.toArray(new XmppIdentity[identities.size()]);
+        Arrays.sort(identityArray, FeatureStore.IDENTITY_ORDER);
+        String[] featureArray = features.toArray(new String[features.size()]);
+        Arrays.sort(featureArray);
+        EntityCapsCache.discoInfo(
+            context,
+            from,
+            node.length() == 0 ? null : node,
+            identityArray,
+            featureArray
+        );
+    }
+
+}
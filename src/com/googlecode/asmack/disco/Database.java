@@ -39,20 +39,23 @@ package com.googlecode.asmack.disco;
 
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
-import java.util.ArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
 
 import com.googlecode.asmack.XmppIdentity;
 
 import android.content.ContentValues;
 import android.content.Context;
-import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.database.sqlite.SQLiteDatabase.CursorFactory;
 import android.util.Base64;
 import android.util.Log;
 
 /**
- * Database helper to ensure that there is just one sqlite database.
+ * <p>Database helper to ensure that there is just one sqlite database.</p>
+ * <p>Features and identities are loaded into memory on first access and
+ * written through to sqlite in the background. Reads take no lock and run
+ * no query.</p>
  */
 public class Database {
 
@@ -61,6 +64,16 @@ public class Database {
      */
     private static SQLiteDatabase DATABASE = null;
 
+    /**
+     * The in-memory features and identities.
+     */
+    private static final FeatureStore STORE = new FeatureStore();
+
+    /**
+     * Background writer for the disco database.
+     */
+    static final Executor WRITER = Executors.newSingleThreadExecutor();
+
     /**
      * Retrieve a sqlite database instance, shared between all clients.
      * @param context The context to use for opening the database.
@@ -79,6 +92,42 @@ public class Database {
         return DATABASE;
     }
 
+    /**
+     * Retrieve the feature store, loading it on first use.
+     * @param context The context to use for opening the database.
+     * @param factory A cursor factory (may be null).
+     * @return The loaded feature store.
+     */
+    private static FeatureStore getStore(
+        Context context,
+        CursorFactory factory
+    ) {
+        if (!STORE.isLoaded()) {
+            synchronized (STORE) {
+                if (!STORE.isLoaded()) {
+                    STORE.load(getDatabase(context, factory));
+                }
+            }
+        }
+        return STORE;
+    }
+
+    /**
+     * Retrieve the merged features and identities of a jid. Views are
+     * replaced whenever a feature or identity is added.
+     * @param context The current context.
+     * @param jid The user jid.
+     * @param factory A cursor factory (may be null).
+     * @return The current view of the jid.
+     */
+    static FeatureStore.View getView(
+        Context context,
+        String jid,
+        CursorFactory factory
+    ) {
+        return getStore(context, factory).getView(jid);
+    }
+
     /**
      * Compute the entity capabilities as described in
      * <a href="http://xmpp.org/extensions/xep-0115.html#ver">
@@ -89,13 +138,29 @@ public class Database {
      * @param factory The cursor factory (can be null).
      * @return The base64 encoded sha-1 of the verification string.
      */
-    public static synchronized String computeVerificationHash(
+    public static String computeVerificationHash(
         Context context,
         String jid,
         CursorFactory factory
+    ) {
+        FeatureStore.View view = getStore(context, factory).getView(jid);
+        return computeVerificationHash(view.identities, view.features);
+    }
+
+    /**
+     * Compute the XEP-0115 verification string hash of a set of identities
+     * and features.
+     * @param identities The identities, sorted by category, type, lang and
+     *                   name.
+     * @param features The sorted features.
+     * @return The base64 encoded sha-1 of the verification string.
+     */
+    public static String computeVerificationHash(
+        XmppIdentity[] identities,
+        String[] features
     ) {
         StringBuilder sb = new StringBuilder();
-        for (XmppIdentity identity: getIdentities(context, jid, factory)) {
+        for (XmppIdentity identity: identities) {
             sb.append(identity.getCategory());
             sb.append('/');
             sb.append(identity.getType());
@@ -105,11 +170,10 @@ public class Database {
             sb.append(identity.getName());
             sb.append('<');
         }
-        for (String feature: getFeatures(context, jid, factory)) {
+        for (String feature: features) {
             sb.append(feature);
             sb.append('<');
         }
-        Log.d("XMPP/DISCO", "Feature string for " + jid + ": " + sb.toString());
         try {
             MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
             byte digest[] = sha1.digest(sb.toString().getBytes());
@@ -124,83 +188,35 @@ public class Database {
     }
 
     /**
-     * Retrieve a list of all features enabled on a given connection.
+     * Retrieve a list of all features enabled on a given connection. The
+     * returned array is shared and must not be modified.
      * @param context The current context.
      * @param jid The user jid.
      * @param factory A cursor factory (may be null).
      * @return An array of enabled features.
      */
-    public static synchronized String[] getFeatures(
+    public static String[] getFeatures(
         Context context,
         String jid,
         CursorFactory factory
     ) {
-        ArrayList<String> features = new ArrayList<String>();
-        SQLiteDatabase database = getDatabase(context, factory);
-        Cursor result = database.query(
-            true,
-            "feature",
-            new String[]{"ver"},
-            "(jid=? OR (jid IS NULL))",
-            new String[]{jid},
-            null, null, "ver ASC", null
-        );
-        features.ensureCapacity(result.getCount() + 1);
-        if (result.getCount() > 0) {
-            int verId = result.getColumnIndex("ver");
-            result.moveToFirst();
-            do {
-                features.add(result.getString(verId));
-                result.moveToNext();
-            } while (!result.isAfterLast());
-        }
-        result.close();
-        String output[] = new String[features.size()];
-        return features.toArray(output);
+        return getStore(context, factory).getView(jid).features;
     }
 
     /**
-     * Retrieve a list of all identities on a given connection.
+     * Retrieve a list of all identities on a given connection. The returned
+     * array is shared and must not be modified.
      * @param context The current context.
      * @param jid The user account jid.
      * @param factory A cursor factory (may be null).
-     * @return
+     * @return An array of identities.
      */
-    public static synchronized XmppIdentity[] getIdentities(
+    public static XmppIdentity[] getIdentities(
         Context context,
         String jid,
         CursorFactory factory
     ) {
-        ArrayList<XmppIdentity> identities = new ArrayList<XmppIdentity>();
-        SQLiteDatabase database = getDatabase(context, factory);
-        Cursor result = database.query(
-            true,
-            "identity",
-            new String[]{"category", "type", "lang", "name"},
-            "jid=? OR (jid IS NULL)", new String[]{jid},
-            null, null, 
-            "category ASC, type ASC, lang ASC, name ASC",
-            null
-        );
-        if (result.getCount() > 0) {
-            result.moveToFirst();
-            int categoryIndex = result.getColumnIndex("category");
-            int typeIndex = result.getColumnIndex("type");
-            int langIndex = result.getColumnIndex("lang");
-            int nameIndex = result.getColumnIndex("name");
-            do {
-                identities.add(new XmppIdentity(
-                    result.getString(categoryIndex),
-                    result.getString(typeIndex),
-                    result.getString(langIndex),
-                    result.getString(nameIndex)
-                ));
-                result.moveToNext();
-            } while (!result.isAfterLast());
-        }
-        result.close();
-        XmppIdentity output[] = new XmppIdentity[identities.size()];
-        return identities.toArray(output);
+        return getStore(context, factory).getView(jid).identities;
     }
 
     /**
@@ -210,7 +226,7 @@ public class Database {
      * @param factory A cursor factory (may be null).
      * @return True if the feature is globally enabled.
      */
-    public static synchronized boolean hasFeature(
+    public static boolean hasFeature(
         Context context,
         String feature,
         CursorFactory factory
@@ -226,36 +242,13 @@ public class Database {
      * @param factory A cursor factory (may be null).
      * @return True if the feature is available.
      */
-    public static synchronized boolean hasFeature(
+    public static boolean hasFeature(
         Context context,
         String feature,
         String jid,
         CursorFactory factory
     ) {
-        SQLiteDatabase database = getDatabase(context, factory);
-        boolean featureAvailable = false;
-        if (jid == null) {
-            Cursor result = database.query(
-                "feature",
-                new String[]{"_id"},
-                "(jid IS NULL) AND ver=?",
-                new String[]{feature},
-                null, null, null
-            );
-            featureAvailable = result.getCount() > 0;
-            result.close();
-        } else {
-            Cursor result = database.query(
-                "feature",
-                new String[]{"_id"},
-                "(jid=? OR (jid IS NULL)) AND ver=?",
-                new String[]{jid, feature},
-                null, null, null
-            );
-            featureAvailable = result.getCount() > 0;
-            result.close();
-        }
-        return featureAvailable;
+        return getStore(context, factory).hasFeature(feature, jid);
     }
 
     /**
@@ -264,7 +257,7 @@ public class Database {
      * @param feature The feature to enable.
      * @param factory A cursor factory (may be null).
      */
-    public static synchronized void enableFeature(
+    public static void enableFeature(
         Context context,
         String feature,
         CursorFactory factory
@@ -279,22 +272,26 @@ public class Database {
      * @param jid The account jid.
      * @param factory A cursor factory (may be null).
      */
-    public static synchronized void enableFeature(
-        Context context,
+    public static void enableFeature(
+        final Context context,
         String feature,
         String jid,
-        CursorFactory factory
+        final CursorFactory factory
     ) {
-        if (hasFeature(context, feature, jid, factory)) {
+        if (!getStore(context, factory).addFeature(feature, jid)) {
             return;
         }
-        SQLiteDatabase database = getDatabase(context, factory);
-        ContentValues values = new ContentValues();
+        final ContentValues values = new ContentValues();
         if (jid != null) {
             values.put("jid", jid);
         }
         values.put("ver", feature);
-        database.insert("feature", "_id", values);
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                getDatabase(context, factory).insert("feature", "_id", values);
+            }
+        });
     }
 
     /**
@@ -304,7 +301,7 @@ public class Database {
      * @param factory A cursor factory (may be null).
      * @return True if the identity is available.
      */
-    public static synchronized boolean hasIdentity(
+    public static boolean hasIdentity(
         Context context,
         XmppIdentity identity,
         CursorFactory factory
@@ -320,29 +317,13 @@ public class Database {
      * @param factory A cursor factory (may be null).
      * @return True if the identity is available.
      */
-    public static synchronized boolean hasIdentity(
+    public static boolean hasIdentity(
         Context context,
         XmppIdentity identity,
         String jid,
         CursorFactory factory
     ) {
-        SQLiteDatabase database = getDatabase(context, factory);
-        Cursor result = database.query(
-            "feature",
-            new String[]{"_id"},
-            "(jid=? OR (jid IS NULL)) AND " +
-            "category=? AND type=? AND lang=? AND name=?",
-            new String[]{
-                jid,
-                identity.getCategory(),
-                identity.getType(),
-                identity.getLang(),
-                identity.getName()},
-            null, null, null
-        );
-        boolean identityAvailable = result.getCount() > 0;
-        result.close();
-        return identityAvailable;
+        return getStore(context, factory).hasIdentity(identity, jid);
     }
 
     /**
@@ -352,17 +333,16 @@ public class Database {
      * @param jid The account jid.
      * @param factory A cursor factory (may be null).
      */
-    public static synchronized void addIdentity(
-        Context context,
+    public static void addIdentity(
+        final Context context,
         String jid,
         XmppIdentity identity,
-        CursorFactory factory
+        final CursorFactory factory
     ) {
-        if (hasIdentity(context, identity, jid, factory)) {
+        if (!getStore(context, factory).addIdentity(identity, jid)) {
             return;
         }
-        SQLiteDatabase database = getDatabase(context, factory);
-        ContentValues values = new ContentValues();
+        final ContentValues values = new ContentValues();
         if (jid != null) {
             values.put("jid", jid);
         }
@@ -370,7 +350,12 @@ public class Database {
         values.put("type", identity.getType());
         values.put("lang", identity.getLang());
         values.put("name", identity.getName());
-        database.insert("identity", "_id", values);
+        WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                getDatabase(context, factory).insert("identity", "_id", values);
+            }
+        });
     }
 
     /**
@@ -379,7 +364,7 @@ public class Database {
      * @param identity The xmpp identity.
      * @param factory A cursor factory (may be null).
      */
-    public static synchronized void addIdentity(
+    public static void addIdentity(
             Context context,
             XmppIdentity identity,
             CursorFactory factory
@@ -58,7 +58,7 @@ public class DatabaseOpenHelper extends SQLiteOpenHelper {
     /**
      * Current minor database version.
      */
-    private final static short MINOR = 0;
+    private final static short MINOR = 2;
 
     /**
      * Combined version ((MAJOR &lt;&lt; 16) + MINOR).
@@ -105,6 +105,7 @@ public class DatabaseOpenHelper extends SQLiteOpenHelper {
         );
         db.execSQL("CREATE INDEX lookup_feature ON feature(" +
                    "ver ASC, _id ASC)");
+        createCapsTables(db);
 
         // insert a default identity
         ContentValues values = new ContentValues();
@@ -122,6 +123,59 @@ public class DatabaseOpenHelper extends SQLiteOpenHelper {
         db.insert("feature", "_id", values);
     }
 
+    /**
+     * Create the entity capabilities cache of remote entities (minor
+     * version 1). Identities and features are stored by verification
+     * string, entities map a jid to its last known verification string.
+     * @param db The database to initialize.
+     */
+    private void createCapsTables(SQLiteDatabase db) {
+        db.execSQL(
+            "CREATE TABLE caps_identity(" +
+                "_id INTEGER," +
+                "ver TEXT NOT NULL," +
+                "category TEXT NOT NULL," +
+                "type TEXT NOT NULL," +
+                "lang TEXT NOT NULL DEFAULT ''," +
+                "name TEXT NOT NULL DEFAULT ''," +
+                "PRIMARY KEY(_id)" +
+            ")"
+        );
+        db.execSQL("CREATE INDEX lookup_caps_identity ON caps_identity(" +
+                   "ver ASC)");
+        db.execSQL(
+            "CREATE TABLE caps_feature(" +
+                "_id INTEGER," +
+                "ver TEXT NOT NULL," +
+                "var TEXT NOT NULL," +
+                "PRIMARY KEY(_id)" +
+            ")"
+        );
+        db.execSQL("CREATE INDEX lookup_caps_feature ON caps_feature(" +
+                   "ver ASC)");
+        db.execSQL(
+            "CREATE TABLE caps_entity(" +
+                "jid TEXT NOT NULL," +
+                "ver TEXT NOT NULL," +
+                "updated INTEGER NOT NULL," +
+                "PRIMARY KEY(jid)" +
+            ")"
+        );
+        createCapsEntityIndex(db);
+    }
+
+    /**
+     * Create the caps_entity indexes used to purge the caps tables (minor
+     * version 2).
+     * @param db The database to initialize.
+     */
+    private void createCapsEntityIndex(SQLiteDatabase db) {
+        db.execSQL("CREATE INDEX purge_caps_entity ON caps_entity(" +
+                   "updated ASC)");
+        db.execSQL("CREATE INDEX lookup_caps_entity ON caps_entity(" +
+                   "ver ASC)");
+    }
+
     /**
      * Called when there is a database update.
      * @param db The database in need of an update.
@@ -136,9 +190,19 @@ public class DatabaseOpenHelper extends SQLiteOpenHelper {
         if (oldMajor != newMajor) {
             db.execSQL("DROP TABLE feature");
             db.execSQL("DROP TABLE identity");
+            db.execSQL("DROP TABLE IF EXISTS caps_identity");
+            db.execSQL("DROP TABLE IF EXISTS caps_feature");
+            db.execSQL("DROP TABLE IF EXISTS caps_entity");
             onCreate(db);
             return;
         }
+
+        int oldMinor = oldVersion & 0xffff;
+        if (oldMinor < 1) {
+            createCapsTables(db);
+        } else if (oldMinor < 2) {
+            createCapsEntityIndex(db);
+        }
     }
 
 }
@@ -19,10 +19,26 @@ import com.googlecode.asmack.connection.StanzaListener;
 import com.googlecode.asmack.connection.XmppTransportService;
 
 /**
- * A broadcast receiver that handles service discovery.
+ * <p>A broadcast receiver that handles service discovery.</p>
+ * <p>Requests are matched on the raw stanza xml, prefixed payloads fall back
+ * to a namespace aware lookup on the dom. The reply query is rendered
+ * once per account and disco node and kept until a feature or identity is
+ * added, only the iq envelope is built per request.</p>
  */
 public class DiscoReceiver implements StanzaListener {
 
+    /**
+     * The disco#info namespace.
+     */
+    private static final String DISCO_INFO =
+                                    "http://jabber.org/protocol/disco#info";
+
+    /**
+     * Maximum number of cached disco nodes per account. Nodes are chosen by
+     * the requester, so the cache must not grow without bound.
+     */
+    private static final int MAX_CACHED_NODES = 16;
+
     protected final Context context;
     protected final XmppTransportService service;
 
@@ -53,74 +69,47 @@ public class DiscoReceiver implements StanzaListener {
         if (id == null || from == null || to == null) {
             return;
         }
+        String xml = stanza.getXml();
+        if (xml == null || xml.indexOf(DISCO_INFO) == -1) {
+            return;
+        }
 
         try {
-            Node node = stanza.getDocumentNode();
-            Node query = XMLUtils.getFirstChild(
-                node,
-                "http://jabber.org/protocol/disco#info",
-                "query");
-            if (query == null || !query.hasAttributes()) {
-                return;
-            }
-            Node discoAttributeNode =
-                        query.getAttributes().getNamedItem("node");
-            String discoNode = null;
-            if (discoAttributeNode != null) {
-                discoNode = discoAttributeNode.getTextContent();
+            String discoNode;
+            String tag = XMLUtils.getFirstChildTag(xml);
+            if (isUnprefixedQuery(tag) &&
+                DISCO_INFO.equals(XMLUtils.getAttributeValue(tag, "xmlns"))) {
+                discoNode = XMLUtils.getAttributeValue(tag, "node");
+                if (discoNode != null && discoNode.indexOf('&') != -1) {
+                    // entity references, let the dom parser decode the value
+                    discoNode = getDiscoNode(getQuery(stanza));
+                }
+            } else {
+                // prefixed or otherwise unusual payload, namespace aware
+                // lookup on the dom
+                Node query = getQuery(stanza);
+                if (query == null) {
+                    return;
+                }
+                discoNode = getDiscoNode(query);
             }
 
             // we got a disco, reply
-            StringBuilder payload = new StringBuilder("<iq type='result'");
+            String myJid = XMPPUtils.getBareJid(to.getValue());
+            String query = getInfoQuery(myJid, discoNode);
+            StringBuilder payload = new StringBuilder(query.length() + 128);
+            payload.append("<iq type='result'");
             payload.append(" from='");
             payload.append(XMLUtils.xmlEscape(to.getValue()));
             payload.append("' to='");
             payload.append(XMLUtils.xmlEscape(from.getValue()));
             payload.append("'>");
-            payload.append("<query xmlns='");
-            payload.append("http://jabber.org/protocol/disco#info");
-            if (discoNode != null) {
-                payload.append("' node='");
-                payload.append(XMLUtils.xmlEscape(discoNode));
-            }
-            payload.append("'>");
-
-            String myJid = XMPPUtils.getBareJid(to.getValue());
-            for (XmppIdentity identity :
-                Database.getIdentities(context, myJid, null)) {
-                payload.append("<identity");
-                if (identity.getCategory().length() > 0) {
-                    payload.append(" category='");
-                    payload.append(XMLUtils.xmlEscape(identity.getCategory()));
-                    payload.append('\'');
-                }
-                if (identity.getType().length() > 0) {
-                    payload.append(" type='");
-                    payload.append(XMLUtils.xmlEscape(identity.getType()));
-                    payload.append('\'');
-                }
-                if (identity.getLang().length() > 0) {
-                    payload.append(" lang='");
-                    payload.append(XMLUtils.xmlEscape(identity.getLang()));
-                    payload.append('\'');
-                }
-                if (identity.getName().length() > 0) {
-                    payload.append(" name='");
-                    payload.append(XMLUtils.xmlEscape(identity.getName()));
-                    payload.append('\'');
-                }
-                payload.append("/>");
-            }
-            for (String feature : Database.getFeatures(context, myJid, null)) {
-                payload.append("<feature var='");
-                payload.append(XMLUtils.xmlEscape(feature));
-                payload.append("'/>");
-            }
-            payload.append("</query></iq>");
+            payload.append(query);
+            payload.append("</iq>");
             Stanza discoReply = new Stanza(
                 "iq",
                 "",
-                XMPPUtils.getBareJid(to.getValue()),
+                myJid,
                 payload.toString(),
                 Arrays.asList(new Attribute[]{id})
             );
@@ -131,4 +120,101 @@ public class DiscoReceiver implements StanzaListener {
         }
     }
 
+    /**
+     * Retrieve the disco#info query element of an account, rendering it on
+     * first use.
+     * @param jid The bare account jid.
+     * @param discoNode The requested disco node, or null.
+     * @return The &lt;query/&gt; element.
+     */
+    private String getInfoQuery(String jid, String discoNode) {
+        FeatureStore.View view = Database.getView(context, jid, null);
+        String key = discoNode == null ? "" : "#" + discoNode;
+        String query = view.infoQueries.get(key);
+        if (query != null) {
+            return query;
+        }
+        StringBuilder payload = new StringBuilder();
+        payload.append("<query xmlns='");
+        payload.append(DISCO_INFO);
+        if (discoNode != null) {
+            payload.append("' node='");
+            payload.append(XMLUtils.xmlEscape(discoNode));
+        }
+        payload.append("'>");
+        for (XmppIdentity identity : view.identities) {
+            payload.append("<identity");
+            if (identity.getCategory().length() > 0) {
+                payload.append(" category='");
+                payload.append(XMLUtils.xmlEscape(identity.getCategory()));
+                payload.append('\'');
+            }
+            if (identity.getType().length() > 0) {
+                payload.append(" type='");
+                payload.append(XMLUtils.xmlEscape(identity.getType()));
+                payload.append('\'');
+            }
+            if (identity.getLang().length() > 0) {
+                payload.append(" lang='");
+                payload.append(XMLUtils.xmlEscape(identity.getLang()));
+                payload.append('\'');
+            }
+            if (identity.getName().length() > 0) {
+                payload.append(" name='");
+                payload.append(XMLUtils.xmlEscape(identity.getName()));
+                payload.append('\'');
+            }
+            payload.append("/>");
+        }
+        for (String feature : view.features) {
+            payload.append("<feature var='");
+            payload.append(XMLUtils.xmlEscape(feature));
+            payload.append("'/>");
+        }
+        payload.append("</query>");
+        query = payload.toString();
+        if (view.infoQueries.size() < MAX_CACHED_NODES) {
+            view.infoQueries.put(key, query);
+        }
+        return query;
+    }
+
+    /**
+     * Retrieve the disco#info query element of a request.
+     * @param stanza The request stanza.
+     * @return The query element, or null.
+     * @throws XmppMalformedException In case of an xml error.
+     */
+    private static Node getQuery(Stanza stanza)
+        throws XmppMalformedException
+    {
+        return XMLUtils.getFirstChild(
+            stanza.getDocumentNode(), DISCO_INFO, "query");
+    }
+
+    /**
+     * Retrieve the decoded node attribute of a query element.
+     * @param query The query element, or null.
+     * @return The disco node, or null.
+     */
+    private static String getDiscoNode(Node query) {
+        if (query == null || !query.hasAttributes()) {
+            return null;
+        }
+        Node discoAttributeNode = query.getAttributes().getNamedItem("node");
+        if (discoAttributeNode == null) {
+            return null;
+        }
+        return discoAttributeNode.getTextContent();
+    }
+
+    /**
+     * Check if a start tag is an unprefixed &lt;query&gt; element.
+     * @param tag The start tag, or null.
+     * @return True for an unprefixed query start tag.
+     */
+    private static boolean isUnprefixedQuery(String tag) {
+        return "query".equals(XMLUtils.getTagName(tag));
+    }
+
 }
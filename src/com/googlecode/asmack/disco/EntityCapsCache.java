@@ -0,0 +1,555 @@
+package com.googlecode.asmack.disco;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.util.Log;
+
+import com.googlecode.asmack.XmppIdentity;
+
+/**
+ * <p>Persistent entity capabilities (XEP-0115) cache of remote entities.</p>
+ * <p>Identities and features are stored by verification string. A
+ * disco#info result is accepted under a verification string only if it
+ * hashes to that string, so a cached entry never has to be refreshed.
+ * Entities are mapped to verification strings by their caps presence, or
+ * by the hash of their last disco#info result (entities without presence,
+ * e.g. server components). The latter mapping expires after
+ * {@value #ENTITY_TTL}ms.</p>
+ * <p>Both memory maps are bounded LRU maps. The persistent entity mappings
+ * are dropped when an entity goes offline and purged after
+ * {@value #ENTITY_RETENTION}ms or beyond {@value #MAX_ENTITY_ROWS} rows,
+ * verification strings no longer referenced by any entity are purged with
+ * them.</p>
+ * <p>Callers should consult {@link #getIdentities(Context, String)} or
+ * {@link #getFeatures(Context, String)} before sending a disco#info
+ * request.</p>
+ */
+public class EntityCapsCache {
+
+    /**
+     * The entity capabilities namespace.
+     */
+    public static final String NAMESPACE = "http://jabber.org/protocol/caps";
+
+    /**
+     * Logging tag (EntityCapsCache).
+     */
+    private static final String TAG = EntityCapsCache.class.getSimpleName();
+
+    /**
+     * Lifetime of an entity mapping without caps presence, 24h.
+     */
+    private static final long ENTITY_TTL = 24 * 60 * 60 * 1000;
+
+    /**
+     * Lifetime of a persistent entity mapping, 7 days.
+     */
+    private static final long ENTITY_RETENTION = 7 * 24 * 60 * 60 * 1000L;
+
+    /**
+     * Maximum number of persistent entity mappings.
+     */
+    private static final int MAX_ENTITY_ROWS = 1024;
+
+    /**
+     * Minimum time between two purges of the caps tables, 1h.
+     */
+    private static final long PURGE_INTERVAL = 60 * 60 * 1000;
+
+    /**
+     * Maximum number of verification strings kept in memory.
+     */
+    private static final int MAX_ENTRIES = 128;
+
+    /**
+     * Maximum number of entity mappings kept in memory.
+     */
+    private static final int MAX_ENTITIES = 512;
+
+    /**
+     * The identities and features of a verification string.
+     */
+    private static class Entry {
+
+        /**
+         * The sorted identities.
+         */
+        final XmppIdentity[] identities;
+
+        /**
+         * The sorted features.
+         */
+        final String[] features;
+
+        /**
+         * Create a new entry.
+         * @param identities The sorted identities.
+         * @param features The sorted features.
+         */
+        Entry(XmppIdentity[] identities, String[] features) {
+            this.identities = identities;
+            this.features = features;
+        }
+
+    }
+
+    /**
+     * A jid to verification string mapping.
+     */
+    private static class Entity {
+
+        /**
+         * The verification string.
+         */
+        final String ver;
+
+        /**
+         * True if the mapping was announced by caps presence.
+         */
+        final boolean announced;
+
+        /**
+         * The time the mapping was learned.
+         */
+        final long updated;
+
+        /**
+         * Create a new entity mapping.
+         * @param ver The verification string.
+         * @param announced True if announced by caps presence.
+         * @param updated The time the mapping was learned.
+         */
+        Entity(String ver, boolean announced, long updated) {
+            this.ver = ver;
+            this.announced = announced;
+            this.updated = updated;
+        }
+
+    }
+
+    /**
+     * LRU map of {ver} => {entry}, a memory cache of the caps tables.
+     */
+    private static final LinkedHashMap<String, Entry> entries =
+                new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+
+    };
+
+    /**
+     * LRU map of {full jid} => {entity}, a memory cache of caps_entity.
+     */
+    private static final LinkedHashMap<String, Entity> entities =
+                new LinkedHashMap<String, Entity>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entity> eldest) {
+            return size() > MAX_ENTITIES;
+        }
+
+    };
+
+    /**
+     * Time of the last purge of the caps tables, only accessed by the
+     * database writer.
+     */
+    private static long lastPurge = 0;
+
+    /**
+     * Number of lookups answered from the cache.
+     */
+    private static long hits = 0;
+
+    /**
+     * Number of lookups that required a disco#info request.
+     */
+    private static long misses = 0;
+
+    /**
+     * Retrieve the disco database.
+     * @param context The current context.
+     * @return The disco database.
+     */
+    private static SQLiteDatabase getDatabase(Context context) {
+        return Database.getDatabase(context, null);
+    }
+
+    /**
+     * Retrieve the entry of a verification string, loading it on demand.
+     * @param context The current context.
+     * @param ver The verification string.
+     * @return The entry or null.
+     */
+    private static Entry getEntry(Context context, String ver) {
+        synchronized (entries) {
+            Entry entry = entries.get(ver);
+            if (entry != null) {
+                return entry;
+            }
+        }
+        SQLiteDatabase database = getDatabase(context);
+        ArrayList<String> features = new ArrayList<String>();
+        Cursor result = database.query(
+            "caps_feature", new String[]{"var"}, "ver=?", new String[]{ver},
+            null, null, "var ASC"
+        );
+        try {
+            int varIndex = result.getColumnIndex("var");
+            while (result.moveToNext()) {
+                features.add(result.getString(varIndex));
+            }
+        } finally {
+            result.close();
+        }
+        ArrayList<XmppIdentity> identities = new ArrayList<XmppIdentity>();
+        result = database.query(
+            "caps_identity", new String[]{"category", "type", "lang", "name"},
+            "ver=?", new String[]{ver},
+            null, null, "category ASC, type ASC, lang ASC, name ASC"
+        );
+        try {
+            int categoryIndex = result.getColumnIndex("category");
+            int typeIndex = result.getColumnIndex("type");
+            int langIndex = result.getColumnIndex("lang");
+            int nameIndex = result.getColumnIndex("name");
+            while (result.moveToNext()) {
+                identities.add(new XmppIdentity(
+                    result.getString(categoryIndex),
+                    result.getString(typeIndex),
+                    result.getString(langIndex),
+                    result.getString(nameIndex)
+                ));
+            }
+        } finally {
+            result.close();
+        }
+        if (identities.size() == 0 && features.size() == 0) {
+            return null;
+        }
+        Entry entry = new Entry(
+            identities.toArray(new XmppIdentity[identities.size()]),
+            features.toArray(new String[features.size()])
+        );
+        synchronized (entries) {
+            entries.put(ver, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Retrieve the current verification string of an entity.
+     * @param context The current context.
+     * @param jid The entity jid.
+     * @return The verification string, or null if unknown or expired.
+     */
+    private static String getVer(Context context, String jid) {
+        Entity entity;
+        synchronized (entities) {
+            entity = entities.get(jid);
+        }
+        if (entity == null) {
+            Cursor result = getDatabase(context).query(
+                "caps_entity", new String[]{"ver", "updated"},
+                "jid=?", new String[]{jid}, null, null, null
+            );
+            try {
+                if (result.moveToFirst()) {
+                    entity = new Entity(
+                        result.getString(result.getColumnIndex("ver")),
+                        false,
+                        result.getLong(result.getColumnIndex("updated"))
+                    );
+                }
+            } finally {
+                result.close();
+            }
+            if (entity == null) {
+                return null;
+            }
+            synchronized (entities) {
+                if (!entities.containsKey(jid)) {
+                    entities.put(jid, entity);
+                }
+            }
+        }
+        if (!entity.announced &&
+            System.currentTimeMillis() - entity.updated > ENTITY_TTL) {
+            return null;
+        }
+        return entity.ver;
+    }
+
+    /**
+     * Look up the entry of an entity and count the hit or miss.
+     * @param context The current context.
+     * @param jid The entity jid.
+     * @return The entry, or null if a disco#info request is needed.
+     */
+    private static Entry lookup(Context context, String jid) {
+        String ver = getVer(context, jid);
+        Entry entry = ver == null ? null : getEntry(context, ver);
+        synchronized (entries) {
+            if (entry == null) {
+                misses++;
+            } else {
+                hits++;
+            }
+        }
+        return entry;
+    }
+
+    /**
+     * Retrieve the cached identities of an entity. The returned array is
+     * shared and must not be modified.
+     * @param context The current context.
+     * @param jid The entity jid.
+     * @return The sorted identities, or null if unknown.
+     */
+    public static XmppIdentity[] getIdentities(Context context, String jid) {
+        Entry entry = lookup(context, jid);
+        return entry == null ? null : entry.identities;
+    }
+
+    /**
+     * Retrieve the cached features of an entity. The returned array is
+     * shared and must not be modified.
+     * @param context The current context.
+     * @param jid The entity jid.
+     * @return The sorted features, or null if unknown.
+     */
+    public static String[] getFeatures(Context context, String jid) {
+        Entry entry = lookup(context, jid);
+        return entry == null ? null : entry.features;
+    }
+
+    /**
+     * Check if the identities and features of a verification string are
+     * known.
+     * @param context The current context.
+     * @param ver The verification string.
+     * @return True if cached.
+     */
+    public static boolean isKnown(Context context, String ver) {
+        return getEntry(context, ver) != null;
+    }
+
+    /**
+     * Record a caps presence.
+     * @param context The current context.
+     * @param jid The full jid of the entity.
+     * @param ver The announced verification string.
+     */
+    public static void presence(Context context, String jid, String ver) {
+        synchronized (entities) {
+            Entity entity = entities.get(jid);
+            if (entity != null && entity.announced && ver.equals(entity.ver)) {
+                return;
+            }
+            entities.put(jid, new Entity(ver, true,
+                                         System.currentTimeMillis()));
+        }
+        storeEntity(context, jid, ver);
+    }
+
+    /**
+     * Record an entity going offline. The mapping is dropped from memory
+     * and from the database, the entity announces its caps again with its
+     * next presence.
+     * @param context The current context.
+     * @param jid The full jid of the entity.
+     */
+    public static void unavailable(final Context context, final String jid) {
+        synchronized (entities) {
+            entities.remove(jid);
+        }
+        Database.WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                getDatabase(context).delete(
+                    "caps_entity", "jid=?", new String[]{jid});
+            }
+        });
+    }
+
+    /**
+     * Record a disco#info result. The result is stored under the
+     * verification string of a "node#ver" request or of the caps presence
+     * of the entity if it hashes to that string. Results of plain requests
+     * are additionally stored under their own hash and mapped to the
+     * entity. Results of other nodes are ignored.
+     * @param context The current context.
+     * @param jid The entity jid.
+     * @param node The disco node of the result, or null.
+     * @param identities The sorted identities.
+     * @param features The sorted features.
+     */
+    public static void discoInfo(
+        Context context,
+        String jid,
+        String node,
+        XmppIdentity[] identities,
+        String[] features
+    ) {
+        String hash = Database.computeVerificationHash(identities, features);
+        String expected = null;
+        if (node != null) {
+            int index = node.lastIndexOf('#');
+            if (index == -1) {
+                return;
+            }
+            expected = node.substring(index + 1);
+        } else {
+            synchronized (entities) {
+                Entity entity = entities.get(jid);
+                if (entity != null && entity.announced) {
+                    expected = entity.ver;
+                }
+            }
+        }
+        if (expected != null && !expected.equals(hash)) {
+            Log.d(TAG, "Verification failed for " + jid + " " + expected);
+            return;
+        }
+        storeEntry(context, hash, identities, features);
+        if (node == null && expected == null) {
+            synchronized (entities) {
+                entities.put(jid, new Entity(hash, false,
+                                             System.currentTimeMillis()));
+            }
+            storeEntity(context, jid, hash);
+        }
+    }
+
+    /**
+     * Store the identities and features of a verification string.
+     * @param context The current context.
+     * @param ver The verification string.
+     * @param identities The sorted identities.
+     * @param features The sorted features.
+     */
+    private static void storeEntry(
+        final Context context,
+        final String ver,
+        final XmppIdentity[] identities,
+        final String[] features
+    ) {
+        synchronized (entries) {
+            if (entries.containsKey(ver)) {
+                return;
+            }
+            entries.put(ver, new Entry(identities, features));
+        }
+        Database.WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase database = getDatabase(context);
+                database.beginTransaction();
+                try {
+                    String[] args = new String[]{ver};
+                    database.delete("caps_identity", "ver=?", args);
+                    database.delete("caps_feature", "ver=?", args);
+                    ContentValues values = new ContentValues();
+                    for (XmppIdentity identity: identities) {
+                        values.clear();
+                        values.put("ver", ver);
+                        values.put("category", identity.getCategory());
+                        values.put("type", identity.getType());
+                        values.put("lang", identity.getLang());
+                        values.put("name", identity.getName());
+                        database.insert("caps_identity", "_id", values);
+                    }
+                    for (String feature: features) {
+                        values.clear();
+                        values.put("ver", ver);
+                        values.put("var", feature);
+                        database.insert("caps_feature", "_id", values);
+                    }
+                    database.setTransactionSuccessful();
+                } finally {
+                    database.endTransaction();
+                }
+            }
+        });
+    }
+
+    /**
+     * Store an entity mapping.
+     * @param context The current context.
+     * @param jid The entity jid.
+     * @param ver The verification string.
+     */
+    private static void storeEntity(
+        final Context context,
+        String jid,
+        String ver
+    ) {
+        final ContentValues values = new ContentValues();
+        values.put("jid", jid);
+        values.put("ver", ver);
+        values.put("updated", System.currentTimeMillis());
+        Database.WRITER.execute(new Runnable() {
+            @Override
+            public void run() {
+                SQLiteDatabase database = getDatabase(context);
+                database.replace("caps_entity", null, values);
+                purge(database);
+            }
+        });
+    }
+
+    /**
+     * Purge expired and surplus entity mappings and the verification
+     * strings no longer referenced by any entity. Runs at most once per
+     * {@value #PURGE_INTERVAL}ms, must be called on the database writer.
+     * @param database The disco database.
+     */
+    private static void purge(SQLiteDatabase database) {
+        long now = System.currentTimeMillis();
+        if (now - lastPurge < PURGE_INTERVAL) {
+            return;
+        }
+        lastPurge = now;
+        database.beginTransaction();
+        try {
+            database.delete("caps_entity", "updated<?", new String[]{
+                Long.toString(now - ENTITY_RETENTION)
+            });
+            database.execSQL("DELETE FROM caps_entity WHERE jid NOT IN (" +
+                "SELECT jid FROM caps_entity ORDER BY updated DESC LIMIT " +
+                MAX_ENTITY_ROWS + ")");
+            database.execSQL("DELETE FROM caps_identity WHERE ver NOT IN (" +
+                "SELECT ver FROM caps_entity)");
+            database.execSQL("DELETE FROM caps_feature WHERE ver NOT IN (" +
+                "SELECT ver FROM caps_entity)");
+            database.setTransactionSuccessful();
+        } finally {
+            database.endTransaction();
+        }
+    }
+
+    /**
+     * Human readable statistics.
+     * @return The hit/miss statistics.
+     */
+    public static String getStats() {
+        synchronized (entries) {
+            return "hits=" + hits + " misses=" + misses
+                 + " cached=" + entries.size();
+        }
+    }
+
+}
@@ -0,0 +1,377 @@
+package com.googlecode.asmack.disco;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentHashMap;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+
+import com.googlecode.asmack.XmppIdentity;
+
+/**
+ * <p>In-memory model of all features and identities, loaded once from the
+ * disco database.</p>
+ * <p>The model is immutable and replaced on every change, so reads never
+ * take a lock. The merged (global + account) view of each jid is computed
+ * on first use and kept until the next change, together with anything
+ * derived from it. Arrays handed out are shared and must not be
+ * modified.</p>
+ */
+class FeatureStore {
+
+    /**
+     * Map key of features and identities enabled for all accounts.
+     */
+    private static final String GLOBAL = "";
+
+    /**
+     * Identity order of the verification string (XEP-0115, 5.1): category,
+     * type, lang, name. Missing values sort first, like sqlite NULLs.
+     */
+    static final Comparator<XmppIdentity> IDENTITY_ORDER =
+        new Comparator<XmppIdentity>() {
+            @Override
+            public int compare(XmppIdentity a, XmppIdentity b) {
+                int result = compare(a.getCategory(), b.getCategory());
+                if (result == 0) {
+                    result = compare(a.getType(), b.getType());
+                }
+                if (result == 0) {
+                    result = compare(a.getLang(), b.getLang());
+                }
+                if (result == 0) {
+                    result = compare(a.getName(), b.getName());
+                }
+                return result;
+            }
+            private int compare(String a, String b) {
+                if (a == null) {
+                    return b == null ? 0 : -1;
+                }
+                return b == null ? 1 : a.compareTo(b);
+            }
+        };
+
+    /**
+     * The merged features and identities of a single jid.
+     */
+    static class View {
+
+        /**
+         * The sorted features.
+         */
+        final String[] features;
+
+        /**
+         * The sorted identities.
+         */
+        final XmppIdentity[] identities;
+
+        /**
+         * Map of {disco node} => {rendered disco#info query}, filled by the
+         * disco receiver and dropped together with the view.
+         */
+        final ConcurrentHashMap<String, String> infoQueries =
+                                    new ConcurrentHashMap<String, String>();
+
+        /**
+         * Create a new view.
+         * @param features The sorted features.
+         * @param identities The sorted identities.
+         */
+        View(String[] features, XmppIdentity[] identities) {
+            this.features = features;
+            this.identities = identities;
+        }
+
+    }
+
+    /**
+     * Immutable snapshot of all features and identities.
+     */
+    private static class Model {
+
+        /**
+         * Map of {jid} => {sorted features}.
+         */
+        final HashMap<String, String[]> features;
+
+        /**
+         * Map of {jid} => {sorted identities}.
+         */
+        final HashMap<String, XmppIdentity[]> identities;
+
+        /**
+         * Map of {jid} => {merged view}, filled on demand.
+         */
+        final ConcurrentHashMap<String, View> views =
+                                        new ConcurrentHashMap<String, View>();
+
+        /**
+         * Create a new snapshot.
+         * @param features Map of {jid} => {sorted features}.
+         * @param identities Map of {jid} => {sorted identities}.
+         */
+        Model(
+            HashMap<String, String[]> features,
+            HashMap<String, XmppIdentity[]> identities
+        ) {
+            this.features = features;
+            this.identities = identities;
+        }
+
+    }
+
+    /**
+     * The current snapshot, null until loaded.
+     */
+    private volatile Model model = null;
+
+    /**
+     * Check if the store has been loaded.
+     * @return True after a successful load.
+     */
+    boolean isLoaded() {
+        return model != null;
+    }
+
+    /**
+     * Load all features and identities. Callers must serialize loading.
+     * @param database The disco database.
+     */
+    void load(SQLiteDatabase database) {
+        HashMap<String, ArrayList<String>> features =
+                                new HashMap<String, ArrayList<String>>();
+        Cursor result = database.query(
+            true, "feature", new String[]{"jid", "ver"},
+            null, null, null, null, null, null
+        );
+        try {
+            int jidIndex = result.getColumnIndex("jid");
+            int verIndex = result.getColumnIndex("ver");
+            while (result.moveToNext()) {
+                String key = key(result.getString(jidIndex));
+                ArrayList<String> list = features.get(key);
+                if (list == null) {
+                    list = new ArrayList<String>();
+                    features.put(key, list);
+                }
+                list.add(result.getString(verIndex));
+            }
+        } finally {
+            result.close();
+        }
+        HashMap<String, ArrayList<XmppIdentity>> identities =
+                                new HashMap<String, ArrayList<XmppIdentity>>();
+        result = database.query(
+            true, "identity",
+            new String[]{"jid", "category", "type", "lang", "name"},
+            null, null, null, null, null, null
+        );
+        try {
+            int jidIndex = result.getColumnIndex("jid");
+            int categoryIndex = result.getColumnIndex("category");
+            int typeIndex = result.getColumnIndex("type");
+            int langIndex = result.getColumnIndex("lang");
+            int nameIndex = result.getColumnIndex("name");
+            while (result.moveToNext()) {
+                String key = key(result.getString(jidIndex));
+                ArrayList<XmppIdentity> list = identities.get(key);
+                if (list == null) {
+                    list = new ArrayList<XmppIdentity>();
+                    identities.put(key, list);
+                }
+                list.add(new XmppIdentity(
+                    result.getString(categoryIndex),
+                    result.getString(typeIndex),
+                    result.getString(langIndex),
+                    result.getString(nameIndex)
+                ));
+            }
+        } finally {
+            result.close();
+        }
+        HashMap<String, String[]> featureMap = new HashMap<String, String[]>();
+        for (String key: features.keySet()) {
+            ArrayList<String> list = features.get(key);
+            String[] sorted = list.toArray(new String[list.size()]);
+            Arrays.sort(sorted);
+            featureMap.put(key, sorted);
+        }
+        HashMap<String, XmppIdentity[]> identityMap =
+                                    new HashMap<String, XmppIdentity[]>();
+        for (String key: identities.keySet()) {
+            ArrayList<XmppIdentity> list = identities.get(key);
+            XmppIdentity[] sorted = list.toArray(new XmppIdentity[list.size()]);
+            Arrays.sort(sorted, IDENTITY_ORDER);
+            identityMap.put(key, sorted);
+        }
+        model = new Model(featureMap, identityMap);
+    }
+
+    /**
+     * Map a jid to a model key.
+     * @param jid The account jid, or null for all accounts.
+     * @return The model key.
+     */
+    private static String key(String jid) {
+        return jid == null ? GLOBAL : jid;
+    }
+
+    /**
+     * Retrieve the merged features and identities of a jid.
+     * @param jid The account jid, or null for the global view.
+     * @return The view of the jid.
+     */
+    View getView(String jid) {
+        Model model = this.model;
+        String key = key(jid);
+        View view = model.views.get(key);
+        if (view != null) {
+            return view;
+        }
+        view = new View(
+            merge(model.features.get(GLOBAL), model.features.get(key),
+                  new String[0], null),
+            merge(model.identities.get(GLOBAL), model.identities.get(key),
+                  new XmppIdentity[0], IDENTITY_ORDER)
+        );
+        View previous = model.views.putIfAbsent(key, view);
+        return previous == null ? view : previous;
+    }
+
+    /**
+     * Merge two sorted arrays, dropping duplicates.
+     * @param a The first sorted array (may be null).
+     * @param b The second sorted array (may be null).
+     * @param empty An empty array of the result type.
+     * @param order The order, or null for the natural order.
+     * @return The merged sorted array.
+     */
+    @SuppressWarnings("unchecked")
+    private static <T> T[] merge(
+        T[] a,
+        T[] b,
+        T[] empty,
+        Comparator<? super T> order
+    ) {
+        if (a == null || a == b) {
+            return b == null ? empty : b;
+        }
+        if (b == null) {
+            return a;
+        }
+        ArrayList<T> result = new ArrayList<T>(a.length + b.length);
+        int i = 0, j = 0;
+        while (i < a.length || j < b.length) {
+            int cmp;
+            if (i == a.length) {
+                cmp = 1;
+            } else if (j == b.length) {
+                cmp = -1;
+            } else if (order == null) {
+                cmp = ((Comparable<T>) a[i]).compareTo(b[j]);
+            } else {
+                cmp = order.compare(a[i], b[j]);
+            }
+            if (cmp < 0) {
+                result.add(a[i++]);
+            } else if (cmp > 0) {
+                result.add(b[j++]);
+            } else {
+                result.add(a[i++]);
+                j++;
+            }
+        }
+        return result.toArray(empty);
+    }
+
+    /**
+     * Check if a feature is enabled.
+     * @param feature The feature.
+     * @param jid The account jid, or null to check global features only.
+     * @return True if the feature is enabled for the jid or globally.
+     */
+    boolean hasFeature(String feature, String jid) {
+        return Arrays.binarySearch(getView(jid).features, feature) >= 0;
+    }
+
+    /**
+     * Check if an identity is available.
+     * @param identity The identity.
+     * @param jid The account jid, or null to check global identities only.
+     * @return True if the identity is available for the jid or globally.
+     */
+    boolean hasIdentity(XmppIdentity identity, String jid) {
+        return Arrays.binarySearch(
+                getView(jid).identities, identity, IDENTITY_ORDER) >= 0;
+    }
+
+    /**
+     * Enable a feature.
+     * @param feature The feature.
+     * @param jid The account jid, or null for all accounts.
+     * @return True if the feature was added, false if already present.
+     */
+    synchronized boolean addFeature(String feature, String jid) {
+        if (hasFeature(feature, jid)) {
+            return false;
+        }
+        Model model = this.model;
+        String key = key(jid);
+        String[] current = model.features.get(key);
+        if (current == null) {
+            current = new String[0];
+        }
+        int index = -Arrays.binarySearch(current, feature) - 1;
+        String[] updated = new String[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        updated[index] = feature;
+        System.arraycopy(current, index, updated, index + 1,
+                         current.length - index);
+        HashMap<String, String[]> features =
+                                new HashMap<String, String[]>(model.features);
+        features.put(key, updated);
+        this.model = new Model(features, model.identities);
+        return true;
+    }
+
+    /**
+     * Add an identity.
+     * @param identity The identity.
+     * @param jid The account jid, or null for all accounts.
+     * @return True if the identity was added, false if already present.
+     */
+    synchronized boolean addIdentity(XmppIdentity identity, String jid) {
+        if (hasIdentity(identity, jid)) {
+            return false;
+        }
+        Model model = this.model;
+        String key = key(jid);
+        XmppIdentity[] current = model.identities.get(key);
+        if (current == null) {
+            current = new XmppIdentity[0];
+        }
+        int index =
+            -Arrays.binarySearch(current, identity, IDENTITY_ORDER) - 1;
+        XmppIdentity[] updated = new XmppIdentity[current.length + 1];
+        System.arraycopy(current, 0, updated, 0, index);
+        updated[index] = new XmppIdentity(
+            identity.getCategory(),
+            identity.getType(),
+            identity.getLang(),
+            identity.getName()
+        );
+        System.arraycopy(current, index, updated, index + 1,
+                         current.length - index);
+        HashMap<String, XmppIdentity[]> identities =
+                    new HashMap<String, XmppIdentity[]>(model.identities);
+        identities.put(key, updated);
+        this.model = new Model(model.features, identities);
+        return true;
+    }
+
+}
@@ -0,0 +1,217 @@
+package com.googlecode.asmack.sync;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+
+import android.content.Context;
+import android.content.Intent;
+import android.util.Log;
+
+import com.googlecode.asmack.Attribute;
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XMPPUtils;
+import com.googlecode.asmack.connection.NamespaceMetrics;
+import com.googlecode.asmack.connection.StanzaListener;
+import com.googlecode.asmack.connection.XmppTransportService;
+
+/**
+ * <p>Stanza listener forwarding roster results and roster pushes to the
+ * sync adapter, as {@link XmppTransportService#XMPP_ROSTER_INTENT}
+ * broadcasts restricted to
+ * {@link XmppTransportService#XMPP_ROSTER_PERMISSION}.</p>
+ * <p>Roster pushes are acknowledged here (RFC 6121, 2.1.6), whether or not
+ * a sync is running. Pushes missed outside a sync are replayed by the
+ * server on the next versioned roster request.</p>
+ * <p>Binder transactions are limited to about 1MB, stanzas longer than
+ * {@value #MAX_INLINE_LENGTH} characters are therefore spooled to a file
+ * in the cache directory. The broadcast stanza carries no payload in that
+ * case, the file name is passed as {@link #EXTRA_SPOOL}.</p>
+ */
+public class RosterBroadcaster implements StanzaListener {
+
+    /**
+     * The roster namespace.
+     */
+    static final String NAMESPACE = "jabber:iq:roster";
+
+    /**
+     * Id prefix of roster requests sent by the sync adapter.
+     */
+    static final String ID_PREFIX = "rostersync-";
+
+    /**
+     * Intent extra of the broadcast stanza.
+     */
+    static final String EXTRA_STANZA = "stanza";
+
+    /**
+     * Intent extra of the spooled payload file.
+     */
+    static final String EXTRA_SPOOL = "spool";
+
+    /**
+     * Maximum length of a stanza sent inside the broadcast.
+     */
+    static final int MAX_INLINE_LENGTH = 32 * 1024;
+
+    /**
+     * Age of spool files that were never consumed, e.g. because no sync was
+     * running, before they are deleted (10 minutes).
+     */
+    private static final long SPOOL_TTL = 10 * 60 * 1000;
+
+    /**
+     * Logging tag (RosterBroadcaster).
+     */
+    private static final String TAG = RosterBroadcaster.class.getSimpleName();
+
+    /**
+     * The service used to broadcast and to acknowledge pushes.
+     */
+    private final XmppTransportService service;
+
+    /**
+     * Create a new roster broadcaster.
+     * @param service The service used to broadcast and to acknowledge
+     *                pushes.
+     */
+    public RosterBroadcaster(XmppTransportService service) {
+        this.service = service;
+    }
+
+    /**
+     * Forward roster results and acknowledged roster pushes.
+     * @param stanza The received stanza.
+     */
+    @Override
+    public void receive(Stanza stanza) {
+        if (!"iq".equals(stanza.getName()) || stanza.getVia() == null) {
+            return;
+        }
+        Attribute id = stanza.getAttribute("id");
+        String type = stanza.getAttributeValue("type");
+        if (id == null || type == null) {
+            return;
+        }
+        if ("result".equals(type) || "error".equals(type)) {
+            // results without payload are valid, "roster not modified"
+            if (!id.getValue().startsWith(ID_PREFIX)) {
+                return;
+            }
+        } else if ("set".equals(type)) {
+            String push = stanza.getXml();
+            if (push == null || push.indexOf(NAMESPACE) == -1 ||
+                !NAMESPACE.equals(NamespaceMetrics.getPayloadNamespace(stanza))) {
+                return;
+            }
+            // pushes must come from the account itself (RFC 6121, 2.1.6)
+            String account = XMPPUtils.getBareJid(stanza.getVia());
+            String from = stanza.getAttributeValue("from");
+            if (from != null && !from.equals(account)) {
+                return;
+            }
+            acknowledge(stanza, id);
+        } else {
+            return;
+        }
+        Intent intent = new Intent(XmppTransportService.XMPP_ROSTER_INTENT);
+        String xml = stanza.getXml();
+        if (xml != null && xml.length() > MAX_INLINE_LENGTH) {
+            File spool = spool(xml);
+            if (spool == null) {
+                return;
+            }
+            intent.putExtra(EXTRA_SPOOL, spool.getAbsolutePath());
+            stanza = new Stanza(
+                stanza.getName(),
+                stanza.getNamespace(),
+                stanza.getVia(),
+                "",
+                stanza.getAttributes()
+            );
+        }
+        intent.putExtra(EXTRA_STANZA, stanza);
+        service.sendBroadcast(
+            intent, XmppTransportService.XMPP_ROSTER_PERMISSION);
+    }
+
+    /**
+     * Retrieve the spool directory.
+     * @param context The current context.
+     * @return The spool directory.
+     */
+    static File getSpoolDirectory(Context context) {
+        return new File(context.getCacheDir(), "roster");
+    }
+
+    /**
+     * Write a stanza to a new spool file, deleting stale spool files.
+     * @param xml The stanza xml.
+     * @return The spool file, or null on error.
+     */
+    private File spool(String xml) {
+        File directory = getSpoolDirectory(service);
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            Log.w(TAG, "Can't create " + directory);
+            return null;
+        }
+        long now = System.currentTimeMillis();
+        File[] stale = directory.listFiles();
+        if (stale != null) {
+            for (File file: stale) {
+                if (now - file.lastModified() > SPOOL_TTL) {
+                    file.delete();
+                }
+            }
+        }
+        File file = null;
+        Writer writer = null;
+        try {
+            file = File.createTempFile("roster", ".xml", directory);
+            writer = new OutputStreamWriter(new FileOutputStream(file),
+                                            "UTF-8");
+            writer.write(xml);
+            writer.close();
+            writer = null;
+            return file;
+        } catch (IOException e) {
+            Log.w(TAG, "Spooling a roster stanza failed", e);
+            if (file != null) {
+                file.delete();
+            }
+            return null;
+        } finally {
+            if (writer != null) {
+                try {
+                    writer.close();
+                } catch (IOException e) {
+                    /* ignore */
+                }
+            }
+        }
+    }
+
+    /**
+     * Acknowledge a roster push.
+     * @param push The roster push.
+     * @param id The push id.
+     */
+    private void acknowledge(Stanza push, Attribute id) {
+        Stanza result = new Stanza(
+            "iq",
+            "",
+            push.getVia(),
+            "<iq type='result' to='"
+                + XMLUtils.xmlEscape(XMPPUtils.getBareJid(push.getVia()))
+                + "'/>",
+            Arrays.asList(new Attribute[]{id})
+        );
+        service.send(result);
+    }
+
+}
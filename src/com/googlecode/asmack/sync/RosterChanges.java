@@ -0,0 +1,101 @@
+package com.googlecode.asmack.sync;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * <p>The net effect of a sequence of roster pushes (RFC 6121, 2.1.6).</p>
+ * <p>Only the last push of each jid counts. Items with a mutual
+ * subscription are contacts, every other item (including
+ * subscription="remove") is not or no longer a contact and must be
+ * deleted.</p>
+ */
+final class RosterChanges {
+
+    /**
+     * Map of {jid} => {last item}, in order of the last push.
+     */
+    private final LinkedHashMap<String, RosterReader.Item> items =
+                        new LinkedHashMap<String, RosterReader.Item>();
+
+    /**
+     * The roster version of the last versioned push, or null.
+     */
+    private String ver = null;
+
+    /**
+     * Check if a roster item should be stored as a contact.
+     * @param item The roster item.
+     * @return True for mutual subscriptions.
+     */
+    static boolean isContact(RosterReader.Item item) {
+        return "both".equals(item.subscription);
+    }
+
+    /**
+     * Record the roster version of a push. Pushes without version keep the
+     * previous one.
+     * @param ver The push version, or null.
+     */
+    void setVer(String ver) {
+        if (ver != null && ver.length() > 0) {
+            this.ver = ver;
+        }
+    }
+
+    /**
+     * Retrieve the roster version of the last versioned push.
+     * @return The roster version, or null.
+     */
+    String getVer() {
+        return ver;
+    }
+
+    /**
+     * Record a pushed item, replacing earlier pushes of the same jid.
+     * @param item The pushed item.
+     */
+    void add(RosterReader.Item item) {
+        items.remove(item.jid);
+        items.put(item.jid, item);
+    }
+
+    /**
+     * Retrieve the number of changed jids.
+     * @return The number of changes.
+     */
+    int size() {
+        return items.size();
+    }
+
+    /**
+     * Retrieve the items to add or update.
+     * @return The contact items, in push order.
+     */
+    List<RosterReader.Item> getContacts() {
+        ArrayList<RosterReader.Item> contacts =
+                        new ArrayList<RosterReader.Item>();
+        for (RosterReader.Item item: items.values()) {
+            if (isContact(item)) {
+                contacts.add(item);
+            }
+        }
+        return contacts;
+    }
+
+    /**
+     * Retrieve the jids of contacts to delete.
+     * @return The jids without mutual subscription, in push order.
+     */
+    String[] getRemoved() {
+        ArrayList<String> removed = new ArrayList<String>();
+        for (RosterReader.Item item: items.values()) {
+            if (!isContact(item)) {
+                removed.add(item.jid);
+            }
+        }
+        return removed.toArray(new String[removed.size()]);
+    }
+
+}
@@ -0,0 +1,187 @@
+package com.googlecode.asmack.sync;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XmppMalformedException;
+
+/**
+ * <p>Streaming reader of the roster items of a roster result or push.</p>
+ * <p>Items are pulled one at a time, no document tree of the roster is
+ * built. Item children (groups) are skipped.</p>
+ * <p>Readers created from a {@link Reader} must be closed.</p>
+ */
+final class RosterReader {
+
+    /**
+     * A single roster item.
+     */
+    static final class Item {
+
+        /**
+         * The item jid.
+         */
+        final String jid;
+
+        /**
+         * The item name, or null.
+         */
+        final String name;
+
+        /**
+         * The subscription state, or null.
+         */
+        final String subscription;
+
+        /**
+         * Create a new roster item.
+         * @param jid The item jid.
+         * @param name The item name, or null.
+         * @param subscription The subscription state, or null.
+         */
+        Item(String jid, String name, String subscription) {
+            this.jid = jid;
+            this.name = name;
+            this.subscription = subscription;
+        }
+
+    }
+
+    /**
+     * The pull parser, positioned inside the roster query.
+     */
+    private final XmlPullParser parser;
+
+    /**
+     * The xml source.
+     */
+    private final Reader source;
+
+    /**
+     * True while the parser is inside the roster query.
+     */
+    private boolean query = false;
+
+    /**
+     * True if the iq contains a roster query.
+     */
+    private boolean found = false;
+
+    /**
+     * The roster version of the query, or null.
+     */
+    private String ver = null;
+
+    /**
+     * Create a new reader and move to the roster query of an iq.
+     * @param xml The iq xml.
+     * @throws XmppMalformedException In case of an xml error.
+     */
+    RosterReader(String xml) throws XmppMalformedException {
+        this(new StringReader(xml));
+    }
+
+    /**
+     * Create a new reader on an xml source and move to the roster query of
+     * an iq.
+     * @param source The iq xml source.
+     * @throws XmppMalformedException In case of an xml error.
+     */
+    RosterReader(Reader source) throws XmppMalformedException {
+        this.source = source;
+        try {
+            parser = XMLUtils.getXMLPullParser();
+            parser.setInput(source);
+            int event = parser.next();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                if (event == XmlPullParser.START_TAG &&
+                    parser.getDepth() == 2 &&
+                    "query".equals(parser.getName()) &&
+                    RosterBroadcaster.NAMESPACE.equals(parser.getNamespace())) {
+                    query = true;
+                    found = true;
+                    ver = parser.getAttributeValue(null, "ver");
+                    return;
+                }
+                event = parser.next();
+            }
+        } catch (XmlPullParserException e) {
+            throw new XmppMalformedException("Malformed roster", e);
+        } catch (IOException e) {
+            throw new XmppMalformedException("Malformed roster", e);
+        }
+    }
+
+    /**
+     * Check if the iq contains a roster query. A roster result without
+     * query means that the roster was not modified.
+     * @return True if a roster query was found.
+     */
+    boolean hasQuery() {
+        return found;
+    }
+
+    /**
+     * Retrieve the roster version of the query.
+     * @return The roster version, or null.
+     */
+    String getVer() {
+        return ver;
+    }
+
+    /**
+     * Read the next roster item.
+     * @return The next item, or null at the end of the query.
+     * @throws XmppMalformedException In case of an xml error.
+     */
+    Item next() throws XmppMalformedException {
+        if (!query) {
+            return null;
+        }
+        try {
+            int event = parser.next();
+            while (event != XmlPullParser.END_DOCUMENT) {
+                int depth = parser.getDepth();
+                if (event == XmlPullParser.END_TAG && depth == 2) {
+                    break;
+                }
+                if (event == XmlPullParser.START_TAG && depth == 3 &&
+                    "item".equals(parser.getName()) &&
+                    RosterBroadcaster.NAMESPACE.equals(parser.getNamespace())) {
+                    String jid = parser.getAttributeValue(null, "jid");
+                    if (jid != null) {
+                        return new Item(
+                            jid,
+                            parser.getAttributeValue(null, "name"),
+                            parser.getAttributeValue(null, "subscription")
+                        );
+                    }
+                }
+                event = parser.next();
+            }
+        } catch (XmlPullParserException e) {
+            throw new XmppMalformedException("Malformed roster", e);
+        } catch (IOException e) {
+            throw new XmppMalformedException("Malformed roster", e);
+        }
+        query = false;
+        return null;
+    }
+
+    /**
+     * Close the xml source.
+     */
+    void close() {
+        try {
+            source.close();
+        } catch (IOException e) {
+            /* ignore */
+        }
+    }
+
+}
@@ -37,39 +37,36 @@
 
 package com.googlecode.asmack.sync;
 
-import java.util.concurrent.ArrayBlockingQueue;
-
-import org.w3c.dom.Node;
+import java.io.File;
+import java.util.concurrent.BlockingQueue;
 
 import android.accounts.Account;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.util.Log;
 
 import com.googlecode.asmack.Stanza;
-import com.googlecode.asmack.XMLUtils;
-import com.googlecode.asmack.XmppMalformedException;
 
 /**
- * Listen for roster broadcast and return them via a queue.
+ * Listen for roster broadcasts (results and pushes) and return them via a
+ * queue.
  */
 final class RosterResultReceiver extends BroadcastReceiver {
 
     /**
-     * The logging tag, <code>Receiver.class.getSimpleName()</code>.
+     * The result queue, used to return roster results and pushes.
      */
-    private static final String TAG = RosterResultReceiver.class.getSimpleName();
+    private BlockingQueue<RosterStanza> rosterQueue;
 
     /**
-     * The result queue, used to return a roster result.
+     * The account to listen for, drop roster results on other accounts.
      */
-    private ArrayBlockingQueue<Node> rosterQueue;
+    private Account account;
 
     /**
-     * The account to listen for, drop roster results on other accounts.
+     * True if a stanza was dropped because the queue was full.
      */
-    private Account account;
+    private volatile boolean overflow = false;
 
     /**
      * Create a new RosterResultReceiver, listening for roster results on
@@ -77,42 +74,42 @@ final class RosterResultReceiver extends BroadcastReceiver {
      * @param account The user account.
      * @param rosterQueue The result queue.
      */
-    RosterResultReceiver(Account account, ArrayBlockingQueue<Node> rosterQueue) {
+    RosterResultReceiver(
+        Account account,
+        BlockingQueue<RosterStanza> rosterQueue
+    ) {
         this.rosterQueue = rosterQueue;
         this.account = account;
     }
 
     /**
-     * Receive a stanza intent, check for roster entries and write results to
-     * the result queue.
+     * Receive a roster intent, check the account and write the stanza to
+     * the result queue. Stanzas are dropped if the queue is full.
      */
     public void onReceive(Context context, Intent intent) {
-        Stanza stanza = intent.getParcelableExtra("stanza");
-        if (stanza.getName() == null || stanza.getVia() == null ||
-            stanza.getAttribute("type") == null) {
-            return;
-        }
-        if (!"iq".equals(stanza.getName())) {
+        Stanza stanza = intent.getParcelableExtra(
+                                    RosterBroadcaster.EXTRA_STANZA);
+        if (stanza == null || stanza.getVia() == null) {
             return;
         }
         if (!stanza.getVia().startsWith(account.name + "/")) {
             return;
         }
-        if (!"result".equals(stanza.getAttribute("type").getValue())) {
-            return;
-        }
-        try {
-            Node node = stanza.getDocumentNode();
-            Node roster = XMLUtils.getFirstChild(node, "jabber:iq:roster", "query");
-            if (roster == null) {
-                return;
-            }
-            rosterQueue.put(roster);
-        } catch (XmppMalformedException e) {
-            Log.w(TAG, "PLEASE REPORT", e);
-        } catch (InterruptedException e) {
-            Log.w(TAG, "PLEASE REPORT", e);
+        String spool = intent.getStringExtra(RosterBroadcaster.EXTRA_SPOOL);
+        RosterStanza roster = new RosterStanza(
+            stanza, spool == null ? null : new File(spool));
+        if (!rosterQueue.offer(roster)) {
+            overflow = true;
+            roster.release();
         }
     }
 
+    /**
+     * Check if a roster stanza was dropped.
+     * @return True if the queue overflowed.
+     */
+    boolean isOverflow() {
+        return overflow;
+    }
+
 }
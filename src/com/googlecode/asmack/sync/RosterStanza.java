@@ -0,0 +1,96 @@
+package com.googlecode.asmack.sync;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+
+import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XmppMalformedException;
+
+/**
+ * <p>A roster result or push received by the sync adapter.</p>
+ * <p>Stanzas too large for a broadcast are spooled to a file by the
+ * {@link RosterBroadcaster}, the broadcast stanza carries no payload. The
+ * payload of those stanzas is streamed from the file, which must be
+ * {@link #release() released} after use.</p>
+ */
+final class RosterStanza {
+
+    /**
+     * The broadcast stanza.
+     */
+    private final Stanza stanza;
+
+    /**
+     * The spooled payload, or null.
+     */
+    private final File spool;
+
+    /**
+     * Create a new roster stanza.
+     * @param stanza The broadcast stanza.
+     * @param spool The spooled payload, or null.
+     */
+    RosterStanza(Stanza stanza, File spool) {
+        this.stanza = stanza;
+        this.spool = spool;
+    }
+
+    /**
+     * Retrieve the iq type.
+     * @return The iq type.
+     */
+    String getType() {
+        return stanza.getAttributeValue("type");
+    }
+
+    /**
+     * Retrieve the iq id.
+     * @return The iq id.
+     */
+    String getId() {
+        return stanza.getAttributeValue("id");
+    }
+
+    /**
+     * Open a streaming reader on the roster query. The reader must be
+     * closed.
+     * @return A new roster reader.
+     * @throws XmppMalformedException In case of an xml or spool error.
+     */
+    RosterReader read() throws XmppMalformedException {
+        if (spool == null) {
+            return new RosterReader(stanza.getXml());
+        }
+        Reader source;
+        try {
+            source = new BufferedReader(new InputStreamReader(
+                new FileInputStream(spool), "UTF-8"));
+        } catch (IOException e) {
+            throw new XmppMalformedException("Roster spool unreadable", e);
+        }
+        try {
+            return new RosterReader(source);
+        } catch (XmppMalformedException e) {
+            try {
+                source.close();
+            } catch (IOException ioe) {
+                /* ignore */
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * Delete the spooled payload, if any.
+     */
+    void release() {
+        if (spool != null) {
+            spool.delete();
+        }
+    }
+
+}
@@ -39,17 +39,15 @@ package com.googlecode.asmack.sync;
 
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
 
-import org.w3c.dom.Node;
-import org.w3c.dom.NodeList;
-
 import android.accounts.Account;
 import android.accounts.AccountManager;
 import android.content.AbstractThreadedSyncAdapter;
-import android.content.BroadcastReceiver;
 import android.content.ComponentName;
 import android.content.ContentProviderClient;
 import android.content.ContentProviderOperation;
@@ -67,6 +65,8 @@ import android.util.Log;
 import com.buddycloud.IBuddycloudService;
 import com.googlecode.asmack.Attribute;
 import com.googlecode.asmack.Stanza;
+import com.googlecode.asmack.XMLUtils;
+import com.googlecode.asmack.XmppMalformedException;
 import com.googlecode.asmack.connection.IXmppTransportService;
 import com.googlecode.asmack.connection.XmppTransportService;
 import com.googlecode.asmack.contacts.ContactDataMapper;
@@ -85,6 +85,22 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
      */
     private static final String TAG = SyncAdapter.class.getSimpleName();
 
+    /**
+     * Maximum number of roster stanzas buffered during a sync.
+     */
+    private static final int ROSTER_QUEUE_SIZE = 256;
+
+    /**
+     * Number of roster items compared with the stored contacts at once.
+     */
+    private static final int ROSTER_CHUNK_SIZE = 100;
+
+    /**
+     * Idle time in seconds after the last roster push before a versioned
+     * sync is considered complete.
+     */
+    private static final long ROSTER_PUSH_TIMEOUT = 5;
+
     /**
      * The application context used during sync.
      */
@@ -117,6 +133,9 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
 
     /**
      * Perform a roster sync on a given account and a given content provider.
+     * If the server supports roster versioning the last roster version is
+     * sent with the request, an empty result means only the roster pushes
+     * that follow have to be applied.
      * @param account The xmpp account to be synced.
      * @param extras SyncAdapter-specific parameters
      * @param authority The authority of this sync request.
@@ -132,9 +151,18 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
         SyncResult syncResult
     ) {
         Log.d(TAG, "Start Roster Sync");
-        final ArrayBlockingQueue<Node> rosterQueue = new ArrayBlockingQueue<Node>(1);
-        BroadcastReceiver receiver = new RosterResultReceiver(account, rosterQueue);
-//        applicationContext.registerReceiver(receiver, new IntentFilter(XmppTransportService.XMPP_STANZA_INTENT));
+        final ArrayBlockingQueue<RosterStanza> rosterQueue =
+                    new ArrayBlockingQueue<RosterStanza>(ROSTER_QUEUE_SIZE);
+        RosterResultReceiver receiver =
+                        new RosterResultReceiver(account, rosterQueue);
+        applicationContext.registerReceiver(
+            receiver,
+            new IntentFilter(XmppTransportService.XMPP_ROSTER_INTENT),
+            XmppTransportService.XMPP_ROSTER_PERMISSION,
+            null
+        );
+        ArrayList<RosterStanza> pushes = new ArrayList<RosterStanza>();
+        RosterStanza result = null;
         try {
             bindService();
             if (!waitForService()) {
@@ -143,114 +171,401 @@ public class SyncAdapter extends AbstractThreadedSyncAdapter {
             if (!waitForServiceBind(account.name)) {
                 return;
             }
-            Stanza stanza = getRosterRequest(account);
+            String ver = null;
+            try {
+                if (service.isRosterVersioningSupported(account.name)) {
+                    ver = accountManager.getUserData(account, "ROSTER_VER");
+                    if (ver == null) {
+                        ver = "";
+                    }
+                }
+            } catch (RemoteException e) {
+                Log.w(TAG, "Roster versioning check failed", e);
+            }
+            Stanza stanza = getRosterRequest(account, ver);
             if (!sendWithRetry(stanza)) {
                 syncResult.stats.numIoExceptions++;
                 return;
             }
-            Node roster = rosterQueue.poll(300, TimeUnit.SECONDS);
-            if (roster == null) {
+            result = waitForRosterResult(
+                rosterQueue, stanza.getAttributeValue("id"), pushes);
+            if (result == null) {
                 return;
             }
-            handleRosterResult(account, roster, provider);
+            if ("error".equals(result.getType())) {
+                Log.w(TAG, "Roster request failed for " + account.name);
+                accountManager.setUserData(account, "ROSTER_VER", null);
+                syncResult.stats.numIoExceptions++;
+                return;
+            }
+            RosterReader roster = result.read();
+            boolean full;
+            try {
+                full = roster.hasQuery();
+                if (full) {
+                    // full roster, pushes received so far are part of it
+                    String rosterVer = roster.getVer();
+                    handleRosterResult(account, roster, provider, syncResult);
+                    if (ver != null) {
+                        accountManager.setUserData(
+                            account, "ROSTER_VER", rosterVer);
+                    }
+                }
+            } finally {
+                roster.close();
+            }
+            if (!full) {
+                // roster not modified since ver, the changes follow as pushes
+                RosterStanza push = rosterQueue.poll(
+                            ROSTER_PUSH_TIMEOUT, TimeUnit.SECONDS);
+                while (push != null) {
+                    if ("set".equals(push.getType())) {
+                        pushes.add(push);
+                    } else {
+                        push.release();
+                    }
+                    push = rosterQueue.poll(
+                            ROSTER_PUSH_TIMEOUT, TimeUnit.SECONDS);
+                }
+                String pushVer = handleRosterPushes(
+                    account, pushes, provider, syncResult);
+                if (receiver.isOverflow()) {
+                    // some pushes were lost, fall back to a full sync
+                    accountManager.setUserData(account, "ROSTER_VER", null);
+                } else if (pushVer != null) {
+                    accountManager.setUserData(account, "ROSTER_VER", pushVer);
+                }
+            }
+            try {
+                service.contactsChanged();
+            } catch (RemoteException e) {
+                Log.w(TAG, "Contact change notification failed", e);
+            }
         } catch (InterruptedException e) {
             Log.e(TAG, "Sync interrupted", e);
+        } catch (XmppMalformedException e) {
+            Log.w(TAG, "Malformed roster result", e);
         } finally {
             applicationContext.unregisterReceiver(receiver);
             unbindService();
+            if (result != null) {
+                result.release();
+            }
+            for (RosterStanza push: pushes) {
+                push.release();
+            }
+            for (RosterStanza stale: rosterQueue) {
+                stale.release();
+            }
+        }
+    }
+
+    /**
+     * Wait up to 300s for the result of a roster request. Roster pushes
+     * received in the meantime are collected.
+     * @param rosterQueue The queue of received roster stanzas.
+     * @param id The id of the roster request.
+     * @param pushes The list of received pushes.
+     * @return The roster result or error, or null on timeout.
+     * @throws InterruptedException If the sync was interrupted.
+     */
+    private RosterStanza waitForRosterResult(
+        ArrayBlockingQueue<RosterStanza> rosterQueue,
+        String id,
+        ArrayList<RosterStanza> pushes
+    ) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 300 * 1000;
+        long remaining = 300 * 1000;
+        while (remaining > 0) {
+            RosterStanza stanza =
+                    rosterQueue.poll(remaining, TimeUnit.MILLISECONDS);
+            if (stanza == null) {
+                return null;
+            }
+            if ("set".equals(stanza.getType())) {
+                pushes.add(stanza);
+            } else if (id.equals(stanza.getId())) {
+                return stanza;
+            } else {
+                stanza.release();
+            }
+            remaining = timeout - System.currentTimeMillis();
         }
+        return null;
     }
 
     /**
-     * Retrieve and handle a roster result.
+     * Retrieve and handle a roster result. Items are streamed in chunks of
+     * {@value #ROSTER_CHUNK_SIZE}, each chunk is compared with the stored
+     * contacts of its jids, only changed contacts are written. Contacts no
+     * longer in the roster are deleted.
+     * Memory is still linear in the roster size: the jids of all items are
+     * kept to find stale contacts, and the transport service receives the
+     * whole result as one stanza string before it is spooled for us.
      * @param account The xmpp account.
-     * @param roster The user roster xml node.
+     * @param roster The reader of the roster result.
      * @param provider The content provider used to store the results.
+     * @param syncResult Sync error and result counters.
+     * @throws XmppMalformedException In case of an xml error.
      */
     private void handleRosterResult(
         Account account,
-        Node roster,
-        ContentProviderClient provider
-    ) {
+        RosterReader roster,
+        ContentProviderClient provider,
+        SyncResult syncResult
+    ) throws XmppMalformedException {
         long syncCount = getAndIncrementSyncCount(account);
-        NodeList rosterItems = roster.getChildNodes();
 
         ContactDataMapper mapper = new ContactDataMapper(provider);
 
         ArrayList<ContentProviderOperation> operations =
                         new ArrayList<ContentProviderOperation>(60);
 
-        HashMap<String, RawContact> oldContacts = new HashMap<String, RawContact>();
-        for (RawContact contact: mapper.getRawContacts(account.name, true)) {
-            oldContacts.put(contact.getJid(), contact);
+        // only the jids are kept for the whole roster, to find stale contacts
+        HashSet<String> jids = new HashSet<String>();
+        ArrayList<RosterReader.Item> chunk =
+                        new ArrayList<RosterReader.Item>(ROSTER_CHUNK_SIZE);
+        int count = 0;
+        RosterReader.Item item = roster.next();
+        while (item != null) {
+            if (RosterChanges.isContact(item) && jids.add(item.jid)) {
+                chunk.add(item);
+                if (chunk.size() == ROSTER_CHUNK_SIZE) {
+                    count += persistChunk(account, chunk, syncCount, mapper,
+                                          operations, syncResult);
+                    chunk.clear();
+                }
+            }
+            item = roster.next();
+        }
+        count += persistChunk(account, chunk, syncCount, mapper,
+                              operations, syncResult);
+        if (operations.size() > 0) {
+            mapper.perform(operations);
         }
+        count += delete(mapper,
+            mapper.getRawContactIdsExcept(account.name, jids), syncResult);
+        Log.d(TAG, "Roster sync of " + account.name + ": " + count
+                 + " operations, " + syncResult.stats.numInserts + " inserts, "
+                 + syncResult.stats.numUpdates + " updates, "
+                 + syncResult.stats.numDeletes + " deletes");
+    }
 
-        for (int i = 0; i < rosterItems.getLength(); i++) {
-            Node item = rosterItems.item(i);
-            if (!"item".equals(item.getLocalName())) {
-                continue;
-            }
-            if (!"both".equals(item.getAttributes().getNamedItem("subscription").getTextContent())) {
-                continue;
-            }
-            String jid = item.getAttributes().getNamedItem("jid").getTextContent();
-            String name = null;
-            Node nameAttribute = item.getAttributes().getNamedItem("name");
-            if (nameAttribute != null) {
-                name = nameAttribute.getTextContent();
-            }
-            if (TextUtils.isEmpty(name)) {
-                name = jid;
-            }
+    /**
+     * Add or update the contacts of a chunk of roster items, loading only
+     * the stored contacts of the chunk.
+     * @param account The xmpp account.
+     * @param chunk The roster items, one per jid.
+     * @param syncCount The current sync count.
+     * @param mapper The contact data mapper.
+     * @param operations The pending provider operations.
+     * @param syncResult Sync error and result counters.
+     * @return The number of appended operations.
+     */
+    private int persistChunk(
+        Account account,
+        List<RosterReader.Item> chunk,
+        long syncCount,
+        ContactDataMapper mapper,
+        ArrayList<ContentProviderOperation> operations,
+        SyncResult syncResult
+    ) {
+        if (chunk.size() == 0) {
+            return 0;
+        }
+        String[] jids = new String[chunk.size()];
+        for (int i = 0; i < jids.length; i++) {
+            jids[i] = chunk.get(i).jid;
+        }
+        HashMap<String, RawContact> stored =
+                        new HashMap<String, RawContact>(jids.length * 2);
+        for (RawContact contact:
+                mapper.getRawContactsByJids(account.name, jids, true)) {
+            stored.put(contact.getSourceID(), contact);
+        }
+        int count = 0;
+        for (RosterReader.Item item: chunk) {
+            count += persistItem(account, item, stored.get(item.jid),
+                                 syncCount, mapper, operations, syncResult);
+        }
+        return count;
+    }
 
-            RawContact contact = oldContacts.remove(jid);
-            if (contact == null) {
-                contact = new RawContact();
-                contact.setAccountName(account.name);
-                contact.setJid(jid);
-                contact.setSyncIndex(Long.toString(syncCount));
+    /**
+     * Apply roster pushes (RFC 6121, 2.1.6). Only the last push of each jid
+     * is applied, mutual subscriptions are added or updated, all other
+     * items (removed or no longer mutual) are deleted.
+     * @param account The xmpp account.
+     * @param pushes The roster pushes, in order.
+     * @param provider The content provider used to store the results.
+     * @param syncResult Sync error and result counters.
+     * @return The roster version of the last push, or null.
+     * @throws XmppMalformedException In case of an xml error.
+     */
+    private String handleRosterPushes(
+        Account account,
+        List<RosterStanza> pushes,
+        ContentProviderClient provider,
+        SyncResult syncResult
+    ) throws XmppMalformedException {
+        RosterChanges changes = new RosterChanges();
+        for (RosterStanza push: pushes) {
+            RosterReader reader = push.read();
+            try {
+                changes.setVer(reader.getVer());
+                RosterReader.Item item = reader.next();
+                while (item != null) {
+                    changes.add(item);
+                    item = reader.next();
+                }
+            } finally {
+                reader.close();
             }
-            XmppMetadata xmpp = new XmppMetadata();
-            xmpp.setJid(jid);
-            contact.setMetadata(xmpp);
-            if (!TextUtils.isEmpty(name)) {
-                NicknameMetadata nick = new NicknameMetadata();
-                nick.setNickname(name);
-                contact.setMetadata(nick);
-            } else {
-                contact.removeMetadata(NicknameMetadata.MIMETYPE);
+        }
+        if (changes.size() == 0) {
+            return changes.getVer();
+        }
+
+        long syncCount = getAndIncrementSyncCount(account);
+        ContactDataMapper mapper = new ContactDataMapper(provider);
+        ArrayList<ContentProviderOperation> operations =
+                        new ArrayList<ContentProviderOperation>();
+        int count = 0;
+        List<RosterReader.Item> contacts = changes.getContacts();
+        for (int i = 0; i < contacts.size(); i += ROSTER_CHUNK_SIZE) {
+            count += persistChunk(account,
+                contacts.subList(i, Math.min(contacts.size(),
+                                             i + ROSTER_CHUNK_SIZE)),
+                syncCount, mapper, operations, syncResult);
+        }
+        if (operations.size() > 0) {
+            mapper.perform(operations);
+        }
+        String[] removed = changes.getRemoved();
+        for (int i = 0; i < removed.length; i += ROSTER_CHUNK_SIZE) {
+            String[] jids = new String[
+                            Math.min(removed.length - i, ROSTER_CHUNK_SIZE)];
+            System.arraycopy(removed, i, jids, 0, jids.length);
+            RawContact[] stored =
+                    mapper.getRawContactsByJids(account.name, jids, false);
+            long[] ids = new long[stored.length];
+            for (int j = 0; j < ids.length; j++) {
+                ids[j] = stored[j].getID();
             }
-            ImMetadata im = new ImMetadata();
-            im.setType(ImMetadata.Type.OTHER);
-            im.setAccountJid(account.name);
-            im.setJid(jid);
-            im.setProtocol(ImMetadata.Protocol.JABBER);
-            contact.setMetadata(im);
-            mapper.persist(contact, operations);
-            Log.d(TAG, "Persisted " + jid);
-            if (operations.size() > 100) {
-                mapper.perform(operations);
-                operations.clear();
+            count += delete(mapper, ids, syncResult);
+        }
+        Log.d(TAG, "Roster push sync of " + account.name + ": "
+                 + changes.size() + " changes, " + count + " operations");
+        return changes.getVer();
+    }
+
+    /**
+     * Add or update the contact of a single roster item. Only changes
+     * are written, operations are flushed every 100 entries.
+     * @param account The xmpp account.
+     * @param item The roster item.
+     * @param stored The stored contact, or null for a new contact.
+     * @param syncCount The current sync count.
+     * @param mapper The contact data mapper.
+     * @param operations The pending provider operations.
+     * @param syncResult Sync error and result counters.
+     * @return The number of appended operations.
+     */
+    private int persistItem(
+        Account account,
+        RosterReader.Item item,
+        RawContact stored,
+        long syncCount,
+        ContactDataMapper mapper,
+        ArrayList<ContentProviderOperation> operations,
+        SyncResult syncResult
+    ) {
+        String jid = item.jid;
+        String name = item.name;
+        if (TextUtils.isEmpty(name)) {
+            name = jid;
+        }
+
+        RawContact contact = new RawContact();
+        contact.setAccountName(account.name);
+        contact.setJid(jid);
+        if (stored == null) {
+            contact.setSyncIndex(Long.toString(syncCount));
+        } else {
+            for (int i = 1; i < 4; i++) {
+                contact.setSync(i, stored.getSync(i));
             }
         }
-        if (operations.size() > 0) {
+        XmppMetadata xmpp = new XmppMetadata();
+        xmpp.setJid(jid);
+        contact.setMetadata(xmpp);
+        NicknameMetadata nick = new NicknameMetadata();
+        nick.setNickname(name);
+        contact.setMetadata(nick);
+        ImMetadata im = new ImMetadata();
+        im.setType(ImMetadata.Type.OTHER);
+        im.setAccountJid(account.name);
+        im.setJid(jid);
+        im.setProtocol(ImMetadata.Protocol.JABBER);
+        contact.setMetadata(im);
+
+        int count = mapper.persistChanges(stored, contact, operations);
+        if (count == 0) {
+            return 0;
+        }
+        if (stored == null) {
+            syncResult.stats.numInserts++;
+        } else {
+            syncResult.stats.numUpdates++;
+        }
+        Log.d(TAG, "Persisted " + jid);
+        if (operations.size() > 100) {
             mapper.perform(operations);
+            operations.clear();
         }
+        return count;
+    }
 
+    /**
+     * Delete contacts with a single bulk delete.
+     * @param mapper The contact data mapper.
+     * @param ids The ids of the contacts to delete.
+     * @param syncResult Sync error and result counters.
+     * @return The number of operations, 1 or 0.
+     */
+    private static int delete(
+        ContactDataMapper mapper,
+        long[] ids,
+        SyncResult syncResult
+    ) {
+        if (ids.length == 0) {
+            return 0;
+        }
+        mapper.bulkDelete(ids);
+        syncResult.stats.numDeletes += ids.length;
+        return 1;
     }
 
     /**
      * Create a stanza to retrieve the roster of a xmpp account.
      * @param account The xmpp account.
+     * @param ver The last roster version, "" for none, or null if roster
+     *            versioning is not supported.
      * @return A roster iq stanza.
      */
-    private Stanza getRosterRequest(final Account account) {
+    private Stanza getRosterRequest(final Account account, String ver) {
         long syncCount = getAndIncrementSyncCount(account);
         List<Attribute> attributes = new ArrayList<Attribute>(3);
         attributes.add(new Attribute("type", null, "get"));
-        attributes.add(new Attribute("id", null, "rostersync-" + Long.toHexString(syncCount)));
+        attributes.add(new Attribute("id", null,
+            RosterBroadcaster.ID_PREFIX + Long.toHexString(syncCount)));
+        String query = "<query xmlns='" + RosterBroadcaster.NAMESPACE + "'/>";
+        if (ver != null) {
+            query = "<query xmlns='" + RosterBroadcaster.NAMESPACE
+                  + "' ver='" + XMLUtils.xmlEscape(ver) + "'/>";
+        }
         Stanza stanza = new Stanza("iq", "", account.name,
-            "<iq><query xmlns='jabber:iq:roster'/></iq>", attributes);
+            "<iq>" + query + "</iq>", attributes);
         String fullJid = null;
         try {
             fullJid = service.getFullJidByBare(account.name);
@@ -0,0 +1,447 @@
+package com.googlecode.asmack.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * <p>A thread safe, size bounded cache. Keys are striped over independently
+ * locked segments, each segment is a segmented LRU: new entries enter a
+ * probation area and are promoted to a protected area (80% of the segment)
+ * on their second hit. Entries only ever read once are evicted first, so a
+ * burst of one-off keys can't flush the frequently used ones.</p>
+ * <p>Entries may expire a fixed time after they were written, and may have
+ * a weight other than 1. Hits, misses, evictions and expirations are
+ * counted.</p>
+ * @param <K> The key type.
+ * @param <V> The value type.
+ */
+public class ConcurrentCache<K, V> {
+
+    /**
+     * Computes the weight of a cache entry.
+     * @param <K> The key type.
+     * @param <V> The value type.
+     */
+    public interface Weigher<K, V> {
+
+        /**
+         * Compute the weight of an entry.
+         * @param key K The key.
+         * @param value V The value.
+         * @return int The weight, at least 1.
+         */
+        int weigh(K key, V value);
+
+    }
+
+    /**
+     * Minimum capacity of a segment, smaller caches use fewer segments.
+     */
+    private static final int MIN_SEGMENT_CAPACITY = 16;
+
+    /**
+     * Maximum number of segments.
+     */
+    private static final int MAX_SEGMENTS = 16;
+
+    /**
+     * Percentage of a segment reserved for protected entries.
+     */
+    private static final int PROTECTED_PERCENT = 80;
+
+    /**
+     * A cached value.
+     * @param <V> The value type.
+     */
+    private static class Node<V> {
+
+        /**
+         * The cached value.
+         */
+        final V value;
+
+        /**
+         * The entry weight.
+         */
+        final int weight;
+
+        /**
+         * The write time in ms.
+         */
+        final long written;
+
+        /**
+         * Create a new node.
+         * @param value V The cached value.
+         * @param weight int The entry weight.
+         * @param written long The write time in ms.
+         */
+        Node(V value, int weight, long written) {
+            this.value = value;
+            this.weight = weight;
+            this.written = written;
+        }
+
+    }
+
+    /**
+     * A single lock stripe holding a segmented LRU.
+     * @param <K> The key type.
+     * @param <V> The value type.
+     */
+    private static class Segment<K, V> {
+
+        /**
+         * Entries seen once, in access order.
+         */
+        final LinkedHashMap<K, Node<V>> probation =
+                            new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+
+        /**
+         * Entries seen at least twice, in access order.
+         */
+        final LinkedHashMap<K, Node<V>> protect =
+                            new LinkedHashMap<K, Node<V>>(16, 0.75f, true);
+
+        /**
+         * Maximum weight of the segment.
+         */
+        final int capacity;
+
+        /**
+         * Maximum weight of the protected area.
+         */
+        final int protectedCapacity;
+
+        /**
+         * Current total weight.
+         */
+        int weight;
+
+        /**
+         * Current weight of the protected area.
+         */
+        int protectedWeight;
+
+        /**
+         * Number of hits.
+         */
+        long hits;
+
+        /**
+         * Number of misses.
+         */
+        long misses;
+
+        /**
+         * Number of entries evicted for size.
+         */
+        long evictions;
+
+        /**
+         * Number of expired entries.
+         */
+        long expirations;
+
+        /**
+         * Create a new segment.
+         * @param capacity int The maximum weight.
+         */
+        Segment(int capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = capacity * PROTECTED_PERCENT / 100;
+        }
+
+        /**
+         * Remove an entry from both areas.
+         * @param key K The key.
+         * @return Node<V> The removed node or null.
+         */
+        Node<V> unlink(K key) {
+            Node<V> node = protect.remove(key);
+            if (node != null) {
+                protectedWeight -= node.weight;
+            } else {
+                node = probation.remove(key);
+            }
+            if (node != null) {
+                weight -= node.weight;
+            }
+            return node;
+        }
+
+        /**
+         * Evict least recently used entries until the segment fits, probation
+         * entries first.
+         */
+        void evict() {
+            while (weight > capacity) {
+                LinkedHashMap<K, Node<V>> area =
+                        probation.isEmpty() ? protect : probation;
+                Iterator<Map.Entry<K, Node<V>>> eldest =
+                        area.entrySet().iterator();
+                Node<V> node = eldest.next().getValue();
+                eldest.remove();
+                weight -= node.weight;
+                if (area == protect) {
+                    protectedWeight -= node.weight;
+                }
+                evictions++;
+            }
+        }
+
+        /**
+         * Promote a probation entry to the protected area, demoting the
+         * least recently used protected entries back to probation.
+         * @param key K The key.
+         * @param node Node<V> The node.
+         */
+        void promote(K key, Node<V> node) {
+            probation.remove(key);
+            protect.put(key, node);
+            protectedWeight += node.weight;
+            while (protectedWeight > protectedCapacity && protect.size() > 1) {
+                Iterator<Map.Entry<K, Node<V>>> eldest =
+                        protect.entrySet().iterator();
+                Map.Entry<K, Node<V>> entry = eldest.next();
+                eldest.remove();
+                protectedWeight -= entry.getValue().weight;
+                probation.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+    }
+
+    /**
+     * The lock stripes.
+     */
+    private final Segment<K, V>[] segments;
+
+    /**
+     * The time to live after a write in ms, 0 for no expiration.
+     */
+    private final long ttl;
+
+    /**
+     * The entry weigher, or null for a weight of 1.
+     */
+    private final Weigher<K, V> weigher;
+
+    /**
+     * Create a new cache holding up to maxElements entries, without
+     * expiration.
+     * @param maxElements int The maximum number of elements.
+     */
+    public ConcurrentCache(int maxElements) {
+        this(maxElements, 0, null);
+    }
+
+    /**
+     * Create a new cache.
+     * @param maxWeight int The maximum total weight.
+     * @param ttl long The time to live after a write in ms, 0 for no
+     *                 expiration.
+     * @param weigher Weigher<K, V> The entry weigher, or null to count
+     *                entries.
+     */
+    @SuppressWarnings("unchecked")
+    public ConcurrentCache(int maxWeight, long ttl, Weigher<K, V> weigher) {
+        int count = 1;
+        while (count < MAX_SEGMENTS &&
+               maxWeight / (count * 2) >= MIN_SEGMENT_CAPACITY) {
+            count *= 2;
+        }
+        segments = new Segment[count];
+        for (int i = 0; i < count; i++) {
+            int capacity = maxWeight / count + (i < maxWeight % count ? 1 : 0);
+            segments[i] = new Segment<K, V>(Math.max(1, capacity));
+        }
+        this.ttl = ttl;
+        this.weigher = weigher;
+    }
+
+    /**
+     * Find the segment of a key.
+     * @param key Object The key.
+     * @return Segment<K, V> The responsible segment.
+     */
+    private Segment<K, V> segment(Object key) {
+        int hash = key.hashCode();
+        // spread the high bits, segment counts are powers of two
+        hash ^= (hash >>> 16);
+        hash ^= (hash >>> 7);
+        return segments[hash & (segments.length - 1)];
+    }
+
+    /**
+     * Retrieve a cached value.
+     * @param key K The key.
+     * @return V The value, or null if absent or expired.
+     */
+    public V get(K key) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            Node<V> node = segment.protect.get(key);
+            boolean probation = false;
+            if (node == null) {
+                node = segment.probation.get(key);
+                probation = true;
+            }
+            if (node == null) {
+                segment.misses++;
+                return null;
+            }
+            if (ttl > 0 && System.currentTimeMillis() - node.written > ttl) {
+                segment.unlink(key);
+                segment.expirations++;
+                segment.misses++;
+                return null;
+            }
+            if (probation) {
+                segment.promote(key, node);
+            }
+            segment.hits++;
+            return node.value;
+        }
+    }
+
+    /**
+     * Store a value. Values heavier than a whole segment are not cached.
+     * @param key K The key.
+     * @param value V The value.
+     */
+    public void put(K key, V value) {
+        int weight = weigher == null ? 1 : Math.max(1, weigher.weigh(key, value));
+        Node<V> node = new Node<V>(value, weight, System.currentTimeMillis());
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            boolean protect = segment.protect.containsKey(key);
+            segment.unlink(key);
+            if (weight > segment.capacity) {
+                segment.evictions++;
+                return;
+            }
+            segment.weight += weight;
+            if (protect) {
+                // an update keeps the entry in its area
+                segment.promote(key, node);
+            } else {
+                segment.probation.put(key, node);
+            }
+            segment.evict();
+        }
+    }
+
+    /**
+     * Remove a value.
+     * @param key K The key.
+     * @return V The removed value, or null.
+     */
+    public V remove(K key) {
+        Segment<K, V> segment = segment(key);
+        synchronized (segment) {
+            Node<V> node = segment.unlink(key);
+            return node == null ? null : node.value;
+        }
+    }
+
+    /**
+     * Remove all values. Statistics are kept.
+     */
+    public void clear() {
+        for (Segment<K, V> segment: segments) {
+            synchronized (segment) {
+                segment.probation.clear();
+                segment.protect.clear();
+                segment.weight = 0;
+                segment.protectedWeight = 0;
+            }
+        }
+    }
+
+    /**
+     * Retrieve the number of cached entries, including expired entries that
+     * haven't been read since.
+     * @return int The entry count.
+     */
+    public int size() {
+        int size = 0;
+        for (Segment<K, V> segment: segments) {
+            synchronized (segment) {
+                size += segment.probation.size() + segment.protect.size();
+            }
+        }
+        return size;
+    }
+
+    /**
+     * Retrieve the number of cache hits.
+     * @return long The hit count.
+     */
+    public long getHitCount() {
+        long count = 0;
+        for (Segment<K, V> segment: segments) {
+            synchronized (segment) {
+                count += segment.hits;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Retrieve the number of cache misses, including expired entries.
+     * @return long The miss count.
+     */
+    public long getMissCount() {
+        long count = 0;
+        for (Segment<K, V> segment: segments) {
+            synchronized (segment) {
+                count += segment.misses;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Retrieve the number of entries evicted for size.
+     * @return long The eviction count.
+     */
+    public long getEvictionCount() {
+        long count = 0;
+        for (Segment<K, V> segment: segments) {
+            synchronized (segment) {
+                count += segment.evictions;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Retrieve the number of entries dropped after their time to live.
+     * @return long The expiration count.
+     */
+    public long getExpirationCount() {
+        long count = 0;
+        for (Segment<K, V> segment: segments) {
+            synchronized (segment) {
+                count += segment.expirations;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Human readable statistics.
+     * @return String The statistics.
+     */
+    @Override
+    public String toString() {
+        return "size=" + size()
+             + " hits=" + getHitCount()
+             + " misses=" + getMissCount()
+             + " evictions=" + getEvictionCount()
+             + " expirations=" + getExpirationCount();
+    }
+
+}
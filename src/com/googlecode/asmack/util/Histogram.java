@@ -0,0 +1,142 @@
+package com.googlecode.asmack.util;
+
+/**
+ * A compact histogram with power of two buckets. Bucket i counts the values
+ * in [2^(i-1), 2^i), which keeps the memory constant while giving a
+ * relative error of at most 2x for percentile estimates. Values are linearly
+ * interpolated inside a bucket.
+ */
+public class Histogram {
+
+    /**
+     * Number of buckets, enough for any positive long.
+     */
+    private static final int BUCKETS = 64;
+
+    /**
+     * The bucket counters.
+     */
+    private final long[] buckets = new long[BUCKETS];
+
+    /**
+     * Number of recorded values.
+     */
+    private long count;
+
+    /**
+     * Sum of all recorded values.
+     */
+    private long sum;
+
+    /**
+     * The largest recorded value.
+     */
+    private long max;
+
+    /**
+     * Record a value. Negative values are recorded as 0.
+     * @param value long The value.
+     */
+    public synchronized void add(long value) {
+        if (value < 0) {
+            value = 0;
+        }
+        buckets[bucket(value)]++;
+        count++;
+        sum += value;
+        max = Math.max(max, value);
+    }
+
+    /**
+     * Compute the bucket of a value.
+     * @param value long A non negative value.
+     * @return int The bucket index.
+     */
+    private static int bucket(long value) {
+        return Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(value));
+    }
+
+    /**
+     * Retrieve the number of recorded values.
+     * @return long The value count.
+     */
+    public synchronized long getCount() {
+        return count;
+    }
+
+    /**
+     * Retrieve the sum of all recorded values.
+     * @return long The sum.
+     */
+    public synchronized long getSum() {
+        return sum;
+    }
+
+    /**
+     * Retrieve the largest recorded value.
+     * @return long The maximum, 0 if empty.
+     */
+    public synchronized long getMax() {
+        return max;
+    }
+
+    /**
+     * Retrieve the mean of all recorded values.
+     * @return long The mean, 0 if empty.
+     */
+    public synchronized long getMean() {
+        return count == 0 ? 0 : sum / count;
+    }
+
+    /**
+     * Estimate a percentile.
+     * @param percentile double The percentile in [0, 1], e.g. 0.95.
+     * @return long The estimated value, 0 if empty.
+     */
+    public synchronized long getPercentile(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        double rank = percentile * count;
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            if (buckets[i] == 0) {
+                continue;
+            }
+            if (seen + buckets[i] >= rank) {
+                long low = i == 0 ? 0 : 1l << (i - 1);
+                long high = Math.min(max, i == 0 ? 0 : (1l << i) - 1);
+                double fraction = (rank - seen) / buckets[i];
+                return low + (long) (fraction * Math.max(0, high - low));
+            }
+            seen += buckets[i];
+        }
+        return max;
+    }
+
+    /**
+     * Drop all recorded values.
+     */
+    public synchronized void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = 0;
+        }
+        count = 0;
+        sum = 0;
+        max = 0;
+    }
+
+    /**
+     * Human readable summary (count, mean, p50, p95, p99, max).
+     * @return String The summary.
+     */
+    @Override
+    public synchronized String toString() {
+        return "n=" + count + " mean=" + getMean()
+             + " p50=" + getPercentile(0.5)
+             + " p95=" + getPercentile(0.95)
+             + " p99=" + getPercentile(0.99)
+             + " max=" + max;
+    }
+
+}
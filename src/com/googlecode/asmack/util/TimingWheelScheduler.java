@@ -0,0 +1,465 @@
+package com.googlecode.asmack.util;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Executor;
+
+import android.util.Log;
+
+/**
+ * <p>A hashed timing wheel scheduler for periodic and delayed background
+ * work. Every task carries a coalescing key, scheduling a task while a task
+ * with the same key is pending collapses both into one run at the earlier
+ * deadline.</p>
+ * <p>Deadlines with enough slack are aligned to {@value #ALIGNMENT}ms
+ * boundaries, so unrelated tasks share wakeups. The wheel thread sleeps
+ * until the next deadline instead of ticking while idle. Tasks are run on
+ * the supplied executor, run counts and lateness are recorded per key.</p>
+ */
+public class TimingWheelScheduler {
+
+    /**
+     * Logging tag (TimingWheelScheduler).
+     */
+    private static final String TAG =
+                                TimingWheelScheduler.class.getSimpleName();
+
+    /**
+     * The duration of a single wheel slot in ms.
+     */
+    private static final long TICK = 1000;
+
+    /**
+     * The number of wheel slots.
+     */
+    private static final int SLOTS = 64;
+
+    /**
+     * Alignment of deadlines with enough slack, 15s.
+     */
+    private static final long ALIGNMENT = 15 * 1000;
+
+    /**
+     * Run statistics of a single task key.
+     */
+    public static class TaskStats {
+
+        /**
+         * Number of runs.
+         */
+        private long runs;
+
+        /**
+         * Number of schedule calls collapsed into a pending run.
+         */
+        private long coalesced;
+
+        /**
+         * Sum of the run lateness in ms.
+         */
+        private long totalLateness;
+
+        /**
+         * Maximum run lateness in ms.
+         */
+        private long maxLateness;
+
+        /**
+         * Retrieve the number of runs.
+         * @return long The run count.
+         */
+        public synchronized long getRuns() {
+            return runs;
+        }
+
+        /**
+         * Retrieve the number of coalesced schedule calls.
+         * @return long The number of collapsed duplicates.
+         */
+        public synchronized long getCoalesced() {
+            return coalesced;
+        }
+
+        /**
+         * Retrieve the average lateness of a run.
+         * @return long The average lateness in ms.
+         */
+        public synchronized long getAverageLateness() {
+            return runs == 0 ? 0 : totalLateness / runs;
+        }
+
+        /**
+         * Retrieve the maximum lateness of a run.
+         * @return long The maximum lateness in ms.
+         */
+        public synchronized long getMaxLateness() {
+            return maxLateness;
+        }
+
+        /**
+         * Record a run.
+         * @param lateness long The lateness of the run in ms.
+         */
+        private synchronized void run(long lateness) {
+            runs++;
+            totalLateness += lateness;
+            maxLateness = Math.max(maxLateness, lateness);
+        }
+
+        /**
+         * Record a collapsed duplicate.
+         */
+        private synchronized void coalesce() {
+            coalesced++;
+        }
+
+        /**
+         * Human readable statistics.
+         * @return String The statistics.
+         */
+        @Override
+        public synchronized String toString() {
+            return "runs=" + runs + " coalesced=" + coalesced
+                 + " lateness(avg/max)=" + getAverageLateness()
+                 + "/" + maxLateness + "ms";
+        }
+
+    }
+
+    /**
+     * A scheduled task.
+     */
+    private static class Task {
+
+        /**
+         * The coalescing key.
+         */
+        private final String key;
+
+        /**
+         * The task to run.
+         */
+        private Runnable runnable;
+
+        /**
+         * The repeat period in ms, 0 for one shot tasks.
+         */
+        private final long period;
+
+        /**
+         * The (aligned) deadline.
+         */
+        private long deadline;
+
+        /**
+         * Create a new task.
+         * @param key String The coalescing key.
+         * @param runnable Runnable The task to run.
+         * @param period long The repeat period, 0 for one shot tasks.
+         */
+        private Task(String key, Runnable runnable, long period) {
+            this.key = key;
+            this.runnable = runnable;
+            this.period = period;
+        }
+
+    }
+
+    /**
+     * The wheel slots.
+     */
+    private final ArrayList<ArrayList<Task>> wheel =
+                                    new ArrayList<ArrayList<Task>>(SLOTS);
+
+    /**
+     * Map of {key} => {pending task}.
+     */
+    private final HashMap<String, Task> tasks = new HashMap<String, Task>();
+
+    /**
+     * Map of {key} => {statistics}.
+     */
+    private final HashMap<String, TaskStats> stats =
+                                            new HashMap<String, TaskStats>();
+
+    /**
+     * The executor used to run tasks.
+     */
+    private final Executor executor;
+
+    /**
+     * The last processed tick.
+     */
+    private long currentTick = System.currentTimeMillis() / TICK;
+
+    /**
+     * The wheel thread, or null if not started.
+     */
+    private Thread thread;
+
+    /**
+     * Create a new scheduler running tasks on the given executor.
+     * @param executor Executor The task executor.
+     */
+    public TimingWheelScheduler(Executor executor) {
+        this.executor = executor;
+        for (int i = 0; i < SLOTS; i++) {
+            wheel.add(new ArrayList<Task>(4));
+        }
+    }
+
+    /**
+     * Schedule a one shot task. A pending task with the same key is merged,
+     * keeping the earlier deadline and the latest runnable.
+     * @param key String The coalescing key.
+     * @param runnable Runnable The task.
+     * @param delay long The delay in ms.
+     * @param slack long The acceptable additional delay in ms, used to align
+     *                   the deadline with other tasks.
+     */
+    public void schedule(String key, Runnable runnable, long delay, long slack)
+    {
+        add(new Task(key, runnable, 0),
+            System.currentTimeMillis() + delay, slack);
+    }
+
+    /**
+     * Schedule a periodic task. The first run is due after one period, the
+     * deadlines are aligned if the period allows it.
+     * @param key String The coalescing key.
+     * @param runnable Runnable The task.
+     * @param period long The period in ms.
+     */
+    public void scheduleAtFixedRate(String key, Runnable runnable, long period)
+    {
+        add(new Task(key, runnable, period),
+            System.currentTimeMillis() + period, period / 4);
+    }
+
+    /**
+     * Cancel a pending task.
+     * @param key String The coalescing key.
+     * @return boolean True if a task was removed.
+     */
+    public synchronized boolean cancel(String key) {
+        Task task = tasks.remove(key);
+        if (task == null) {
+            return false;
+        }
+        wheel.get(slot(task.deadline)).remove(task);
+        return true;
+    }
+
+    /**
+     * Retrieve a snapshot of the statistics of all task keys.
+     * @return Map<String, TaskStats> Map of {key} => {statistics}.
+     */
+    public synchronized Map<String, TaskStats> getStats() {
+        return new HashMap<String, TaskStats>(stats);
+    }
+
+    /**
+     * Log the statistics of all task keys.
+     */
+    public void dumpStats() {
+        for (Map.Entry<String, TaskStats> entry: getStats().entrySet()) {
+            Log.d(TAG, entry.getKey() + ": " + entry.getValue());
+        }
+    }
+
+    /**
+     * Stop the wheel thread and drop all pending tasks.
+     */
+    public synchronized void shutdown() {
+        tasks.clear();
+        for (ArrayList<Task> slot: wheel) {
+            slot.clear();
+        }
+        if (thread != null) {
+            thread.interrupt();
+            thread = null;
+        }
+    }
+
+    /**
+     * Compute the wheel slot of a deadline.
+     * @param deadline long The deadline.
+     * @return int The slot index.
+     */
+    private static int slot(long deadline) {
+        return (int) ((deadline / TICK) % SLOTS);
+    }
+
+    /**
+     * Align a deadline. Deadlines with at least {@value #ALIGNMENT}ms slack
+     * are moved to the next alignment boundary, all others to the next
+     * tick.
+     * @param due long The requested deadline.
+     * @param slack long The acceptable delay.
+     * @return long The aligned deadline.
+     */
+    private static long align(long due, long slack) {
+        long unit = slack >= ALIGNMENT ? ALIGNMENT : TICK;
+        return ((due + unit - 1) / unit) * unit;
+    }
+
+    /**
+     * Insert or merge a task.
+     * @param task Task The new task.
+     * @param due long The requested deadline.
+     * @param slack long The acceptable delay.
+     */
+    private synchronized void add(Task task, long due, long slack) {
+        long deadline = align(due, slack);
+        TaskStats taskStats = stats.get(task.key);
+        if (taskStats == null) {
+            taskStats = new TaskStats();
+            stats.put(task.key, taskStats);
+        }
+        Task pending = tasks.get(task.key);
+        if (pending != null) {
+            taskStats.coalesce();
+            pending.runnable = task.runnable;
+            if (pending.deadline <= deadline) {
+                return;
+            }
+            wheel.get(slot(pending.deadline)).remove(pending);
+            if (task.period == 0 && pending.period != 0) {
+                // keep the periodic task, just run it earlier
+                task = pending;
+            }
+        }
+        task.deadline = deadline;
+        tasks.put(task.key, task);
+        wheel.get(slot(deadline)).add(task);
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, TAG);
+            thread.setDaemon(true);
+            thread.start();
+        }
+        notifyAll();
+    }
+
+    /**
+     * The wheel loop, sleeping until the next deadline and dispatching all
+     * expired tasks.
+     */
+    private void loop() {
+        ArrayList<Task> expired = new ArrayList<Task>();
+        while (true) {
+            synchronized (this) {
+                if (thread != Thread.currentThread()) {
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                advance(now / TICK, expired);
+                if (expired.isEmpty()) {
+                    long next = nextDeadline();
+                    try {
+                        if (next == Long.MAX_VALUE) {
+                            wait();
+                        } else
+                        if (next > now) {
+                            wait(next - now);
+                        }
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+            }
+            long now = System.currentTimeMillis();
+            for (Task task: expired) {
+                dispatch(task, now);
+            }
+            expired.clear();
+        }
+    }
+
+    /**
+     * Process all slots up to a given tick, collecting expired tasks and
+     * rescheduling periodic ones. At most one full rotation is scanned,
+     * deadlines are absolute so skipped rotations need no bookkeeping.
+     * @param tick long The current tick.
+     * @param expired ArrayList<Task> The output list of expired tasks.
+     */
+    private void advance(long tick, ArrayList<Task> expired) {
+        long end = tick;
+        long start = Math.max(currentTick, end - SLOTS + 1);
+        for (long t = start; t <= end; t++) {
+            ArrayList<Task> slot = wheel.get((int) (t % SLOTS));
+            Iterator<Task> iterator = slot.iterator();
+            while (iterator.hasNext()) {
+                Task task = iterator.next();
+                if (task.deadline / TICK > tick) {
+                    continue;
+                }
+                iterator.remove();
+                tasks.remove(task.key);
+                expired.add(task);
+            }
+        }
+        currentTick = end;
+        long now = tick * TICK;
+        for (Task task: expired) {
+            if (task.period > 0 && !tasks.containsKey(task.key)) {
+                Task next = new Task(task.key, task.runnable, task.period);
+                long due = task.deadline + task.period;
+                if (due <= now) {
+                    // we slept through some periods, don't replay them
+                    due = now + task.period;
+                }
+                next.deadline = align(due, task.period / 4);
+                tasks.put(next.key, next);
+                wheel.get(slot(next.deadline)).add(next);
+            }
+        }
+    }
+
+    /**
+     * Compute the earliest pending deadline.
+     * @return long The next deadline, or Long.MAX_VALUE.
+     */
+    private long nextDeadline() {
+        long next = Long.MAX_VALUE;
+        for (Task task: tasks.values()) {
+            next = Math.min(next, task.deadline);
+        }
+        return next;
+    }
+
+    /**
+     * Hand a task to the executor, recording lateness and run count.
+     * @param task Task The expired task.
+     * @param now long The dispatch time.
+     */
+    private void dispatch(final Task task, long now) {
+        final TaskStats taskStats;
+        synchronized (this) {
+            taskStats = stats.get(task.key);
+        }
+        final long deadline = task.deadline;
+        final Runnable runnable = task.runnable;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (taskStats != null) {
+                    taskStats.run(System.currentTimeMillis() - deadline);
+                }
+                try {
+                    runnable.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "Task " + task.key + " failed", e);
+                }
+            }
+        });
+    }
+
+}
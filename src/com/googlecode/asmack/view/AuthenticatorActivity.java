@@ -54,6 +54,7 @@ import android.view.Window;
 import android.widget.EditText;
 
 import com.buddycloud.R;
+import com.buddycloud.view.ClientVisibility;
 import com.googlecode.asmack.sync.LoginTestThread;
 
 /**
@@ -106,6 +107,24 @@ public class AuthenticatorActivity extends AccountAuthenticatorActivity {
         usernameEdit.setText(username);
     }
 
+    /**
+     * Report the active state on resume.
+     */
+    @Override
+    protected void onResume() {
+        ClientVisibility.resumed(this);
+        super.onResume();
+    }
+
+    /**
+     * Report the inactive state on pause.
+     */
+    @Override
+    protected void onPause() {
+        ClientVisibility.paused(this);
+        super.onPause();
+    }
+
     /**
      * Create a wait dialog while the login thread is running.
      */
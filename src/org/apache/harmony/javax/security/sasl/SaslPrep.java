@@ -0,0 +1,157 @@
+package org.apache.harmony.javax.security.sasl;
+
+import android.os.Build;
+
+/**
+ * <p>SASLprep (RFC 4013) profile of stringprep, used to prepare user names
+ * and passwords for SCRAM.</p>
+ * <p>NFKC normalization requires {@link java.text.Normalizer} (API level
+ * 9), older platforms only pass ascii strings unchanged.</p>
+ */
+final class SaslPrep {
+
+    /**
+     * Utility class, no instances.
+     */
+    private SaslPrep() {
+    }
+
+    /**
+     * Prepare a string with the SASLprep profile.
+     * @param value String The string to prepare.
+     * @return String The prepared string.
+     * @throws SaslException If the string contains prohibited characters or
+     *                       violates the bidi rules.
+     */
+    static String prepare(String value) throws SaslException {
+        StringBuilder mapped = new StringBuilder(value.length());
+        boolean ascii = true;
+        for (int i = 0; i < value.length(); ) {
+            int c = value.codePointAt(i);
+            i += Character.charCount(c);
+            if (isMappedToNothing(c)) {
+                continue;
+            }
+            if (isNonAsciiSpace(c)) {
+                c = ' ';
+            }
+            ascii &= c < 0x80;
+            mapped.appendCodePoint(c);
+        }
+        String result = mapped.toString();
+        if (!ascii && Build.VERSION.SDK_INT >= 9) {
+            result = Nfkc.normalize(result);
+        }
+        boolean randAL = false;
+        boolean l = false;
+        for (int i = 0; i < result.length(); ) {
+            int c = result.codePointAt(i);
+            i += Character.charCount(c);
+            if (isProhibited(c)) {
+                throw new SaslException("SASLprep: prohibited character U+"
+                                      + Integer.toHexString(c));
+            }
+            byte direction = Character.getDirectionality(c);
+            randAL |= direction == Character.DIRECTIONALITY_RIGHT_TO_LEFT
+                   || direction ==
+                        Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC;
+            l |= direction == Character.DIRECTIONALITY_LEFT_TO_RIGHT;
+        }
+        if (randAL && (l ||
+                !isRandAL(result.codePointAt(0)) ||
+                !isRandAL(result.codePointBefore(result.length())))) {
+            throw new SaslException("SASLprep: invalid bidirectional string");
+        }
+        return result;
+    }
+
+    /**
+     * Check if a character is mapped to nothing (RFC 3454, B.1).
+     * @param c int The code point.
+     * @return boolean True if the character is dropped.
+     */
+    private static boolean isMappedToNothing(int c) {
+        return c == 0x00AD || c == 0x034F || c == 0x1806
+            || (c >= 0x180B && c <= 0x180D)
+            || c == 0x200B || c == 0x200C || c == 0x200D || c == 0x2060
+            || (c >= 0xFE00 && c <= 0xFE0F)
+            || c == 0xFEFF;
+    }
+
+    /**
+     * Check if a character is a non-ascii space (RFC 3454, C.1.2).
+     * @param c int The code point.
+     * @return boolean True for non-ascii spaces.
+     */
+    private static boolean isNonAsciiSpace(int c) {
+        return c == 0x00A0 || c == 0x1680
+            || (c >= 0x2000 && c <= 0x200B)
+            || c == 0x202F || c == 0x205F || c == 0x3000;
+    }
+
+    /**
+     * Check if a character is prohibited (RFC 4013, 2.3).
+     * @param c int The code point.
+     * @return boolean True if the character must not be used.
+     */
+    private static boolean isProhibited(int c) {
+        // C.2.1 / C.2.2 control characters
+        if (c < 0x20 || (c >= 0x7F && c <= 0x9F)
+            || c == 0x06DD || c == 0x070F || c == 0x180E
+            || c == 0x2028 || c == 0x2029
+            || (c >= 0x2061 && c <= 0x2063)
+            || (c >= 0x1D173 && c <= 0x1D17A)) {
+            return true;
+        }
+        // C.3 private use, C.5 surrogates
+        if ((c >= 0xE000 && c <= 0xF8FF)
+            || (c >= 0xF0000 && c <= 0xFFFFD)
+            || (c >= 0x100000 && c <= 0x10FFFD)
+            || (c >= 0xD800 && c <= 0xDFFF)) {
+            return true;
+        }
+        // C.4 non-characters, C.6 / C.7 inappropriate characters
+        if ((c >= 0xFDD0 && c <= 0xFDEF)
+            || (c & 0xFFFE) == 0xFFFE
+            || (c >= 0xFFF9 && c <= 0xFFFD)
+            || (c >= 0x2FF0 && c <= 0x2FFB)) {
+            return true;
+        }
+        // C.8 display properties, C.9 tagging characters
+        return c == 0x0340 || c == 0x0341 || c == 0x200E || c == 0x200F
+            || (c >= 0x202A && c <= 0x202E)
+            || (c >= 0x206A && c <= 0x206F)
+            || c == 0xE0001
+            || (c >= 0xE0020 && c <= 0xE007F);
+    }
+
+    /**
+     * Check if a character has right-to-left directionality.
+     * @param c int The code point.
+     * @return boolean True for R and AL characters.
+     */
+    private static boolean isRandAL(int c) {
+        byte direction = Character.getDirectionality(c);
+        return direction == Character.DIRECTIONALITY_RIGHT_TO_LEFT
+            || direction == Character.DIRECTIONALITY_RIGHT_TO_LEFT_ARABIC;
+    }
+
+    /**
+     * NFKC normalization, only loaded on platforms that ship
+     * {@link java.text.Normalizer}.
+     */
+    private static final class Nfkc {
+
+        /**
+         * Normalize a string to NFKC.
+         * @param value String The string.
+         * @return String The normalized string.
+         */
+        private static String normalize(String value) {
+            return java.text.Normalizer.normalize(
+                value, java.text.Normalizer.Form.NFKC);
+        }
+
+    }
+
+}
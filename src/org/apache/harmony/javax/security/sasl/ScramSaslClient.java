@@ -0,0 +1,620 @@
+package org.apache.harmony.javax.security.sasl;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+
+import org.apache.harmony.javax.security.auth.callback.NameCallback;
+
+import android.util.Base64;
+
+import com.googlecode.asmack.util.ConcurrentCache;
+
+/**
+ * <p>SCRAM (RFC 5802) sasl client for SCRAM-SHA-1 and SCRAM-SHA-256, without
+ * channel binding.</p>
+ * <p>The PBKDF2 derivation of the salted password is by far the most
+ * expensive part of a SCRAM login. The derived client and server keys are
+ * therefore cached per user, salt, iteration count and salted password
+ * fingerprint, reconnects with an unchanged server salt skip the derivation
+ * completely.</p>
+ * <p>User name and password are prepared with SASLprep (RFC 4013). The
+ * iteration count must be at least 4096 (RFC 7677) and is capped to keep
+ * a hostile server from stalling the login.</p>
+ */
+public class ScramSaslClient implements SaslClient {
+
+    /**
+     * The SCRAM-SHA-1 mechanism name.
+     */
+    public static final String SCRAM_SHA_1 = "SCRAM-SHA-1";
+
+    /**
+     * The SCRAM-SHA-256 mechanism name.
+     */
+    public static final String SCRAM_SHA_256 = "SCRAM-SHA-256";
+
+    /**
+     * Client-first message is pending.
+     */
+    private static final int STATE_INITIAL = 0;
+
+    /**
+     * Client-first message was sent, waiting for server-first.
+     */
+    private static final int STATE_CLIENT_FIRST_SENT = 1;
+
+    /**
+     * Client-final message was sent, waiting for the server signature.
+     */
+    private static final int STATE_CLIENT_FINAL_SENT = 2;
+
+    /**
+     * The server signature was verified.
+     */
+    private static final int STATE_COMPLETE = 3;
+
+    /**
+     * Maximum number of cached key pairs.
+     */
+    private static final int KEY_CACHE_SIZE = 16;
+
+    /**
+     * Minimum accepted iteration count (RFC 7677).
+     */
+    private static final int MIN_ITERATIONS = 4096;
+
+    /**
+     * Maximum accepted iteration count.
+     */
+    private static final int MAX_ITERATIONS = 100000;
+
+    /**
+     * Map of {mechanism, user, salt, iterations, password fingerprint} =>
+     * {derived keys}.
+     */
+    private static final ConcurrentCache<String, DerivedKeys> KEY_CACHE =
+                    new ConcurrentCache<String, DerivedKeys>(KEY_CACHE_SIZE);
+
+    /**
+     * Random source for client nonces.
+     */
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    /**
+     * The client and server key derived from a salted password.
+     */
+    private static class DerivedKeys {
+
+        /**
+         * HMAC(SaltedPassword, "Client Key").
+         */
+        private final byte[] clientKey;
+
+        /**
+         * HMAC(SaltedPassword, "Server Key").
+         */
+        private final byte[] serverKey;
+
+        /**
+         * Create a new key pair.
+         * @param clientKey byte[] The client key.
+         * @param serverKey byte[] The server key.
+         */
+        private DerivedKeys(byte[] clientKey, byte[] serverKey) {
+            this.clientKey = clientKey;
+            this.serverKey = serverKey;
+        }
+
+    }
+
+    /**
+     * The mechanism name.
+     */
+    private final String mechanism;
+
+    /**
+     * The JCA hmac algorithm name.
+     */
+    private final String hmacAlgorithm;
+
+    /**
+     * The JCA digest algorithm name.
+     */
+    private final String digestAlgorithm;
+
+    /**
+     * The callback handler for user name and password.
+     */
+    private final CallbackHandler cbh;
+
+    /**
+     * The optional authorization id.
+     */
+    private final String authorizationId;
+
+    /**
+     * The client nonce.
+     */
+    private String clientNonce;
+
+    /**
+     * The authentication id.
+     */
+    private String user;
+
+    /**
+     * The utf-8 encoded password, cleared after use.
+     */
+    private byte[] password;
+
+    /**
+     * The gs2 header sent with the client-first message.
+     */
+    private String gs2Header;
+
+    /**
+     * The client-first message without gs2 header.
+     */
+    private String clientFirstBare;
+
+    /**
+     * The expected server signature.
+     */
+    private byte[] serverSignature;
+
+    /**
+     * The current exchange state.
+     */
+    private int state = STATE_INITIAL;
+
+    /**
+     * Create a new SCRAM client.
+     * @param mechanism String The mechanism name.
+     * @param hmacAlgorithm String The JCA hmac algorithm.
+     * @param digestAlgorithm String The JCA digest algorithm.
+     * @param authorizationId String The optional authorization id.
+     * @param cbh CallbackHandler The callback handler for name/password.
+     */
+    private ScramSaslClient(
+        String mechanism,
+        String hmacAlgorithm,
+        String digestAlgorithm,
+        String authorizationId,
+        CallbackHandler cbh
+    ) {
+        this.mechanism = mechanism;
+        this.hmacAlgorithm = hmacAlgorithm;
+        this.digestAlgorithm = digestAlgorithm;
+        this.authorizationId = authorizationId;
+        this.cbh = cbh;
+    }
+
+    /**
+     * Create a SCRAM client for the given mechanism.
+     * @param mechanism String SCRAM-SHA-1 or SCRAM-SHA-256.
+     * @param authorizationId String The optional authorization id.
+     * @param cbh CallbackHandler The callback handler, must answer
+     *                            {@link NameCallback} and
+     *                            {@link PasswordCallback}.
+     * @return SaslClient The client, or null if the mechanism is unsupported.
+     */
+    public static SaslClient getClient(
+        String mechanism,
+        String authorizationId,
+        CallbackHandler cbh
+    ) {
+        if (cbh == null) {
+            return null;
+        }
+        if (SCRAM_SHA_1.equals(mechanism)) {
+            return new ScramSaslClient(
+                SCRAM_SHA_1, "HmacSHA1", "SHA-1", authorizationId, cbh
+            );
+        }
+        if (SCRAM_SHA_256.equals(mechanism)) {
+            return new ScramSaslClient(
+                SCRAM_SHA_256, "HmacSHA256", "SHA-256", authorizationId, cbh
+            );
+        }
+        return null;
+    }
+
+    /**
+     * Drop all cached keys, e.g. after an account has been removed.
+     */
+    public static void clearKeyCache() {
+        KEY_CACHE.clear();
+    }
+
+    /**
+     * Use a fixed client nonce instead of a random one, for test vectors.
+     * Must be called before the initial response.
+     * @param nonce String The printable client nonce.
+     */
+    void setClientNonce(String nonce) {
+        clientNonce = nonce;
+    }
+
+    /**
+     * SCRAM is a client first mechanism.
+     * @return boolean Always true.
+     */
+    public boolean hasInitialResponse() {
+        return true;
+    }
+
+    /**
+     * Check if the server signature was verified.
+     * @return boolean True after a successful exchange.
+     */
+    public boolean isComplete() {
+        return state == STATE_COMPLETE;
+    }
+
+    /**
+     * Process the next server message.
+     * @param challenge byte[] The server message, null or empty for the
+     *                         initial response.
+     * @return byte[] The response, or null after the server-final message.
+     * @throws SaslException On protocol errors, a server error or a server
+     *                       signature mismatch.
+     */
+    public byte[] evaluateChallenge(byte[] challenge) throws SaslException {
+        switch (state) {
+        case STATE_INITIAL:
+            state = STATE_CLIENT_FIRST_SENT;
+            return toUTF8(clientFirst());
+        case STATE_CLIENT_FIRST_SENT:
+            state = STATE_CLIENT_FINAL_SENT;
+            return toUTF8(clientFinal(fromUTF8(challenge)));
+        case STATE_CLIENT_FINAL_SENT:
+            verifyServerFinal(fromUTF8(challenge));
+            state = STATE_COMPLETE;
+            return null;
+        default:
+            throw new SaslException(mechanism + ": authentication already "
+                                  + "completed");
+        }
+    }
+
+    /**
+     * Build the client-first message.
+     * @return String The client-first message.
+     * @throws SaslException If user name or password are unavailable.
+     */
+    private String clientFirst() throws SaslException {
+        readUserInfo();
+        if (clientNonce == null) {
+            byte[] nonce = new byte[24];
+            RANDOM.nextBytes(nonce);
+            clientNonce = Base64.encodeToString(nonce, Base64.NO_WRAP);
+        }
+        gs2Header = (authorizationId == null)
+                  ? "n,,"
+                  : "n,a=" + escape(authorizationId) + ",";
+        clientFirstBare = "n=" + escape(user) + ",r=" + clientNonce;
+        return gs2Header + clientFirstBare;
+    }
+
+    /**
+     * Answer the server-first message with the client proof.
+     * @param serverFirst String The server-first message.
+     * @return String The client-final message.
+     * @throws SaslException On invalid server data.
+     */
+    private String clientFinal(String serverFirst) throws SaslException {
+        String nonce = attribute(serverFirst, 'r');
+        String salt = attribute(serverFirst, 's');
+        String iterationValue = attribute(serverFirst, 'i');
+        if (nonce == null || salt == null || iterationValue == null) {
+            throw new SaslException(mechanism + ": invalid server-first "
+                                  + "message");
+        }
+        if (!nonce.startsWith(clientNonce)) {
+            throw new SaslException(mechanism + ": server nonce mismatch");
+        }
+        int iterations;
+        try {
+            iterations = Integer.parseInt(iterationValue);
+        } catch (NumberFormatException e) {
+            throw new SaslException(mechanism + ": invalid iteration count",
+                                    e);
+        }
+        if (iterations < MIN_ITERATIONS || iterations > MAX_ITERATIONS) {
+            throw new SaslException(mechanism + ": unacceptable iteration "
+                                  + "count " + iterations);
+        }
+        DerivedKeys keys = getKeys(salt, iterations);
+        String channelBinding = Base64.encodeToString(
+            toUTF8(gs2Header), Base64.NO_WRAP
+        );
+        String clientFinalBare = "c=" + channelBinding + ",r=" + nonce;
+        byte[] authMessage = toUTF8(
+            clientFirstBare + "," + serverFirst + "," + clientFinalBare
+        );
+        try {
+            byte[] storedKey = MessageDigest.getInstance(digestAlgorithm)
+                                            .digest(keys.clientKey);
+            byte[] proof = hmac(storedKey, authMessage);
+            for (int i = 0; i < proof.length; i++) {
+                proof[i] ^= keys.clientKey[i];
+            }
+            serverSignature = hmac(keys.serverKey, authMessage);
+            return clientFinalBare + ",p="
+                 + Base64.encodeToString(proof, Base64.NO_WRAP);
+        } catch (GeneralSecurityException e) {
+            throw new SaslException(mechanism + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Verify the server-final message.
+     * @param serverFinal String The server-final message.
+     * @throws SaslException On a server error or signature mismatch.
+     */
+    private void verifyServerFinal(String serverFinal) throws SaslException {
+        String error = attribute(serverFinal, 'e');
+        if (error != null) {
+            throw new SaslException(mechanism + ": server error " + error);
+        }
+        String verifier = attribute(serverFinal, 'v');
+        if (verifier == null || !Arrays.equals(
+                serverSignature, Base64.decode(verifier, Base64.DEFAULT))) {
+            throw new SaslException(mechanism + ": invalid server signature");
+        }
+    }
+
+    /**
+     * Retrieve the client and server key for a salt and iteration count,
+     * deriving and caching them if needed. Cache entries are keyed by a
+     * fingerprint of the password salted with the server salt and
+     * iteration count, a password change results in a new entry.
+     * @param salt String The base64 encoded salt.
+     * @param iterations int The iteration count.
+     * @return DerivedKeys The derived keys.
+     * @throws SaslException If the hash algorithms are unavailable.
+     */
+    private DerivedKeys getKeys(String salt, int iterations)
+        throws SaslException
+    {
+        try {
+            byte[] saltBytes = Base64.decode(salt, Base64.DEFAULT);
+            byte[] fingerprint = hmac(
+                password, toUTF8(mechanism + ',' + salt + ',' + iterations)
+            );
+            String cacheKey = mechanism + '\u0000' + user + '\u0000'
+                            + salt + '\u0000' + iterations + '\u0000'
+                            + Base64.encodeToString(fingerprint,
+                                                    Base64.NO_WRAP);
+            DerivedKeys keys = KEY_CACHE.get(cacheKey);
+            if (keys != null) {
+                clearPassword();
+                return keys;
+            }
+            byte[] saltedPassword = hi(password, saltBytes, iterations);
+            clearPassword();
+            keys = new DerivedKeys(
+                hmac(saltedPassword, toUTF8("Client Key")),
+                hmac(saltedPassword, toUTF8("Server Key"))
+            );
+            Arrays.fill(saltedPassword, (byte) 0);
+            KEY_CACHE.put(cacheKey, keys);
+            return keys;
+        } catch (GeneralSecurityException e) {
+            throw new SaslException(mechanism + ": " + e.getMessage(), e);
+        } catch (IllegalArgumentException e) {
+            throw new SaslException(mechanism + ": invalid salt", e);
+        }
+    }
+
+    /**
+     * The SCRAM Hi() function, PBKDF2 with the mechanism hmac and a single
+     * output block.
+     * @param secret byte[] The password.
+     * @param salt byte[] The salt.
+     * @param iterations int The iteration count.
+     * @return byte[] The salted password.
+     * @throws GeneralSecurityException If the hmac is unavailable.
+     */
+    private byte[] hi(byte[] secret, byte[] salt, int iterations)
+        throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance(hmacAlgorithm);
+        mac.init(new SecretKeySpec(secret, hmacAlgorithm));
+        mac.update(salt);
+        byte[] u = mac.doFinal(new byte[]{0, 0, 0, 1});
+        byte[] result = u.clone();
+        for (int i = 1; i < iterations; i++) {
+            u = mac.doFinal(u);
+            for (int j = 0; j < result.length; j++) {
+                result[j] ^= u[j];
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Compute the mechanism hmac.
+     * @param key byte[] The hmac key.
+     * @param data byte[] The data.
+     * @return byte[] The hmac value.
+     * @throws GeneralSecurityException If the hmac is unavailable.
+     */
+    private byte[] hmac(byte[] key, byte[] data)
+        throws GeneralSecurityException
+    {
+        Mac mac = Mac.getInstance(hmacAlgorithm);
+        mac.init(new SecretKeySpec(key, hmacAlgorithm));
+        return mac.doFinal(data);
+    }
+
+    /**
+     * Query user name and password from the callback handler.
+     * @throws SaslException If the callbacks could not be answered.
+     */
+    private void readUserInfo() throws SaslException {
+        NameCallback nameCb = new NameCallback(mechanism + " user: ");
+        PasswordCallback passwordCb =
+            new PasswordCallback(mechanism + " password: ", false);
+        try {
+            cbh.handle(new Callback[] { nameCb, passwordCb });
+        } catch (IOException e) {
+            throw new SaslException(mechanism + ": callback failed", e);
+        } catch (UnsupportedCallbackException e) {
+            throw new SaslException(mechanism + ": callback failed", e);
+        }
+        String name = nameCb.getName();
+        char[] passwordChars = passwordCb.getPassword();
+        passwordCb.clearPassword();
+        if (name == null || passwordChars == null) {
+            throw new SaslException(mechanism + ": user and password must be "
+                                  + "specified");
+        }
+        try {
+            user = SaslPrep.prepare(name);
+            password = toUTF8(SaslPrep.prepare(new String(passwordChars)));
+        } finally {
+            Arrays.fill(passwordChars, '\u0000');
+        }
+    }
+
+    /**
+     * Extract a single letter attribute from a SCRAM message.
+     * @param message String The SCRAM message.
+     * @param name char The attribute name.
+     * @return String The attribute value, or null.
+     */
+    private static String attribute(String message, char name) {
+        for (String part: message.split(",")) {
+            if (part.length() > 1 &&
+                part.charAt(0) == name &&
+                part.charAt(1) == '=') {
+                return part.substring(2);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Escape a SCRAM saslname ("=" and ",").
+     * @param name String The name.
+     * @return String The escaped name.
+     */
+    private static String escape(String name) {
+        return name.replace("=", "=3D").replace(",", "=2C");
+    }
+
+    /**
+     * Encode a String as utf-8.
+     * @param value String The string.
+     * @return byte[] The utf-8 representation.
+     * @throws SaslException If utf-8 is unsupported.
+     */
+    private byte[] toUTF8(String value) throws SaslException {
+        try {
+            return value.getBytes("UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new SaslException(mechanism + ": utf-8 unsupported", e);
+        }
+    }
+
+    /**
+     * Decode an utf-8 server message.
+     * @param value byte[] The raw message.
+     * @return String The decoded message.
+     * @throws SaslException If the message is empty or utf-8 unsupported.
+     */
+    private String fromUTF8(byte[] value) throws SaslException {
+        if (value == null || value.length == 0) {
+            throw new SaslException(mechanism + ": empty server message");
+        }
+        try {
+            return new String(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new SaslException(mechanism + ": utf-8 unsupported", e);
+        }
+    }
+
+    /**
+     * Overwrite and drop the password.
+     */
+    private void clearPassword() {
+        if (password != null) {
+            Arrays.fill(password, (byte) 0);
+            password = null;
+        }
+    }
+
+    /**
+     * Retrieve the mechanism name.
+     * @return String SCRAM-SHA-1 or SCRAM-SHA-256.
+     */
+    public String getMechanismName() {
+        return mechanism;
+    }
+
+    /**
+     * Retrieve a negotiated property, only the qop ("auth") is available.
+     * @param propName String The property name.
+     * @return Object The property value, or null.
+     */
+    public Object getNegotiatedProperty(String propName) {
+        if (!isComplete()) {
+            throw new IllegalStateException(mechanism + ": authentication not "
+                                          + "completed");
+        }
+        if (Sasl.QOP.equals(propName)) {
+            return "auth";
+        }
+        return null;
+    }
+
+    /**
+     * SCRAM offers no security layer.
+     * @param incoming byte[] Ignored.
+     * @param offset int Ignored.
+     * @param len int Ignored.
+     * @return byte[] Never.
+     */
+    public byte[] unwrap(byte[] incoming, int offset, int len)
+        throws SaslException
+    {
+        throw new IllegalStateException(mechanism + ": this mechanism "
+                                      + "supports neither integrity nor "
+                                      + "privacy");
+    }
+
+    /**
+     * SCRAM offers no security layer.
+     * @param outgoing byte[] Ignored.
+     * @param offset int Ignored.
+     * @param len int Ignored.
+     * @return byte[] Never.
+     */
+    public byte[] wrap(byte[] outgoing, int offset, int len)
+        throws SaslException
+    {
+        throw new IllegalStateException(mechanism + ": this mechanism "
+                                      + "supports neither integrity nor "
+                                      + "privacy");
+    }
+
+    /**
+     * Clear the password.
+     */
+    public void dispose() throws SaslException {
+        clearPassword();
+    }
+
+}
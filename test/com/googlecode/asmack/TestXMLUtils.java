@@ -0,0 +1,76 @@
+package com.googlecode.asmack;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestXMLUtils {
+
+    @Test
+    public void shouldFindTheFirstChildTag() {
+        assertThat(XMLUtils.getFirstChildTag(
+            "<iq type='get'><query xmlns='jabber:iq:roster'/></iq>"),
+            equalTo("<query xmlns='jabber:iq:roster'/>"));
+        assertThat(XMLUtils.getFirstChildTag("<iq type='result'/>"),
+                   nullValue());
+        assertThat(XMLUtils.getFirstChildTag("<iq type='result'></iq>"),
+                   nullValue());
+        assertThat(XMLUtils.getFirstChildTag("<message>text</message>"),
+                   nullValue());
+        assertThat(XMLUtils.getFirstChildTag("<iq><query"), nullValue());
+        assertThat(XMLUtils.getFirstChildTag(null), nullValue());
+    }
+
+    @Test
+    public void shouldSkipQuotedAngleBrackets() {
+        assertThat(XMLUtils.getFirstChildTag(
+            "<message from='a>b' to=\"c>/d\"><body a='>'>x</body></message>"),
+            equalTo("<body a='>'>"));
+    }
+
+    @Test
+    public void shouldSkipCommentsInstructionsAndCdata() {
+        assertThat(XMLUtils.getFirstChildTag(
+            "<?xml version='1.0'?><message><!-- <a> -->"
+            + "<![CDATA[<b>]]><?pi <c>?><body/></message>"),
+            equalTo("<body/>"));
+    }
+
+    @Test
+    public void shouldReturnOnlyDirectChildren() {
+        List<String> tags = XMLUtils.getChildTags(
+            "<presence><x><c xmlns='nested'/></x><show>away</show>"
+            + "<c xmlns='http://jabber.org/protocol/caps' ver='v'/>"
+            + "</presence>");
+        assertThat(tags.size(), equalTo(3));
+        assertThat(tags.get(0), equalTo("<x>"));
+        assertThat(tags.get(1), equalTo("<show>"));
+        assertThat(XMLUtils.getAttributeValue(tags.get(2), "ver"),
+                   equalTo("v"));
+    }
+
+    @Test
+    public void shouldReadTagNamesAndAttributes() {
+        String tag = "<q:query xmlns:q='urn:q' xmlns = \"urn:d\""
+                   + " a='node=x' node='n&amp;1'>";
+        assertThat(XMLUtils.getTagName(tag), equalTo("q:query"));
+        assertThat(XMLUtils.getTagName("<c/>"), equalTo("c"));
+        assertThat(XMLUtils.getAttributeValue(tag, "xmlns"),
+                   equalTo("urn:d"));
+        assertThat(XMLUtils.getAttributeValue(tag, "xmlns:q"),
+                   equalTo("urn:q"));
+        assertThat(XMLUtils.getAttributeValue(tag, "node"),
+                   equalTo("n&amp;1"));
+        assertThat(XMLUtils.getAttributeValue(tag, "missing"), nullValue());
+        assertThat(XMLUtils.getAttributeValue("<c a=b/>", "a"), nullValue());
+    }
+
+}
@@ -0,0 +1,58 @@
+package com.googlecode.asmack.connection.impl;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+import java.net.InetSocketAddress;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestTcpConnection {
+
+    @Test
+    public void shouldParseDomainsAndIPv4Addresses() {
+        assertAddress("example.com", "example.com", 5222);
+        assertAddress(" example.com:5223 ", "example.com", 5223);
+        assertAddress("192.0.2.1:443", "192.0.2.1", 443);
+    }
+
+    @Test
+    public void shouldParseBracketedIPv6Literals() {
+        assertAddress("[2001:db8::1]", "2001:db8::1", 5222);
+        assertAddress("[2001:db8::1]:5223", "2001:db8::1", 5223);
+        assertAddress("[::1]:1", "::1", 1);
+    }
+
+    @Test
+    public void shouldRejectMalformedAddresses() {
+        assertInvalid("");
+        assertInvalid(":5222");
+        assertInvalid("example.com:");
+        assertInvalid("example.com:port");
+        assertInvalid("example.com:0");
+        assertInvalid("example.com:65536");
+        // IPv6 literals must be bracketed
+        assertInvalid("2001:db8::1");
+        assertInvalid("[2001:db8::1");
+        assertInvalid("[2001:db8::1]5222");
+        assertInvalid("[2001:db8::1]:");
+        assertInvalid("[]:5222");
+        assertInvalid("[example.com]:5222");
+    }
+
+    private void assertAddress(String address, String host, int port) {
+        InetSocketAddress result = TcpConnection.parseAddress(address, 5222);
+        assertThat(result.getHostName(), equalTo(host));
+        assertThat(result.getPort(), equalTo(port));
+    }
+
+    private void assertInvalid(String address) {
+        assertThat(TcpConnection.parseAddress(address, 5222), nullValue());
+    }
+
+}
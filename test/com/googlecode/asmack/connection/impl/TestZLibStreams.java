@@ -0,0 +1,150 @@
+package com.googlecode.asmack.connection.impl;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.zip.Deflater;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestZLibStreams {
+
+    @Test
+    public void shouldRoundTripStanzas() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ZLibOutputStream out = new ZLibOutputStream(wire);
+        byte[] data = stanzas(200);
+        out.write(data);
+        out.flush();
+        assertArrayEquals(data, inflate(wire.toByteArray(), data.length));
+    }
+
+    @Test
+    public void shouldDecodeEveryStanzaRightAfterItsFlush() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        ZLibOutputStream out =
+            new ZLibOutputStream(wire, Deflater.DEFAULT_COMPRESSION);
+        ByteArrayOutputStream sent = new ByteArrayOutputStream();
+        for (int i = 0; i < 50; i++) {
+            byte[] stanza = stanza(i);
+            if (i % 2 == 0) {
+                out.write(stanza);
+            } else {
+                // the single byte path must produce the same stream
+                for (byte b: stanza) {
+                    out.write(b);
+                }
+            }
+            out.flush();
+            sent.write(stanza);
+            // a sync flush makes all input so far decodable by the peer
+            assertArrayEquals(sent.toByteArray(),
+                              inflate(wire.toByteArray(), sent.size()));
+        }
+    }
+
+    @Test
+    public void shouldKeepTheLevelOfAStartedStream() throws Exception {
+        ByteArrayOutputStream wire = new ByteArrayOutputStream();
+        // android deflaters reject level changes once input was set
+        ZLibOutputStream out = new ZLibOutputStream(wire,
+            new AndroidDeflater(Deflater.DEFAULT_COMPRESSION));
+        byte[] data = new byte[16 * 1024];
+        new Random(42).nextBytes(data);
+        out.write(data);
+        out.flush();
+        byte[] stanzas = stanzas(100);
+        for (int i = 0; i < stanzas.length; i += 100) {
+            out.write(stanzas, i, Math.min(100, stanzas.length - i));
+            out.flush();
+        }
+        byte[] expected = new byte[data.length + stanzas.length];
+        System.arraycopy(data, 0, expected, 0, data.length);
+        System.arraycopy(stanzas, 0, expected, data.length, stanzas.length);
+        assertArrayEquals(expected,
+                          inflate(wire.toByteArray(), expected.length));
+    }
+
+    @Test
+    public void shouldReportNoInputAvailableWhenTheInflaterIsEmpty()
+        throws Exception
+    {
+        ZLibInputStream in = new ZLibInputStream(
+            new ByteArrayInputStream(new byte[0]));
+        assertThat(in.available(), equalTo(0));
+    }
+
+    /** a deflater with the android (harmony) setLevel semantics */
+    private static class AndroidDeflater extends Deflater {
+
+        private boolean started = false;
+
+        AndroidDeflater(int level) {
+            super(level);
+        }
+
+        @Override
+        public void setInput(byte[] buffer, int off, int len) {
+            started = true;
+            super.setInput(buffer, off, len);
+        }
+
+        @Override
+        public void setLevel(int level) {
+            if (started) {
+                throw new IllegalStateException();
+            }
+            super.setLevel(level);
+        }
+
+        @Override
+        public void setStrategy(int strategy) {
+            if (started) {
+                throw new IllegalStateException();
+            }
+            super.setStrategy(strategy);
+        }
+
+    }
+
+    /** inflates exactly length bytes from a (possibly unfinished) stream */
+    private byte[] inflate(byte[] compressed, int length) throws IOException {
+        ZLibInputStream in = new ZLibInputStream(
+            new ByteArrayInputStream(compressed));
+        byte[] result = new byte[length];
+        int offset = 0;
+        while (offset < length) {
+            int count = in.read(result, offset, length - offset);
+            if (count == -1) {
+                throw new IOException("Stream ended after " + offset);
+            }
+            offset += count;
+        }
+        return result;
+    }
+
+    /** creates a batch of similar message stanzas */
+    private byte[] stanzas(int count) throws IOException {
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (int i = 0; i < count; i++) {
+            result.write(stanza(i));
+        }
+        return result.toByteArray();
+    }
+
+    private byte[] stanza(int i) throws IOException {
+        return ("<message to='user" + (i % 7) + "@example.com/phone'"
+              + " id='msg-" + i + "' type='chat'><body>Message number "
+              + i + "</body></message>").getBytes("UTF-8");
+    }
+
+}
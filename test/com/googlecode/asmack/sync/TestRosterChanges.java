@@ -0,0 +1,96 @@
+package com.googlecode.asmack.sync;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertThat;
+
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+public class TestRosterChanges {
+
+    private RosterChanges changes;
+
+    @Before
+    public void setUp() {
+        changes = new RosterChanges();
+    }
+
+    @Test
+    public void shouldStoreOnlyMutualSubscriptions() {
+        assertThat(RosterChanges.isContact(item("a", "both")), equalTo(true));
+        assertThat(RosterChanges.isContact(item("a", "to")), equalTo(false));
+        assertThat(RosterChanges.isContact(item("a", "from")), equalTo(false));
+        assertThat(RosterChanges.isContact(item("a", "none")), equalTo(false));
+        assertThat(RosterChanges.isContact(item("a", "remove")),
+                   equalTo(false));
+        assertThat(RosterChanges.isContact(item("a", null)), equalTo(false));
+    }
+
+    @Test
+    public void shouldDeleteItemsThatAreNoLongerMutual() {
+        changes.add(item("a@example.com", "both"));
+        changes.add(item("b@example.com", "from"));
+        changes.add(item("c@example.com", "none"));
+        changes.add(item("d@example.com", "remove"));
+        assertJids(changes.getContacts(), "a@example.com");
+        assertArrayEquals(new String[]{
+            "b@example.com", "c@example.com", "d@example.com"
+        }, changes.getRemoved());
+        assertThat(changes.size(), equalTo(4));
+    }
+
+    @Test
+    public void shouldApplyOnlyTheLastPushOfAJid() {
+        changes.add(item("a@example.com", "both"));
+        changes.add(item("b@example.com", "both"));
+        changes.add(item("a@example.com", "remove"));
+        changes.add(item("c@example.com", "to"));
+        changes.add(item("c@example.com", "both"));
+        assertJids(changes.getContacts(), "b@example.com", "c@example.com");
+        assertArrayEquals(new String[]{"a@example.com"},
+                          changes.getRemoved());
+        assertThat(changes.size(), equalTo(3));
+    }
+
+    @Test
+    public void shouldKeepThePushOrderOfTheLastPush() {
+        changes.add(item("a@example.com", "both"));
+        changes.add(item("b@example.com", "both"));
+        changes.add(item("a@example.com", "both"));
+        assertJids(changes.getContacts(), "b@example.com", "a@example.com");
+    }
+
+    @Test
+    public void shouldKeepTheLastVersionedPush() {
+        assertThat(changes.getVer(), nullValue());
+        changes.setVer("ver7");
+        changes.setVer(null);
+        changes.setVer("");
+        assertThat(changes.getVer(), equalTo("ver7"));
+        changes.setVer("ver9");
+        assertThat(changes.getVer(), equalTo("ver9"));
+    }
+
+    @Test
+    public void shouldHaveNoChangesWithoutPushes() {
+        assertThat(changes.size(), equalTo(0));
+        assertThat(changes.getContacts().size(), equalTo(0));
+        assertThat(changes.getRemoved().length, equalTo(0));
+    }
+
+    private RosterReader.Item item(String jid, String subscription) {
+        return new RosterReader.Item(jid, null, subscription);
+    }
+
+    private void assertJids(List<RosterReader.Item> items, String... jids) {
+        assertThat(items.size(), equalTo(jids.length));
+        for (int i = 0; i < jids.length; i++) {
+            assertThat(items.get(i).jid, equalTo(jids[i]));
+        }
+    }
+
+}
@@ -0,0 +1,125 @@
+package com.googlecode.asmack.util;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.hamcrest.core.IsNull.nullValue;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Test;
+
+public class TestConcurrentCache {
+
+    @Test
+    public void shouldEvictTheLeastRecentlyUsedProbationEntryFirst() {
+        // 10 entries fit a single segment, 8 of them protected
+        ConcurrentCache<String, Integer> cache = filledCache(10);
+        // a second hit promotes "0" to the protected area
+        assertThat(cache.get("0"), equalTo(0));
+        cache.put("10", 10);
+        assertThat(cache.size(), equalTo(10));
+        assertThat(cache.getEvictionCount(), equalTo(1L));
+        assertThat(cache.get("1"), nullValue());
+        assertThat(cache.get("0"), equalTo(0));
+        assertThat(cache.get("10"), equalTo(10));
+    }
+
+    @Test
+    public void shouldKeepProtectedEntriesDuringAScan() {
+        ConcurrentCache<String, Integer> cache = filledCache(10);
+        for (int i = 0; i < 5; i++) {
+            cache.get(Integer.toString(i));
+        }
+        // one-off keys only ever replace probation entries
+        for (int i = 100; i < 150; i++) {
+            cache.put(Integer.toString(i), i);
+        }
+        for (int i = 0; i < 5; i++) {
+            assertThat(cache.get(Integer.toString(i)), equalTo(i));
+        }
+        assertThat(cache.get("5"), nullValue());
+        assertThat(cache.get("149"), equalTo(149));
+    }
+
+    @Test
+    public void shouldDemoteTheOldestProtectedEntryToProbation() {
+        ConcurrentCache<String, Integer> cache = filledCache(10);
+        // 9 promotions overflow the protected area (8) by one
+        for (int i = 0; i < 9; i++) {
+            cache.get(Integer.toString(i));
+        }
+        assertThat(cache.size(), equalTo(10));
+        // "0" was demoted and is the oldest probation entry now
+        cache.put("10", 10);
+        assertThat(cache.get("9"), nullValue());
+        cache.put("11", 11);
+        assertThat(cache.get("0"), nullValue());
+        assertThat(cache.get("1"), equalTo(1));
+    }
+
+    @Test
+    public void shouldKeepUpdatedProtectedEntriesProtected() {
+        ConcurrentCache<String, Integer> cache = filledCache(10);
+        cache.get("0");
+        cache.put("0", 42);
+        for (int i = 100; i < 120; i++) {
+            cache.put(Integer.toString(i), i);
+        }
+        assertThat(cache.get("0"), equalTo(42));
+    }
+
+    @Test
+    public void shouldExpireEntriesAfterTheirTimeToLive() throws Exception {
+        ConcurrentCache<String, Integer> cache =
+                new ConcurrentCache<String, Integer>(10, 1, null);
+        cache.put("a", 1);
+        Thread.sleep(20);
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.getExpirationCount(), equalTo(1L));
+        assertThat(cache.getMissCount(), equalTo(1L));
+        assertThat(cache.size(), equalTo(0));
+    }
+
+    @Test
+    public void shouldEvictByWeight() {
+        ConcurrentCache<String, String> cache =
+            new ConcurrentCache<String, String>(10, 0,
+                new ConcurrentCache.Weigher<String, String>() {
+                    @Override
+                    public int weigh(String key, String value) {
+                        return value.length();
+                    }
+                });
+        cache.put("a", "aaaa");
+        cache.put("b", "bbbb");
+        cache.put("c", "cccc");
+        assertThat(cache.get("a"), nullValue());
+        assertThat(cache.get("c"), equalTo("cccc"));
+        // heavier than the whole cache, never stored
+        cache.put("d", "ddddddddddd");
+        assertThat(cache.get("d"), nullValue());
+        assertThat(cache.get("c"), equalTo("cccc"));
+    }
+
+    @Test
+    public void shouldRemoveAndClearEntries() {
+        ConcurrentCache<String, Integer> cache = filledCache(10);
+        assertThat(cache.remove("3"), equalTo(3));
+        assertThat(cache.remove("3"), nullValue());
+        assertThat(cache.size(), equalTo(9));
+        cache.get("4");
+        cache.clear();
+        assertThat(cache.size(), equalTo(0));
+        assertThat(cache.get("4"), nullValue());
+        assertThat(cache.getHitCount(), equalTo(1L));
+    }
+
+    /** creates a full cache of "0".."n-1" => 0..n-1 */
+    private ConcurrentCache<String, Integer> filledCache(int size) {
+        ConcurrentCache<String, Integer> cache =
+                new ConcurrentCache<String, Integer>(size);
+        for (int i = 0; i < size; i++) {
+            cache.put(Integer.toString(i), i);
+        }
+        return cache;
+    }
+
+}
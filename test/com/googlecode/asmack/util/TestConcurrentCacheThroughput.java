@@ -0,0 +1,142 @@
+package com.googlecode.asmack.util;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+/**
+ * Concurrent get/put throughput of {@link ConcurrentCache}, compared to a
+ * single lock access ordered LinkedHashMap. Throughput is printed, not
+ * asserted, timings depend on the build machine.
+ */
+public class TestConcurrentCacheThroughput {
+
+    private static final int THREADS = 8;
+
+    private static final int OPERATIONS = 200000;
+
+    private static final int CAPACITY = 256;
+
+    private static final int KEYS = 1024;
+
+    /** the operations the benchmark runs against a cache */
+    private interface Target {
+        Integer get(Integer key);
+        void put(Integer key, Integer value);
+    }
+
+    @Test
+    public void shouldStayConsistentUnderConcurrentGetsAndPuts()
+        throws Exception
+    {
+        final ConcurrentCache<Integer, Integer> cache =
+                new ConcurrentCache<Integer, Integer>(CAPACITY);
+        long gets = run(new Target() {
+            public Integer get(Integer key) {
+                return cache.get(key);
+            }
+            public void put(Integer key, Integer value) {
+                cache.put(key, value);
+            }
+        }, "ConcurrentCache");
+        assertThat(cache.getHitCount() + cache.getMissCount(),
+                   equalTo(gets));
+        assertTrue(cache.size() <= CAPACITY);
+        assertTrue(cache.getEvictionCount() > 0);
+    }
+
+    @Test
+    public void shouldReportTheSingleLockBaseline() throws Exception {
+        final Map<Integer, Integer> map =
+            new LinkedHashMap<Integer, Integer>(CAPACITY * 2, 0.75f, true) {
+                private static final long serialVersionUID = 1L;
+                @Override
+                protected boolean removeEldestEntry(
+                    Map.Entry<Integer, Integer> eldest
+                ) {
+                    return size() > CAPACITY;
+                }
+            };
+        run(new Target() {
+            public Integer get(Integer key) {
+                synchronized (map) {
+                    return map.get(key);
+                }
+            }
+            public void put(Integer key, Integer value) {
+                synchronized (map) {
+                    map.put(key, value);
+                }
+            }
+        }, "synchronized LinkedHashMap");
+        assertTrue(map.size() <= CAPACITY);
+    }
+
+    /**
+     * Run the workload on all threads: skewed keys, every miss is followed
+     * by a put, like the verification and key caches.
+     * @return the number of gets, including the warm up
+     */
+    private long run(final Target target, String name) throws Exception {
+        // warm up the jit, then measure
+        long warmup = runOnce(target, 1);
+        long start = System.nanoTime();
+        long gets = runOnce(target, 2);
+        long nanos = System.nanoTime() - start;
+        System.out.println(name + ": " + THREADS + " threads, "
+            + (gets * 1000000000L / Math.max(1, nanos)) + " gets/s");
+        return warmup + gets;
+    }
+
+    private long runOnce(final Target target, final long seed)
+        throws Exception
+    {
+        final CountDownLatch ready = new CountDownLatch(THREADS);
+        final CountDownLatch go = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        final AtomicLong gets = new AtomicLong();
+        final AtomicReference<Throwable> failure =
+                                        new AtomicReference<Throwable>();
+        for (int t = 0; t < THREADS; t++) {
+            final Random random = new Random(seed * THREADS + t);
+            new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        ready.countDown();
+                        go.await();
+                        for (int i = 0; i < OPERATIONS; i++) {
+                            Integer key = random.nextInt(
+                                        random.nextInt(KEYS) + 1);
+                            if (target.get(key) == null) {
+                                target.put(key, key);
+                            }
+                        }
+                        gets.addAndGet(OPERATIONS);
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        ready.await();
+        go.countDown();
+        done.await();
+        if (failure.get() != null) {
+            throw new AssertionError(failure.get());
+        }
+        return gets.get();
+    }
+
+}
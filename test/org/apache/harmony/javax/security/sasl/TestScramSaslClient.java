@@ -0,0 +1,224 @@
+package org.apache.harmony.javax.security.sasl;
+
+import static org.hamcrest.core.IsEqual.equalTo;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+
+import javax.security.auth.callback.Callback;
+import javax.security.auth.callback.CallbackHandler;
+import javax.security.auth.callback.PasswordCallback;
+import javax.security.auth.callback.UnsupportedCallbackException;
+
+import org.apache.harmony.javax.security.auth.callback.NameCallback;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import android.util.Base64;
+
+import com.xtremelabs.robolectric.Robolectric;
+import com.xtremelabs.robolectric.RobolectricTestRunner;
+import com.xtremelabs.robolectric.util.Implementation;
+import com.xtremelabs.robolectric.util.Implements;
+
+@RunWith(RobolectricTestRunner.class)
+public class TestScramSaslClient {
+
+    /**
+     * Robolectric has no Base64 implementation, provide a plain one.
+     */
+    @Implements(Base64.class)
+    public static class ShadowBase64 {
+
+        private static final String ALPHABET =
+            "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+
+        @Implementation
+        public static String encodeToString(byte[] input, int flags) {
+            StringBuilder sb = new StringBuilder();
+            for (int i = 0; i < input.length; i += 3) {
+                int b = (input[i] & 0xff) << 16;
+                if (i + 1 < input.length) {
+                    b |= (input[i + 1] & 0xff) << 8;
+                }
+                if (i + 2 < input.length) {
+                    b |= input[i + 2] & 0xff;
+                }
+                sb.append(ALPHABET.charAt((b >> 18) & 63));
+                sb.append(ALPHABET.charAt((b >> 12) & 63));
+                sb.append(i + 1 < input.length
+                          ? ALPHABET.charAt((b >> 6) & 63) : '=');
+                sb.append(i + 2 < input.length
+                          ? ALPHABET.charAt(b & 63) : '=');
+            }
+            return sb.toString();
+        }
+
+        @Implementation
+        public static byte[] decode(String str, int flags) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            int bits = 0;
+            int count = 0;
+            for (int i = 0; i < str.length(); i++) {
+                int value = ALPHABET.indexOf(str.charAt(i));
+                if (value == -1) {
+                    if (str.charAt(i) == '=') {
+                        break;
+                    }
+                    throw new IllegalArgumentException("bad base-64");
+                }
+                bits = (bits << 6) | value;
+                count += 6;
+                if (count >= 8) {
+                    count -= 8;
+                    out.write((bits >> count) & 0xff);
+                }
+            }
+            return out.toByteArray();
+        }
+
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        Robolectric.bindShadowClass(ShadowBase64.class);
+        ScramSaslClient.clearKeyCache();
+    }
+
+    @Test
+    public void shouldMatchTheScramSha1TestVector() throws Exception {
+        // RFC 5802, section 5
+        ScramSaslClient client = newClient(ScramSaslClient.SCRAM_SHA_1,
+                                           "fyko+d2lbbFgONRv9qkxdawL");
+        assertThat(evaluate(client, ""),
+            equalTo("n,,n=user,r=fyko+d2lbbFgONRv9qkxdawL"));
+        assertThat(evaluate(client,
+            "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+            "s=QSXCR+Q6sek8bf92,i=4096"),
+            equalTo("c=biws,r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+                    "p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts="));
+        client.evaluateChallenge(
+            utf8("v=rmF9pqV8S7suAoZWja4dJRkFsKQ="));
+        assertTrue(client.isComplete());
+    }
+
+    @Test
+    public void shouldMatchTheScramSha256TestVector() throws Exception {
+        // RFC 7677, section 3
+        ScramSaslClient client = newClient(ScramSaslClient.SCRAM_SHA_256,
+                                           "rOprNGfwEbeRWgbNEkqO");
+        assertThat(evaluate(client, ""),
+            equalTo("n,,n=user,r=rOprNGfwEbeRWgbNEkqO"));
+        assertThat(evaluate(client,
+            "r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0," +
+            "s=W22ZaJ0SNY7soEsUEjb6gQ==,i=4096"),
+            equalTo("c=biws," +
+                    "r=rOprNGfwEbeRWgbNEkqO%hvYDpWUa2RaTCAfuxFIlj)hNlF$k0," +
+                    "p=dHzbZapWIk4jUhN+Ute9ytag9zjfMHgsqmmiz7AndVQ="));
+        client.evaluateChallenge(
+            utf8("v=6rriTRBi23WpRR/wtup+mMhUZUn/dB5nLTJRsjl95G4="));
+        assertTrue(client.isComplete());
+    }
+
+    @Test
+    public void shouldReuseCachedKeysForTheSameSalt() throws Exception {
+        for (int i = 0; i < 2; i++) {
+            ScramSaslClient client = newClient(ScramSaslClient.SCRAM_SHA_1,
+                                               "fyko+d2lbbFgONRv9qkxdawL");
+            evaluate(client, "");
+            assertThat(evaluate(client,
+                "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+                "s=QSXCR+Q6sek8bf92,i=4096"),
+                equalTo("c=biws," +
+                        "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+                        "p=v0X8v3Bz2T0CJGbJQyF0X+HI4Ts="));
+        }
+    }
+
+    @Test
+    public void shouldRejectLowIterationCounts() throws Exception {
+        ScramSaslClient client = newClient(ScramSaslClient.SCRAM_SHA_1,
+                                           "fyko+d2lbbFgONRv9qkxdawL");
+        evaluate(client, "");
+        try {
+            evaluate(client,
+                "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+                "s=QSXCR+Q6sek8bf92,i=4095");
+            fail("iteration count below 4096 accepted");
+        } catch (SaslException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldRejectAForeignServerNonce() throws Exception {
+        ScramSaslClient client = newClient(ScramSaslClient.SCRAM_SHA_1,
+                                           "fyko+d2lbbFgONRv9qkxdawL");
+        evaluate(client, "");
+        try {
+            evaluate(client, "r=3rfcNHYJY1ZVvWVs7j,s=QSXCR+Q6sek8bf92,i=4096");
+            fail("server nonce without client nonce accepted");
+        } catch (SaslException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void shouldRejectAWrongServerSignature() throws Exception {
+        ScramSaslClient client = newClient(ScramSaslClient.SCRAM_SHA_1,
+                                           "fyko+d2lbbFgONRv9qkxdawL");
+        evaluate(client, "");
+        evaluate(client,
+            "r=fyko+d2lbbFgONRv9qkxdawL3rfcNHYJY1ZVvWVs7j," +
+            "s=QSXCR+Q6sek8bf92,i=4096");
+        try {
+            client.evaluateChallenge(
+                utf8("v=AAAAAAAAAAAAAAAAAAAAAAAAAAA="));
+            fail("wrong server signature accepted");
+        } catch (SaslException e) {
+            // expected
+        }
+        assertThat(client.isComplete(), equalTo(false));
+    }
+
+    /** creates a client for user "user" with password "pencil" */
+    private ScramSaslClient newClient(String mechanism, String nonce) {
+        ScramSaslClient client = (ScramSaslClient) ScramSaslClient.getClient(
+            mechanism, null, new CallbackHandler() {
+                @Override
+                public void handle(Callback[] callbacks)
+                    throws IOException, UnsupportedCallbackException
+                {
+                    for (Callback callback: callbacks) {
+                        if (callback instanceof NameCallback) {
+                            ((NameCallback) callback).setName("user");
+                        } else if (callback instanceof PasswordCallback) {
+                            ((PasswordCallback) callback).setPassword(
+                                "pencil".toCharArray());
+                        } else {
+                            throw new UnsupportedCallbackException(callback);
+                        }
+                    }
+                }
+            });
+        client.setClientNonce(nonce);
+        return client;
+    }
+
+    /** feeds a server message to the client and decodes the response */
+    private String evaluate(ScramSaslClient client, String challenge)
+        throws SaslException, UnsupportedEncodingException
+    {
+        return new String(client.evaluateChallenge(utf8(challenge)), "UTF-8");
+    }
+
+    private byte[] utf8(String value) throws UnsupportedEncodingException {
+        return value.getBytes("UTF-8");
+    }
+
+}